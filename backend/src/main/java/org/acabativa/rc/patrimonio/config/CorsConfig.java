@@ -26,7 +26,9 @@ public class CorsConfig {
         config.setAllowedHeaders(List.of("*"));
 
         // Expor headers para o frontend
-        config.setExposedHeaders(Arrays.asList("Content-Type", "Content-Length", "Authorization"));
+        config.setExposedHeaders(Arrays.asList("Content-Type", "Content-Length", "Authorization",
+                "ETag", "Last-Modified", "Accept-Ranges", "Content-Range", "Content-Disposition",
+                "Link", "X-Next-Cursor", "X-Total-Count"));
 
         // Permitir credenciais (cookies, auth headers)
         config.setAllowCredentials(true);
@@ -22,6 +22,7 @@ import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 
 @Controller
 @RequestMapping("/enterprises")
@@ -50,16 +51,6 @@ public class EnterpriseController {
     public String listEnterprises(Model model) {
         List<Enterprise> enterprises = enterpriseService.getAllEnterprises();
         
-        // Load property and project data for each enterprise
-        for (Enterprise enterprise : enterprises) {
-            if (enterprise.getPropertyId() != null) {
-                propertyDAO.findById(enterprise.getPropertyId()).ifPresent(enterprise::setProperty);
-            }
-            if (enterprise.getProjectId() != null) {
-                projectService.getProjectById(enterprise.getProjectId()).ifPresent(enterprise::setProject);
-            }
-        }
-        
         model.addAttribute("enterprises", enterprises);
         
         // Statistics
@@ -80,32 +71,21 @@ public class EnterpriseController {
 
     @GetMapping("/{id}")
     public String viewEnterprise(@PathVariable Long id, Model model) {
-        Optional<Enterprise> enterprise = enterpriseService.getEnterpriseById(id);
+        // Property and project come with the enterprise
+        Optional<Enterprise> enterprise = enterpriseService.getEnterpriseWithPropertyAndProject(id);
         if (enterprise.isEmpty()) {
             return "redirect:/enterprises";
         }
         
-        Enterprise ent = enterprise.get();
-        
-        // Load property and project data
-        if (ent.getPropertyId() != null) {
-            propertyDAO.findById(ent.getPropertyId()).ifPresent(ent::setProperty);
-        }
-        if (ent.getProjectId() != null) {
-            projectService.getProjectById(ent.getProjectId()).ifPresent(ent::setProject);
-        }
-        
-        model.addAttribute("enterprise", ent);
-        
-        // Get investors for this enterprise
-        List<EnterpriseInvestor> enterpriseInvestors = enterpriseService.getEnterpriseInvestors(id);
+        model.addAttribute("enterprise", enterprise.get());
         
-        // Load investor data for each EnterpriseInvestor
-        for (EnterpriseInvestor ei : enterpriseInvestors) {
-            investorService.getInvestorById(ei.getInvestorId()).ifPresent(ei::setInvestor);
-        }
+        // Get investors for this enterprise, each with its investor data
+        List<EnterpriseInvestor> enterpriseInvestors = enterpriseService.getEnterpriseInvestorsWithInvestor(id);
         
         model.addAttribute("enterpriseInvestors", enterpriseInvestors);
+
+        // Sent back with the add investor form, so submitting it twice invests once
+        model.addAttribute("idempotencyKey", UUID.randomUUID().toString());
         
         // Get available investors for adding new ones
         try {
@@ -208,16 +188,6 @@ public class EnterpriseController {
                 // Reload enterprise list for the table
                 List<Enterprise> enterprises = enterpriseService.getAllActiveEnterprises();
                 
-                // Load property and project data for each enterprise
-                for (Enterprise enterprise : enterprises) {
-                    if (enterprise.getPropertyId() != null) {
-                        propertyDAO.findById(enterprise.getPropertyId()).ifPresent(enterprise::setProperty);
-                    }
-                    if (enterprise.getProjectId() != null) {
-                        projectService.getProjectById(enterprise.getProjectId()).ifPresent(enterprise::setProject);
-                    }
-                }
-                
                 model.addAttribute("enterprises", enterprises);
                 
                 // Statistics
@@ -251,20 +221,22 @@ public class EnterpriseController {
             @PathVariable Long enterpriseId,
             @RequestParam Long investorId,
             @RequestParam BigDecimal investmentAmount,
+            @RequestParam(required = false) String idempotencyKey,
             RedirectAttributes redirectAttributes) {
         try {
-            if (!enterpriseService.isMinimumInvestmentMet(enterpriseId, investmentAmount)) {
-                redirectAttributes.addFlashAttribute("errorMessage", "Valor de investimento abaixo do mínimo exigido!");
-                return "redirect:/enterprises/" + enterpriseId;
-            }
+            if (!enterpriseService.isInvestmentPlaced(idempotencyKey)) {
+                if (!enterpriseService.isMinimumInvestmentMet(enterpriseId, investmentAmount)) {
+                    redirectAttributes.addFlashAttribute("errorMessage", "Valor de investimento abaixo do mínimo exigido!");
+                    return "redirect:/enterprises/" + enterpriseId;
+                }
             
-            if (!enterpriseService.canAcceptInvestment(enterpriseId, investmentAmount)) {
-                redirectAttributes.addFlashAttribute("errorMessage", "Empreendimento não pode aceitar este investimento!");
-                return "redirect:/enterprises/" + enterpriseId;
+                if (!enterpriseService.canAcceptInvestment(enterpriseId, investmentAmount)) {
+                    redirectAttributes.addFlashAttribute("errorMessage", "Empreendimento não pode aceitar este investimento!");
+                    return "redirect:/enterprises/" + enterpriseId;
+                }
             }
-            
-            enterpriseService.addInvestorToEnterprise(enterpriseId, investorId, investmentAmount);
-            enterpriseService.checkAndUpdateFundingStatus(enterpriseId);
+
+            enterpriseService.addInvestorToEnterprise(enterpriseId, investorId, investmentAmount, idempotencyKey);
             
             redirectAttributes.addFlashAttribute("successMessage", "Investidor adicionado com sucesso!");
         } catch (Exception e) {
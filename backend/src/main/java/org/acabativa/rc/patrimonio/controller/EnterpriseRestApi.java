@@ -1,10 +1,15 @@
 package org.acabativa.rc.patrimonio.controller;
 
+import org.acabativa.rc.patrimonio.controller.KeysetPagination.Sorting;
 import org.acabativa.rc.patrimonio.entity.Enterprise;
 import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
 import org.acabativa.rc.patrimonio.entity.Enterprise.EnterpriseStatus;
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
+import org.acabativa.rc.patrimonio.repository.ListFilters;
 import org.acabativa.rc.patrimonio.service.EnterpriseService;
+import org.acabativa.rc.patrimonio.service.InvestmentLedgerReplay;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -20,24 +25,40 @@ import java.util.Optional;
 @RequestMapping("/api/v1/enterprises")
 public class EnterpriseRestApi {
 
+    // Newest first, except for the deadline-based lists
+    private static final Sorting SORTING = Sorting.by("createDate", true, "name", "createDate", "fundingDeadline", "expectedCompletionDate", "totalInvestmentRequired");
+    private static final Sorting BY_FUNDING_DEADLINE = Sorting.by("fundingDeadline", false, "name", "createDate", "fundingDeadline", "expectedCompletionDate", "totalInvestmentRequired");
+    private static final Sorting BY_COMPLETION_DATE = Sorting.by("expectedCompletionDate", false, "name", "createDate", "fundingDeadline", "expectedCompletionDate", "totalInvestmentRequired");
+
     private final EnterpriseService enterpriseService;
+    private final KeysetPagination pagination;
+    private final InvestmentLedgerReplay ledgerReplay;
 
     @Autowired
-    public EnterpriseRestApi(EnterpriseService enterpriseService) {
+    public EnterpriseRestApi(EnterpriseService enterpriseService, KeysetPagination pagination,
+                             InvestmentLedgerReplay ledgerReplay) {
         this.enterpriseService = enterpriseService;
+        this.pagination = pagination;
+        this.ledgerReplay = ledgerReplay;
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, String>> handleInvalidRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
     }
 
     @GetMapping
-    public ResponseEntity<List<Enterprise>> getAllEnterprises(@RequestParam(required = false) String search) {
-        List<Enterprise> enterprises;
+    public ResponseEntity<List<Enterprise>> getAllEnterprises(@RequestParam(required = false) String search,
+                                                              KeysetPagination.Params page) {
+        Specification<Enterprise> filter;
         
         if (search != null && !search.trim().isEmpty()) {
-            enterprises = enterpriseService.searchEnterprises(search.trim());
+            filter = ListFilters.activeEnterprisesMatching(search.trim());
         } else {
-            enterprises = enterpriseService.getAllActiveEnterprises();
+            filter = ListFilters.activeEnterprises();
         }
         
-        return ResponseEntity.ok(enterprises);
+        return list(page, SORTING, filter);
     }
 
     @GetMapping("/{id}")
@@ -90,45 +111,43 @@ public class EnterpriseRestApi {
 
     // Status-based endpoints
     @GetMapping("/status/{status}")
-    public ResponseEntity<List<Enterprise>> getEnterprisesByStatus(@PathVariable String status) {
+    public ResponseEntity<List<Enterprise>> getEnterprisesByStatus(@PathVariable String status,
+                                                                   KeysetPagination.Params page) {
+        EnterpriseStatus enterpriseStatus;
         try {
-            EnterpriseStatus enterpriseStatus = EnterpriseStatus.valueOf(status.toUpperCase());
-            List<Enterprise> enterprises = enterpriseService.getEnterprisesByStatus(enterpriseStatus);
-            return ResponseEntity.ok(enterprises);
+            enterpriseStatus = EnterpriseStatus.valueOf(status.toUpperCase());
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build();
         }
+        return list(page, SORTING, ListFilters.activeEnterprisesWithStatus(enterpriseStatus));
     }
 
     @GetMapping("/open-funding")
-    public ResponseEntity<List<Enterprise>> getOpenFundingEnterprises() {
-        List<Enterprise> enterprises = enterpriseService.getOpenFundingEnterprises();
-        return ResponseEntity.ok(enterprises);
+    public ResponseEntity<List<Enterprise>> getOpenFundingEnterprises(KeysetPagination.Params page) {
+        return list(page, BY_FUNDING_DEADLINE, ListFilters.enterprisesWithOpenFunding(LocalDate.now()));
     }
 
     @GetMapping("/underfunded")
-    public ResponseEntity<List<Enterprise>> getUnderfundedEnterprises() {
-        List<Enterprise> enterprises = enterpriseService.getUnderfundedEnterprises();
-        return ResponseEntity.ok(enterprises);
+    public ResponseEntity<List<Enterprise>> getUnderfundedEnterprises(KeysetPagination.Params page) {
+        return list(page, BY_FUNDING_DEADLINE, ListFilters.underfundedEnterprises());
     }
 
     @GetMapping("/overdue-funding")
-    public ResponseEntity<List<Enterprise>> getOverdueFundingEnterprises() {
-        List<Enterprise> enterprises = enterpriseService.getOverdueFundingEnterprises();
-        return ResponseEntity.ok(enterprises);
+    public ResponseEntity<List<Enterprise>> getOverdueFundingEnterprises(KeysetPagination.Params page) {
+        return list(page, BY_FUNDING_DEADLINE, ListFilters.enterprisesWithOverdueFunding(LocalDate.now()));
     }
 
     // Property and Project associations
     @GetMapping("/property/{propertyId}")
-    public ResponseEntity<List<Enterprise>> getEnterprisesByProperty(@PathVariable Long propertyId) {
-        List<Enterprise> enterprises = enterpriseService.getEnterprisesByProperty(propertyId);
-        return ResponseEntity.ok(enterprises);
+    public ResponseEntity<List<Enterprise>> getEnterprisesByProperty(@PathVariable Long propertyId,
+                                                                     KeysetPagination.Params page) {
+        return list(page, SORTING, ListFilters.enterprisesOnProperty(propertyId));
     }
 
     @GetMapping("/project/{projectId}")
-    public ResponseEntity<List<Enterprise>> getEnterprisesByProject(@PathVariable Long projectId) {
-        List<Enterprise> enterprises = enterpriseService.getEnterprisesByProject(projectId);
-        return ResponseEntity.ok(enterprises);
+    public ResponseEntity<List<Enterprise>> getEnterprisesByProject(@PathVariable Long projectId,
+                                                                    KeysetPagination.Params page) {
+        return list(page, SORTING, ListFilters.enterprisesOfProject(projectId));
     }
 
     // Investor Management
@@ -146,6 +165,7 @@ public class EnterpriseRestApi {
     @PostMapping("/{enterpriseId}/investors")
     public ResponseEntity<Map<String, Object>> addInvestorToEnterprise(
             @PathVariable Long enterpriseId,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
             @RequestBody Map<String, Object> request) {
         
         Map<String, Object> response = new HashMap<>();
@@ -154,21 +174,22 @@ public class EnterpriseRestApi {
             Long investorId = Long.valueOf(request.get("investorId").toString());
             BigDecimal investmentAmount = new BigDecimal(request.get("investmentAmount").toString());
             
-            if (!enterpriseService.isMinimumInvestmentMet(enterpriseId, investmentAmount)) {
-                response.put("success", false);
-                response.put("message", "Investment amount below minimum required");
-                return ResponseEntity.badRequest().body(response);
-            }
+            if (!enterpriseService.isInvestmentPlaced(idempotencyKey)) {
+                if (!enterpriseService.isMinimumInvestmentMet(enterpriseId, investmentAmount)) {
+                    response.put("success", false);
+                    response.put("message", "Investment amount below minimum required");
+                    return ResponseEntity.badRequest().body(response);
+                }
             
-            if (!enterpriseService.canAcceptInvestment(enterpriseId, investmentAmount)) {
-                response.put("success", false);
-                response.put("message", "Enterprise cannot accept this investment");
-                return ResponseEntity.badRequest().body(response);
+                if (!enterpriseService.canAcceptInvestment(enterpriseId, investmentAmount)) {
+                    response.put("success", false);
+                    response.put("message", "Enterprise cannot accept this investment");
+                    return ResponseEntity.badRequest().body(response);
+                }
             }
-            
+
             EnterpriseInvestor enterpriseInvestor = enterpriseService.addInvestorToEnterprise(
-                enterpriseId, investorId, investmentAmount);
-            enterpriseService.checkAndUpdateFundingStatus(enterpriseId);
+                enterpriseId, investorId, investmentAmount, idempotencyKey);
             
             response.put("success", true);
             response.put("message", "Investor added successfully");
@@ -183,6 +204,31 @@ public class EnterpriseRestApi {
         }
     }
 
+    @PutMapping("/{enterpriseId}/investors/{investorId}")
+    public ResponseEntity<Map<String, Object>> adjustInvestment(
+            @PathVariable Long enterpriseId,
+            @PathVariable Long investorId,
+            @RequestBody Map<String, Object> request) {
+        
+        Map<String, Object> response = new HashMap<>();
+        
+        try {
+            BigDecimal investmentAmount = new BigDecimal(request.get("investmentAmount").toString());
+            EnterpriseInvestor enterpriseInvestor = enterpriseService.adjustInvestment(
+                enterpriseId, investorId, investmentAmount);
+            
+            response.put("success", true);
+            response.put("message", "Investment adjusted successfully");
+            response.put("data", enterpriseInvestor);
+            return ResponseEntity.ok(response);
+            
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", "Error adjusting investment: " + e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+    }
+
     @DeleteMapping("/{enterpriseId}/investors/{investorId}")
     public ResponseEntity<Map<String, Object>> removeInvestorFromEnterprise(
             @PathVariable Long enterpriseId, 
@@ -203,6 +249,28 @@ public class EnterpriseRestApi {
         }
     }
 
+    // Investment ledger: the entries of one enterprise, oldest first
+    @GetMapping("/{enterpriseId}/ledger")
+    public ResponseEntity<List<InvestmentEvent>> getInvestmentLedger(@PathVariable Long enterpriseId) {
+        return ResponseEntity.ok(enterpriseService.getInvestmentHistory(enterpriseId));
+    }
+
+    // Rebuilds the totals of enterprises and investors from the ledger now
+    @PostMapping("/ledger/replay")
+    public ResponseEntity<InvestmentLedgerReplay.Report> replayInvestmentLedger() {
+        try {
+            return ResponseEntity.ok(ledgerReplay.run());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    @GetMapping("/ledger/replay/report")
+    public ResponseEntity<InvestmentLedgerReplay.Report> getLedgerReplayReport() {
+        InvestmentLedgerReplay.Report report = ledgerReplay.getLastReport();
+        return report != null ? ResponseEntity.ok(report) : ResponseEntity.notFound().build();
+    }
+
     // Statistics
     @GetMapping("/statistics")
     public ResponseEntity<Map<String, Object>> getEnterpriseStatistics() {
@@ -227,17 +295,17 @@ public class EnterpriseRestApi {
     @GetMapping("/completing-between")
     public ResponseEntity<List<Enterprise>> getEnterprisesCompletingBetween(
             @RequestParam String startDate,
-            @RequestParam String endDate) {
+            @RequestParam String endDate,
+            KeysetPagination.Params page) {
+        LocalDate start;
+        LocalDate end;
         try {
-            LocalDate start = LocalDate.parse(startDate);
-            LocalDate end = LocalDate.parse(endDate);
-            
-            List<Enterprise> enterprises = enterpriseService.getEnterprisesCompletingBetween(start, end);
-            return ResponseEntity.ok(enterprises);
-            
+            start = LocalDate.parse(startDate);
+            end = LocalDate.parse(endDate);
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
         }
+        return list(page, BY_COMPLETION_DATE, ListFilters.enterprisesCompletingBetween(start, end));
     }
 
     // Investment validation
@@ -257,4 +325,10 @@ public class EnterpriseRestApi {
         
         return ResponseEntity.ok(response);
     }
+
+    private ResponseEntity<List<Enterprise>> list(KeysetPagination.Params page, Sorting sorting,
+                                                  Specification<Enterprise> filter) {
+        return pagination.list(page, sorting, filter, enterpriseService::findEnterprises,
+            enterpriseService::countEnterprises);
+    }
 }
\ No newline at end of file
@@ -1,8 +1,12 @@
 package org.acabativa.rc.patrimonio.controller;
 
+import org.acabativa.rc.patrimonio.controller.KeysetPagination.Sorting;
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
 import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.repository.ListFilters;
 import org.acabativa.rc.patrimonio.service.InvestorService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -14,22 +18,27 @@ import java.util.Map;
 @RequestMapping("/api/v1/investors")
 public class InvestorRestApi {
 
+    private static final Sorting SORTING = Sorting.by("id", false, "name", "createDate", "totalFunds", "city", "state");
+
     private final InvestorService investorService;
+    private final KeysetPagination pagination;
 
     @Autowired
-    public InvestorRestApi(InvestorService investorService) {
+    public InvestorRestApi(InvestorService investorService, KeysetPagination pagination) {
         this.investorService = investorService;
+        this.pagination = pagination;
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, String>> handleInvalidRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
     }
 
     @GetMapping
-    public ResponseEntity<List<Investor>> getAllInvestors(@RequestParam(required = false) Boolean active) {
-        List<Investor> investors;
-        if (active != null && active) {
-            investors = investorService.getActiveInvestors();
-        } else {
-            investors = investorService.getAllInvestors();
-        }
-        return ResponseEntity.ok(investors);
+    public ResponseEntity<List<Investor>> getAllInvestors(@RequestParam(required = false) Boolean active,
+                                                          KeysetPagination.Params page) {
+        Specification<Investor> filter = active != null && active ? ListFilters.activeInvestors() : null;
+        return list(page, filter);
     }
 
     @GetMapping("/{id}")
@@ -85,23 +94,27 @@ public class InvestorRestApi {
     }
 
     @GetMapping("/search")
-    public ResponseEntity<List<Investor>> searchInvestors(@RequestParam String name) {
-        List<Investor> investors = investorService.searchInvestorsByName(name);
-        return ResponseEntity.ok(investors);
+    public ResponseEntity<List<Investor>> searchInvestors(@RequestParam String name, KeysetPagination.Params page) {
+        return list(page, ListFilters.investorsNamed(name));
     }
 
     @GetMapping("/location")
     public ResponseEntity<List<Investor>> getInvestorsByLocation(
             @RequestParam String city,
-            @RequestParam String state) {
-        List<Investor> investors = investorService.getInvestorsByCityAndState(city, state);
-        return ResponseEntity.ok(investors);
+            @RequestParam String state,
+            KeysetPagination.Params page) {
+        return list(page, ListFilters.activeInvestorsIn(city, state));
     }
 
     @GetMapping("/with-funds")
-    public ResponseEntity<List<Investor>> getInvestorsWithAvailableFunds() {
-        List<Investor> investors = investorService.getInvestorsWithAvailableFunds();
-        return ResponseEntity.ok(investors);
+    public ResponseEntity<List<Investor>> getInvestorsWithAvailableFunds(KeysetPagination.Params page) {
+        return list(page, ListFilters.investorsWithAvailableFunds());
+    }
+
+    // Investment ledger: the investor's entries, oldest first
+    @GetMapping("/{id}/ledger")
+    public ResponseEntity<List<InvestmentEvent>> getInvestmentLedger(@PathVariable Long id) {
+        return ResponseEntity.ok(investorService.getInvestmentHistory(id));
     }
 
     @GetMapping("/statistics")
@@ -113,4 +126,8 @@ public class InvestorRestApi {
         );
         return ResponseEntity.ok(stats);
     }
+
+    private ResponseEntity<List<Investor>> list(KeysetPagination.Params page, Specification<Investor> filter) {
+        return pagination.list(page, SORTING, filter, investorService::findInvestors, investorService::countInvestors);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package org.acabativa.rc.patrimonio.controller;
+
+import org.acabativa.rc.patrimonio.repository.KeysetPage;
+import org.acabativa.rc.patrimonio.repository.KeysetPage.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Paging of the list endpoints of properties, projects, investors and
+ * enterprises, on top of {@link KeysetPage}.
+ *
+ * Paging is asked for with {@code size} or {@code cursor}; without either the
+ * whole list is returned, sorted, as before paging existed, so callers that
+ * do not follow cursors still get every row. The body stays a plain JSON
+ * array, one page of it. The next page is given by the {@code Link}
+ * ({@code rel="next"}) and {@code X-Next-Cursor} headers, which are absent on
+ * the last page. A page has {@code size} rows, at most
+ * {@code api.pagination.max-size}, or {@code api.pagination.default-size}
+ * when only a cursor is sent. The total is only counted when asked for
+ * with {@code count=true}, and sent in {@code X-Total-Count}. {@code sort} is
+ * one of the endpoint's sort keys, optionally followed by {@code ,desc}; past
+ * the first page the sort comes from the cursor.
+ */
+@Component
+public class KeysetPagination {
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+    // Query parameters of a list endpoint, all optional
+    public record Params(String cursor, Integer size, String sort, Boolean count) {
+    }
+
+    // The keys a list can be sorted by and its default sort
+    public record Sorting(Set<String> keys, String defaultKey, boolean defaultDescending) {
+
+        public static Sorting by(String defaultKey, boolean defaultDescending, String... otherKeys) {
+            Set<String> keys = new LinkedHashSet<>();
+            keys.add(defaultKey);
+            keys.addAll(List.of(otherKeys));
+            keys.add("id");
+            return new Sorting(Collections.unmodifiableSet(keys), defaultKey, defaultDescending);
+        }
+    }
+
+    private final int defaultSize;
+    private final int maxSize;
+
+    public KeysetPagination(@Value("${api.pagination.default-size:50}") int defaultSize,
+                            @Value("${api.pagination.max-size:200}") int maxSize) {
+        this.maxSize = maxSize;
+        this.defaultSize = Math.min(defaultSize, maxSize);
+    }
+
+    /**
+     * One page of the rows matching {@code filter}, with the paging headers,
+     * or all of them when no page was asked for.
+     *
+     * @throws IllegalArgumentException when the size, sort or cursor is invalid
+     */
+    public <T> ResponseEntity<List<T>> list(Params params, Sorting sorting, Specification<T> filter,
+                                            BiFunction<Specification<T>, KeysetPage.Request, KeysetPage<T>> finder,
+                                            Function<Specification<T>, Long> counter) {
+        KeysetPage<T> page = finder.apply(filter, request(params, sorting));
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (Boolean.TRUE.equals(params.count())) {
+            response.header(TOTAL_COUNT_HEADER, String.valueOf(counter.apply(filter)));
+        }
+        if (page.next() != null) {
+            String next = page.next().encode();
+            String link = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam("cursor", next)
+                .replaceQueryParam("count")
+                .build()
+                .toUriString();
+            response.header(NEXT_CURSOR_HEADER, next);
+            response.header(HttpHeaders.LINK, "<" + link + ">; rel=\"next\"");
+        }
+        return response.body(page.content());
+    }
+
+    private KeysetPage.Request request(Params params, Sorting sorting) {
+        boolean paged = params.size() != null || (params.cursor() != null && !params.cursor().isBlank());
+        int size = paged ? defaultSize : KeysetPage.Request.ALL;
+        if (params.size() != null) {
+            if (params.size() < 1) {
+                throw new IllegalArgumentException("Page size must be at least 1");
+            }
+            size = Math.min(params.size(), maxSize);
+        }
+
+        if (params.cursor() != null && !params.cursor().isBlank()) {
+            Cursor after = Cursor.decode(params.cursor());
+            checkSortKey(after.sortKey(), sorting);
+            return new KeysetPage.Request(after.sortKey(), after.descending(), size, after);
+        }
+
+        if (params.sort() == null || params.sort().isBlank()) {
+            return new KeysetPage.Request(sorting.defaultKey(), sorting.defaultDescending(), size, null);
+        }
+        String[] sort = params.sort().split(",", 2);
+        String key = sort[0].trim();
+        checkSortKey(key, sorting);
+        boolean descending = false;
+        if (sort.length == 2) {
+            String direction = sort[1].trim();
+            if (!direction.equalsIgnoreCase("asc") && !direction.equalsIgnoreCase("desc")) {
+                throw new IllegalArgumentException("Sort direction must be asc or desc");
+            }
+            descending = direction.equalsIgnoreCase("desc");
+        }
+        return new KeysetPage.Request(key, descending, size, null);
+    }
+
+    private static void checkSortKey(String key, Sorting sorting) {
+        if (!sorting.keys().contains(key)) {
+            throw new IllegalArgumentException("Cannot sort by " + key + "; use one of " + sorting.keys());
+        }
+    }
+}
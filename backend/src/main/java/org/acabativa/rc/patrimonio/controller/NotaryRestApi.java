@@ -1,13 +1,18 @@
 package org.acabativa.rc.patrimonio.controller;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Logger;
 
+import org.acabativa.rc.patrimonio.controller.KeysetPagination.Sorting;
 import org.acabativa.rc.patrimonio.entity.Property;
+import org.acabativa.rc.patrimonio.repository.ListFilters;
 import org.acabativa.rc.patrimonio.service.Notary;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -21,22 +26,32 @@ public class NotaryRestApi {
 
     private final Logger LOGGER = Logger.getLogger(NotaryRestApi.class.getName());
 
+    private static final Sorting SORTING = Sorting.by("id", false, "name", "totalArea", "availableArea", "city", "state");
+
     private Notary notary;
+    private KeysetPagination pagination;
 
     @Autowired
-    public NotaryRestApi(Notary notary) {
+    public NotaryRestApi(Notary notary, KeysetPagination pagination) {
         this.notary = notary;
+        this.pagination = pagination;
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, String>> handleInvalidRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
     }
 
     @GetMapping
-    public List<Property> getProperties(){
-        return this.notary.getProperties();
+    public ResponseEntity<List<Property>> getProperties(KeysetPagination.Params page){
+        return pagination.list(page, SORTING, null, notary::findProperties, notary::countProperties);
     }
 
     // Endpoint para retornar apenas propriedades aprovadas (para o frontend público)
     @GetMapping("/approved")
-    public List<Property> getApprovedProperties(){
-        return this.notary.getApprovedProperties();
+    public ResponseEntity<List<Property>> getApprovedProperties(KeysetPagination.Params page){
+        return pagination.list(page, SORTING, ListFilters.approvedProperties(),
+            notary::findProperties, notary::countProperties);
     }
 
     @GetMapping("/{id}")
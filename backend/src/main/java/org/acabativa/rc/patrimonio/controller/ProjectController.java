@@ -1,29 +1,41 @@
 package org.acabativa.rc.patrimonio.controller;
 
+import org.acabativa.rc.patrimonio.controller.KeysetPagination.Sorting;
 import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.repository.ListFilters;
 import org.acabativa.rc.patrimonio.service.ProjectService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/v1/project")
 public class ProjectController {
 
+    private static final Sorting SORTING = Sorting.by("id", false, "name", "startDate", "estimatedEndDate", "totalInvestment");
+
     private final ProjectService projectService;
+    private final KeysetPagination pagination;
 
     @Autowired
-    public ProjectController(ProjectService projectService) {
+    public ProjectController(ProjectService projectService, KeysetPagination pagination) {
         this.projectService = projectService;
+        this.pagination = pagination;
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Map<String, String>> handleInvalidRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
     }
 
     @GetMapping
-    public ResponseEntity<List<Project>> getAllProjects() {
-        List<Project> projects = projectService.getAllProjects();
-        return ResponseEntity.ok(projects);
+    public ResponseEntity<List<Project>> getAllProjects(KeysetPagination.Params page) {
+        return list(page, null);
     }
 
     @GetMapping("/{id}")
@@ -61,37 +73,35 @@ public class ProjectController {
     }
 
     @GetMapping("/status/{status}")
-    public ResponseEntity<List<Project>> getProjectsByStatus(@PathVariable String status) {
+    public ResponseEntity<List<Project>> getProjectsByStatus(@PathVariable String status, KeysetPagination.Params page) {
+        Project.Status statusEnum;
         try {
-            Project.Status statusEnum = Project.Status.valueOf(status.toUpperCase());
-            List<Project> projects = projectService.getProjectsByStatus(statusEnum);
-            return ResponseEntity.ok(projects);
+            statusEnum = Project.Status.valueOf(status.toUpperCase());
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build();
         }
+        return list(page, ListFilters.projectsWithStatus(statusEnum));
     }
 
     @GetMapping("/priority/{priority}")
-    public ResponseEntity<List<Project>> getProjectsByPriority(@PathVariable String priority) {
+    public ResponseEntity<List<Project>> getProjectsByPriority(@PathVariable String priority, KeysetPagination.Params page) {
+        Project.Priority priorityEnum;
         try {
-            Project.Priority priorityEnum = Project.Priority.valueOf(priority.toUpperCase());
-            List<Project> projects = projectService.getProjectsByPriority(priorityEnum);
-            return ResponseEntity.ok(projects);
+            priorityEnum = Project.Priority.valueOf(priority.toUpperCase());
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build();
         }
+        return list(page, ListFilters.projectsWithPriority(priorityEnum));
     }
 
     @GetMapping("/category/{category}")
-    public ResponseEntity<List<Project>> getProjectsByCategory(@PathVariable String category) {
-        List<Project> projects = projectService.getProjectsByCategory(category);
-        return ResponseEntity.ok(projects);
+    public ResponseEntity<List<Project>> getProjectsByCategory(@PathVariable String category, KeysetPagination.Params page) {
+        return list(page, ListFilters.projectsInCategory(category));
     }
 
     @GetMapping("/search")
-    public ResponseEntity<List<Project>> searchProjects(@RequestParam String q) {
-        List<Project> projects = projectService.searchProjects(q);
-        return ResponseEntity.ok(projects);
+    public ResponseEntity<List<Project>> searchProjects(@RequestParam String q, KeysetPagination.Params page) {
+        return list(page, ListFilters.projectsMatching(q));
     }
 
     @GetMapping("/categories")
@@ -112,4 +122,8 @@ public class ProjectController {
             return ResponseEntity.notFound().build();
         }
     }
+
+    private ResponseEntity<List<Project>> list(KeysetPagination.Params page, Specification<Project> filter) {
+        return pagination.list(page, SORTING, filter, projectService::findProjects, projectService::countProjects);
+    }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package org.acabativa.rc.patrimonio.entity;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.ColumnDefault;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -34,7 +35,12 @@ public class Enterprise {
     @Column(name = "total_investment_required", precision = 15, scale = 2)
     private BigDecimal totalInvestmentRequired;
 
-    @Column(name = "total_investment_raised", precision = 15, scale = 2)
+    // Sum of the enterprise's entries in the investment ledger, only moved by
+    // the conditional updates of InvestmentAllocator, so saving an enterprise
+    // can neither set it nor overwrite investments placed meanwhile
+    @ColumnDefault("0")
+    @Column(name = "total_investment_raised", precision = 15, scale = 2, nullable = false,
+            insertable = false, updatable = false)
     private BigDecimal totalInvestmentRaised = BigDecimal.ZERO;
 
     @Column(name = "expected_return_percentage", precision = 5, scale = 2)
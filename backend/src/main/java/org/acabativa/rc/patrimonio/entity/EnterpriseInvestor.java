@@ -5,7 +5,10 @@ import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "enterprise_investor")
+@Table(name = "enterprise_investor", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_enterprise_investor", columnNames = {"enterprise_id", "investor_id"}),
+    @UniqueConstraint(name = "uk_enterprise_investor_idempotency_key", columnNames = "idempotency_key")
+})
 public class EnterpriseInvestor {
 
     @Id
@@ -27,6 +30,11 @@ public class EnterpriseInvestor {
     @Column(name = "shareholding_percentage", precision = 5, scale = 2)
     private BigDecimal shareholdingPercentage;
 
+    // Client-chosen key of the request that placed the investment; a retried
+    // request with the same key gets this row back instead of investing twice
+    @Column(name = "idempotency_key", length = 100)
+    private String idempotencyKey;
+
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "enterprise_id", insertable = false, updatable = false)
     @com.fasterxml.jackson.annotation.JsonIgnore
@@ -103,6 +111,14 @@ public class EnterpriseInvestor {
         this.shareholdingPercentage = shareholdingPercentage;
     }
 
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
     public Enterprise getEnterprise() {
         return enterprise;
     }
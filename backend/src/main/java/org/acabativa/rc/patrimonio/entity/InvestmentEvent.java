@@ -0,0 +1,98 @@
+package org.acabativa.rc.patrimonio.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.Immutable;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * One entry of the investment ledger: an investment placed, withdrawn or
+ * adjusted. Entries are only ever appended. {@code amount} is the signed
+ * change to the investor's position in the enterprise, so a position, the
+ * amount raised by an enterprise and the funds invested by an investor are
+ * all sums of entries, and can be rebuilt from them (see
+ * {@code InvestmentLedgerReplay}).
+ */
+@Entity
+@Immutable
+@Table(name = "investment_event", indexes = {
+    @Index(name = "idx_investment_event_enterprise", columnList = "enterprise_id"),
+    @Index(name = "idx_investment_event_investor", columnList = "investor_id")
+})
+public class InvestmentEvent {
+
+    public enum Type {
+        PLACED, WITHDRAWN, ADJUSTED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "investment_event_sequence")
+    // Reserved 50 at a time so several entries go out in one JDBC batch; the
+    // database sequence must use the same increment (see setup-database.sql)
+    @SequenceGenerator(name = "investment_event_sequence", sequenceName = "investment_event_sequence", allocationSize = 50)
+    private Long id;
+
+    @Column(name = "enterprise_id", nullable = false)
+    private Long enterpriseId;
+
+    @Column(name = "investor_id", nullable = false)
+    private Long investorId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 20)
+    private Type type;
+
+    @Column(nullable = false, precision = 15, scale = 2)
+    private BigDecimal amount;
+
+    @Column(name = "occurred_at", nullable = false)
+    private LocalDateTime occurredAt;
+
+    protected InvestmentEvent() {
+    }
+
+    public InvestmentEvent(Long enterpriseId, Long investorId, Type type, BigDecimal amount, LocalDateTime occurredAt) {
+        this.enterpriseId = enterpriseId;
+        this.investorId = investorId;
+        this.type = type;
+        this.amount = amount;
+        this.occurredAt = occurredAt;
+    }
+
+    public static InvestmentEvent placed(Long enterpriseId, Long investorId, BigDecimal amount) {
+        return new InvestmentEvent(enterpriseId, investorId, Type.PLACED, amount, LocalDateTime.now());
+    }
+
+    public static InvestmentEvent withdrawn(Long enterpriseId, Long investorId, BigDecimal amount) {
+        return new InvestmentEvent(enterpriseId, investorId, Type.WITHDRAWN, amount.negate(), LocalDateTime.now());
+    }
+
+    public static InvestmentEvent adjusted(Long enterpriseId, Long investorId, BigDecimal change) {
+        return new InvestmentEvent(enterpriseId, investorId, Type.ADJUSTED, change, LocalDateTime.now());
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getEnterpriseId() {
+        return enterpriseId;
+    }
+
+    public Long getInvestorId() {
+        return investorId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public LocalDateTime getOccurredAt() {
+        return occurredAt;
+    }
+}
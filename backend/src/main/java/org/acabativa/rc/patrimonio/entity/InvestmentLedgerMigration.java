@@ -0,0 +1,74 @@
+package org.acabativa.rc.patrimonio.entity;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * The single row that tracks the recording of investments made before the
+ * investment ledger existed (see {@code InvestmentLedgerBackfill}). Instances
+ * lock it for every batch, so the batches are recorded once between them,
+ * and it keeps the last enterprise recorded so a restart resumes the pass.
+ */
+@Entity
+@Table(name = "investment_ledger_migration")
+public class InvestmentLedgerMigration {
+
+    public static final Long ID = 1L;
+
+    @Id
+    private Long id;
+
+    // Null until inserted, so saving a new marker inserts it instead of
+    // merging over one another instance created meanwhile
+    @Version
+    private Long version;
+
+    @Column(name = "last_enterprise_id", nullable = false)
+    private Long lastEnterpriseId;
+
+    @Column(name = "started_at", nullable = false)
+    private LocalDateTime startedAt;
+
+    @Column(name = "finished_at")
+    private LocalDateTime finishedAt;
+
+    protected InvestmentLedgerMigration() {
+    }
+
+    public static InvestmentLedgerMigration start() {
+        InvestmentLedgerMigration migration = new InvestmentLedgerMigration();
+        migration.id = ID;
+        migration.lastEnterpriseId = 0L;
+        migration.startedAt = LocalDateTime.now();
+        return migration;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getLastEnterpriseId() {
+        return lastEnterpriseId;
+    }
+
+    public void setLastEnterpriseId(Long lastEnterpriseId) {
+        this.lastEnterpriseId = lastEnterpriseId;
+    }
+
+    public LocalDateTime getStartedAt() {
+        return startedAt;
+    }
+
+    public LocalDateTime getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(LocalDateTime finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+
+    public boolean isFinished() {
+        return finishedAt != null;
+    }
+}
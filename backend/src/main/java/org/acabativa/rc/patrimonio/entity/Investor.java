@@ -57,7 +57,9 @@ public class Investor {
     @Column(precision = 15, scale = 2)
     private BigDecimal totalFunds;
 
-    @Column(precision = 15, scale = 2)
+    // Sum of the investor's entries in the investment ledger, kept by
+    // InvestmentAllocator; saving an edited investor does not change it
+    @Column(precision = 15, scale = 2, updatable = false)
     private BigDecimal investedFunds;
 
     @Column(length = 1000)
@@ -1,12 +1,15 @@
 package org.acabativa.rc.patrimonio.repository;
 
 import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,6 +17,10 @@ import java.util.Optional;
 public interface EnterpriseInvestorRepository extends JpaRepository<EnterpriseInvestor, Long> {
 
     List<EnterpriseInvestor> findByEnterpriseId(Long enterpriseId);
+
+    // With each investor loaded in the same query, for the enterprise page
+    @EntityGraph(attributePaths = "investor")
+    List<EnterpriseInvestor> findWithInvestorByEnterpriseId(Long enterpriseId);
     
     List<EnterpriseInvestor> findByInvestorId(Long investorId);
     
@@ -21,6 +28,24 @@ public interface EnterpriseInvestorRepository extends JpaRepository<EnterpriseIn
     
     boolean existsByEnterpriseIdAndInvestorId(Long enterpriseId, Long investorId);
 
+    Optional<EnterpriseInvestor> findByIdempotencyKey(String idempotencyKey);
+
+    List<EnterpriseInvestor> findByEnterpriseIdIn(Collection<Long> enterpriseIds);
+
+    // Only while it still has the amount read; 0 when a concurrent change
+    // or removal got there first
+    @Modifying
+    @Query("DELETE FROM EnterpriseInvestor ei WHERE ei.id = :id AND ei.investmentAmount = :amount")
+    int deleteInvestment(@Param("id") Long id, @Param("amount") BigDecimal amount);
+
+    @Modifying(clearAutomatically = true)
+    @Query("UPDATE EnterpriseInvestor ei SET ei.investmentAmount = :newAmount, " +
+           "ei.shareholdingPercentage = :shareholdingPercentage " +
+           "WHERE ei.id = :id AND ei.investmentAmount = :amount")
+    int updateInvestment(@Param("id") Long id, @Param("amount") BigDecimal amount,
+                         @Param("newAmount") BigDecimal newAmount,
+                         @Param("shareholdingPercentage") BigDecimal shareholdingPercentage);
+
     @Query("SELECT COALESCE(SUM(ei.investmentAmount), 0) FROM EnterpriseInvestor ei WHERE ei.enterpriseId = :enterpriseId")
     BigDecimal getTotalInvestmentByEnterprise(@Param("enterpriseId") Long enterpriseId);
 
@@ -2,23 +2,37 @@ package org.acabativa.rc.patrimonio.repository;
 
 import org.acabativa.rc.patrimonio.entity.Enterprise;
 import org.acabativa.rc.patrimonio.entity.Enterprise.EnterpriseStatus;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import jakarta.persistence.LockModeType;
+
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface EnterpriseRepository extends JpaRepository<Enterprise, Long> {
+public interface EnterpriseRepository extends JpaRepository<Enterprise, Long>, JpaSpecificationExecutor<Enterprise> {
 
     List<Enterprise> findByActiveTrue();
     
+    // The list pages show each enterprise's property and project; the graph
+    // loads them in the same query instead of one query per row
+    @EntityGraph(attributePaths = {"property", "project"})
     List<Enterprise> findByActiveTrueOrderByCreateDateDesc();
+
+    List<Enterprise> findTop3ByActiveTrueOrderByCreateDateDesc();
     
+    @EntityGraph(attributePaths = {"property", "project"})
     List<Enterprise> findAllByOrderByCreateDateDesc();
     
     List<Enterprise> findByStatus(EnterpriseStatus status);
@@ -31,9 +45,14 @@ public interface EnterpriseRepository extends JpaRepository<Enterprise, Long> {
     
     Optional<Enterprise> findByIdAndActiveTrue(Long id);
 
+    @EntityGraph(attributePaths = {"property", "project"})
+    Optional<Enterprise> findWithPropertyAndProjectByIdAndActiveTrue(Long id);
+
+    @EntityGraph(attributePaths = {"property", "project"})
     @Query("SELECT e FROM Enterprise e WHERE e.active = true AND e.status = :status ORDER BY e.createDate DESC")
     List<Enterprise> findActiveByStatus(@Param("status") EnterpriseStatus status);
 
+    @EntityGraph(attributePaths = {"property", "project"})
     @Query("SELECT e FROM Enterprise e WHERE e.active = true AND e.fundingDeadline >= :currentDate ORDER BY e.fundingDeadline ASC")
     List<Enterprise> findActiveWithOpenFunding(@Param("currentDate") LocalDate currentDate);
 
@@ -49,6 +68,55 @@ public interface EnterpriseRepository extends JpaRepository<Enterprise, Long> {
     @Query("SELECT COUNT(e) FROM Enterprise e WHERE e.active = true")
     long countActiveEnterprises();
 
+    // Adds an investment only while it fits in what is still required, and
+    // completes an active enterprise it fills; 0 when it does not fit. The
+    // status is set first so it sees the amount raised before the increment
+    @Modifying
+    @Query("UPDATE Enterprise e SET " +
+           "e.status = CASE WHEN e.status = 'ACTIVE' AND e.totalInvestmentRaised + :amount >= e.totalInvestmentRequired " +
+           "THEN 'COMPLETED' ELSE e.status END, " +
+           "e.totalInvestmentRaised = e.totalInvestmentRaised + :amount, e.updateDate = CURRENT_TIMESTAMP " +
+           "WHERE e.id = :id AND e.active = true AND e.totalInvestmentRaised + :amount <= e.totalInvestmentRequired")
+    int allocateInvestment(@Param("id") Long id, @Param("amount") BigDecimal amount);
+
+    // Gives capacity back and reopens an enterprise that was completed by being
+    // fully funded (one completed by hand while short of funding stays so). As
+    // above, the status is set first so it sees the amount before the decrement
+    @Modifying
+    @Query("UPDATE Enterprise e SET " +
+           "e.status = CASE WHEN e.status = 'COMPLETED' AND e.totalInvestmentRaised >= e.totalInvestmentRequired " +
+           "AND e.totalInvestmentRaised - :amount < e.totalInvestmentRequired THEN 'ACTIVE' ELSE e.status END, " +
+           "e.totalInvestmentRaised = CASE WHEN e.totalInvestmentRaised > :amount " +
+           "THEN e.totalInvestmentRaised - :amount ELSE 0 END, e.updateDate = CURRENT_TIMESTAMP WHERE e.id = :id")
+    int releaseInvestment(@Param("id") Long id, @Param("amount") BigDecimal amount);
+
+    // Closes the enterprise to new investments; allocations waiting on its row
+    // then fail their conditional increment
+    @Modifying
+    @Query("UPDATE Enterprise e SET e.active = false, e.updateDate = CURRENT_TIMESTAMP WHERE e.id = :id")
+    int deactivate(@Param("id") Long id);
+
+    @Modifying
+    @Query("UPDATE Enterprise e SET e.totalInvestmentRaised = :amount, e.updateDate = CURRENT_TIMESTAMP WHERE e.id = :id")
+    int setInvestmentRaised(@Param("id") Long id, @Param("amount") BigDecimal amount);
+
+    @Query("SELECT e.id FROM Enterprise e ORDER BY e.id")
+    List<Long> findAllIds();
+
+    // Keyset-paged scan of the ids for background jobs
+    @Query("SELECT e.id FROM Enterprise e WHERE e.id > :id ORDER BY e.id")
+    List<Long> findIdsAfter(@Param("id") Long id, Limit limit);
+
+    // Locked until the end of the transaction, for rebuilding their totals
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT e FROM Enterprise e WHERE e.id IN :ids")
+    List<Enterprise> lockAllById(@Param("ids") Collection<Long> ids);
+
+    // One row: active count, investment required, investment raised and average commodity value increase
+    @Query("SELECT COUNT(e), COALESCE(SUM(e.totalInvestmentRequired), 0), COALESCE(SUM(e.totalInvestmentRaised), 0), " +
+           "AVG(e.expectedCommodityValueIncrease) FROM Enterprise e WHERE e.active = true")
+    List<Object[]> sumActiveInvestment();
+
     @Query("SELECT COUNT(e) FROM Enterprise e WHERE e.active = true AND e.status = :status")
     long countByStatus(@Param("status") EnterpriseStatus status);
 
@@ -65,6 +133,7 @@ public interface EnterpriseRepository extends JpaRepository<Enterprise, Long> {
            "LOWER(p.name) LIKE LOWER(CONCAT('%', :searchTerm, '%')))")
     List<Enterprise> searchByNameDescriptionOrProperty(@Param("searchTerm") String searchTerm);
 
+    @EntityGraph(attributePaths = {"property", "project"})
     @Query("SELECT e FROM Enterprise e WHERE e.active = true AND " +
            "e.totalInvestmentRaised < e.totalInvestmentRequired ORDER BY e.fundingDeadline ASC")
     List<Enterprise> findUnderfundedEnterprises();
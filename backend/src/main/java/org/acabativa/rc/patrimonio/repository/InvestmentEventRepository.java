@@ -0,0 +1,40 @@
+package org.acabativa.rc.patrimonio.repository;
+
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface InvestmentEventRepository extends JpaRepository<InvestmentEvent, Long> {
+
+    List<InvestmentEvent> findByEnterpriseIdOrderByIdAsc(Long enterpriseId);
+
+    List<InvestmentEvent> findByInvestorIdOrderByIdAsc(Long investorId);
+
+    // Rows of enterprise id, investor id, position and time of the last entry
+    @Query("SELECT ev.enterpriseId, ev.investorId, SUM(ev.amount), MAX(ev.occurredAt) FROM InvestmentEvent ev " +
+           "WHERE ev.enterpriseId IN :enterpriseIds GROUP BY ev.enterpriseId, ev.investorId")
+    List<Object[]> sumPositions(@Param("enterpriseIds") Collection<Long> enterpriseIds);
+
+    // Rows of enterprise id, investor id, position and time of the first entry
+    @Query("SELECT ev.enterpriseId, ev.investorId, SUM(ev.amount), MIN(ev.occurredAt) FROM InvestmentEvent ev " +
+           "WHERE ev.enterpriseId IN :enterpriseIds GROUP BY ev.enterpriseId, ev.investorId")
+    List<Object[]> sumPositionsFromFirstEntry(@Param("enterpriseIds") Collection<Long> enterpriseIds);
+
+    // Same rows for enterprises that no longer exist, where more was withdrawn
+    // than the ledger ever recorded as placed
+    @Query("SELECT ev.enterpriseId, ev.investorId, SUM(ev.amount), MIN(ev.occurredAt) FROM InvestmentEvent ev " +
+           "WHERE NOT EXISTS (SELECT e.id FROM Enterprise e WHERE e.id = ev.enterpriseId) " +
+           "GROUP BY ev.enterpriseId, ev.investorId HAVING SUM(ev.amount) < 0")
+    List<Object[]> sumOverdrawnPositionsOfDeletedEnterprises();
+
+    // Rows of investor id and funds invested
+    @Query("SELECT ev.investorId, SUM(ev.amount) FROM InvestmentEvent ev " +
+           "WHERE ev.investorId IN :investorIds GROUP BY ev.investorId")
+    List<Object[]> sumByInvestor(@Param("investorIds") Collection<Long> investorIds);
+}
@@ -0,0 +1,20 @@
+package org.acabativa.rc.patrimonio.repository;
+
+import org.acabativa.rc.patrimonio.entity.InvestmentLedgerMigration;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import jakarta.persistence.LockModeType;
+import java.util.Optional;
+
+@Repository
+public interface InvestmentLedgerMigrationRepository extends JpaRepository<InvestmentLedgerMigration, Long> {
+
+    // Locked until the end of the transaction, so one instance records a batch at a time
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT m FROM InvestmentLedgerMigration m WHERE m.id = :id")
+    Optional<InvestmentLedgerMigration> lockById(@Param("id") Long id);
+}
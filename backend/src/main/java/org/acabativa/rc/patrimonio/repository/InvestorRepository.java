@@ -2,14 +2,22 @@ package org.acabativa.rc.patrimonio.repository;
 
 import org.acabativa.rc.patrimonio.entity.Investor;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import jakarta.persistence.LockModeType;
+
+import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface InvestorRepository extends JpaRepository<Investor, Long> {
+public interface InvestorRepository extends JpaRepository<Investor, Long>, JpaSpecificationExecutor<Investor> {
     
     Optional<Investor> findByTaxId(String taxId);
     
@@ -28,4 +36,42 @@ public interface InvestorRepository extends JpaRepository<Investor, Long> {
     List<Investor> findAllOrderByTotalFundsDesc();
     
     boolean existsByTaxId(String taxId);
-}
\ No newline at end of file
+
+    List<Investor> findTop5ByActiveTrueOrderByCreateDateDesc();
+
+    @Query("SELECT COUNT(i) FROM Investor i WHERE i.active = true")
+    long countActiveInvestors();
+
+    // Same rule as Investor.getAvailableFunds: nothing available when either amount is missing
+    @Query("SELECT COALESCE(SUM(i.totalFunds - i.investedFunds), 0) FROM Investor i " +
+           "WHERE i.active = true AND i.totalFunds IS NOT NULL AND i.investedFunds IS NOT NULL")
+    BigDecimal getTotalAvailableFunds();
+
+    @Query("SELECT COALESCE(SUM(i.investedFunds), 0) FROM Investor i WHERE i.active = true")
+    BigDecimal getTotalInvestedFunds();
+
+    // One row: active count, available funds and invested funds
+    @Query("SELECT COUNT(i), " +
+           "COALESCE(SUM(CASE WHEN i.totalFunds IS NOT NULL AND i.investedFunds IS NOT NULL " +
+           "THEN i.totalFunds - i.investedFunds ELSE 0 END), 0), " +
+           "COALESCE(SUM(i.investedFunds), 0) FROM Investor i WHERE i.active = true")
+    List<Object[]> sumActiveFunds();
+
+    // The funds invested are the sum of the investor's ledger entries; only
+    // the investment allocation and the ledger replay change them
+    @Modifying
+    @Query("UPDATE Investor i SET i.investedFunds = COALESCE(i.investedFunds, 0) + :change WHERE i.id = :id")
+    int addInvestedFunds(@Param("id") Long id, @Param("change") BigDecimal change);
+
+    @Modifying
+    @Query("UPDATE Investor i SET i.investedFunds = :amount WHERE i.id = :id")
+    int setInvestedFunds(@Param("id") Long id, @Param("amount") BigDecimal amount);
+
+    @Query("SELECT i.id FROM Investor i ORDER BY i.id")
+    List<Long> findAllIds();
+
+    // Locked until the end of the transaction, for rebuilding their totals
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT i FROM Investor i WHERE i.id IN :ids")
+    List<Investor> lockAllById(@Param("ids") Collection<Long> ids);
+}
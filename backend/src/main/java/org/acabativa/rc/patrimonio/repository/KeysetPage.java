@@ -0,0 +1,164 @@
+package org.acabativa.rc.patrimonio.repository;
+
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.jpa.domain.Specification;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of a list read with keyset pagination on {@code (sortKey, id)}.
+ *
+ * Instead of an offset, each page starts right after the last row of the
+ * previous one: {@code WHERE (key, id) > (:lastKey, :lastId) ORDER BY key, id
+ * LIMIT size + 1}. The cost of a page does not grow with how far into the
+ * list it is, and rows inserted or deleted meanwhile do not shift the pages.
+ * The id breaks ties between equal keys. Rows whose key is null come last in
+ * both directions, so nullable columns can be used as sort keys too.
+ *
+ * {@code next} is null on the last page.
+ */
+public record KeysetPage<T>(List<T> content, Cursor next) {
+
+    /**
+     * Where the next page starts: the sort of the list and the key and id of
+     * the last row returned. Opaque to clients.
+     */
+    public record Cursor(String sortKey, boolean descending, Long id, String value) {
+
+        public String encode() {
+            String raw = sortKey + "," + (descending ? "desc" : "asc") + "," + id + (value != null ? "," + value : "");
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @throws IllegalArgumentException when the cursor was not produced by {@link #encode()}
+         */
+        public static Cursor decode(String cursor) {
+            try {
+                String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",", 4);
+                if (parts.length < 3 || !(parts[1].equals("asc") || parts[1].equals("desc"))) {
+                    throw new IllegalArgumentException("Invalid cursor");
+                }
+                return new Cursor(parts[0], parts[1].equals("desc"), Long.valueOf(parts[2]),
+                    parts.length == 4 ? parts[3] : null);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid cursor", e);
+            }
+        }
+    }
+
+    // A page to read: its sort, its size and, past the first page, where it starts
+    public record Request(String sortKey, boolean descending, int size, Cursor after) {
+
+        // Size of a request that reads every row as one page, with no next cursor
+        public static final int ALL = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reads one page of the rows matching {@code filter}, which may be null.
+     * Only {@code size + 1} rows are fetched, the extra one telling whether
+     * there is a next page. A request of {@link Request#ALL} rows reads them
+     * all, in the same order.
+     *
+     * @throws IllegalArgumentException when the cursor's value does not fit the sort key
+     */
+    public static <T> KeysetPage<T> fetch(JpaSpecificationExecutor<T> repository, Specification<T> filter,
+                                          Request request) {
+        Specification<T> page = Specification.where(filter).and(keyset(request));
+        List<T> rows;
+        try {
+            rows = repository.findBy(page, query -> request.size() == Request.ALL
+                ? query.all() : query.limit(request.size() + 1).all());
+        } catch (InvalidDataAccessApiUsageException e) {
+            // Thrown by parse() while the query was built, and wrapped by the repository
+            if (e.getCause() instanceof IllegalArgumentException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        if (rows.size() <= request.size()) {
+            return new KeysetPage<>(rows, null);
+        }
+        List<T> content = rows.subList(0, request.size());
+        return new KeysetPage<>(content, cursorAfter(content.get(content.size() - 1), request));
+    }
+
+    private static <T> Cursor cursorAfter(T row, Request request) {
+        var accessor = PropertyAccessorFactory.forDirectFieldAccess(row);
+        Object value = accessor.getPropertyValue(request.sortKey());
+        Long id = (Long) accessor.getPropertyValue("id");
+        String encoded = value == null ? null : value instanceof Enum<?> e ? e.name() : value.toString();
+        return new Cursor(request.sortKey(), request.descending(), id, encoded);
+    }
+
+    // Orders by (key, id) with nulls last and, past the first page, keeps the rows after the cursor
+    private static <T> Specification<T> keyset(Request request) {
+        return (root, query, cb) -> {
+            Path<Comparable<Object>> key = root.get(request.sortKey());
+            Path<Long> id = root.get("id");
+            boolean descending = request.descending();
+            if (query.getResultType() != Long.class && query.getResultType() != long.class) {
+                Expression<Integer> nullsLast = cb.<Integer>selectCase().when(cb.isNull(key), 1).otherwise(0);
+                query.orderBy(cb.asc(nullsLast),
+                    descending ? cb.desc(key) : cb.asc(key),
+                    descending ? cb.desc(id) : cb.asc(id));
+            }
+
+            Cursor after = request.after();
+            if (after == null) {
+                return null;
+            }
+            Predicate idAfter = descending ? cb.lessThan(id, after.id()) : cb.greaterThan(id, after.id());
+            if (after.value() == null) {
+                return cb.and(cb.isNull(key), idAfter);
+            }
+            Comparable<Object> value = parse(after.value(), key.getJavaType());
+            return cb.or(
+                beyond(cb, key, value, descending),
+                cb.and(cb.equal(key, value), idAfter),
+                cb.isNull(key));
+        };
+    }
+
+    private static Predicate beyond(CriteriaBuilder cb, Path<Comparable<Object>> key, Comparable<Object> value,
+                                    boolean descending) {
+        return descending ? cb.lessThan(key, value) : cb.greaterThan(key, value);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Comparable<Object> parse(String value, Class<?> type) {
+        try {
+            if (type == String.class) {
+                return (Comparable) value;
+            } else if (type == Long.class || type == long.class) {
+                return (Comparable) Long.valueOf(value);
+            } else if (type == Integer.class || type == int.class) {
+                return (Comparable) Integer.valueOf(value);
+            } else if (type == Double.class || type == double.class) {
+                return (Comparable) Double.valueOf(value);
+            } else if (type == BigDecimal.class) {
+                return (Comparable) new BigDecimal(value);
+            } else if (type == LocalDate.class) {
+                return (Comparable) LocalDate.parse(value);
+            } else if (type == LocalDateTime.class) {
+                return (Comparable) LocalDateTime.parse(value);
+            } else if (type.isEnum()) {
+                return (Comparable) Enum.valueOf((Class<Enum>) type, value);
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        throw new IllegalArgumentException("Cannot sort by " + type.getSimpleName());
+    }
+}
@@ -0,0 +1,121 @@
+package org.acabativa.rc.patrimonio.repository;
+
+import jakarta.persistence.criteria.Join;
+import jakarta.persistence.criteria.JoinType;
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.Enterprise.EnterpriseStatus;
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.entity.Property;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * The filters of the list endpoints, as specifications so they can be paged
+ * with {@link KeysetPage} and counted. Each one matches the derived or
+ * {@code @Query} method of the repository it replaces for those endpoints.
+ */
+public final class ListFilters {
+
+    private ListFilters() {
+    }
+
+    // Properties
+
+    public static Specification<Property> approvedProperties() {
+        return (root, query, cb) -> cb.isTrue(root.get("approved"));
+    }
+
+    // Projects
+
+    public static Specification<Project> projectsWithStatus(Project.Status status) {
+        return (root, query, cb) -> cb.equal(root.get("status"), status);
+    }
+
+    public static Specification<Project> projectsWithPriority(Project.Priority priority) {
+        return (root, query, cb) -> cb.equal(root.get("priority"), priority);
+    }
+
+    public static Specification<Project> projectsInCategory(String category) {
+        return (root, query, cb) -> cb.equal(root.get("category"), category);
+    }
+
+    public static Specification<Project> projectsMatching(String searchTerm) {
+        return (root, query, cb) -> cb.or(
+            cb.like(root.get("name"), "%" + searchTerm + "%"),
+            cb.like(root.get("description"), "%" + searchTerm + "%"));
+    }
+
+    // Investors
+
+    public static Specification<Investor> activeInvestors() {
+        return (root, query, cb) -> cb.isTrue(root.get("active"));
+    }
+
+    public static Specification<Investor> investorsNamed(String name) {
+        return (root, query, cb) -> cb.like(cb.lower(root.get("name")), "%" + name.toLowerCase() + "%");
+    }
+
+    public static Specification<Investor> activeInvestorsIn(String city, String state) {
+        return activeInvestors().and((root, query, cb) ->
+            cb.and(cb.equal(root.get("city"), city), cb.equal(root.get("state"), state)));
+    }
+
+    public static Specification<Investor> investorsWithAvailableFunds() {
+        return activeInvestors().and((root, query, cb) ->
+            cb.greaterThan(root.<BigDecimal>get("totalFunds"), root.<BigDecimal>get("investedFunds")));
+    }
+
+    // Enterprises
+
+    public static Specification<Enterprise> activeEnterprises() {
+        return (root, query, cb) -> cb.isTrue(root.get("active"));
+    }
+
+    public static Specification<Enterprise> activeEnterprisesWithStatus(EnterpriseStatus status) {
+        return activeEnterprises().and((root, query, cb) -> cb.equal(root.get("status"), status));
+    }
+
+    public static Specification<Enterprise> enterprisesOnProperty(Long propertyId) {
+        return (root, query, cb) -> cb.equal(root.get("propertyId"), propertyId);
+    }
+
+    public static Specification<Enterprise> enterprisesOfProject(Long projectId) {
+        return (root, query, cb) -> cb.equal(root.get("projectId"), projectId);
+    }
+
+    public static Specification<Enterprise> enterprisesWithOpenFunding(LocalDate today) {
+        return activeEnterprises().and((root, query, cb) ->
+            cb.greaterThanOrEqualTo(root.get("fundingDeadline"), today));
+    }
+
+    public static Specification<Enterprise> enterprisesWithOverdueFunding(LocalDate today) {
+        return activeEnterprises().and((root, query, cb) -> cb.and(
+            cb.lessThan(root.get("fundingDeadline"), today),
+            root.get("status").in(EnterpriseStatus.COMPLETED, EnterpriseStatus.CANCELLED).not()));
+    }
+
+    public static Specification<Enterprise> underfundedEnterprises() {
+        return activeEnterprises().and((root, query, cb) ->
+            cb.lessThan(root.<BigDecimal>get("totalInvestmentRaised"), root.<BigDecimal>get("totalInvestmentRequired")));
+    }
+
+    public static Specification<Enterprise> enterprisesCompletingBetween(LocalDate start, LocalDate end) {
+        return activeEnterprises().and((root, query, cb) ->
+            cb.between(root.get("expectedCompletionDate"), start, end));
+    }
+
+    // Name, description or property name, ignoring case
+    public static Specification<Enterprise> activeEnterprisesMatching(String searchTerm) {
+        String pattern = "%" + searchTerm.toLowerCase() + "%";
+        return activeEnterprises().and((root, query, cb) -> {
+            Join<Enterprise, Property> property = root.join("property", JoinType.LEFT);
+            return cb.or(
+                cb.like(cb.lower(root.get("name")), pattern),
+                cb.like(cb.lower(root.get("description")), pattern),
+                cb.like(cb.lower(property.get("name")), pattern));
+        });
+    }
+}
@@ -2,12 +2,13 @@ package org.acabativa.rc.patrimonio.repository;
 
 import org.acabativa.rc.patrimonio.entity.Project;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import java.util.List;
 
 @Repository
-public interface ProjectRepository extends JpaRepository<Project, Long> {
+public interface ProjectRepository extends JpaRepository<Project, Long>, JpaSpecificationExecutor<Project> {
     
     List<Project> findByStatus(Project.Status status);
     
@@ -23,4 +24,10 @@ public interface ProjectRepository extends JpaRepository<Project, Long> {
     
     @Query("SELECT DISTINCT p.category FROM Project p WHERE p.category IS NOT NULL ORDER BY p.category")
     List<String> findDistinctCategories();
+
+    List<Project> findTop5ByOrderByIdDesc();
+
+    // One row per status: project count and total investment
+    @Query("SELECT p.status, COUNT(p), COALESCE(SUM(p.totalInvestment), 0) FROM Project p GROUP BY p.status")
+    List<Object[]> sumInvestmentByStatus();
 }
\ No newline at end of file
@@ -2,13 +2,14 @@ package org.acabativa.rc.patrimonio.repository;
 
 import org.acabativa.rc.patrimonio.entity.Property;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
 
 @Repository
-public interface PropertyDAO extends JpaRepository<Property, Long>{
+public interface PropertyDAO extends JpaRepository<Property, Long>, JpaSpecificationExecutor<Property> {
 
     @Query("SELECT p FROM Property p WHERE p.totalArea > 0 ORDER BY p.name ASC")
     List<Property> findActiveProperties();
@@ -16,4 +17,10 @@ public interface PropertyDAO extends JpaRepository<Property, Long>{
     // Busca propriedades aprovadas para exibição no frontend público
     List<Property> findByApprovedTrue();
 
+    List<Property> findTop5ByOrderByIdDesc();
+
+    // One row: property count, total area and available area
+    @Query("SELECT COUNT(p), COALESCE(SUM(p.totalArea), 0), COALESCE(SUM(p.availableArea), 0) FROM Property p")
+    List<Object[]> sumAreas();
+
 }
@@ -0,0 +1,145 @@
+package org.acabativa.rc.patrimonio.service;
+
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.entity.Property;
+import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
+import org.acabativa.rc.patrimonio.repository.InvestorRepository;
+import org.acabativa.rc.patrimonio.repository.ProjectRepository;
+import org.acabativa.rc.patrimonio.repository.PropertyDAO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The figures and recent items shown on the dashboard.
+ *
+ * Every figure comes from an aggregate query (counts and sums, grouped by
+ * status for projects) and the recent items from queries limited to what is
+ * shown, so building the dashboard no longer loads every property, project
+ * and investor into memory.
+ *
+ * The result is kept as a snapshot. The write methods of the domain services
+ * call {@link #invalidate()}; inside a transaction the snapshot is dropped
+ * again after commit, so a dashboard built while the write was still
+ * uncommitted is not kept. The TTL only bounds staleness from writes made by
+ * other instances. Entities in the snapshot are shared between requests and
+ * must be treated as read-only.
+ */
+@Service
+public class DashboardStatisticsService {
+
+    public record DashboardStatistics(long totalEnterprises, BigDecimal totalInvestmentRequired,
+                                      BigDecimal totalInvestmentRaised, Double averageExpectedReturn,
+                                      long totalProperties, long totalArea, long availableArea,
+                                      long totalProjects, BigDecimal totalInvestment, long activeProjects,
+                                      long totalInvestors, BigDecimal totalAvailableFunds, BigDecimal totalInvestedFunds,
+                                      List<Enterprise> recentEnterprises, List<Property> recentProperties,
+                                      List<Project> recentProjects, List<Investor> recentInvestors) {
+    }
+
+    private record Snapshot(DashboardStatistics statistics, long expiresAt) {
+    }
+
+    private final EnterpriseRepository enterpriseRepository;
+    private final PropertyDAO propertyDao;
+    private final ProjectRepository projectRepository;
+    private final InvestorRepository investorRepository;
+    private final TransactionTemplate readOnlyTemplate;
+    private final long ttlMillis;
+    private Snapshot snapshot;
+    // Bumped by every invalidation; a snapshot built before it is not kept
+    private long generation;
+
+    public DashboardStatisticsService(EnterpriseRepository enterpriseRepository,
+                                      PropertyDAO propertyDao,
+                                      ProjectRepository projectRepository,
+                                      InvestorRepository investorRepository,
+                                      PlatformTransactionManager transactionManager,
+                                      @Value("${dashboard.statistics.ttl:60s}") Duration ttl) {
+        this.enterpriseRepository = enterpriseRepository;
+        this.propertyDao = propertyDao;
+        this.projectRepository = projectRepository;
+        this.investorRepository = investorRepository;
+        this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTemplate.setReadOnly(true);
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    public DashboardStatistics getStatistics() {
+        long buildGeneration;
+        synchronized (this) {
+            if (snapshot != null && snapshot.expiresAt() > System.currentTimeMillis()) {
+                return snapshot.statistics();
+            }
+            buildGeneration = generation;
+        }
+        DashboardStatistics statistics = readOnlyTemplate.execute(status -> build());
+        synchronized (this) {
+            if (generation == buildGeneration) {
+                snapshot = new Snapshot(statistics, System.currentTimeMillis() + ttlMillis);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Drops the snapshot. Called by every write to properties, projects,
+     * investors and enterprises.
+     */
+    public void invalidate() {
+        evict();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    evict();
+                }
+            });
+        }
+    }
+
+    private synchronized void evict() {
+        snapshot = null;
+        generation++;
+    }
+
+    private DashboardStatistics build() {
+        Object[] enterprises = enterpriseRepository.sumActiveInvestment().get(0);
+        Object[] properties = propertyDao.sumAreas().get(0);
+        Object[] investors = investorRepository.sumActiveFunds().get(0);
+
+        long totalProjects = 0;
+        long activeProjects = 0;
+        BigDecimal totalInvestment = BigDecimal.ZERO;
+        for (Object[] row : projectRepository.sumInvestmentByStatus()) {
+            Project.Status status = (Project.Status) row[0];
+            long count = ((Number) row[1]).longValue();
+            totalProjects += count;
+            totalInvestment = totalInvestment.add((BigDecimal) row[2]);
+            if (status == Project.Status.IN_PROGRESS || status == Project.Status.APPROVED) {
+                activeProjects += count;
+            }
+        }
+
+        return new DashboardStatistics(
+            ((Number) enterprises[0]).longValue(), (BigDecimal) enterprises[1], (BigDecimal) enterprises[2],
+            (Double) enterprises[3],
+            ((Number) properties[0]).longValue(), ((Number) properties[1]).longValue(),
+            ((Number) properties[2]).longValue(),
+            totalProjects, totalInvestment, activeProjects,
+            ((Number) investors[0]).longValue(), (BigDecimal) investors[1], (BigDecimal) investors[2],
+            enterpriseRepository.findTop3ByActiveTrueOrderByCreateDateDesc(),
+            propertyDao.findTop5ByOrderByIdDesc(),
+            projectRepository.findTop5ByOrderByIdDesc(),
+            investorRepository.findTop5ByActiveTrueOrderByCreateDateDesc());
+    }
+}
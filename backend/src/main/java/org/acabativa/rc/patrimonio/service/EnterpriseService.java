@@ -3,10 +3,15 @@ package org.acabativa.rc.patrimonio.service;
 import org.acabativa.rc.patrimonio.entity.Enterprise;
 import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
 import org.acabativa.rc.patrimonio.entity.Enterprise.EnterpriseStatus;
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
 import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
 import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
+import org.acabativa.rc.patrimonio.repository.KeysetPage;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
@@ -20,12 +25,21 @@ public class EnterpriseService {
 
     private final EnterpriseRepository enterpriseRepository;
     private final EnterpriseInvestorRepository enterpriseInvestorRepository;
+    private final InvestmentEventRepository investmentEventRepository;
+    private final InvestmentAllocator investmentAllocator;
+    private final DashboardStatisticsService dashboardStatistics;
 
     @Autowired
     public EnterpriseService(EnterpriseRepository enterpriseRepository, 
-                           EnterpriseInvestorRepository enterpriseInvestorRepository) {
+                           EnterpriseInvestorRepository enterpriseInvestorRepository,
+                           InvestmentEventRepository investmentEventRepository,
+                           InvestmentAllocator investmentAllocator,
+                           DashboardStatisticsService dashboardStatistics) {
         this.enterpriseRepository = enterpriseRepository;
         this.enterpriseInvestorRepository = enterpriseInvestorRepository;
+        this.investmentEventRepository = investmentEventRepository;
+        this.investmentAllocator = investmentAllocator;
+        this.dashboardStatistics = dashboardStatistics;
     }
 
     public List<Enterprise> getAllActiveEnterprises() {
@@ -36,28 +50,46 @@ public class EnterpriseService {
         return enterpriseRepository.findAllByOrderByCreateDateDesc();
     }
 
+    public KeysetPage<Enterprise> findEnterprises(Specification<Enterprise> filter, KeysetPage.Request page) {
+        return KeysetPage.fetch(enterpriseRepository, filter, page);
+    }
+
+    public long countEnterprises(Specification<Enterprise> filter) {
+        return enterpriseRepository.count(filter);
+    }
+
     public Optional<Enterprise> getEnterpriseById(Long id) {
         return enterpriseRepository.findByIdAndActiveTrue(id);
     }
 
+    // With its property and project, in one query
+    public Optional<Enterprise> getEnterpriseWithPropertyAndProject(Long id) {
+        return enterpriseRepository.findWithPropertyAndProjectByIdAndActiveTrue(id);
+    }
+
     public Enterprise saveEnterprise(Enterprise enterprise) {
         if (enterprise.getId() == null) {
             enterprise.setCreateDate(java.time.LocalDateTime.now());
+            // The column is never written from here (see Enterprise); this is
+            // only what the returned entity shows
+            enterprise.setTotalInvestmentRaised(BigDecimal.ZERO);
         } else {
             enterprise.setUpdateDate(java.time.LocalDateTime.now());
         }
+        dashboardStatistics.invalidate();
         return enterpriseRepository.save(enterprise);
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void deleteEnterprise(Long id) {
-        // Primeiro, remover todos os investidores associados ao empreendimento
-        List<EnterpriseInvestor> investors = enterpriseInvestorRepository.findByEnterpriseId(id);
-        if (!investors.isEmpty()) {
-            enterpriseInvestorRepository.deleteAll(investors);
-        }
+        // Primeiro, desativar o empreendimento e retirar todos os seus investimentos
+        // (registrados no ledger); inativo, ele nao recebe novos investimentos antes
+        // da exclusao, e fica assim se a exclusao falhar
+        investmentAllocator.releaseAll(id);
 
         // Depois, excluir o empreendimento fisicamente
         enterpriseRepository.deleteById(id);
+        dashboardStatistics.invalidate();
     }
 
     // Metodo para soft delete (marcar como inativo) caso queira manter historico
@@ -66,6 +98,7 @@ public class EnterpriseService {
             enterprise.setActive(false);
             enterprise.setUpdateDate(java.time.LocalDateTime.now());
             enterpriseRepository.save(enterprise);
+            dashboardStatistics.invalidate();
         });
     }
 
@@ -94,57 +127,49 @@ public class EnterpriseService {
     }
 
     // Investment Management
+
+    // Not transactional: each allocation attempt commits on its own, so it
+    // can be retried
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public EnterpriseInvestor addInvestorToEnterprise(Long enterpriseId, Long investorId, BigDecimal investmentAmount) {
-        if (enterpriseInvestorRepository.existsByEnterpriseIdAndInvestorId(enterpriseId, investorId)) {
-            throw new IllegalArgumentException("Investor already exists in this enterprise");
-        }
-        
-        Optional<Enterprise> enterprise = getEnterpriseById(enterpriseId);
-        if (enterprise.isEmpty()) {
-            throw new IllegalArgumentException("Enterprise not found");
-        }
+        return addInvestorToEnterprise(enterpriseId, investorId, investmentAmount, null);
+    }
 
-        Enterprise ent = enterprise.get();
-        BigDecimal newTotal = ent.getTotalInvestmentRaised().add(investmentAmount);
-        if (newTotal.compareTo(ent.getTotalInvestmentRequired()) > 0) {
-            throw new IllegalArgumentException("Investment amount exceeds required funding");
-        }
+    /**
+     * Places the investment and completes the enterprise when it is fully
+     * funded, in one step. A request repeated with the same idempotency key
+     * gets the first investment back.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public EnterpriseInvestor addInvestorToEnterprise(Long enterpriseId, Long investorId, BigDecimal investmentAmount,
+                                                      String idempotencyKey) {
+        EnterpriseInvestor investment = investmentAllocator.allocate(enterpriseId, investorId, investmentAmount,
+            idempotencyKey);
+        dashboardStatistics.invalidate();
+        return investment;
+    }
 
-        // Calculate shareholding percentage
-        BigDecimal shareholdingPercentage = investmentAmount
-            .divide(ent.getTotalInvestmentRequired(), 4, BigDecimal.ROUND_HALF_UP)
-            .multiply(new BigDecimal("100"));
+    // Whether a request with this key already placed its investment; repeating
+    // it then returns that investment, whatever the enterprise's state now
+    public boolean isInvestmentPlaced(String idempotencyKey) {
+        return idempotencyKey != null && enterpriseInvestorRepository.findByIdempotencyKey(idempotencyKey).isPresent();
+    }
 
-        EnterpriseInvestor enterpriseInvestor = new EnterpriseInvestor(
-            enterpriseId, investorId, investmentAmount, shareholdingPercentage
-        );
-        
-        EnterpriseInvestor saved = enterpriseInvestorRepository.save(enterpriseInvestor);
-        
-        // Update enterprise total raised
-        ent.setTotalInvestmentRaised(newTotal);
-        saveEnterprise(ent);
-        
-        return saved;
+    /**
+     * Changes the amount of an investment; an increase completes the
+     * enterprise when it fills it, like a new investment.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public EnterpriseInvestor adjustInvestment(Long enterpriseId, Long investorId, BigDecimal investmentAmount) {
+        EnterpriseInvestor investment = investmentAllocator.adjust(enterpriseId, investorId, investmentAmount);
+        dashboardStatistics.invalidate();
+        return investment;
     }
 
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void removeInvestorFromEnterprise(Long enterpriseId, Long investorId) {
-        Optional<EnterpriseInvestor> enterpriseInvestor = 
-            enterpriseInvestorRepository.findByEnterpriseIdAndInvestorId(enterpriseId, investorId);
-        
-        if (enterpriseInvestor.isPresent()) {
-            EnterpriseInvestor ei = enterpriseInvestor.get();
-            
-            // Update enterprise total raised
-            Optional<Enterprise> enterprise = getEnterpriseById(enterpriseId);
-            if (enterprise.isPresent()) {
-                Enterprise ent = enterprise.get();
-                BigDecimal newTotal = ent.getTotalInvestmentRaised().subtract(ei.getInvestmentAmount());
-                ent.setTotalInvestmentRaised(newTotal.max(BigDecimal.ZERO));
-                saveEnterprise(ent);
-            }
-            
-            enterpriseInvestorRepository.delete(ei);
+        if (investmentAllocator.release(enterpriseId, investorId)) {
+            dashboardStatistics.invalidate();
         }
     }
 
@@ -152,6 +177,16 @@ public class EnterpriseService {
         return enterpriseInvestorRepository.findByEnterpriseId(enterpriseId);
     }
 
+    // With each investor, in one query
+    public List<EnterpriseInvestor> getEnterpriseInvestorsWithInvestor(Long enterpriseId) {
+        return enterpriseInvestorRepository.findWithInvestorByEnterpriseId(enterpriseId);
+    }
+
+    // Every investment placed, adjusted and withdrawn, oldest first
+    public List<InvestmentEvent> getInvestmentHistory(Long enterpriseId) {
+        return investmentEventRepository.findByEnterpriseIdOrderByIdAsc(enterpriseId);
+    }
+
     public List<EnterpriseInvestor> getInvestorEnterprises(Long investorId) {
         return enterpriseInvestorRepository.findByInvestorId(investorId);
     }
@@ -217,15 +252,4 @@ public class EnterpriseService {
         return ent.getMinimumInvestment() == null || 
                amount.compareTo(ent.getMinimumInvestment()) >= 0;
     }
-
-    public void checkAndUpdateFundingStatus(Long enterpriseId) {
-        Optional<Enterprise> enterprise = getEnterpriseById(enterpriseId);
-        if (enterprise.isPresent()) {
-            Enterprise ent = enterprise.get();
-            if (ent.isFundingComplete() && ent.getStatus() == EnterpriseStatus.ACTIVE) {
-                ent.setStatus(EnterpriseStatus.COMPLETED);
-                saveEnterprise(ent);
-            }
-        }
-    }
-}
\ No newline at end of file
+}
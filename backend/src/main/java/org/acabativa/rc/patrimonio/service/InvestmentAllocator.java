@@ -0,0 +1,286 @@
+package org.acabativa.rc.patrimonio.service;
+
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
+import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
+import org.acabativa.rc.patrimonio.repository.InvestorRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Places, adjusts and removes the investments of investors in enterprises.
+ *
+ * Every change is appended to the investment ledger ({@link InvestmentEvent})
+ * in the transaction that applies it to the projections of the ledger: the
+ * investment row, the enterprise's amount raised and the investor's funds
+ * invested. Those are only changed here and by {@link InvestmentLedgerReplay},
+ * and always with relative updates, so concurrent changes add up.
+ *
+ * Capacity is reserved with one conditional increment of the enterprise's
+ * amount raised ({@link EnterpriseRepository#allocateInvestment}), which only
+ * succeeds while the investment fits in what is still required and completes
+ * an active enterprise it fills; giving capacity back
+ * ({@link EnterpriseRepository#releaseInvestment}) turns an enterprise that
+ * was completed by its funding back to active. The database serializes the increments on
+ * the enterprise row, so concurrent investors can neither oversubscribe an
+ * enterprise nor lose each other's updates, and nothing else is locked. The
+ * investment row is inserted before, in the same transaction, so the row lock
+ * is only held until the commit right after it.
+ *
+ * The unique constraints on the investment rows reject a second investment of
+ * the same investor and a second use of an idempotency key; a request retried
+ * with its key gets the investment it placed back. Each attempt runs in a
+ * transaction of its own, and attempts that fail on lock timeouts or
+ * deadlocks are retried up to {@code investment.allocation.max-attempts}
+ * times.
+ */
+@Service
+public class InvestmentAllocator {
+
+    private final Logger LOGGER = Logger.getLogger(InvestmentAllocator.class.getName());
+
+    private final EnterpriseRepository enterpriseRepository;
+    private final EnterpriseInvestorRepository enterpriseInvestorRepository;
+    private final InvestorRepository investorRepository;
+    private final InvestmentEventRepository eventRepository;
+    private final TransactionTemplate newTransactionTemplate;
+    private final int maxAttempts;
+    private final long backoffMillis;
+
+    public InvestmentAllocator(EnterpriseRepository enterpriseRepository,
+                               EnterpriseInvestorRepository enterpriseInvestorRepository,
+                               InvestorRepository investorRepository,
+                               InvestmentEventRepository eventRepository,
+                               PlatformTransactionManager transactionManager,
+                               @Value("${investment.allocation.max-attempts:5}") int maxAttempts,
+                               @Value("${investment.allocation.retry-backoff:20ms}") Duration backoff) {
+        this.enterpriseRepository = enterpriseRepository;
+        this.enterpriseInvestorRepository = enterpriseInvestorRepository;
+        this.investorRepository = investorRepository;
+        this.eventRepository = eventRepository;
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = backoff.toMillis();
+    }
+
+    /**
+     * Invests {@code amount} of the investor in the enterprise. With an
+     * idempotency key, repeating the call returns the investment placed by
+     * the first one.
+     *
+     * @throws IllegalArgumentException when the enterprise does not exist,
+     *         the investor already invested in it, the amount exceeds what is
+     *         still required or the key was used for another investment
+     */
+    public EnterpriseInvestor allocate(Long enterpriseId, Long investorId, BigDecimal amount, String idempotencyKey) {
+        if (amount == null || amount.signum() <= 0) {
+            throw new IllegalArgumentException("Investment amount must be positive");
+        }
+        if (idempotencyKey != null) {
+            Optional<EnterpriseInvestor> placed = enterpriseInvestorRepository.findByIdempotencyKey(idempotencyKey);
+            if (placed.isPresent()) {
+                return replay(placed.get(), enterpriseId, investorId, amount);
+            }
+        }
+
+        try {
+            return withRetries(() -> newTransactionTemplate.execute(status ->
+                place(enterpriseId, investorId, amount, idempotencyKey)));
+        } catch (DataIntegrityViolationException e) {
+            if (idempotencyKey != null) {
+                Optional<EnterpriseInvestor> placed = enterpriseInvestorRepository.findByIdempotencyKey(idempotencyKey);
+                if (placed.isPresent()) {
+                    // Placed by a concurrent request with the same key
+                    return replay(placed.get(), enterpriseId, investorId, amount);
+                }
+            }
+            if (enterpriseInvestorRepository.existsByEnterpriseIdAndInvestorId(enterpriseId, investorId)) {
+                throw new IllegalArgumentException("Investor already exists in this enterprise");
+            }
+            throw new IllegalArgumentException("Investor not found", e);
+        }
+    }
+
+    /**
+     * Removes the investor's investment from the enterprise and gives its
+     * amount back, reopening an enterprise it had completed. Does nothing
+     * when there is none.
+     *
+     * @return whether an investment was removed
+     */
+    public boolean release(Long enterpriseId, Long investorId) {
+        return withRetries(() -> newTransactionTemplate.execute(status -> {
+            Optional<EnterpriseInvestor> investment =
+                enterpriseInvestorRepository.findByEnterpriseIdAndInvestorId(enterpriseId, investorId);
+            if (investment.isEmpty()) {
+                return false;
+            }
+            withdraw(investment.get());
+            eventRepository.save(InvestmentEvent.withdrawn(enterpriseId, investorId,
+                investment.get().getInvestmentAmount()));
+            return true;
+        }));
+    }
+
+    /**
+     * Closes the enterprise and removes every investment in it, before it is
+     * deleted. It is deactivated first, in the same transaction, so
+     * allocations racing with the removal fail instead of placing an
+     * investment that would block the delete. The ledger entries are written
+     * in one batch.
+     */
+    public void releaseAll(Long enterpriseId) {
+        withRetries(() -> newTransactionTemplate.execute(status -> {
+            enterpriseRepository.deactivate(enterpriseId);
+            List<InvestmentEvent> events = new ArrayList<>();
+            for (EnterpriseInvestor investment : enterpriseInvestorRepository.findByEnterpriseId(enterpriseId)) {
+                withdraw(investment);
+                events.add(InvestmentEvent.withdrawn(enterpriseId, investment.getInvestorId(),
+                    investment.getInvestmentAmount()));
+            }
+            eventRepository.saveAll(events);
+            return events.size();
+        }));
+    }
+
+    /**
+     * Changes the amount of the investor's investment in the enterprise.
+     * Increases are reserved like new investments; decreases give capacity
+     * back like withdrawals.
+     *
+     * @throws IllegalArgumentException when there is no such investment, the
+     *         enterprise is inactive and the amount grows, or the increase
+     *         exceeds what is still required
+     */
+    public EnterpriseInvestor adjust(Long enterpriseId, Long investorId, BigDecimal amount) {
+        if (amount == null || amount.signum() <= 0) {
+            throw new IllegalArgumentException("Investment amount must be positive");
+        }
+        return withRetries(() -> newTransactionTemplate.execute(status -> {
+            EnterpriseInvestor investment = enterpriseInvestorRepository
+                .findByEnterpriseIdAndInvestorId(enterpriseId, investorId)
+                .orElseThrow(() -> new IllegalArgumentException("Investor is not in this enterprise"));
+            BigDecimal change = amount.subtract(investment.getInvestmentAmount());
+            if (change.signum() == 0) {
+                return investment;
+            }
+            Enterprise enterprise = enterpriseRepository.findById(enterpriseId)
+                .orElseThrow(() -> new IllegalArgumentException("Enterprise not found"));
+            if (change.signum() > 0 && !Boolean.TRUE.equals(enterprise.getActive())) {
+                throw new IllegalArgumentException("Enterprise is not active");
+            }
+            BigDecimal shareholdingPercentage = shareholding(amount, enterprise.getTotalInvestmentRequired());
+
+            if (enterpriseInvestorRepository.updateInvestment(investment.getId(), investment.getInvestmentAmount(),
+                    amount, shareholdingPercentage) == 0) {
+                // Changed or removed since it was read; retried
+                throw new OptimisticLockingFailureException("Investment changed concurrently");
+            }
+            if (change.signum() > 0) {
+                if (enterpriseRepository.allocateInvestment(enterpriseId, change) == 0) {
+                    // Rolls back the new amount
+                    throw new IllegalArgumentException("Investment amount exceeds required funding");
+                }
+            } else {
+                enterpriseRepository.releaseInvestment(enterpriseId, change.negate());
+            }
+            investorRepository.addInvestedFunds(investorId, change);
+            eventRepository.save(InvestmentEvent.adjusted(enterpriseId, investorId, change));
+            return enterpriseInvestorRepository.findById(investment.getId()).orElseThrow();
+        }));
+    }
+
+    private EnterpriseInvestor place(Long enterpriseId, Long investorId, BigDecimal amount, String idempotencyKey) {
+        Enterprise enterprise = enterpriseRepository.findByIdAndActiveTrue(enterpriseId)
+            .orElseThrow(() -> new IllegalArgumentException("Enterprise not found"));
+        BigDecimal shareholdingPercentage = shareholding(amount, enterprise.getTotalInvestmentRequired());
+        EnterpriseInvestor investment = new EnterpriseInvestor(enterpriseId, investorId, amount, shareholdingPercentage);
+        investment.setIdempotencyKey(idempotencyKey);
+        EnterpriseInvestor saved = enterpriseInvestorRepository.saveAndFlush(investment);
+
+        if (enterpriseRepository.allocateInvestment(enterpriseId, amount) == 0) {
+            // Rolls back the investment row
+            throw new IllegalArgumentException("Investment amount exceeds required funding");
+        }
+        investorRepository.addInvestedFunds(investorId, amount);
+        eventRepository.save(InvestmentEvent.placed(enterpriseId, investorId, amount));
+        return saved;
+    }
+
+    private void withdraw(EnterpriseInvestor investment) {
+        BigDecimal amount = investment.getInvestmentAmount();
+        if (enterpriseInvestorRepository.deleteInvestment(investment.getId(), amount) == 0) {
+            // Changed or removed since it was read; retried
+            throw new OptimisticLockingFailureException("Investment changed concurrently");
+        }
+        enterpriseRepository.releaseInvestment(investment.getEnterpriseId(), amount);
+        investorRepository.addInvestedFunds(investment.getInvestorId(), amount.negate());
+    }
+
+    static BigDecimal shareholding(BigDecimal amount, BigDecimal required) {
+        if (required == null || required.signum() <= 0) {
+            throw new IllegalArgumentException("Enterprise has no investment required");
+        }
+        return amount
+            .divide(required, 4, RoundingMode.HALF_UP)
+            .multiply(new BigDecimal("100"));
+    }
+
+    private static EnterpriseInvestor replay(EnterpriseInvestor placed, Long enterpriseId, Long investorId,
+                                             BigDecimal amount) {
+        if (!placed.getEnterpriseId().equals(enterpriseId) || !placed.getInvestorId().equals(investorId)
+                || placed.getInvestmentAmount().compareTo(amount) != 0) {
+            throw new IllegalArgumentException("Idempotency key already used for another investment");
+        }
+        return placed;
+    }
+
+    private <T> T withRetries(Supplier<T> attempt) {
+        for (int i = 1; ; i++) {
+            try {
+                return attempt.get();
+            } catch (TransientDataAccessException e) {
+                if (i >= maxAttempts) {
+                    throw e;
+                }
+                LOGGER.fine("Retrying investment after " + e.getClass().getSimpleName() + " (attempt " + i + ")");
+                pause(i);
+            }
+        }
+    }
+
+    // Grows with the attempt, with jitter so that the retries of colliding
+    // requests do not collide again
+    private void pause(int attempt) {
+        long millis = backoffMillis * attempt;
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying investment", e);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.acabativa.rc.patrimonio.service;
+
+import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
+import org.acabativa.rc.patrimonio.entity.InvestmentLedgerMigration;
+import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentLedgerMigrationRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the investments made before the investment ledger existed, so the
+ * projections rebuilt from it by {@link InvestmentLedgerReplay} keep them.
+ *
+ * Off unless {@code investment.ledger.backfill.enabled} is set; runs once the
+ * application is ready, while it serves requests. Enterprises are taken
+ * {@code investment.ledger.backfill.batch-size} at a time, in one transaction
+ * per batch that locks them, so investments placed meanwhile wait for it.
+ * Each investor's position in an enterprise is opened with a placed entry of
+ * what the ledger does not explain yet: the current investment less the
+ * entries already recorded for it, which covers investments changed or
+ * withdrawn after the ledger went live. Positions in enterprises deleted
+ * since then are opened the same way from their withdrawals.
+ *
+ * Progress is kept in the {@link InvestmentLedgerMigration} row, locked by
+ * every batch, so several instances starting together record each batch once
+ * and a restart resumes the pass. When the last batch is recorded the
+ * projections are rebuilt once from the ledger; that replaces amounts raised
+ * and invested funds entered by hand, and each replaced value is logged.
+ */
+@Service
+public class InvestmentLedgerBackfill {
+
+    private final Logger LOGGER = Logger.getLogger(InvestmentLedgerBackfill.class.getName());
+
+    // Entries recorded by one batch; finished when it was the last one
+    private record Batch(int recorded, boolean finished) {
+    }
+
+    private final EnterpriseRepository enterpriseRepository;
+    private final EnterpriseInvestorRepository enterpriseInvestorRepository;
+    private final InvestmentEventRepository eventRepository;
+    private final InvestmentLedgerMigrationRepository migrationRepository;
+    private final InvestmentLedgerReplay replay;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+
+    public InvestmentLedgerBackfill(EnterpriseRepository enterpriseRepository,
+                                    EnterpriseInvestorRepository enterpriseInvestorRepository,
+                                    InvestmentEventRepository eventRepository,
+                                    InvestmentLedgerMigrationRepository migrationRepository,
+                                    InvestmentLedgerReplay replay,
+                                    PlatformTransactionManager transactionManager,
+                                    @Value("${investment.ledger.backfill.enabled:false}") boolean enabled,
+                                    @Value("${investment.ledger.backfill.batch-size:200}") int batchSize) {
+        this.enterpriseRepository = enterpriseRepository;
+        this.enterpriseInvestorRepository = enterpriseInvestorRepository;
+        this.eventRepository = eventRepository;
+        this.migrationRepository = migrationRepository;
+        this.replay = replay;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            run();
+        } catch (RuntimeException e) {
+            // Resumed from the last recorded batch on the next start
+            LOGGER.log(Level.WARNING, "Investment ledger backfill failed", e);
+        }
+    }
+
+    /**
+     * Records the remaining batches and rebuilds the projections when this
+     * call recorded the last one.
+     *
+     * @return whether this call finished the backfill; false when it had
+     *         been finished before
+     */
+    public boolean run() {
+        createMarker();
+        long recorded = 0;
+        while (true) {
+            Batch batch = transactionTemplate.execute(status -> recordBatch());
+            if (batch == null) {
+                return false;
+            }
+            recorded += batch.recorded();
+            if (batch.finished()) {
+                break;
+            }
+        }
+        LOGGER.info("Recorded " + recorded + " earlier investments in the investment ledger; "
+            + "rebuilding the investment projections from it");
+        try {
+            replay.run();
+        } catch (IllegalStateException e) {
+            LOGGER.warning("A ledger replay was already running; the projections are rebuilt by it or by the next one");
+        }
+        return true;
+    }
+
+    private void createMarker() {
+        if (migrationRepository.existsById(InvestmentLedgerMigration.ID)) {
+            return;
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status ->
+                migrationRepository.saveAndFlush(InvestmentLedgerMigration.start()));
+        } catch (DataIntegrityViolationException e) {
+            // Created by another instance
+        }
+    }
+
+    // Null when the backfill was already finished
+    private Batch recordBatch() {
+        InvestmentLedgerMigration migration = migrationRepository.lockById(InvestmentLedgerMigration.ID).orElseThrow();
+        if (migration.isFinished()) {
+            return null;
+        }
+        List<Long> ids = enterpriseRepository.findIdsAfter(migration.getLastEnterpriseId(), Limit.of(batchSize));
+        List<InvestmentEvent> events = new ArrayList<>();
+        if (ids.isEmpty()) {
+            for (Object[] position : eventRepository.sumOverdrawnPositionsOfDeletedEnterprises()) {
+                events.add(new InvestmentEvent((Long) position[0], (Long) position[1], InvestmentEvent.Type.PLACED,
+                    ((BigDecimal) position[2]).negate(), (LocalDateTime) position[3]));
+            }
+            eventRepository.saveAll(events);
+            migration.setFinishedAt(LocalDateTime.now());
+            return new Batch(events.size(), true);
+        }
+
+        // Changes to these enterprises' investments wait until the batch commits
+        enterpriseRepository.lockAllById(ids);
+        // Enterprise id -> investor id -> (position, time of the first entry)
+        Map<Long, Map<Long, Object[]>> positions = new HashMap<>();
+        for (Object[] row : eventRepository.sumPositionsFromFirstEntry(ids)) {
+            positions.computeIfAbsent((Long) row[0], id -> new HashMap<>()).put((Long) row[1], row);
+        }
+        for (EnterpriseInvestor investment : enterpriseInvestorRepository.findByEnterpriseIdIn(ids)) {
+            Map<Long, Object[]> byInvestor = positions.get(investment.getEnterpriseId());
+            Object[] position = byInvestor != null ? byInvestor.remove(investment.getInvestorId()) : null;
+            BigDecimal recorded = position != null ? (BigDecimal) position[2] : BigDecimal.ZERO;
+            open(events, investment.getEnterpriseId(), investment.getInvestorId(),
+                investment.getInvestmentAmount().subtract(recorded), investment.getInvestmentDate());
+        }
+        // Withdrawn since the ledger went live
+        for (Map<Long, Object[]> byInvestor : positions.values()) {
+            for (Object[] position : byInvestor.values()) {
+                open(events, (Long) position[0], (Long) position[1],
+                    ((BigDecimal) position[2]).negate(), (LocalDateTime) position[3]);
+            }
+        }
+        eventRepository.saveAll(events);
+        migration.setLastEnterpriseId(ids.get(ids.size() - 1));
+        return new Batch(events.size(), false);
+    }
+
+    private void open(List<InvestmentEvent> events, Long enterpriseId, Long investorId, BigDecimal amount,
+                      LocalDateTime occurredAt) {
+        if (amount.signum() > 0) {
+            events.add(new InvestmentEvent(enterpriseId, investorId, InvestmentEvent.Type.PLACED, amount, occurredAt));
+        } else if (amount.signum() < 0) {
+            LOGGER.warning("Investor " + investorId + " in enterprise " + enterpriseId + ": the ledger records "
+                + amount.negate() + " more than the investment; left for the replay to correct");
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package org.acabativa.rc.patrimonio.service;
+
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
+import org.acabativa.rc.patrimonio.entity.InvestmentLedgerMigration;
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentLedgerMigrationRepository;
+import org.acabativa.rc.patrimonio.repository.InvestorRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds the projections of the investment ledger from its entries: the
+ * investment rows, the amount raised by each enterprise and the funds
+ * invested by each investor. Runs on demand and reports what it corrected.
+ *
+ * Enterprises and investors are rebuilt in chunks of
+ * {@code investment.ledger.replay.batch-size}, on
+ * {@code investment.ledger.replay.workers} threads. Each chunk locks its rows,
+ * sums their entries with one grouped query and writes what differs, in one
+ * transaction. Investments placed meanwhile wait for the lock and are then
+ * applied on top of the rebuilt totals, so the replay can run while the
+ * application is in use. Statuses are left as they are.
+ *
+ * Investments made before the ledger existed are recorded in it by
+ * {@link InvestmentLedgerBackfill}, which runs this replay when it is done.
+ * Until then the ledger does not explain them and a replay would remove
+ * them, so it is refused.
+ */
+@Service
+public class InvestmentLedgerReplay {
+
+    private final Logger LOGGER = Logger.getLogger(InvestmentLedgerReplay.class.getName());
+
+    public record Report(LocalDateTime startedAt, LocalDateTime finishedAt,
+                         long enterprises, long enterprisesCorrected, long investmentsCorrected,
+                         long investors, long investorsCorrected) {
+    }
+
+    // Corrections made by one chunk
+    private record Corrections(long totals, long investments) {
+    }
+
+    private final EnterpriseRepository enterpriseRepository;
+    private final EnterpriseInvestorRepository enterpriseInvestorRepository;
+    private final InvestorRepository investorRepository;
+    private final InvestmentEventRepository eventRepository;
+    private final InvestmentLedgerMigrationRepository migrationRepository;
+    private final DashboardStatisticsService dashboardStatistics;
+    private final TransactionTemplate transactionTemplate;
+    private final int workers;
+    private final int batchSize;
+
+    private final ReentrantLock running = new ReentrantLock();
+    private volatile Report lastReport;
+
+    public InvestmentLedgerReplay(EnterpriseRepository enterpriseRepository,
+                                  EnterpriseInvestorRepository enterpriseInvestorRepository,
+                                  InvestorRepository investorRepository,
+                                  InvestmentEventRepository eventRepository,
+                                  InvestmentLedgerMigrationRepository migrationRepository,
+                                  DashboardStatisticsService dashboardStatistics,
+                                  PlatformTransactionManager transactionManager,
+                                  @Value("${investment.ledger.replay.workers:4}") int workers,
+                                  @Value("${investment.ledger.replay.batch-size:200}") int batchSize) {
+        this.enterpriseRepository = enterpriseRepository;
+        this.enterpriseInvestorRepository = enterpriseInvestorRepository;
+        this.investorRepository = investorRepository;
+        this.eventRepository = eventRepository;
+        this.migrationRepository = migrationRepository;
+        this.dashboardStatistics = dashboardStatistics;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.workers = Math.max(1, workers);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Rebuilds every projection from the ledger now.
+     *
+     * @throws IllegalStateException when a replay is already running, or
+     *         the investments made before the ledger are not recorded in it yet
+     */
+    public Report run() {
+        if (!migrationRepository.findById(InvestmentLedgerMigration.ID).map(InvestmentLedgerMigration::isFinished)
+                .orElse(false)) {
+            throw new IllegalStateException("Earlier investments are not recorded in the ledger yet");
+        }
+        if (!running.tryLock()) {
+            throw new IllegalStateException("A ledger replay is already running");
+        }
+        try {
+            return replay();
+        } finally {
+            running.unlock();
+        }
+    }
+
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    private Report replay() {
+        LocalDateTime startedAt = LocalDateTime.now();
+        List<Long> enterpriseIds = enterpriseRepository.findAllIds();
+        List<Long> investorIds = investorRepository.findAllIds();
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Corrections>> enterpriseChunks = new ArrayList<>();
+            for (List<Long> chunk : chunks(enterpriseIds)) {
+                enterpriseChunks.add(executor.submit(() -> transactionTemplate.execute(status -> rebuildEnterprises(chunk))));
+            }
+            List<Future<Corrections>> investorChunks = new ArrayList<>();
+            for (List<Long> chunk : chunks(investorIds)) {
+                investorChunks.add(executor.submit(() -> transactionTemplate.execute(status -> rebuildInvestors(chunk))));
+            }
+
+            Corrections enterprises = sum(enterpriseChunks);
+            Corrections investors = sum(investorChunks);
+            Report report = new Report(startedAt, LocalDateTime.now(),
+                enterpriseIds.size(), enterprises.totals(), enterprises.investments(),
+                investorIds.size(), investors.totals());
+            if (enterprises.totals() + enterprises.investments() + investors.totals() > 0) {
+                dashboardStatistics.invalidate();
+            }
+            LOGGER.info("Investment ledger replay: corrected " + report.enterprisesCorrected() + " of "
+                + report.enterprises() + " enterprises, " + report.investmentsCorrected() + " investments and "
+                + report.investorsCorrected() + " of " + report.investors() + " investors");
+            lastReport = report;
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Corrections rebuildEnterprises(List<Long> ids) {
+        List<Enterprise> enterprises = enterpriseRepository.lockAllById(ids);
+
+        // Enterprise id -> investor id -> (position, time of the last entry)
+        Map<Long, Map<Long, Object[]>> positions = new HashMap<>();
+        for (Object[] row : eventRepository.sumPositions(ids)) {
+            positions.computeIfAbsent((Long) row[0], id -> new HashMap<>()).put((Long) row[1], row);
+        }
+        Map<Long, List<EnterpriseInvestor>> investments = new HashMap<>();
+        for (EnterpriseInvestor investment : enterpriseInvestorRepository.findByEnterpriseIdIn(ids)) {
+            investments.computeIfAbsent(investment.getEnterpriseId(), id -> new ArrayList<>()).add(investment);
+        }
+
+        long totalsCorrected = 0;
+        long investmentsCorrected = 0;
+        for (Enterprise enterprise : enterprises) {
+            Map<Long, Object[]> expected = positions.getOrDefault(enterprise.getId(), Map.of());
+            BigDecimal required = enterprise.getTotalInvestmentRequired();
+            BigDecimal raised = BigDecimal.ZERO;
+            Map<Long, EnterpriseInvestor> existing = new HashMap<>();
+            for (EnterpriseInvestor investment : investments.getOrDefault(enterprise.getId(), List.of())) {
+                existing.put(investment.getInvestorId(), investment);
+            }
+
+            for (Map.Entry<Long, Object[]> position : expected.entrySet()) {
+                BigDecimal amount = (BigDecimal) position.getValue()[2];
+                if (amount.signum() <= 0) {
+                    continue;
+                }
+                raised = raised.add(amount);
+                EnterpriseInvestor investment = existing.remove(position.getKey());
+                if (investment == null) {
+                    investment = new EnterpriseInvestor(enterprise.getId(), position.getKey(), amount,
+                        shareholding(amount, required));
+                    investment.setInvestmentDate((LocalDateTime) position.getValue()[3]);
+                    enterpriseInvestorRepository.save(investment);
+                    investmentsCorrected++;
+                } else if (investment.getInvestmentAmount().compareTo(amount) != 0) {
+                    investment.setInvestmentAmount(amount);
+                    investment.setShareholdingPercentage(shareholding(amount, required));
+                    investmentsCorrected++;
+                }
+            }
+            // Investments with nothing left in the ledger
+            if (!existing.isEmpty()) {
+                enterpriseInvestorRepository.deleteAll(existing.values());
+                investmentsCorrected += existing.size();
+            }
+
+            if (enterprise.getTotalInvestmentRaised() == null || enterprise.getTotalInvestmentRaised().compareTo(raised) != 0) {
+                LOGGER.info("Enterprise " + enterprise.getId() + ": amount raised " + enterprise.getTotalInvestmentRaised()
+                    + " replaced by " + raised + " from the ledger");
+                enterpriseRepository.setInvestmentRaised(enterprise.getId(), raised);
+                totalsCorrected++;
+            }
+        }
+        return new Corrections(totalsCorrected, investmentsCorrected);
+    }
+
+    private Corrections rebuildInvestors(List<Long> ids) {
+        List<Investor> investors = investorRepository.lockAllById(ids);
+        Map<Long, BigDecimal> invested = new HashMap<>();
+        for (Object[] row : eventRepository.sumByInvestor(ids)) {
+            invested.put((Long) row[0], (BigDecimal) row[1]);
+        }
+
+        long corrected = 0;
+        for (Investor investor : investors) {
+            BigDecimal expected = invested.getOrDefault(investor.getId(), BigDecimal.ZERO).max(BigDecimal.ZERO);
+            if (investor.getInvestedFunds() == null || investor.getInvestedFunds().compareTo(expected) != 0) {
+                LOGGER.info("Investor " + investor.getId() + ": invested funds " + investor.getInvestedFunds()
+                    + " replaced by " + expected + " from the ledger");
+                investorRepository.setInvestedFunds(investor.getId(), expected);
+                corrected++;
+            }
+        }
+        return new Corrections(corrected, 0);
+    }
+
+    private static BigDecimal shareholding(BigDecimal amount, BigDecimal required) {
+        return required != null && required.signum() > 0 ? InvestmentAllocator.shareholding(amount, required) : null;
+    }
+
+    private List<List<Long>> chunks(List<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            chunks.add(ids.subList(i, Math.min(i + batchSize, ids.size())));
+        }
+        return chunks;
+    }
+
+    private static Corrections sum(List<Future<Corrections>> chunks) {
+        long totals = 0;
+        long investments = 0;
+        try {
+            for (Future<Corrections> chunk : chunks) {
+                Corrections corrections = chunk.get();
+                totals += corrections.totals();
+                investments += corrections.investments();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during the ledger replay", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new RuntimeException("Ledger replay failed", e.getCause());
+        }
+        return new Corrections(totals, investments);
+    }
+}
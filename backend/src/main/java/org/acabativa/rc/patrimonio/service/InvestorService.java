@@ -1,9 +1,13 @@
 package org.acabativa.rc.patrimonio.service;
 
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
 import org.acabativa.rc.patrimonio.entity.Investor;
 import org.acabativa.rc.patrimonio.repository.InvestorRepository;
+import org.acabativa.rc.patrimonio.repository.KeysetPage;
 import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -17,11 +21,17 @@ public class InvestorService {
 
     private final InvestorRepository investorRepository;
     private final EnterpriseInvestorRepository enterpriseInvestorRepository;
+    private final InvestmentEventRepository investmentEventRepository;
+    private final DashboardStatisticsService dashboardStatistics;
 
     @Autowired
-    public InvestorService(InvestorRepository investorRepository, EnterpriseInvestorRepository enterpriseInvestorRepository) {
+    public InvestorService(InvestorRepository investorRepository, EnterpriseInvestorRepository enterpriseInvestorRepository,
+                           InvestmentEventRepository investmentEventRepository,
+                           DashboardStatisticsService dashboardStatistics) {
         this.investorRepository = investorRepository;
         this.enterpriseInvestorRepository = enterpriseInvestorRepository;
+        this.investmentEventRepository = investmentEventRepository;
+        this.dashboardStatistics = dashboardStatistics;
     }
 
     public List<Investor> getAllInvestors() {
@@ -32,6 +42,14 @@ public class InvestorService {
         return investorRepository.findByActiveTrue();
     }
 
+    public KeysetPage<Investor> findInvestors(Specification<Investor> filter, KeysetPage.Request page) {
+        return KeysetPage.fetch(investorRepository, filter, page);
+    }
+
+    public long countInvestors(Specification<Investor> filter) {
+        return investorRepository.count(filter);
+    }
+
     public Optional<Investor> getInvestorById(Long id) {
         return investorRepository.findById(id);
     }
@@ -49,14 +67,15 @@ public class InvestorService {
             investor.setTotalFunds(BigDecimal.ZERO);
         }
         
-        if (investor.getInvestedFunds() == null) {
-            investor.setInvestedFunds(BigDecimal.ZERO);
-        }
+        // Invested funds come from the investment ledger, not from the form
+        investor.setInvestedFunds(investor.getId() == null ? BigDecimal.ZERO :
+            investorRepository.findById(investor.getId()).map(Investor::getInvestedFunds).orElse(BigDecimal.ZERO));
         
         if (investor.getInvestedFunds().compareTo(investor.getTotalFunds()) > 0) {
             throw new IllegalArgumentException("Invested funds cannot exceed total funds");
         }
         
+        dashboardStatistics.invalidate();
         return investorRepository.save(investor);
     }
 
@@ -77,14 +96,14 @@ public class InvestorService {
                     investor.setCity(updatedInvestor.getCity());
                     investor.setState(updatedInvestor.getState());
                     investor.setTotalFunds(updatedInvestor.getTotalFunds() != null ? updatedInvestor.getTotalFunds() : BigDecimal.ZERO);
-                    investor.setInvestedFunds(updatedInvestor.getInvestedFunds() != null ? updatedInvestor.getInvestedFunds() : BigDecimal.ZERO);
                     investor.setDescription(updatedInvestor.getDescription());
                     investor.setActive(updatedInvestor.getActive() != null ? updatedInvestor.getActive() : true);
                     
-                    if (investor.getInvestedFunds().compareTo(investor.getTotalFunds()) > 0) {
+                    if (investor.getInvestedFunds() != null && investor.getInvestedFunds().compareTo(investor.getTotalFunds()) > 0) {
                         throw new IllegalArgumentException("Invested funds cannot exceed total funds");
                     }
                     
+                    dashboardStatistics.invalidate();
                     return investorRepository.save(investor);
                 })
                 .orElseThrow(() -> new IllegalArgumentException("Investor not found with id: " + id));
@@ -98,6 +117,7 @@ public class InvestorService {
         }
         
         investorRepository.deleteById(id);
+        dashboardStatistics.invalidate();
     }
     
     public boolean hasEnterpriseAssociations(Long investorId) {
@@ -109,6 +129,7 @@ public class InvestorService {
                 .ifPresent(investor -> {
                     investor.setActive(false);
                     investorRepository.save(investor);
+                    dashboardStatistics.invalidate();
                 });
     }
 
@@ -117,6 +138,7 @@ public class InvestorService {
                 .ifPresent(investor -> {
                     investor.setActive(true);
                     investorRepository.save(investor);
+                    dashboardStatistics.invalidate();
                 });
     }
 
@@ -133,18 +155,19 @@ public class InvestorService {
     }
 
     public BigDecimal getTotalAvailableFunds() {
-        return getActiveInvestors().stream()
-                .map(Investor::getAvailableFunds)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        return investorRepository.getTotalAvailableFunds();
+    }
+
+    // Every investment the investor placed, adjusted and withdrew, oldest first
+    public List<InvestmentEvent> getInvestmentHistory(Long investorId) {
+        return investmentEventRepository.findByInvestorIdOrderByIdAsc(investorId);
     }
 
     public BigDecimal getTotalInvestedFunds() {
-        return getActiveInvestors().stream()
-                .map(Investor::getInvestedFunds)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        return investorRepository.getTotalInvestedFunds();
     }
 
     public long countActiveInvestors() {
-        return investorRepository.findByActiveTrue().size();
+        return investorRepository.countActiveInvestors();
     }
 }
\ No newline at end of file
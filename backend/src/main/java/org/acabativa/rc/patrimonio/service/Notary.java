@@ -5,8 +5,10 @@ import java.util.Optional;
 import java.util.logging.Logger;
 
 import org.acabativa.rc.patrimonio.entity.Property;
+import org.acabativa.rc.patrimonio.repository.KeysetPage;
 import org.acabativa.rc.patrimonio.repository.PropertyDAO;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 
 import jakarta.transaction.Transactional;
@@ -17,10 +19,12 @@ public class Notary {
     private final Logger LOGGER = Logger.getLogger(Notary.class.getName());
 
     private final PropertyDAO propertyDao;
+    private final DashboardStatisticsService dashboardStatistics;
 
     @Autowired
-    public Notary(PropertyDAO propertyDao) {
+    public Notary(PropertyDAO propertyDao, DashboardStatisticsService dashboardStatistics) {
         this.propertyDao = propertyDao;
+        this.dashboardStatistics = dashboardStatistics;
     }
 
     public Optional<Property> getPropertyById(Long propertyId){
@@ -40,9 +44,18 @@ public class Notary {
         return ret;
     }
 
+    public KeysetPage<Property> findProperties(Specification<Property> filter, KeysetPage.Request page) {
+        return KeysetPage.fetch(this.propertyDao, filter, page);
+    }
+
+    public long countProperties(Specification<Property> filter) {
+        return this.propertyDao.count(filter);
+    }
+
     public Property createproperty(Property property){
         LOGGER.info("Adding property: " + property);
         property = this.propertyDao.save(property);
+        dashboardStatistics.invalidate();
         LOGGER.info("Added property id: " + property.getId());
         return property;
     }
@@ -51,6 +64,7 @@ public class Notary {
     public void deleteProperty(Long propertyId){
         if(this.propertyDao.existsById(propertyId)){
             this.propertyDao.deleteById(propertyId);
+            dashboardStatistics.invalidate();
         }
         else{
             throw new IllegalStateException("Property with id does not exist: " + propertyId);
@@ -72,6 +86,7 @@ public class Notary {
                 propertyFromDb.get().setLatitude(property.getLatitude());
                 propertyFromDb.get().setLongitude(property.getLongitude());
                 propertyFromDb.get().setTotalArea(property.getTotalArea());
+                dashboardStatistics.invalidate();
             }
         }
         else{
@@ -5,8 +5,10 @@ import java.util.Optional;
 import java.util.logging.Logger;
 
 import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.repository.KeysetPage;
 import org.acabativa.rc.patrimonio.repository.ProjectRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
 
 import jakarta.transaction.Transactional;
@@ -17,10 +19,12 @@ public class ProjectService {
     private final Logger LOGGER = Logger.getLogger(ProjectService.class.getName());
 
     private final ProjectRepository projectRepository;
+    private final DashboardStatisticsService dashboardStatistics;
 
     @Autowired
-    public ProjectService(ProjectRepository projectRepository) {
+    public ProjectService(ProjectRepository projectRepository, DashboardStatisticsService dashboardStatistics) {
         this.projectRepository = projectRepository;
+        this.dashboardStatistics = dashboardStatistics;
     }
 
     public Optional<Project> getProjectById(Long projectId) {
@@ -59,9 +63,18 @@ public class ProjectService {
         return this.projectRepository.findDistinctCategories();
     }
 
+    public KeysetPage<Project> findProjects(Specification<Project> filter, KeysetPage.Request page) {
+        return KeysetPage.fetch(this.projectRepository, filter, page);
+    }
+
+    public long countProjects(Specification<Project> filter) {
+        return this.projectRepository.count(filter);
+    }
+
     public Project createProject(Project project) {
         LOGGER.info("Creating project: " + project);
         project = this.projectRepository.save(project);
+        dashboardStatistics.invalidate();
         LOGGER.info("Created project with id: " + project.getId());
         return project;
     }
@@ -69,6 +82,7 @@ public class ProjectService {
     public void deleteProject(Long projectId) {
         if (this.projectRepository.existsById(projectId)) {
             this.projectRepository.deleteById(projectId);
+            dashboardStatistics.invalidate();
             LOGGER.info("Deleted project with id: " + projectId);
         } else {
             throw new IllegalStateException("Project with id does not exist: " + projectId);
@@ -93,6 +107,7 @@ public class ProjectService {
                 existingProject.setStatus(project.getStatus());
                 existingProject.setEstimatedReturnOverInvestment(project.getEstimatedReturnOverInvestment());
                 existingProject.setTotalInvestment(project.getTotalInvestment());
+                dashboardStatistics.invalidate();
                 
                 LOGGER.info("Updated project with id: " + project.getId());
                 return existingProject;
@@ -107,6 +122,7 @@ public class ProjectService {
         if (projectOpt.isPresent()) {
             Project project = projectOpt.get();
             project.setStatus(newStatus);
+            dashboardStatistics.invalidate();
             LOGGER.info("Updated project status to " + newStatus + " for project id: " + projectId);
             return project;
         }
@@ -0,0 +1,69 @@
+package org.acabativa.rc.storage.config;
+
+import org.acabativa.rc.storage.util.ImageProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+@EnableScheduling
+public class StorageConfig {
+
+    // Bounded pool for image work; when the queue is full the caller gets a
+    // RejectedExecutionException and falls back to serving the original
+    @Bean(name = "thumbnailExecutor")
+    public ThreadPoolTaskExecutor thumbnailExecutor(
+            @Value("${storage.photo.thumbnail.workers:2}") int workers,
+            @Value("${storage.photo.thumbnail.queue-capacity:100}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(workers);
+        executor.setMaxPoolSize(workers);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("thumbnail-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        executor.initialize();
+        return executor;
+    }
+
+    // Parallel disk writes for batch uploads; when all workers are busy the
+    // request thread writes the next file itself instead of failing it
+    @Bean(name = "uploadExecutor")
+    public ThreadPoolTaskExecutor uploadExecutor(
+            @Value("${storage.upload.batch.workers:4}") int workers) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(workers);
+        executor.setMaxPoolSize(workers);
+        executor.setQueueCapacity(workers * 4);
+        executor.setThreadNamePrefix("upload-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        return executor;
+    }
+
+    // Reconciliations started through the API; only one runs at a time
+    @Bean(name = "reconcileExecutor")
+    public ThreadPoolTaskExecutor reconcileExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(1);
+        executor.setThreadNamePrefix("reconcile-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        executor.initialize();
+        return executor;
+    }
+
+    // Decoded rasters allowed in memory at once across all image work;
+    // 0 means a quarter of the maximum heap
+    @Bean
+    public ImageProcessor imageProcessor(
+            @Value("${storage.photo.decode.memory-budget:0}") DataSize memoryBudget) {
+        return memoryBudget.toBytes() > 0 ? new ImageProcessor(memoryBudget.toBytes()) : new ImageProcessor();
+    }
+}
@@ -1,22 +1,35 @@
 package org.acabativa.rc.storage.controller;
 
+import org.acabativa.rc.storage.dto.BatchUploadResultDTO;
 import org.acabativa.rc.storage.dto.FileDTO;
 import org.acabativa.rc.storage.dto.FileListDTO;
+import org.acabativa.rc.storage.dto.PhotoDTO;
 import org.acabativa.rc.storage.entity.StoredFile;
 import org.acabativa.rc.storage.entity.StoredFile.FileType;
 import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.service.ArchiveService;
+import org.acabativa.rc.storage.service.BatchUploadService;
+import org.acabativa.rc.storage.service.StorageReconciler;
 import org.acabativa.rc.storage.service.StorageService;
+import org.acabativa.rc.storage.service.StorageUsageService;
+import org.acabativa.rc.storage.service.StoredFileCache;
+import org.acabativa.rc.storage.service.StreamingUploadService;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @Controller
@@ -24,10 +37,33 @@ import java.util.stream.Collectors;
 public class FileController {
     
     private final StorageService storageService;
+    private final StreamingUploadService streamingUploadService;
+    private final BatchUploadService batchUploadService;
+    private final ArchiveService archiveService;
+    private final StoredFileCache fileCache;
+    private final FileResponseWriter fileResponseWriter;
+    private final StorageReconciler reconciler;
+    private final StorageUsageService usageService;
     
     @Autowired
-    public FileController(StorageService storageService) {
+    public FileController(StorageService storageService, StreamingUploadService streamingUploadService,
+                          BatchUploadService batchUploadService, ArchiveService archiveService,
+                          StoredFileCache fileCache, FileResponseWriter fileResponseWriter,
+                          StorageReconciler reconciler, StorageUsageService usageService) {
         this.storageService = storageService;
+        this.streamingUploadService = streamingUploadService;
+        this.batchUploadService = batchUploadService;
+        this.archiveService = archiveService;
+        this.fileCache = fileCache;
+        this.fileResponseWriter = fileResponseWriter;
+        this.reconciler = reconciler;
+        this.usageService = usageService;
+    }
+    
+    // Over quota and the like, from endpoints that do not handle it themselves
+    @ExceptionHandler(UploadRejectedException.class)
+    public ResponseEntity<Void> handleUploadRejected(UploadRejectedException e) {
+        return ResponseEntity.status(e.getReason().getStatus()).build();
     }
     
     @PostMapping("/upload/{propertyId}")
@@ -42,22 +78,154 @@ public class FileController {
         return ResponseEntity.ok(new FileDTO(storedFile));
     }
     
-    @GetMapping("/{id}")
+    // Streams the file part straight to storage. No @RequestParam here on
+    // purpose: reading any request parameter makes the container parse and
+    // spool the whole multipart body before we see it.
+    @PostMapping("/upload/stream/{entityType}/{entityId}/{fileType}")
     @ResponseBody
-    public ResponseEntity<Resource> downloadFile(@PathVariable Long id) {
+    public ResponseEntity<FileDTO> uploadFileStream(
+            @PathVariable String entityType,
+            @PathVariable Long entityId,
+            @PathVariable String fileType,
+            HttpServletRequest request) {
+        
+        try {
+            FileType type = FileType.valueOf(fileType.toUpperCase());
+            EntityType entity = EntityType.valueOf(entityType.toUpperCase());
+            
+            StoredFile storedFile = streamingUploadService.upload(
+                    request.getInputStream(), request.getContentType(), type, entityId, entity);
+            return ResponseEntity.ok(type == FileType.PHOTO ? new PhotoDTO(storedFile) : new FileDTO(storedFile));
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(e.getReason().getStatus()).build();
+        } catch (IllegalArgumentException | IOException e) {
+            // Unknown entity/file type, or the client went away mid-upload
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    // Several files for one entity in one request; the response has one
+    // result per file, in request order, and a bad file does not fail the rest
+    @PostMapping("/upload/batch/{entityType}/{entityId}/{fileType}")
+    @ResponseBody
+    public ResponseEntity<List<BatchUploadResultDTO>> uploadFiles(
+            @RequestParam("files") List<MultipartFile> files,
+            @PathVariable String entityType,
+            @PathVariable Long entityId,
+            @PathVariable String fileType) {
+        
+        try {
+            FileType type = FileType.valueOf(fileType.toUpperCase());
+            EntityType entity = EntityType.valueOf(entityType.toUpperCase());
+            
+            List<BatchUploadResultDTO> results = batchUploadService.upload(files, type, entityId, entity)
+                    .stream()
+                    .map(BatchUploadResultDTO::new)
+                    .collect(Collectors.toList());
+            return ResponseEntity.ok(results);
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(e.getReason().getStatus()).build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+    
+    @GetMapping("/{id}")
+    public void downloadFile(@PathVariable Long id,
+                             @RequestParam(value = "v", required = false) String version,
+                             HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
         StoredFile fileInfo = storageService.getFileInfo(id);
-        Resource file = storageService.loadAsResource(id);
+        ByteBuffer packed = storageService.loadPacked(fileInfo);
+        FileResponseWriter.Download download = packed != null
+                ? FileResponseWriter.Download.of(fileInfo, packed, version)
+                : FileResponseWriter.Download.of(fileInfo, storageService.load(fileInfo), version);
 
         String filename = fileInfo.getOriginalFileName();
         // Encode filename for Content-Disposition header (RFC 5987)
         String encodedFilename = java.net.URLEncoder.encode(filename, java.nio.charset.StandardCharsets.UTF_8)
                 .replace("+", "%20");
 
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(fileInfo.getContentType()))
-                .header(HttpHeaders.CONTENT_DISPOSITION,
-                       "attachment; filename=\"" + filename + "\"; filename*=UTF-8''" + encodedFilename)
-                .body(file);
+        fileResponseWriter.write(download
+                .withContentDisposition("attachment; filename=\"" + filename + "\"; filename*=UTF-8''" + encodedFilename),
+                request, response);
+    }
+    
+    // All files of an entity as one ZIP, written while it is downloaded
+    @GetMapping("/{entityType}/{entityId}/archive")
+    public void downloadArchive(@PathVariable String entityType,
+                                @PathVariable Long entityId,
+                                @RequestParam(value = "type", required = false) String fileType,
+                                HttpServletResponse response) throws IOException {
+        List<StoredFile> files;
+        try {
+            EntityType entity = EntityType.valueOf(entityType.toUpperCase());
+            files = fileType == null
+                    ? storageService.listByEntity(entityId, entity)
+                    : storageService.listByEntityAndType(entityId, entity, FileType.valueOf(fileType.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (files.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        String filename = entityType.toLowerCase() + "-" + entityId
+                + (fileType == null ? "" : "-" + fileType.toLowerCase()) + ".zip";
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + filename + "\"");
+        archiveService.write(files, response.getOutputStream());
+    }
+    
+    // Hit rate and size of the file metadata cache
+    @GetMapping("/cache/stats")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getCacheStats() {
+        return ResponseEntity.ok(fileCache.stats());
+    }
+    
+    // Starts a reconciliation in the background; without repair=true it only
+    // reports. The report is served by /reconcile/report once it finishes
+    @PostMapping("/reconcile")
+    @ResponseBody
+    public ResponseEntity<Void> reconcile(
+            @RequestParam(value = "repair", defaultValue = "false") boolean repair) {
+        try {
+            reconciler.start(repair);
+            return ResponseEntity.accepted().location(URI.create("/api/v1/files/reconcile/report")).build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+    
+    // Report of the last finished run; X-Reconcile-Running tells whether another is in progress
+    @GetMapping("/reconcile/report")
+    @ResponseBody
+    public ResponseEntity<StorageReconciler.Report> getReconcileReport() {
+        StorageReconciler.Report report = reconciler.getLastReport();
+        return (report != null ? ResponseEntity.ok() : ResponseEntity.status(HttpStatus.NOT_FOUND))
+            .header("X-Reconcile-Running", String.valueOf(reconciler.isRunning()))
+            .body(report);
+    }
+    
+    // Files and bytes stored, overall and per file and entity type
+    @GetMapping("/usage")
+    @ResponseBody
+    public ResponseEntity<StorageUsageService.Summary> getUsage() {
+        return ResponseEntity.ok(usageService.getSummary());
+    }
+    
+    @GetMapping("/usage/{entityType}/{entityId}")
+    @ResponseBody
+    public ResponseEntity<StorageUsageService.EntityUsage> getEntityUsage(@PathVariable String entityType,
+                                                                         @PathVariable Long entityId) {
+        try {
+            return ResponseEntity.ok(usageService.getUsage(entityId, EntityType.valueOf(entityType.toUpperCase())));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
     }
     
     @GetMapping("/{id}/info")
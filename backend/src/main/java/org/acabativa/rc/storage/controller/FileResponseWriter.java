@@ -0,0 +1,312 @@
+package org.acabativa.rc.storage.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.service.FileChannelCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Writes stored files to the response with HTTP validators.
+ *
+ * Every response carries a strong ETag and Last-Modified so browsers can
+ * revalidate with If-None-Match / If-Modified-Since and get a 304 back. A
+ * single byte range is answered with 206 so large documents can be resumed or
+ * read page by page; If-Range is honoured so a resumed download never mixes
+ * bytes from two versions of a file.
+ *
+ * Large bodies are handed to the connector's sendfile support and never enter
+ * the JVM. Smaller ones, or all of them on connectors without sendfile, are
+ * pushed with {@link FileChannel#transferTo} from a cached open channel.
+ *
+ * Content stored compressed goes out as stored, with Content-Encoding, to
+ * clients that accept the encoding; other clients get it decoded on the fly,
+ * without range support.
+ */
+@Component
+public class FileResponseWriter {
+
+    // URLs carrying the current version never change content, so caches may keep them
+    private static final CacheControl IMMUTABLE = CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic().immutable();
+    private static final CacheControl REVALIDATE = CacheControl.noCache();
+    private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+
+    // Request attributes of Tomcat's sendfile contract (see DefaultServlet)
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final FileChannelCache channelCache;
+    private final long sendfileMinSize;
+
+    public FileResponseWriter(FileChannelCache channelCache,
+                              @Value("${storage.download.sendfile-min-size:49152}") long sendfileMinSize) {
+        this.channelCache = channelCache;
+        this.sendfileMinSize = sendfileMinSize;
+    }
+
+    /**
+     * What to send: a file on disk ({@code path}) or content already in
+     * memory or mapped, such as a packed document ({@code content}). A
+     * {@code contentEncoding} means those bytes are stored compressed.
+     */
+    public record Download(Path path,
+                           ByteBuffer content,
+                           MediaType contentType,
+                           String etag,
+                           long lastModified,
+                           CacheControl cacheControl,
+                           String contentDisposition,
+                           String contentEncoding) {
+
+        public Download(Path path, MediaType contentType, String etag, long lastModified,
+                        CacheControl cacheControl, String contentDisposition) {
+            this(path, null, contentType, etag, lastModified, cacheControl, contentDisposition, null);
+        }
+
+        /**
+         * Describes the original content of a stored file. The response is
+         * marked immutable only when the request names the current version.
+         */
+        public static Download of(StoredFile file, Path path, String requestedVersion) {
+            return of(file, path, null, requestedVersion);
+        }
+
+        public static Download of(StoredFile file, ByteBuffer content, String requestedVersion) {
+            return of(file, null, content, requestedVersion);
+        }
+
+        private static Download of(StoredFile file, Path path, ByteBuffer content, String requestedVersion) {
+            return new Download(path,
+                content,
+                MediaType.parseMediaType(file.getContentType()),
+                file.getVersionTag(),
+                FileResponseWriter.lastModified(file),
+                FileResponseWriter.cacheControl(file.getVersionTag(), requestedVersion),
+                null,
+                file.getContentEncoding());
+        }
+
+        public Download withContentDisposition(String contentDisposition) {
+            return new Download(path, content, contentType, etag, lastModified, cacheControl,
+                contentDisposition, contentEncoding);
+        }
+    }
+
+    public static CacheControl cacheControl(String currentVersion, String requestedVersion) {
+        return currentVersion.equals(requestedVersion) ? IMMUTABLE : REVALIDATE;
+    }
+
+    public static long lastModified(StoredFile file) {
+        return file.getUploadDate().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public void write(Download download, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String encoding = download.contentEncoding();
+        boolean decode = encoding != null && !acceptsEncoding(request, encoding);
+        // The compressed and the decoded bodies are different representations,
+        // each with its own strong ETag
+        String etag = "\"" + download.etag() + (encoding != null && !decode ? "-" + encoding : "") + "\"";
+        if (encoding != null) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        // Decoded on the fly, so byte offsets are not known without reading up to them
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, decode ? "none" : "bytes");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, download.cacheControl().getHeaderValue());
+
+        // Sets ETag and Last-Modified, and answers 304/412 when the preconditions say so
+        if (new ServletWebRequest(request, response).checkNotModified(etag, download.lastModified())) {
+            return;
+        }
+
+        if (decode) {
+            writeDecoded(download, request, response);
+            return;
+        }
+        if (encoding != null) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, encoding);
+        }
+
+        long length = download.content() != null ? download.content().remaining() : Files.size(download.path());
+        response.setContentType(download.contentType().toString());
+        if (download.contentDisposition() != null) {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, download.contentDisposition());
+        }
+
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && rangeStillValid(request, etag, download.lastModified())) {
+            List<HttpRange> ranges = parseRanges(rangeHeader);
+            // Multipart byteranges are not used by our clients; anything but one range gets the full body
+            if (ranges.size() == 1) {
+                long start = -1;
+                long end = -1;
+                try {
+                    start = ranges.get(0).getRangeStart(length);
+                    end = ranges.get(0).getRangeEnd(length);
+                } catch (IllegalArgumentException e) {
+                    // Reported as unsatisfiable below
+                }
+                if (start < 0 || start >= length || end < start) {
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+                writeBody(download, start, end - start + 1, request, response);
+                return;
+            }
+        }
+
+        writeBody(download, 0, length, request, response);
+    }
+
+    private void writeBody(Download download, long start, long count,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentLengthLong(count);
+        if (HttpMethod.HEAD.matches(request.getMethod()) || count == 0) {
+            return;
+        }
+
+        if (download.content() != null) {
+            // A view of its own, so concurrent responses never share a position
+            ByteBuffer body = download.content().slice((int) start, (int) count);
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            while (body.hasRemaining()) {
+                target.write(body);
+            }
+            return;
+        }
+
+        Path path = download.path();
+
+        if (count >= sendfileMinSize && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // The connector streams the file with sendfile once this request returns
+            request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+
+        try (FileChannelCache.Lease lease = channelCache.acquire(path)) {
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            transfer(lease.channel(), start, count, target);
+        }
+    }
+
+    private void writeDecoded(Download download, HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
+        response.setContentType(download.contentType().toString());
+        if (download.contentDisposition() != null) {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, download.contentDisposition());
+        }
+        if (HttpMethod.HEAD.matches(request.getMethod())) {
+            return;
+        }
+
+        InputStream stored;
+        if (download.content() != null) {
+            byte[] bytes = new byte[download.content().remaining()];
+            download.content().duplicate().get(bytes);
+            stored = new ByteArrayInputStream(bytes);
+        } else {
+            stored = Files.newInputStream(download.path());
+        }
+        try (InputStream input = new GZIPInputStream(stored, DECODE_BUFFER_SIZE)) {
+            input.transferTo(response.getOutputStream());
+        }
+    }
+
+    // Accept-Encoding lists codings with optional weights; q=0 means "not acceptable"
+    private static boolean acceptsEncoding(HttpServletRequest request, String encoding) {
+        Enumeration<String> headers = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+        while (headers != null && headers.hasMoreElements()) {
+            for (String coding : headers.nextElement().split(",")) {
+                String[] parameters = coding.split(";");
+                String name = parameters[0].trim();
+                if (!name.equalsIgnoreCase(encoding) && !name.equals("*")) {
+                    continue;
+                }
+                boolean refused = false;
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            refused = Double.parseDouble(parameter.substring(2)) == 0;
+                        } catch (NumberFormatException e) {
+                            refused = true;
+                        }
+                    }
+                }
+                return !refused;
+            }
+        }
+        return false;
+    }
+
+    static void transfer(FileChannel source, long start, long count, WritableByteChannel target) throws IOException {
+        long position = start;
+        long remaining = count;
+        while (remaining > 0) {
+            long sent = source.transferTo(position, remaining, target);
+            if (sent <= 0 && position >= source.size()) {
+                throw new EOFException("File shrank while it was being sent");
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+
+    /**
+     * If-Range makes the Range conditional: it only applies while the client's
+     * copy is still current, otherwise the whole new version is sent.
+     */
+    private boolean rangeStillValid(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Strong comparison, so a weak validator never matches
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) == lastModified / 1000 * 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private List<HttpRange> parseRanges(String rangeHeader) {
+        try {
+            return HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            // A malformed Range header is ignored rather than rejected
+            return List.of();
+        }
+    }
+}
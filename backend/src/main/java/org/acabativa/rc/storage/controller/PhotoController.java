@@ -1,12 +1,19 @@
 package org.acabativa.rc.storage.controller;
 
+import org.acabativa.rc.storage.dto.CoverDTO;
+import org.acabativa.rc.storage.dto.CoverRequest;
 import org.acabativa.rc.storage.dto.PhotoDTO;
 import org.acabativa.rc.storage.entity.StoredFile;
 import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.service.CoverPhotoService;
+import org.acabativa.rc.storage.service.ImageVariantService;
 import org.acabativa.rc.storage.service.StorageService;
-import org.acabativa.rc.storage.util.ImageProcessor;
+import org.acabativa.rc.storage.service.ThumbnailService;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -14,8 +21,13 @@ import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Controller
@@ -28,13 +40,29 @@ public class PhotoController {
     
     private static final long MAX_FILE_SIZE = 5 * 1024 * 1024; // 5MB
     
+    private static final int MAX_COVERS = 200;
+    
     private final StorageService storageService;
-    private final ImageProcessor imageProcessor;
+    private final ThumbnailService thumbnailService;
+    private final ImageVariantService variantService;
+    private final CoverPhotoService coverService;
+    private final FileResponseWriter fileResponseWriter;
     
     @Autowired
-    public PhotoController(StorageService storageService) {
+    public PhotoController(StorageService storageService, ThumbnailService thumbnailService,
+                           ImageVariantService variantService, CoverPhotoService coverService,
+                           FileResponseWriter fileResponseWriter) {
         this.storageService = storageService;
-        this.imageProcessor = new ImageProcessor();
+        this.thumbnailService = thumbnailService;
+        this.variantService = variantService;
+        this.coverService = coverService;
+        this.fileResponseWriter = fileResponseWriter;
+    }
+    
+    // Over quota and the like, from endpoints that do not handle it themselves
+    @ExceptionHandler(UploadRejectedException.class)
+    public ResponseEntity<Void> handleUploadRejected(UploadRejectedException e) {
+        return ResponseEntity.status(e.getReason().getStatus()).build();
     }
     
     @PostMapping("/upload/{propertyId}")
@@ -52,46 +80,111 @@ public class PhotoController {
             return ResponseEntity.badRequest().build();
         }
         
+        // Thumbnails are generated in the background by the storage service
         StoredFile storedFile = storageService.store(file, FileType.PHOTO, propertyId);
         
-        // Generate thumbnail asynchronously (in a real app)
-        // For now, we'll just return the photo info
-        
         return ResponseEntity.ok(new PhotoDTO(storedFile));
     }
     
+    /**
+     * The original photo, or a resized variant when {@code w} and/or {@code h}
+     * are given ({@code fit=contain|cover}, {@code q} JPEG quality 1-100).
+     */
     @GetMapping("/{id}")
-    @ResponseBody
-    public ResponseEntity<Resource> getPhoto(@PathVariable Long id) {
+    public void getPhoto(@PathVariable Long id,
+                         @RequestParam(value = "v", required = false) String version,
+                         @RequestParam(value = "w", required = false) Integer width,
+                         @RequestParam(value = "h", required = false) Integer height,
+                         @RequestParam(value = "fit", required = false) String fit,
+                         @RequestParam(value = "q", required = false) Integer quality,
+                         HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        ImageVariantService.Variant variant = null;
+        if (width != null || height != null || fit != null || quality != null) {
+            try {
+                variant = variantService.variant(width, height, fit, quality);
+            } catch (IllegalArgumentException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+        }
+        
+        FileResponseWriter.Download download;
         try {
             StoredFile fileInfo = storageService.getFileInfo(id);
             
             if (fileInfo.getFileType() != FileType.PHOTO) {
-                return ResponseEntity.notFound().build();
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
             }
             
-            Resource file = storageService.loadAsResource(id);
-            
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(fileInfo.getContentType()))
-                    .body(file);
+            download = variant == null
+                    ? FileResponseWriter.Download.of(fileInfo, storageService.load(fileInfo), version)
+                    : variantDownload(fileInfo, variant, version);
         } catch (RuntimeException e) {
             // File not found or could not be read, return 404
-            return ResponseEntity.notFound().build();
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
+        
+        fileResponseWriter.write(download, request, response);
+    }
+    
+    // The photo as uploaded, before optimization; only there when
+    // storage.photo.optimize.keep-original is set and the upload was changed
+    @GetMapping("/{id}/original")
+    public void getOriginal(@PathVariable Long id,
+                            @RequestParam(value = "v", required = false) String version,
+                            HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        FileResponseWriter.Download download;
+        try {
+            StoredFile fileInfo = storageService.getFileInfo(id);
+            Path original = fileInfo.getFileType() == FileType.PHOTO ? storageService.loadOriginal(fileInfo) : null;
+            if (original == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            
+            download = new FileResponseWriter.Download(
+                    original,
+                    MediaType.parseMediaType(fileInfo.getContentType()),
+                    fileInfo.getVersionTag() + "-original",
+                    FileResponseWriter.lastModified(fileInfo),
+                    FileResponseWriter.cacheControl(fileInfo.getVersionTag(), version),
+                    null);
+        } catch (RuntimeException e) {
+            // File not found, return 404
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        fileResponseWriter.write(download, request, response);
     }
     
     @GetMapping("/{id}/thumbnail")
-    @ResponseBody
-    public ResponseEntity<Resource> getThumbnail(@PathVariable Long id) {
-        // For now, return the same image
-        // In production, you would generate and cache thumbnails
+    public void getThumbnail(@PathVariable Long id,
+                             @RequestParam(value = "size", required = false) Integer size,
+                             @RequestParam(value = "v", required = false) String version,
+                             HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        FileResponseWriter.Download download;
         try {
-            return getPhoto(id);
+            StoredFile fileInfo = storageService.getFileInfo(id);
+            
+            if (fileInfo.getFileType() != FileType.PHOTO) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            
+            download = thumbnailDownload(fileInfo, size, version);
         } catch (RuntimeException e) {
             // File not found or could not be read, return 404
-            return ResponseEntity.notFound().build();
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
+        
+        fileResponseWriter.write(download, request, response);
     }
     
     @GetMapping("/{id}/info")
@@ -117,26 +210,137 @@ public class PhotoController {
     }
     
     @GetMapping("/property/{propertyId}/thumbnail")
+    public void getPropertyThumbnail(@PathVariable Long propertyId,
+                                     @RequestParam(value = "size", required = false) Integer size,
+                                     HttpServletRequest request,
+                                     HttpServletResponse response) throws IOException {
+        writeCover(propertyId, EntityType.PROPERTY, size, request, response);
+    }
+    
+    @GetMapping("/{entityType}/{entityId}/cover")
+    public void getCover(@PathVariable String entityType,
+                         @PathVariable Long entityId,
+                         @RequestParam(value = "size", required = false) Integer size,
+                         HttpServletRequest request,
+                         HttpServletResponse response) throws IOException {
+        EntityType entity;
+        try {
+            entity = EntityType.valueOf(entityType.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        writeCover(entityId, entity, size, request, response);
+    }
+    
+    /**
+     * Covers of many entities in one round trip, for listing pages: versioned
+     * thumbnail URLs (cacheable as immutable), their ETags and dimensions.
+     */
+    @PostMapping("/covers")
     @ResponseBody
-    public ResponseEntity<Resource> getPropertyThumbnail(@PathVariable Long propertyId) {
-        List<StoredFile> photos = storageService.listByPropertyAndType(propertyId, FileType.PHOTO);
+    public ResponseEntity<List<CoverDTO>> getCovers(@RequestBody CoverRequest coverRequest) {
+        List<CoverRequest.EntityRef> refs = coverRequest.getEntities();
+        if (refs == null || refs.size() > MAX_COVERS) {
+            return ResponseEntity.badRequest().build();
+        }
         
-        if (photos.isEmpty()) {
+        LinkedHashSet<CoverPhotoService.EntityKey> keys = new LinkedHashSet<>();
+        for (CoverRequest.EntityRef ref : refs) {
+            if (ref == null || ref.getEntityId() == null || ref.getEntityType() == null) {
+                return ResponseEntity.badRequest().build();
+            }
+            try {
+                keys.add(new CoverPhotoService.EntityKey(ref.getEntityId(),
+                        EntityType.valueOf(ref.getEntityType().toUpperCase())));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().build();
+            }
+        }
+        
+        int size = thumbnailService.resolveSize(coverRequest.getSize());
+        Map<CoverPhotoService.EntityKey, StoredFile> covers = coverService.getCovers(keys);
+        List<CoverDTO> result = keys.stream()
+                .map(key -> new CoverDTO(key.entityType(), key.entityId(), covers.get(key), size))
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(result);
+    }
+    
+    // Makes this photo the cover of its entity
+    @PutMapping("/{id}/cover")
+    @ResponseBody
+    public ResponseEntity<PhotoDTO> setCover(@PathVariable Long id) {
+        StoredFile file;
+        try {
+            file = storageService.getFileInfo(id);
+        } catch (RuntimeException e) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        if (file.getFileType() != FileType.PHOTO) {
             return ResponseEntity.notFound().build();
         }
         
-        // Try to get the first photo as thumbnail
-        StoredFile firstPhoto = photos.get(0);
+        coverService.setCover(file);
+        return ResponseEntity.ok(new PhotoDTO(file));
+    }
+    
+    private void writeCover(Long entityId, EntityType entityType, Integer size,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // The cover pointer and the row are both cached, so a listing page costs
+        // no queries; the photo behind this URL can change, so it is never
+        // cached as immutable and is revalidated instead
+        FileResponseWriter.Download download;
         try {
-            Resource file = storageService.loadAsResource(firstPhoto.getId());
-            
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(firstPhoto.getContentType()))
-                    .body(file);
+            Optional<Long> coverId = coverService.getCoverId(entityId, entityType);
+            if (coverId.isEmpty()) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            download = thumbnailDownload(storageService.getFileInfo(coverId.get()), size, null);
         } catch (RuntimeException e) {
             // File not found or could not be read, return 404
-            return ResponseEntity.notFound().build();
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        fileResponseWriter.write(download, request, response);
+    }
+    
+    private FileResponseWriter.Download thumbnailDownload(StoredFile photo, Integer size, String version) {
+        Optional<Path> thumbnail = thumbnailService.getThumbnail(photo, size);
+        
+        if (thumbnail.isPresent()) {
+            String variant = photo.getVersionTag() + "-" + thumbnailService.resolveSize(size);
+            return new FileResponseWriter.Download(
+                    thumbnail.get(),
+                    MediaType.IMAGE_JPEG,
+                    variant,
+                    FileResponseWriter.lastModified(photo),
+                    FileResponseWriter.cacheControl(photo.getVersionTag(), version),
+                    null);
+        }
+        
+        // Thumbnail pool saturated or render failed; serve the original instead,
+        // without letting caches pin it to the thumbnail URL
+        return FileResponseWriter.Download.of(photo, storageService.load(photo), null);
+    }
+    
+    private FileResponseWriter.Download variantDownload(StoredFile photo, ImageVariantService.Variant variant,
+                                                        String version) {
+        Path path;
+        try {
+            path = variantService.getVariant(photo, variant);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not render photo " + photo.getId(), e);
         }
+        return new FileResponseWriter.Download(
+                path,
+                MediaType.IMAGE_JPEG,
+                photo.getVersionTag() + "-" + variant.key(),
+                FileResponseWriter.lastModified(photo),
+                FileResponseWriter.cacheControl(photo.getVersionTag(), version),
+                null);
     }
     
     @DeleteMapping("/{id}")
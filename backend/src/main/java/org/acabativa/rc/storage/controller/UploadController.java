@@ -0,0 +1,107 @@
+package org.acabativa.rc.storage.controller;
+
+import org.acabativa.rc.storage.dto.FileDTO;
+import org.acabativa.rc.storage.dto.PhotoDTO;
+import org.acabativa.rc.storage.dto.UploadSessionDTO;
+import org.acabativa.rc.storage.dto.UploadSessionRequest;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.entity.UploadSession;
+import org.acabativa.rc.storage.service.ChunkedUploadService;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Resumable uploads for large files: open a session, PUT the chunks at their
+ * offsets (in any order, retrying as needed), then complete it.
+ */
+@RestController
+@RequestMapping("/api/v1/uploads")
+public class UploadController {
+
+    private final ChunkedUploadService chunkedUploadService;
+
+    @Autowired
+    public UploadController(ChunkedUploadService chunkedUploadService) {
+        this.chunkedUploadService = chunkedUploadService;
+    }
+
+    @PostMapping
+    public ResponseEntity<UploadSessionDTO> createSession(@RequestBody UploadSessionRequest request) {
+        try {
+            FileType type = FileType.valueOf(request.getFileType().toUpperCase());
+            EntityType entity = EntityType.valueOf(request.getEntityType().toUpperCase());
+            if (request.getEntityId() == null) {
+                return ResponseEntity.badRequest().build();
+            }
+
+            UploadSession session = chunkedUploadService.create(request.getFileName(), request.getContentType(),
+                    request.getFileSize(), type, request.getEntityId(), entity);
+            return ResponseEntity.created(URI.create("/api/v1/uploads/" + session.getId()))
+                    .body(toDTO(session));
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(e.getReason().getStatus()).build();
+        } catch (IllegalArgumentException | NullPointerException | IOException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // Raw chunk bytes as the body (application/octet-stream), never form-encoded
+    @PutMapping("/{id}")
+    public ResponseEntity<UploadSessionDTO> uploadChunk(@PathVariable String id,
+                                                        @RequestParam long offset,
+                                                        HttpServletRequest request) {
+        try {
+            UploadSession session = chunkedUploadService.writeChunk(id, offset, request.getInputStream());
+            return ResponseEntity.ok(toDTO(session));
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(e.getReason().getStatus()).build();
+        } catch (IOException e) {
+            // Client went away mid-chunk; the chunk stays missing and can be resent
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<UploadSessionDTO> getSession(@PathVariable String id) {
+        try {
+            return ResponseEntity.ok(toDTO(chunkedUploadService.getSession(id)));
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(e.getReason().getStatus()).build();
+        }
+    }
+
+    @PostMapping("/{id}/complete")
+    public ResponseEntity<FileDTO> completeSession(@PathVariable String id) {
+        try {
+            StoredFile storedFile = chunkedUploadService.complete(id);
+            return ResponseEntity.ok(storedFile.getFileType() == FileType.PHOTO
+                    ? new PhotoDTO(storedFile) : new FileDTO(storedFile));
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(e.getReason().getStatus()).build();
+        } catch (IOException e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> abortSession(@PathVariable String id) {
+        try {
+            chunkedUploadService.abort(id);
+            return ResponseEntity.noContent().build();
+        } catch (UploadRejectedException e) {
+            return ResponseEntity.status(e.getReason().getStatus()).build();
+        }
+    }
+
+    private UploadSessionDTO toDTO(UploadSession session) {
+        return new UploadSessionDTO(session, chunkedUploadService.getSessionTtl());
+    }
+}
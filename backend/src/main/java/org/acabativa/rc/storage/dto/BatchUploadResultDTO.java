@@ -0,0 +1,56 @@
+package org.acabativa.rc.storage.dto;
+
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.service.StorageService.StoreResult;
+
+public class BatchUploadResultDTO {
+    private String originalFileName;
+    private boolean stored;
+    private String error;
+    private FileDTO file;
+    
+    public BatchUploadResultDTO() {}
+    
+    public BatchUploadResultDTO(StoreResult result) {
+        this.originalFileName = result.originalFilename();
+        this.stored = result.isStored();
+        this.error = result.error();
+        if (result.isStored()) {
+            this.file = result.file().getFileType() == FileType.PHOTO
+                ? new PhotoDTO(result.file()) : new FileDTO(result.file());
+        }
+    }
+    
+    // Getters and Setters
+    public String getOriginalFileName() {
+        return originalFileName;
+    }
+    
+    public void setOriginalFileName(String originalFileName) {
+        this.originalFileName = originalFileName;
+    }
+    
+    public boolean isStored() {
+        return stored;
+    }
+    
+    public void setStored(boolean stored) {
+        this.stored = stored;
+    }
+    
+    public String getError() {
+        return error;
+    }
+    
+    public void setError(String error) {
+        this.error = error;
+    }
+    
+    public FileDTO getFile() {
+        return file;
+    }
+    
+    public void setFile(FileDTO file) {
+        this.file = file;
+    }
+}
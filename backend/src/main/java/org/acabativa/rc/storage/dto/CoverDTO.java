@@ -0,0 +1,103 @@
+package org.acabativa.rc.storage.dto;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.util.PhotoMetadata;
+
+public class CoverDTO {
+    private String entityType;
+    private Long entityId;
+    // All null when the entity has no photos
+    private Long photoId;
+    private String thumbnailUrl;
+    private String fullSizeUrl;
+    // ETag the thumbnail URL is served with
+    private String etag;
+    // Of the original as displayed, when known
+    private Integer width;
+    private Integer height;
+    
+    public CoverDTO() {}
+    
+    public CoverDTO(EntityType entityType, Long entityId, StoredFile photo, int thumbnailSize) {
+        this.entityType = entityType.name().toLowerCase();
+        this.entityId = entityId;
+        if (photo != null) {
+            this.photoId = photo.getId();
+            this.thumbnailUrl = "/api/v1/photos/" + photo.getId() + "/thumbnail?v=" + photo.getVersionTag()
+                + "&size=" + thumbnailSize;
+            this.fullSizeUrl = "/api/v1/photos/" + photo.getId() + "?v=" + photo.getVersionTag();
+            this.etag = "\"" + photo.getVersionTag() + "-" + thumbnailSize + "\"";
+            PhotoMetadata metadata = PhotoMetadata.parse(photo.getMetadata());
+            if (metadata != null) {
+                this.width = metadata.displayWidth();
+                this.height = metadata.displayHeight();
+            }
+        }
+    }
+    
+    // Getters and Setters
+    public String getEntityType() {
+        return entityType;
+    }
+    
+    public void setEntityType(String entityType) {
+        this.entityType = entityType;
+    }
+    
+    public Long getEntityId() {
+        return entityId;
+    }
+    
+    public void setEntityId(Long entityId) {
+        this.entityId = entityId;
+    }
+    
+    public Long getPhotoId() {
+        return photoId;
+    }
+    
+    public void setPhotoId(Long photoId) {
+        this.photoId = photoId;
+    }
+    
+    public String getThumbnailUrl() {
+        return thumbnailUrl;
+    }
+    
+    public void setThumbnailUrl(String thumbnailUrl) {
+        this.thumbnailUrl = thumbnailUrl;
+    }
+    
+    public String getFullSizeUrl() {
+        return fullSizeUrl;
+    }
+    
+    public void setFullSizeUrl(String fullSizeUrl) {
+        this.fullSizeUrl = fullSizeUrl;
+    }
+    
+    public String getEtag() {
+        return etag;
+    }
+    
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+    
+    public Integer getWidth() {
+        return width;
+    }
+    
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+    
+    public Integer getHeight() {
+        return height;
+    }
+    
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+}
@@ -0,0 +1,50 @@
+package org.acabativa.rc.storage.dto;
+
+import java.util.List;
+
+public class CoverRequest {
+    private Integer size;
+    private List<EntityRef> entities;
+    
+    public CoverRequest() {}
+    
+    public static class EntityRef {
+        private String entityType;
+        private Long entityId;
+        
+        public EntityRef() {}
+        
+        public String getEntityType() {
+            return entityType;
+        }
+        
+        public void setEntityType(String entityType) {
+            this.entityType = entityType;
+        }
+        
+        public Long getEntityId() {
+            return entityId;
+        }
+        
+        public void setEntityId(Long entityId) {
+            this.entityId = entityId;
+        }
+    }
+    
+    // Getters and Setters
+    public Integer getSize() {
+        return size;
+    }
+    
+    public void setSize(Integer size) {
+        this.size = size;
+    }
+    
+    public List<EntityRef> getEntities() {
+        return entities;
+    }
+    
+    public void setEntities(List<EntityRef> entities) {
+        this.entities = entities;
+    }
+}
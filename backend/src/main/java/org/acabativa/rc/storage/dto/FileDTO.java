@@ -11,6 +11,7 @@ public class FileDTO {
     private String fileType;
     private LocalDateTime uploadDate;
     private Long propertyId;
+    private String downloadUrl;
     
     public FileDTO() {}
     
@@ -22,6 +23,8 @@ public class FileDTO {
         this.fileType = file.getFileType().toString();
         this.uploadDate = file.getUploadDate();
         this.propertyId = file.getPropertyId();
+        // Versioned URL: served with a long-lived Cache-Control while the file is unchanged
+        this.downloadUrl = "/api/v1/files/" + file.getId() + "?v=" + file.getVersionTag();
     }
     
     // Getters and Setters
@@ -80,4 +83,12 @@ public class FileDTO {
     public void setPropertyId(Long propertyId) {
         this.propertyId = propertyId;
     }
+    
+    public String getDownloadUrl() {
+        return downloadUrl;
+    }
+    
+    public void setDownloadUrl(String downloadUrl) {
+        this.downloadUrl = downloadUrl;
+    }
 }
\ No newline at end of file
@@ -1,12 +1,18 @@
 package org.acabativa.rc.storage.dto;
 
 import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.util.PhotoMetadata;
 
 public class PhotoDTO extends FileDTO {
     private String thumbnailUrl;
     private String fullSizeUrl;
+    // As displayed, with the EXIF orientation applied
     private Integer width;
     private Integer height;
+    private Integer orientation;
+    private String capturedAt;
+    private Double latitude;
+    private Double longitude;
     
     public PhotoDTO() {
         super();
@@ -14,8 +20,18 @@ public class PhotoDTO extends FileDTO {
     
     public PhotoDTO(StoredFile file) {
         super(file);
-        this.fullSizeUrl = "/api/v1/photos/" + file.getId();
-        this.thumbnailUrl = "/api/v1/photos/" + file.getId() + "/thumbnail";
+        this.fullSizeUrl = "/api/v1/photos/" + file.getId() + "?v=" + file.getVersionTag();
+        this.thumbnailUrl = "/api/v1/photos/" + file.getId() + "/thumbnail?v=" + file.getVersionTag();
+        
+        PhotoMetadata metadata = PhotoMetadata.parse(file.getMetadata());
+        if (metadata != null) {
+            this.width = metadata.displayWidth();
+            this.height = metadata.displayHeight();
+            this.orientation = metadata.orientation();
+            this.capturedAt = metadata.capturedAt();
+            this.latitude = metadata.latitude();
+            this.longitude = metadata.longitude();
+        }
     }
     
     // Getters and Setters
@@ -50,4 +66,36 @@ public class PhotoDTO extends FileDTO {
     public void setHeight(Integer height) {
         this.height = height;
     }
-}
\ No newline at end of file
+    
+    public Integer getOrientation() {
+        return orientation;
+    }
+    
+    public void setOrientation(Integer orientation) {
+        this.orientation = orientation;
+    }
+    
+    public String getCapturedAt() {
+        return capturedAt;
+    }
+    
+    public void setCapturedAt(String capturedAt) {
+        this.capturedAt = capturedAt;
+    }
+    
+    public Double getLatitude() {
+        return latitude;
+    }
+    
+    public void setLatitude(Double latitude) {
+        this.latitude = latitude;
+    }
+    
+    public Double getLongitude() {
+        return longitude;
+    }
+    
+    public void setLongitude(Double longitude) {
+        this.longitude = longitude;
+    }
+}
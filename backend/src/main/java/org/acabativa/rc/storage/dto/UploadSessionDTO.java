@@ -0,0 +1,134 @@
+package org.acabativa.rc.storage.dto;
+
+import org.acabativa.rc.storage.entity.UploadSession;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class UploadSessionDTO {
+    private String id;
+    private String fileName;
+    private Long fileSize;
+    private Integer chunkSize;
+    private Integer totalChunks;
+    private Long receivedBytes;
+    // Start of the first missing chunk: where a sequential client resumes
+    private Long offset;
+    private List<Integer> missingChunks;
+    private String status;
+    private Long storedFileId;
+    private LocalDateTime expiresAt;
+    
+    public UploadSessionDTO() {}
+    
+    public UploadSessionDTO(UploadSession session, Duration ttl) {
+        BitSet received = session.getReceivedChunkSet();
+        this.id = session.getId();
+        this.fileName = session.getOriginalFileName();
+        this.fileSize = session.getTotalSize();
+        this.chunkSize = session.getChunkSize();
+        this.totalChunks = session.getTotalChunks();
+        this.receivedBytes = session.getReceivedBytes();
+        this.offset = Math.min(session.getTotalSize(), (long) received.nextClearBit(0) * session.getChunkSize());
+        this.missingChunks = IntStream.range(0, totalChunks)
+                .filter(index -> !received.get(index))
+                .boxed()
+                .collect(Collectors.toList());
+        this.status = session.getStatus().toString();
+        this.storedFileId = session.getStoredFileId();
+        this.expiresAt = session.getLastActivity().plus(ttl);
+    }
+    
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+    
+    public void setId(String id) {
+        this.id = id;
+    }
+    
+    public String getFileName() {
+        return fileName;
+    }
+    
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+    
+    public Long getFileSize() {
+        return fileSize;
+    }
+    
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
+    
+    public Integer getChunkSize() {
+        return chunkSize;
+    }
+    
+    public void setChunkSize(Integer chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+    
+    public Integer getTotalChunks() {
+        return totalChunks;
+    }
+    
+    public void setTotalChunks(Integer totalChunks) {
+        this.totalChunks = totalChunks;
+    }
+    
+    public Long getReceivedBytes() {
+        return receivedBytes;
+    }
+    
+    public void setReceivedBytes(Long receivedBytes) {
+        this.receivedBytes = receivedBytes;
+    }
+    
+    public Long getOffset() {
+        return offset;
+    }
+    
+    public void setOffset(Long offset) {
+        this.offset = offset;
+    }
+    
+    public List<Integer> getMissingChunks() {
+        return missingChunks;
+    }
+    
+    public void setMissingChunks(List<Integer> missingChunks) {
+        this.missingChunks = missingChunks;
+    }
+    
+    public String getStatus() {
+        return status;
+    }
+    
+    public void setStatus(String status) {
+        this.status = status;
+    }
+    
+    public Long getStoredFileId() {
+        return storedFileId;
+    }
+    
+    public void setStoredFileId(Long storedFileId) {
+        this.storedFileId = storedFileId;
+    }
+    
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+    
+    public void setExpiresAt(LocalDateTime expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
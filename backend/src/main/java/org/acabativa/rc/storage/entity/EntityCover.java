@@ -0,0 +1,83 @@
+package org.acabativa.rc.storage.entity;
+
+import jakarta.persistence.*;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+
+import java.time.LocalDateTime;
+
+/**
+ * The photo shown for an entity in listings. Defaults to its first photo and
+ * is kept up to date as photos are stored and deleted, so serving a cover
+ * never needs to list the entity's photos.
+ */
+@Entity
+@Table(name = "entity_covers", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_entity_covers_entity", columnNames = {"entityId", "entityType"})
+})
+public class EntityCover {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long entityId;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private EntityType entityType;
+
+    @Column(nullable = false)
+    private Long fileId;
+
+    // Chosen by a user rather than defaulted to the first photo
+    @Column(nullable = false)
+    private boolean explicit;
+
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+    public EntityCover() {
+    }
+
+    public EntityCover(Long entityId, EntityType entityType, Long fileId, boolean explicit) {
+        this.entityId = entityId;
+        this.entityType = entityType;
+        this.fileId = fileId;
+        this.explicit = explicit;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getEntityId() {
+        return entityId;
+    }
+
+    public EntityType getEntityType() {
+        return entityType;
+    }
+
+    public Long getFileId() {
+        return fileId;
+    }
+
+    public void setFileId(Long fileId) {
+        this.fileId = fileId;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    public boolean isExplicit() {
+        return explicit;
+    }
+
+    public void setExplicit(boolean explicit) {
+        this.explicit = explicit;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+}
@@ -0,0 +1,84 @@
+package org.acabativa.rc.storage.entity;
+
+import jakarta.persistence.*;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+
+import java.time.LocalDateTime;
+
+/**
+ * How many files of one type an entity has, and their total size. Kept up to
+ * date with atomic increments in the same transaction as the file rows, so
+ * usage and quota checks never need to sum {@code stored_files}.
+ */
+@Entity
+@Table(name = "storage_usage", uniqueConstraints = {
+    @UniqueConstraint(name = "uk_storage_usage_entity_type", columnNames = {"entityId", "entityType", "fileType"})
+})
+public class StorageUsage {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Long entityId;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private EntityType entityType;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private FileType fileType;
+
+    @Column(nullable = false)
+    private long fileCount;
+
+    // Sum of fileSize, i.e. of the original content, however it is kept on disk
+    @Column(nullable = false)
+    private long totalBytes;
+
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+    public StorageUsage() {
+    }
+
+    public StorageUsage(Long entityId, EntityType entityType, FileType fileType, long fileCount, long totalBytes) {
+        this.entityId = entityId;
+        this.entityType = entityType;
+        this.fileType = fileType;
+        this.fileCount = fileCount;
+        this.totalBytes = totalBytes;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Long getEntityId() {
+        return entityId;
+    }
+
+    public EntityType getEntityType() {
+        return entityType;
+    }
+
+    public FileType getFileType() {
+        return fileType;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+}
@@ -0,0 +1,112 @@
+package org.acabativa.rc.storage.entity;
+
+import jakarta.persistence.*;
+import org.springframework.data.domain.Persistable;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "stored_blobs")
+public class StoredBlob implements Persistable<String> {
+
+    @Id
+    @Column(length = 64)
+    private String contentHash;
+
+    @Column(nullable = false)
+    private String filePath;
+
+    @Column(nullable = false)
+    private Long fileSize;
+
+    @Column(nullable = false)
+    private Long refCount;
+
+    // "gzip" when the blob is kept compressed; fileSize is the original size
+    @Column(length = 16)
+    private String contentEncoding;
+
+    @Column(nullable = false)
+    private LocalDateTime createDate;
+
+    // The hash is assigned by us, so tell Spring Data to INSERT rather than merge
+    @Transient
+    private boolean newBlob = true;
+
+    public StoredBlob() {
+        this.createDate = LocalDateTime.now();
+    }
+
+    public StoredBlob(String contentHash, String filePath, Long fileSize) {
+        this();
+        this.contentHash = contentHash;
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.refCount = 1L;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markPersisted() {
+        this.newBlob = false;
+    }
+
+    @Override
+    public String getId() {
+        return contentHash;
+    }
+
+    @Override
+    public boolean isNew() {
+        return newBlob;
+    }
+
+    // Getters and Setters
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public Long getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(Long refCount) {
+        this.refCount = refCount;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    public LocalDateTime getCreateDate() {
+        return createDate;
+    }
+
+    public void setCreateDate(LocalDateTime createDate) {
+        this.createDate = createDate;
+    }
+}
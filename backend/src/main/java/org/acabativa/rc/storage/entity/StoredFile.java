@@ -2,14 +2,19 @@ package org.acabativa.rc.storage.entity;
 
 import jakarta.persistence.*;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 @Entity
-@Table(name = "stored_files")
+@Table(name = "stored_files", indexes = {
+    @Index(name = "idx_stored_files_content_hash", columnList = "contentHash")
+})
 public class StoredFile {
     
     @Id
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "file_sequence")
-    @SequenceGenerator(name = "file_sequence", sequenceName = "file_sequence", allocationSize = 1)
+    // Ids are reserved 50 at a time so batch inserts need no round trip per row;
+    // the database sequence must use the same increment (see setup-database.sql)
+    @SequenceGenerator(name = "file_sequence", sequenceName = "file_sequence", allocationSize = 50)
     private Long id;
     
     @Column(nullable = false)
@@ -44,6 +49,18 @@ public class StoredFile {
     @Column(columnDefinition = "TEXT")
     private String metadata;
     
+    // SHA-256 of the content; null for files stored before hashing was introduced
+    @Column(length = 64)
+    private String contentHash;
+    
+    // "gzip" when the content is kept compressed on disk; fileSize and
+    // contentHash always describe the original content
+    @Column(length = 16)
+    private String contentEncoding;
+    
+    // The photo as uploaded, when optimization changed it and originals are kept
+    private String originalFilePath;
+    
     public enum FileType {
         PHOTO, DOCUMENT, OTHER
     }
@@ -174,4 +191,37 @@ public class StoredFile {
     public void setMetadata(String metadata) {
         this.metadata = metadata;
     }
+    
+    public String getContentHash() {
+        return contentHash;
+    }
+    
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+    
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+    
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+    
+    public String getOriginalFilePath() {
+        return originalFilePath;
+    }
+    
+    public void setOriginalFilePath(String originalFilePath) {
+        this.originalFilePath = originalFilePath;
+    }
+    
+    // Strong validator used for ETags and versioned URLs: the content hash when
+    // known, otherwise id, size and upload time, which all change on update
+    public String getVersionTag() {
+        if (contentHash != null) {
+            return contentHash;
+        }
+        return id + "-" + fileSize + "-" + uploadDate.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
\ No newline at end of file
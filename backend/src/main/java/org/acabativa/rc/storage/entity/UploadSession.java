@@ -0,0 +1,215 @@
+package org.acabativa.rc.storage.entity;
+
+import jakarta.persistence.*;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+
+import java.time.LocalDateTime;
+import java.util.BitSet;
+
+@Entity
+@Table(name = "upload_sessions", indexes = {
+    @Index(name = "idx_upload_sessions_last_activity", columnList = "lastActivity")
+})
+public class UploadSession {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private String id;
+
+    @Column(nullable = false)
+    private String originalFileName;
+
+    private String contentType;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private FileType fileType;
+
+    @Column(nullable = false)
+    private Long entityId;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private EntityType entityType;
+
+    @Column(nullable = false)
+    private Long totalSize;
+
+    @Column(nullable = false)
+    private Integer chunkSize;
+
+    // One bit per chunk, set once the chunk is on disk
+    @Column(nullable = false, length = 1024)
+    private byte[] receivedChunks;
+
+    @Column(nullable = false)
+    private Long receivedBytes;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Status status;
+
+    // Set when the session has been turned into a StoredFile
+    private Long storedFileId;
+
+    @Column(nullable = false)
+    private LocalDateTime createDate;
+
+    @Column(nullable = false)
+    private LocalDateTime lastActivity;
+
+    public enum Status {
+        OPEN, COMPLETED
+    }
+
+    public UploadSession() {
+        this.createDate = LocalDateTime.now();
+        this.lastActivity = this.createDate;
+        this.receivedChunks = new byte[0];
+        this.receivedBytes = 0L;
+        this.status = Status.OPEN;
+    }
+
+    public UploadSession(String originalFileName, String contentType, FileType fileType,
+                         Long entityId, EntityType entityType, Long totalSize, Integer chunkSize) {
+        this();
+        this.originalFileName = originalFileName;
+        this.contentType = contentType;
+        this.fileType = fileType;
+        this.entityId = entityId;
+        this.entityType = entityType;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+    }
+
+    public int getTotalChunks() {
+        return (int) ((totalSize + chunkSize - 1) / chunkSize);
+    }
+
+    public long getChunkLength(int index) {
+        long start = (long) index * chunkSize;
+        return Math.min(chunkSize, totalSize - start);
+    }
+
+    public BitSet getReceivedChunkSet() {
+        return BitSet.valueOf(receivedChunks);
+    }
+
+    public boolean isComplete() {
+        return getReceivedChunkSet().cardinality() == getTotalChunks();
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getOriginalFileName() {
+        return originalFileName;
+    }
+
+    public void setOriginalFileName(String originalFileName) {
+        this.originalFileName = originalFileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public FileType getFileType() {
+        return fileType;
+    }
+
+    public void setFileType(FileType fileType) {
+        this.fileType = fileType;
+    }
+
+    public Long getEntityId() {
+        return entityId;
+    }
+
+    public void setEntityId(Long entityId) {
+        this.entityId = entityId;
+    }
+
+    public EntityType getEntityType() {
+        return entityType;
+    }
+
+    public void setEntityType(EntityType entityType) {
+        this.entityType = entityType;
+    }
+
+    public Long getTotalSize() {
+        return totalSize;
+    }
+
+    public void setTotalSize(Long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    public Integer getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(Integer chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public byte[] getReceivedChunks() {
+        return receivedChunks;
+    }
+
+    public void setReceivedChunks(byte[] receivedChunks) {
+        this.receivedChunks = receivedChunks;
+    }
+
+    public Long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    public void setReceivedBytes(Long receivedBytes) {
+        this.receivedBytes = receivedBytes;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Long getStoredFileId() {
+        return storedFileId;
+    }
+
+    public void setStoredFileId(Long storedFileId) {
+        this.storedFileId = storedFileId;
+    }
+
+    public LocalDateTime getCreateDate() {
+        return createDate;
+    }
+
+    public void setCreateDate(LocalDateTime createDate) {
+        this.createDate = createDate;
+    }
+
+    public LocalDateTime getLastActivity() {
+        return lastActivity;
+    }
+
+    public void setLastActivity(LocalDateTime lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+}
@@ -0,0 +1,29 @@
+package org.acabativa.rc.storage.repository;
+
+import org.acabativa.rc.storage.entity.EntityCover;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface EntityCoverRepository extends JpaRepository<EntityCover, Long> {
+
+    Optional<EntityCover> findByEntityIdAndEntityType(Long entityId, EntityType entityType);
+
+    // Repoints covers of a deleted photo; no-op when the cover was changed meanwhile
+    @Modifying
+    @Query("UPDATE EntityCover c SET c.fileId = :newFileId, c.explicit = false, c.updatedAt = CURRENT_TIMESTAMP "
+         + "WHERE c.entityId = :entityId AND c.entityType = :entityType AND c.fileId = :oldFileId")
+    int replaceCover(@Param("entityId") Long entityId, @Param("entityType") EntityType entityType,
+                     @Param("oldFileId") Long oldFileId, @Param("newFileId") Long newFileId);
+
+    @Modifying
+    @Query("DELETE FROM EntityCover c WHERE c.entityId = :entityId AND c.entityType = :entityType AND c.fileId = :fileId")
+    int deleteCover(@Param("entityId") Long entityId, @Param("entityType") EntityType entityType,
+                    @Param("fileId") Long fileId);
+}
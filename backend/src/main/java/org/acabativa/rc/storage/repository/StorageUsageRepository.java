@@ -0,0 +1,44 @@
+package org.acabativa.rc.storage.repository;
+
+import org.acabativa.rc.storage.entity.StorageUsage;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface StorageUsageRepository extends JpaRepository<StorageUsage, Long> {
+
+    List<StorageUsage> findByEntityIdAndEntityTypeOrderByFileType(Long entityId, EntityType entityType);
+
+    boolean existsByEntityIdAndEntityTypeAndFileType(Long entityId, EntityType entityType, FileType fileType);
+
+    // Adds to the counters only while the result stays within the limits
+    // (0 means unlimited); no-op when the row does not exist yet
+    @Modifying
+    @Query("UPDATE StorageUsage u SET u.fileCount = u.fileCount + :files, u.totalBytes = u.totalBytes + :bytes, "
+         + "u.updatedAt = CURRENT_TIMESTAMP "
+         + "WHERE u.entityId = :entityId AND u.entityType = :entityType AND u.fileType = :fileType "
+         + "AND (:maxFiles <= 0 OR u.fileCount + :files <= :maxFiles) "
+         + "AND (:maxBytes <= 0 OR u.totalBytes + :bytes <= :maxBytes)")
+    int addWithinQuota(@Param("entityId") Long entityId, @Param("entityType") EntityType entityType,
+                       @Param("fileType") FileType fileType, @Param("files") long files, @Param("bytes") long bytes,
+                       @Param("maxFiles") long maxFiles, @Param("maxBytes") long maxBytes);
+
+    @Modifying
+    @Query("UPDATE StorageUsage u SET u.fileCount = u.fileCount + :files, u.totalBytes = u.totalBytes + :bytes, "
+         + "u.updatedAt = CURRENT_TIMESTAMP "
+         + "WHERE u.entityId = :entityId AND u.entityType = :entityType AND u.fileType = :fileType")
+    int add(@Param("entityId") Long entityId, @Param("entityType") EntityType entityType,
+            @Param("fileType") FileType fileType, @Param("files") long files, @Param("bytes") long bytes);
+
+    // Totals over all entities, one row per entity type and file type
+    @Query("SELECT u.entityType, u.fileType, SUM(u.fileCount), SUM(u.totalBytes) FROM StorageUsage u "
+         + "GROUP BY u.entityType, u.fileType")
+    List<Object[]> sumByEntityTypeAndFileType();
+}
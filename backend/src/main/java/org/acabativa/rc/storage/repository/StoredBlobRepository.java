@@ -0,0 +1,34 @@
+package org.acabativa.rc.storage.repository;
+
+import org.acabativa.rc.storage.entity.StoredBlob;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface StoredBlobRepository extends JpaRepository<StoredBlob, String> {
+
+    @Modifying
+    @Query("UPDATE StoredBlob b SET b.refCount = b.refCount + 1 WHERE b.contentHash = :contentHash")
+    int incrementRefCount(@Param("contentHash") String contentHash);
+
+    @Modifying
+    @Query("UPDATE StoredBlob b SET b.refCount = b.refCount - 1 WHERE b.contentHash = :contentHash AND b.refCount > 0")
+    int decrementRefCount(@Param("contentHash") String contentHash);
+
+    @Modifying
+    @Query("DELETE FROM StoredBlob b WHERE b.contentHash = :contentHash AND b.refCount <= 0")
+    int deleteIfUnreferenced(@Param("contentHash") String contentHash);
+
+    @Query("SELECT b.contentEncoding FROM StoredBlob b WHERE b.contentHash = :contentHash")
+    String findContentEncoding(@Param("contentHash") String contentHash);
+
+    // Keyset-paged scan of hashes and paths for the reconciler
+    @Query("SELECT b.contentHash, b.filePath, b.fileSize FROM StoredBlob b WHERE b.contentHash > :contentHash ORDER BY b.contentHash")
+    List<Object[]> findPathsAfter(@Param("contentHash") String contentHash, Limit limit);
+}
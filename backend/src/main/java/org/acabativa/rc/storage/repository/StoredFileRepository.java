@@ -3,11 +3,14 @@ package org.acabativa.rc.storage.repository;
 import org.acabativa.rc.storage.entity.StoredFile;
 import org.acabativa.rc.storage.entity.StoredFile.FileType;
 import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -24,6 +27,55 @@ public interface StoredFileRepository extends JpaRepository<StoredFile, Long> {
     @Query("SELECT s.id, s.originalFileName, s.contentType, s.fileSize FROM StoredFile s WHERE s.entityId = :entityId AND s.entityType = :entityType AND s.fileType = :fileType ORDER BY s.uploadDate DESC")
     List<Object[]> findBasicInfoByEntityIdAndEntityTypeAndFileType(@Param("entityId") Long entityId, @Param("entityType") EntityType entityType, @Param("fileType") FileType fileType);
     
+    // The first file of a kind stored for an entity, without loading any row
+    @Query("SELECT MIN(s.id) FROM StoredFile s WHERE s.entityId = :entityId AND s.entityType = :entityType AND s.fileType = :fileType")
+    Long findFirstId(@Param("entityId") Long entityId, @Param("entityType") EntityType entityType, @Param("fileType") FileType fileType);
+    
+    // Cover photos of many entities in one statement; callers drop rows of
+    // entity types they did not ask for
+    @Query("SELECT s FROM StoredFile s WHERE s.id IN (SELECT c.fileId FROM EntityCover c WHERE c.entityId IN :entityIds)")
+    List<StoredFile> findCoversByEntityIdIn(@Param("entityIds") Collection<Long> entityIds);
+    
+    // Keyset-paged scan for background jobs
+    List<StoredFile> findByIdGreaterThanOrderByIdAsc(Long id, Limit limit);
+    
+    // Only succeeds while the row still points at the old location, so a file
+    // replaced or deleted in the meantime is left alone
+    @Modifying
+    @Query("UPDATE StoredFile s SET s.filePath = :newPath WHERE s.id = :id AND s.filePath = :oldPath")
+    int updateFilePath(@Param("id") Long id, @Param("oldPath") String oldPath, @Param("newPath") String newPath);
+    
+    // Photos still without extracted metadata, keyset-paged
+    List<StoredFile> findByFileTypeAndMetadataIsNullAndIdGreaterThanOrderByIdAsc(FileType fileType, Long id, Limit limit);
+    
+    // Only fills rows that have no metadata yet and still hold the content it was read from
+    @Modifying
+    @Query("UPDATE StoredFile s SET s.metadata = :metadata WHERE s.id = :id AND s.filePath = :filePath AND s.metadata IS NULL")
+    int updateMetadata(@Param("id") Long id, @Param("filePath") String filePath, @Param("metadata") String metadata);
+    
+    // Keyset-paged scan of the columns the reconciler checks, without loading entities
+    @Query("SELECT s.id, s.filePath, s.fileName, s.fileSize, s.entityId, s.entityType, s.uploadDate FROM StoredFile s WHERE s.id > :id ORDER BY s.id")
+    List<Object[]> findReconcileRowsAfter(@Param("id") Long id, Limit limit);
+    
+    boolean existsByFilePath(String filePath);
+    
+    // Number of rows removed, so callers can tell whether they deleted the file
+    @Modifying
+    @Query("DELETE FROM StoredFile s WHERE s.id = :id")
+    int deleteByIdIfExists(@Param("id") Long id);
+    
+    // A packed copy of this content ("pack:<segment>/<offset>/<length>") and its encoding
+    @Query("SELECT s.filePath, s.contentEncoding FROM StoredFile s WHERE s.contentHash = :contentHash AND s.filePath LIKE 'pack:%'")
+    List<Object[]> findPackedCopies(@Param("contentHash") String contentHash, Limit limit);
+    
+    @Query("SELECT s.id, s.filePath, s.entityId, s.entityType FROM StoredFile s WHERE s.filePath LIKE :prefix")
+    List<Object[]> findPackedRows(@Param("prefix") String prefix);
+    
+    // Usage of every entity and file type, to rebuild the storage_usage counters
+    @Query("SELECT s.entityId, s.entityType, s.fileType, COUNT(s), SUM(s.fileSize) FROM StoredFile s "
+         + "GROUP BY s.entityId, s.entityType, s.fileType")
+    List<Object[]> sumUsageByEntityAndFileType();
+    
     // Backward compatibility methods for Property
     @Deprecated
     default List<StoredFile> findByPropertyId(Long propertyId) {
@@ -0,0 +1,23 @@
+package org.acabativa.rc.storage.repository;
+
+import org.acabativa.rc.storage.entity.UploadSession;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+
+    List<UploadSession> findByLastActivityBefore(LocalDateTime cutoff);
+
+    // Row-locks the session for the rest of the transaction and clears the
+    // persistence context, so the next read sees what concurrent chunks wrote
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("UPDATE UploadSession s SET s.lastActivity = :now WHERE s.id = :id")
+    int touch(@Param("id") String id, @Param("now") LocalDateTime now);
+}
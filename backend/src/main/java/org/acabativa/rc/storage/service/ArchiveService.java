@@ -0,0 +1,159 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes stored files as a ZIP straight to an output stream, one entry at a
+ * time, so an archive of any size needs neither memory nor a temporary file.
+ *
+ * Content that is already compressed (JPEG, PNG and ZIP-based formats such as
+ * DOCX/XLSX) is added as STORED: deflating it again costs CPU for no gain.
+ * STORED entries need their CRC up front, which is one extra sequential read
+ * of the file, normally served from the page cache.
+ */
+@Service
+public class ArchiveService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger LOGGER = Logger.getLogger(ArchiveService.class.getName());
+
+    private final StorageService storageService;
+
+    public ArchiveService(StorageService storageService) {
+        this.storageService = storageService;
+    }
+
+    /**
+     * Writes the archive and finishes it; the output stream is left open.
+     * Files missing on disk are skipped, since the response is already
+     * committed by the time they are reached.
+     */
+    public void write(List<StoredFile> files, OutputStream output) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(output);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Set<String> names = new HashSet<>();
+
+        for (StoredFile file : files) {
+            Path path = null;
+            ByteBuffer packed;
+            try {
+                packed = storageService.loadPacked(file);
+                if (packed == null) {
+                    path = storageService.load(file);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Skipping missing file " + file.getId() + " in archive", e);
+                continue;
+            }
+
+            ZipEntry entry = new ZipEntry(entryName(file, names));
+            entry.setLastModifiedTime(FileTime.from(file.getUploadDate().atZone(ZoneId.systemDefault()).toInstant()));
+            boolean encoded = ContentCompression.GZIP.equals(file.getContentEncoding());
+            if (isCompressed(file.getContentType()) && !encoded) {
+                long size = packed != null ? packed.remaining() : Files.size(path);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(size);
+                entry.setCompressedSize(size);
+                entry.setCrc(packed != null ? crc(packed) : crc(path, buffer));
+            }
+
+            zip.putNextEntry(entry);
+            if (packed != null && !encoded) {
+                WritableByteChannel target = Channels.newChannel(zip);
+                while (packed.hasRemaining()) {
+                    target.write(packed);
+                }
+            } else {
+                InputStream stored = packed != null ? new ByteArrayInputStream(bytes(packed)) : Files.newInputStream(path);
+                // Entries hold the original content; the archive deflates it again
+                try (InputStream input = encoded ? new GZIPInputStream(stored, BUFFER_SIZE) : stored) {
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        zip.write(buffer, 0, read);
+                    }
+                }
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    // <folder>/<original name>, with " (2)", " (3)"... for repeated names
+    private static String entryName(StoredFile file, Set<String> names) {
+        String folder = switch (file.getFileType()) {
+            case PHOTO -> "photos/";
+            case DOCUMENT -> "documents/";
+            case OTHER -> "others/";
+        };
+        String original = file.getOriginalFileName().replace('\\', '/');
+        original = original.substring(original.lastIndexOf('/') + 1);
+        if (original.isBlank()) {
+            original = String.valueOf(file.getId());
+        }
+
+        int dot = original.lastIndexOf('.');
+        String base = dot > 0 ? original.substring(0, dot) : original;
+        String extension = dot > 0 ? original.substring(dot) : "";
+        String name = folder + original;
+        for (int copy = 2; !names.add(name.toLowerCase()); copy++) {
+            name = folder + base + " (" + copy + ")" + extension;
+        }
+        return name;
+    }
+
+    private static boolean isCompressed(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.equals("image/jpeg")
+            || contentType.equals("image/png")
+            || contentType.equals("application/zip")
+            || contentType.startsWith("application/vnd.openxmlformats-officedocument.");
+    }
+
+    private static long crc(Path path, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream input = Files.newInputStream(path)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] bytes(ByteBuffer content) {
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static long crc(ByteBuffer content) {
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        return crc.getValue();
+    }
+}
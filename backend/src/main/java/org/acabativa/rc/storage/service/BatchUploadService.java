@@ -0,0 +1,100 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.service.StorageService.StoreResult;
+import org.acabativa.rc.storage.service.StorageService.Upload;
+import org.acabativa.rc.storage.util.FileSignature;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Stores many files for one entity in a single request. Each file is checked
+ * on its own (size and magic bytes, like the streaming upload); the accepted
+ * ones are handed to {@link StorageService#storeAll} together, and the result
+ * list keeps the order of the request.
+ */
+@Service
+public class BatchUploadService {
+
+    private final StorageService storageService;
+    private final long photoMaxSize;
+    private final long documentMaxSize;
+    private final int maxFiles;
+
+    public BatchUploadService(StorageService storageService,
+                              @Value("${storage.photo.max-size:5MB}") DataSize photoMaxSize,
+                              @Value("${storage.document.max-size:10MB}") DataSize documentMaxSize,
+                              @Value("${storage.upload.batch.max-files:50}") int maxFiles) {
+        this.storageService = storageService;
+        this.photoMaxSize = photoMaxSize.toBytes();
+        this.documentMaxSize = documentMaxSize.toBytes();
+        this.maxFiles = maxFiles;
+    }
+
+    public List<StoreResult> upload(List<MultipartFile> files, FileType fileType,
+                                    Long entityId, EntityType entityType) {
+        if (files == null || files.isEmpty()) {
+            throw new UploadRejectedException(Reason.MALFORMED, "No files found in the request");
+        }
+        if (files.size() > maxFiles) {
+            throw new UploadRejectedException(Reason.TOO_LARGE, "At most " + maxFiles + " files per batch");
+        }
+
+        // Rejections are kept in place; null marks a file that goes to storage
+        List<StoreResult> results = new ArrayList<>(files.size());
+        List<Upload> accepted = new ArrayList<>();
+        for (MultipartFile file : files) {
+            try {
+                accepted.add(validate(file, fileType));
+                results.add(null);
+            } catch (UploadRejectedException e) {
+                results.add(new StoreResult(file.getOriginalFilename(), null, e.getMessage()));
+            }
+        }
+        if (accepted.isEmpty()) {
+            return results;
+        }
+
+        Iterator<StoreResult> stored = storageService.storeAll(accepted, fileType, entityId, entityType).iterator();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i) == null) {
+                results.set(i, stored.next());
+            }
+        }
+        return results;
+    }
+
+    private Upload validate(MultipartFile file, FileType fileType) {
+        String filename = file.getOriginalFilename();
+        if (file.isEmpty() || filename == null || filename.isBlank()) {
+            throw new UploadRejectedException(Reason.MALFORMED, "Empty file " + filename);
+        }
+        long maxSize = fileType == FileType.PHOTO ? photoMaxSize : documentMaxSize;
+        if (file.getSize() > maxSize) {
+            throw new UploadRejectedException(Reason.TOO_LARGE,
+                "File exceeds the maximum size of " + DataSize.ofBytes(maxSize).toMegabytes() + "MB");
+        }
+
+        byte[] head = new byte[FileSignature.MAX_LENGTH];
+        int length;
+        try (InputStream input = file.getInputStream()) {
+            length = input.readNBytes(head, 0, head.length);
+        } catch (IOException e) {
+            throw new UploadRejectedException(Reason.MALFORMED, "Could not read file " + filename);
+        }
+        String contentType = StreamingUploadService.resolveContentType(
+            fileType, FileSignature.detect(head, length), file.getContentType());
+        return new Upload(file, filename, contentType);
+    }
+}
@@ -0,0 +1,279 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.entity.UploadSession;
+import org.acabativa.rc.storage.repository.UploadSessionRepository;
+import org.acabativa.rc.storage.util.FileSignature;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resumable uploads: the client opens a session, sends fixed-size chunks in
+ * any order (several at once if it likes) and finalizes the session into a
+ * {@link StoredFile}.
+ *
+ * Chunks are written with positional writes straight into one
+ * {@code <storage.location>/tmp/<session>.part} file, so parallel chunks never
+ * wait on each other; only the bookkeeping of received chunks is serialized
+ * per session. Finalizing moves the part file into place instead of copying
+ * it. Sessions idle for longer than {@code storage.upload.session-ttl} are
+ * removed together with their data.
+ */
+@Service
+public class ChunkedUploadService {
+
+    private static final int LOCK_STRIPES = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Capacity of the received-chunks bitmap column
+    private static final int MAX_CHUNKS = 1024 * 8;
+
+    private final Logger LOGGER = Logger.getLogger(ChunkedUploadService.class.getName());
+
+    private final UploadSessionRepository repository;
+    private final StorageService storageService;
+    private final StorageUsageService usageService;
+    private final TransactionTemplate transactionTemplate;
+    private final Path partRoot;
+    private final int chunkSize;
+    private final long maxSize;
+    private final long photoMaxSize;
+    private final Duration sessionTtl;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public ChunkedUploadService(UploadSessionRepository repository,
+                                StorageService storageService,
+                                StorageUsageService usageService,
+                                PlatformTransactionManager transactionManager,
+                                @Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation,
+                                @Value("${storage.upload.chunk-size:5MB}") DataSize chunkSize,
+                                @Value("${storage.upload.max-size:200MB}") DataSize maxSize,
+                                @Value("${storage.photo.max-size:5MB}") DataSize photoMaxSize,
+                                @Value("${storage.upload.session-ttl:24h}") Duration sessionTtl) {
+        this.repository = repository;
+        this.storageService = storageService;
+        this.usageService = usageService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        // Same volume as the final locations, so finalizing is a rename
+        this.partRoot = Paths.get(storageLocation).resolve("tmp");
+        this.chunkSize = (int) chunkSize.toBytes();
+        this.maxSize = maxSize.toBytes();
+        this.photoMaxSize = photoMaxSize.toBytes();
+        this.sessionTtl = sessionTtl;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        try {
+            Files.createDirectories(partRoot);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not initialize upload location", e);
+        }
+    }
+
+    public UploadSession create(String originalFileName, String contentType, Long totalSize,
+                                FileType fileType, Long entityId, EntityType entityType) throws IOException {
+        if (originalFileName == null || originalFileName.isBlank() || totalSize == null || totalSize <= 0) {
+            throw new UploadRejectedException(Reason.MALFORMED, "File name and a positive file size are required");
+        }
+        long limit = fileType == FileType.PHOTO ? photoMaxSize : maxSize;
+        if (totalSize > limit) {
+            throw new UploadRejectedException(Reason.TOO_LARGE,
+                "File exceeds the maximum size of " + DataSize.ofBytes(limit).toMegabytes() + "MB");
+        }
+        if ((totalSize + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+            throw new UploadRejectedException(Reason.TOO_LARGE, "File has more than " + MAX_CHUNKS + " chunks");
+        }
+        // Fail before the client sends gigabytes that could never be stored
+        usageService.checkQuota(entityId, entityType, fileType, totalSize);
+
+        UploadSession session = repository.save(new UploadSession(
+            originalFileName, contentType, fileType, entityId, entityType, totalSize, chunkSize));
+        Files.createFile(partPath(session.getId()));
+        return session;
+    }
+
+    public UploadSession getSession(String sessionId) {
+        return repository.findById(sessionId)
+            .orElseThrow(() -> new UploadRejectedException(Reason.NOT_FOUND, "Upload session not found: " + sessionId));
+    }
+
+    /**
+     * Writes one chunk at its offset. The body must be exactly the chunk
+     * length; re-sending a chunk simply overwrites it, so retries are safe.
+     */
+    public UploadSession writeChunk(String sessionId, long offset, InputStream body) throws IOException {
+        UploadSession session = getSession(sessionId);
+        if (session.getStatus() != UploadSession.Status.OPEN) {
+            throw new UploadRejectedException(Reason.CONFLICT, "Upload session already completed");
+        }
+        if (offset < 0 || offset % session.getChunkSize() != 0 || offset >= session.getTotalSize()) {
+            throw new UploadRejectedException(Reason.MALFORMED,
+                "Offset must be a multiple of " + session.getChunkSize() + " within the file");
+        }
+        int index = (int) (offset / session.getChunkSize());
+        long expected = session.getChunkLength(index);
+
+        // Outside the session lock: parallel chunks land in different regions of the same file
+        try (FileChannel channel = FileChannel.open(partPath(sessionId), StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] array = buffer.array();
+            long written = 0;
+            int read;
+            while ((read = body.read(array, 0, (int) Math.min(array.length, expected - written + 1))) != -1) {
+                if (written + read > expected) {
+                    throw new UploadRejectedException(Reason.MALFORMED, "Chunk is larger than " + expected + " bytes");
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, offset + written);
+                }
+            }
+            if (written != expected) {
+                throw new UploadRejectedException(Reason.MALFORMED,
+                    "Chunk has " + written + " bytes, expected " + expected);
+            }
+        }
+
+        ReentrantLock lock = lockFor(sessionId);
+        lock.lock();
+        try {
+            return transactionTemplate.execute(status -> {
+                UploadSession current = reload(sessionId);
+                BitSet received = current.getReceivedChunkSet();
+                if (!received.get(index)) {
+                    received.set(index);
+                    current.setReceivedChunks(received.toByteArray());
+                    current.setReceivedBytes(current.getReceivedBytes() + expected);
+                }
+                return repository.save(current);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Turns a fully received session into a stored file. Calling it again
+     * after success returns the same file.
+     */
+    public StoredFile complete(String sessionId) throws IOException {
+        ReentrantLock lock = lockFor(sessionId);
+        lock.lock();
+        try {
+            UploadSession session = transactionTemplate.execute(status -> reload(sessionId));
+            if (session.getStatus() == UploadSession.Status.COMPLETED) {
+                return storageService.getFileInfo(session.getStoredFileId());
+            }
+            if (!session.isComplete()) {
+                throw new UploadRejectedException(Reason.CONFLICT, "Upload session still has missing chunks");
+            }
+
+            Path part = partPath(sessionId);
+            byte[] head = new byte[FileSignature.MAX_LENGTH];
+            int length;
+            try (InputStream input = Files.newInputStream(part)) {
+                length = input.readNBytes(head, 0, head.length);
+            }
+            String contentType = StreamingUploadService.resolveContentType(
+                session.getFileType(), FileSignature.detect(head, length), session.getContentType());
+
+            StoredFile storedFile = storageService.storeFile(part, session.getOriginalFileName(), contentType,
+                session.getFileType(), session.getEntityId(), session.getEntityType());
+
+            session.setStatus(UploadSession.Status.COMPLETED);
+            session.setStoredFileId(storedFile.getId());
+            session.setLastActivity(LocalDateTime.now());
+            repository.save(session);
+            return storedFile;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void abort(String sessionId) {
+        ReentrantLock lock = lockFor(sessionId);
+        lock.lock();
+        try {
+            discard(getSession(sessionId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Duration getSessionTtl() {
+        return sessionTtl;
+    }
+
+    @Scheduled(fixedDelayString = "${storage.upload.cleanup-interval-ms:900000}")
+    public void expireAbandonedSessions() {
+        List<UploadSession> expired = repository.findByLastActivityBefore(LocalDateTime.now().minus(sessionTtl));
+        for (UploadSession session : expired) {
+            ReentrantLock lock = lockFor(session.getId());
+            lock.lock();
+            try {
+                discard(session);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not expire upload session " + session.getId(), e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!expired.isEmpty()) {
+            LOGGER.info("Expired " + expired.size() + " upload sessions");
+        }
+    }
+
+    // The request-scoped persistence context may hold a copy read before another
+    // chunk was recorded; touching the row evicts it and locks the row
+    private UploadSession reload(String sessionId) {
+        if (repository.touch(sessionId, LocalDateTime.now()) == 0) {
+            throw new UploadRejectedException(Reason.NOT_FOUND, "Upload session not found: " + sessionId);
+        }
+        return getSession(sessionId);
+    }
+
+    private void discard(UploadSession session) {
+        repository.delete(session);
+        try {
+            Files.deleteIfExists(partPath(session.getId()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete data of upload session " + session.getId(), e);
+        }
+    }
+
+    private Path partPath(String sessionId) {
+        return partRoot.resolve(sessionId + ".part");
+    }
+
+    private ReentrantLock lockFor(String sessionId) {
+        return locks[Math.floorMod(sessionId.hashCode(), LOCK_STRIPES)];
+    }
+}
@@ -0,0 +1,195 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredBlob;
+import org.acabativa.rc.storage.repository.StoredBlobRepository;
+import org.acabativa.rc.storage.util.ContentWriter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps one file per distinct upload content under
+ * {@code <storage.location>/blobs/ab/cd/<sha256>}.
+ *
+ * Every {@link org.acabativa.rc.storage.entity.StoredFile} that points at a blob
+ * holds one reference in {@code stored_blobs.refCount}; the file is unlinked
+ * only when the last reference is released.
+ *
+ * The last release deletes the {@code stored_blobs} row and unlinks the file
+ * before its transaction commits, so the file goes while the row is still
+ * locked. An upload of the same content, on this or another instance sharing
+ * the uploads volume, either took its reference before (and the blob is not
+ * unlinked) or waits on that lock and then writes a new blob after the unlink.
+ * Hash-level locks additionally keep uploads and releases of one hash on this
+ * instance from waiting on each other in the database.
+ */
+@Service
+public class ContentAddressedBlobStore {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final Logger LOGGER = Logger.getLogger(ContentAddressedBlobStore.class.getName());
+
+    private final StoredBlobRepository repository;
+    private final ContentCompression compression;
+    private final TransactionTemplate transactionTemplate;
+    private final Path blobRoot;
+    private final Path tempRoot;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    // contentEncoding is "gzip" when the blob is kept compressed, see ContentCompression
+    public record Blob(String contentHash, Path path, long size, boolean deduplicated, String contentEncoding) {
+    }
+
+    public ContentAddressedBlobStore(StoredBlobRepository repository,
+                                     ContentCompression compression,
+                                     PlatformTransactionManager transactionManager,
+                                     @Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation) {
+        this.repository = repository;
+        this.compression = compression;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        Path rootLocation = Paths.get(storageLocation);
+        this.blobRoot = rootLocation.resolve("blobs");
+        this.tempRoot = rootLocation.resolve("tmp");
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        try {
+            Files.createDirectories(blobRoot);
+            Files.createDirectories(tempRoot);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not initialize blob storage location", e);
+        }
+    }
+
+    /**
+     * Streams the content into a temporary file while hashing it, then either
+     * promotes it to a new blob or drops it in favour of an existing one.
+     * New blobs of a {@code compressible} type are compressed when it pays.
+     */
+    public Blob write(InputStream input, boolean compressible) throws IOException {
+        Path temp = tempRoot.resolve(UUID.randomUUID() + ".upload");
+        try {
+            ContentWriter.Result written = ContentWriter.write(input, temp);
+            return acquire(written.contentHash(), written.size(), temp, compressible);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Registers an already written temporary file as a blob reference. The
+     * temporary file is moved into place when the content is new and left for
+     * the caller to delete otherwise. An existing blob keeps the encoding it
+     * was first stored with.
+     */
+    public Blob acquire(String contentHash, long size, Path temp, boolean compressible) throws IOException {
+        Path target = blobPath(contentHash);
+        ReentrantLock lock = lockFor(contentHash);
+        lock.lock();
+        try {
+            String encoding;
+            if (addReference(contentHash)) {
+                encoding = repository.findContentEncoding(contentHash);
+                if (Files.exists(target)) {
+                    return new Blob(contentHash, target, size, true, encoding);
+                }
+                // Row survived but the file is gone; restore it from this upload,
+                // in the encoding the rows sharing it expect
+                LOGGER.warning("Blob " + contentHash + " was missing on disk, restoring it");
+                if (ContentCompression.GZIP.equals(encoding)) {
+                    compression.gzipInPlace(temp);
+                }
+            } else {
+                encoding = compressible && compression.compressInPlace(temp) ? ContentCompression.GZIP : null;
+                insertBlob(contentHash, target, size, encoding);
+            }
+            Files.createDirectories(target.getParent());
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new Blob(contentHash, target, size, false, encoding);
+        } catch (IOException | RuntimeException e) {
+            release(contentHash);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops one reference and unlinks the blob when it was the last one. Joins
+     * the caller's transaction, so the reference goes with whatever the caller
+     * removes along with it.
+     */
+    public void release(String contentHash) {
+        ReentrantLock lock = lockFor(contentHash);
+        lock.lock();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                repository.decrementRefCount(contentHash);
+                if (repository.deleteIfUnreferenced(contentHash) > 0) {
+                    // Unlinked before the commit, while the deleted row is locked
+                    try {
+                        Files.deleteIfExists(blobPath(contentHash));
+                    } catch (IOException e) {
+                        // Left for the reconciler as an orphan blob file
+                        LOGGER.log(Level.WARNING, "Could not delete blob " + contentHash, e);
+                    }
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean owns(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(blobRoot.toAbsolutePath().normalize());
+    }
+
+    Path blobPath(String contentHash) {
+        return blobRoot
+            .resolve(contentHash.substring(0, 2))
+            .resolve(contentHash.substring(2, 4))
+            .resolve(contentHash);
+    }
+
+    private boolean addReference(String contentHash) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status ->
+            repository.incrementRefCount(contentHash) > 0));
+    }
+
+    private void insertBlob(String contentHash, Path target, long size, String encoding) {
+        StoredBlob blob = new StoredBlob(contentHash, target.toString(), size);
+        blob.setContentEncoding(encoding);
+        try {
+            transactionTemplate.executeWithoutResult(status -> repository.saveAndFlush(blob));
+        } catch (DataIntegrityViolationException e) {
+            // Another node inserted the same content first; take a reference on it.
+            // It made the same compression decision for the same bytes and type
+            if (!addReference(contentHash)) {
+                throw e;
+            }
+        }
+    }
+
+    private ReentrantLock lockFor(String contentHash) {
+        return locks[Math.floorMod(contentHash.hashCode(), LOCK_STRIPES)];
+    }
+}
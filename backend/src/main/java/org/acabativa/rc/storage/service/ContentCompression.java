@@ -0,0 +1,141 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which uploads are kept gzip-compressed on disk, and compresses them.
+ *
+ * Only the configured content types are tried (text, legacy Office formats,
+ * PDF); formats that are already compressed, such as images and DOCX/XLSX,
+ * are left alone. Content is kept compressed only when that saves at least
+ * {@code 1 - storage.compression.max-ratio} of its size, so a PDF full of
+ * JPEG scans stays as it was. The stored bytes are a complete gzip stream and
+ * go out as-is to clients that send {@code Accept-Encoding: gzip}.
+ */
+@Service
+public class ContentCompression {
+
+    public static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean enabled;
+    private final Set<String> contentTypes;
+    private final long minSize;
+    private final double maxRatio;
+    private final int level;
+
+    public ContentCompression(@Value("${storage.compression.enabled:false}") boolean enabled,
+                              @Value("${storage.compression.types:text/plain,text/csv,application/pdf,application/msword,application/vnd.ms-excel}") String contentTypes,
+                              @Value("${storage.compression.min-size:1KB}") DataSize minSize,
+                              @Value("${storage.compression.max-ratio:0.9}") double maxRatio,
+                              @Value("${storage.compression.level:6}") int level) {
+        this.enabled = enabled;
+        this.contentTypes = Arrays.stream(contentTypes.split(","))
+            .map(type -> type.trim().toLowerCase(Locale.ROOT))
+            .filter(type -> !type.isEmpty())
+            .collect(Collectors.toSet());
+        this.minSize = minSize.toBytes();
+        this.maxRatio = maxRatio;
+        this.level = level;
+    }
+
+    /**
+     * Whether content of this type is worth trying to compress. Photos never
+     * are: thumbnails, variants and EXIF extraction read them directly.
+     */
+    public boolean accepts(FileType fileType, String contentType) {
+        if (!enabled || fileType == FileType.PHOTO || contentType == null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String baseType = parameters >= 0 ? contentType.substring(0, parameters) : contentType;
+        return contentTypes.contains(baseType.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The gzip form of the content, or null when it would not save enough.
+     */
+    public byte[] compress(byte[] content) {
+        if (content.length < minSize) {
+            return null;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2);
+        try (OutputStream output = gzip(compressed)) {
+            output.write(content);
+        } catch (IOException e) {
+            // Writes to memory do not fail
+            throw new UncheckedIOException(e);
+        }
+        return worthKeeping(compressed.size(), content.length) ? compressed.toByteArray() : null;
+    }
+
+    /**
+     * Replaces the file with its gzip form when that saves enough.
+     *
+     * @return whether the file is now compressed
+     */
+    public boolean compressInPlace(Path file) throws IOException {
+        long size = Files.size(file);
+        if (size < minSize) {
+            return false;
+        }
+        Path compressed = gzipToSibling(file);
+        if (!worthKeeping(Files.size(compressed), size)) {
+            Files.deleteIfExists(compressed);
+            return false;
+        }
+        Files.move(compressed, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Replaces the file with its gzip form whatever the saving, e.g. to match
+     * the encoding recorded for a blob that is being restored.
+     */
+    public void gzipInPlace(Path file) throws IOException {
+        Path compressed = gzipToSibling(file);
+        Files.move(compressed, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path gzipToSibling(Path file) throws IOException {
+        Path compressed = file.resolveSibling(file.getFileName() + ".gz.tmp");
+        try (InputStream input = Files.newInputStream(file);
+             OutputStream output = gzip(Files.newOutputStream(compressed))) {
+            input.transferTo(output);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(compressed);
+            throw e;
+        }
+        return compressed;
+    }
+
+    private boolean worthKeeping(long compressedSize, long originalSize) {
+        return compressedSize <= originalSize * maxRatio;
+    }
+
+    private OutputStream gzip(OutputStream target) throws IOException {
+        return new GZIPOutputStream(target, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+}
@@ -0,0 +1,145 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.EntityCover;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.repository.EntityCoverRepository;
+import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Maintains the cover photo pointer of each entity (see {@link EntityCover}).
+ *
+ * The first photo stored for an entity becomes its cover; deleting the cover
+ * moves it to the oldest remaining photo. Entities whose photos predate the
+ * pointer get it on first lookup. Lookups go through {@link StoredFileCache},
+ * so a warm listing page costs no queries at all.
+ */
+@Service
+public class CoverPhotoService {
+
+    private final EntityCoverRepository coverRepository;
+    private final StoredFileRepository fileRepository;
+    private final StoredFileCache fileCache;
+    private final TransactionTemplate transactionTemplate;
+
+    public CoverPhotoService(EntityCoverRepository coverRepository,
+                             StoredFileRepository fileRepository,
+                             StoredFileCache fileCache,
+                             PlatformTransactionManager transactionManager) {
+        this.coverRepository = coverRepository;
+        this.fileRepository = fileRepository;
+        this.fileCache = fileCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * The id of the entity's cover photo, empty when it has no photos.
+     */
+    public Optional<Long> getCoverId(Long entityId, EntityType entityType) {
+        return fileCache.getCover(entityId, entityType, () -> coverRepository
+            .findByEntityIdAndEntityType(entityId, entityType)
+            .map(EntityCover::getFileId)
+            .or(() -> Optional.ofNullable(fileRepository.findFirstId(entityId, entityType, FileType.PHOTO))
+                .map(fileId -> createDefault(entityId, entityType, fileId))));
+    }
+
+    public record EntityKey(Long entityId, EntityType entityType) {
+    }
+
+    /**
+     * Cover photos of many entities, for listing pages. Entities with a cover
+     * pointer are resolved with a single query; only those without one (no
+     * photos, or photos older than the pointer) fall back to
+     * {@link #getCoverId}, which caches its answer. Entities without photos
+     * are absent from the result.
+     */
+    public Map<EntityKey, StoredFile> getCovers(Collection<EntityKey> entities) {
+        Map<EntityKey, StoredFile> covers = new HashMap<>();
+        if (entities.isEmpty()) {
+            return covers;
+        }
+        for (StoredFile file : fileRepository.findCoversByEntityIdIn(
+                entities.stream().map(EntityKey::entityId).distinct().toList())) {
+            EntityKey key = new EntityKey(file.getEntityId(), file.getEntityType());
+            if (entities.contains(key)) {
+                covers.put(key, file);
+            }
+        }
+        for (EntityKey key : entities) {
+            if (!covers.containsKey(key)) {
+                getCoverId(key.entityId(), key.entityType())
+                    .flatMap(fileRepository::findById)
+                    .ifPresent(file -> covers.put(key, file));
+            }
+        }
+        return covers;
+    }
+
+    /**
+     * Makes the photo the cover of its entity, replacing the current one.
+     */
+    public void setCover(StoredFile photo) {
+        if (photo.getFileType() != FileType.PHOTO) {
+            throw new IllegalArgumentException("Only photos can be covers");
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            EntityCover cover = coverRepository
+                .findByEntityIdAndEntityType(photo.getEntityId(), photo.getEntityType())
+                .orElseGet(() -> new EntityCover(photo.getEntityId(), photo.getEntityType(), photo.getId(), true));
+            cover.setFileId(photo.getId());
+            cover.setExplicit(true);
+            coverRepository.save(cover);
+        });
+        fileCache.evictEntity(photo.getEntityId(), photo.getEntityType());
+    }
+
+    // Called once a photo row is saved
+    public void photoStored(StoredFile file) {
+        if (file.getFileType() != FileType.PHOTO
+                || coverRepository.findByEntityIdAndEntityType(file.getEntityId(), file.getEntityType()).isPresent()) {
+            return;
+        }
+        createDefault(file.getEntityId(), file.getEntityType(), file.getId());
+        fileCache.evictEntity(file.getEntityId(), file.getEntityType());
+    }
+
+    // Called once a photo row is deleted
+    public void photoDeleted(StoredFile file) {
+        if (file.getFileType() != FileType.PHOTO) {
+            return;
+        }
+        Long entityId = file.getEntityId();
+        EntityType entityType = file.getEntityType();
+        transactionTemplate.executeWithoutResult(status -> {
+            Long next = fileRepository.findFirstId(entityId, entityType, FileType.PHOTO);
+            if (next != null) {
+                coverRepository.replaceCover(entityId, entityType, file.getId(), next);
+            } else {
+                coverRepository.deleteCover(entityId, entityType, file.getId());
+            }
+        });
+        fileCache.evictEntity(entityId, entityType);
+    }
+
+    private Long createDefault(Long entityId, EntityType entityType, Long fileId) {
+        try {
+            coverRepository.save(new EntityCover(entityId, entityType, fileId, false));
+            return fileId;
+        } catch (DataIntegrityViolationException e) {
+            // Another upload created it first
+            return coverRepository.findByEntityIdAndEntityType(entityId, entityType)
+                .map(EntityCover::getFileId)
+                .orElse(fileId);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.acabativa.rc.storage.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps recently served files open so repeated downloads skip the open/close
+ * syscalls. Positional {@link FileChannel#transferTo} does not move the
+ * channel position, so one channel is shared by all concurrent readers.
+ *
+ * Stored paths are never rewritten in place (updates get a new file name and
+ * blobs are addressed by content), so a cached channel cannot go stale; it is
+ * only dropped when the file is deleted or falls out of the LRU window. A
+ * channel evicted while in use is closed when its last lease is released.
+ */
+@Component
+public class FileChannelCache {
+
+    private final Logger LOGGER = Logger.getLogger(FileChannelCache.class.getName());
+
+    private final int capacity;
+    private final LinkedHashMap<Path, Entry> channels = new LinkedHashMap<>(16, 0.75f, true);
+
+    public FileChannelCache(@Value("${storage.download.open-channels:64}") int capacity) {
+        this.capacity = capacity;
+    }
+
+    private static final class Entry {
+        private final FileChannel channel;
+        private int leases;
+        private boolean evicted;
+
+        private Entry(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A borrowed channel; closing the lease returns it to the cache.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Entry entry;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public FileChannel channel() {
+            return entry.channel;
+        }
+
+        @Override
+        public void close() {
+            synchronized (FileChannelCache.this) {
+                entry.leases--;
+                if (entry.evicted) {
+                    closeIfIdle(entry);
+                }
+            }
+        }
+    }
+
+    public synchronized Lease acquire(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        Entry entry = channels.get(key);
+        if (entry == null || !entry.channel.isOpen()) {
+            entry = new Entry(FileChannel.open(key, StandardOpenOption.READ));
+            if (capacity > 0) {
+                channels.put(key, entry);
+                evictOverflow();
+            } else {
+                entry.evicted = true;
+            }
+        }
+        entry.leases++;
+        return new Lease(entry);
+    }
+
+    /**
+     * Drops the cached channel for a path that is about to be deleted.
+     */
+    public synchronized void invalidate(Path path) {
+        Entry entry = channels.remove(path.toAbsolutePath().normalize());
+        if (entry != null) {
+            entry.evicted = true;
+            closeIfIdle(entry);
+        }
+    }
+
+    public synchronized int size() {
+        return channels.size();
+    }
+
+    @PreDestroy
+    public synchronized void closeAll() {
+        for (Entry entry : channels.values()) {
+            entry.evicted = true;
+            closeIfIdle(entry);
+        }
+        channels.clear();
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<Path, Entry>> eldest = channels.entrySet().iterator();
+        while (channels.size() > capacity && eldest.hasNext()) {
+            Entry entry = eldest.next().getValue();
+            eldest.remove();
+            entry.evicted = true;
+            closeIfIdle(entry);
+        }
+    }
+
+    private void closeIfIdle(Entry entry) {
+        if (entry.leases > 0) {
+            return;
+        }
+        try {
+            entry.channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close cached channel", e);
+        }
+    }
+}
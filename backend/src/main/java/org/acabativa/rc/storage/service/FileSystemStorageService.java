@@ -5,35 +5,101 @@ import org.acabativa.rc.storage.entity.StoredFile;
 import org.acabativa.rc.storage.entity.StoredFile.FileType;
 import org.acabativa.rc.storage.entity.StoredFile.EntityType;
 import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.acabativa.rc.storage.util.ContentWriter;
+import org.acabativa.rc.storage.util.StorageLayout;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.domain.Limit;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import jakarta.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 @Service
 public class FileSystemStorageService implements StorageService {
     
+    private final Logger LOGGER = Logger.getLogger(FileSystemStorageService.class.getName());
+    
     private final StoredFileRepository repository;
+    private final ThumbnailService thumbnailService;
+    private final ImageVariantService variantService;
+    private final PhotoMetadataService metadataService;
+    private final CoverPhotoService coverService;
+    private final ContentAddressedBlobStore blobStore;
+    private final PackFileStore packStore;
+    private final ContentCompression compression;
+    private final PhotoOptimizer photoOptimizer;
+    private final StorageUsageService usageService;
+    private final FileChannelCache channelCache;
+    private final StoredFileCache fileCache;
+    private final TaskExecutor uploadExecutor;
+    private final TransactionTemplate transactionTemplate;
     private final Path rootLocation;
+    private final StorageLayout layout;
+    private final boolean deduplicate;
     
     public FileSystemStorageService(StoredFileRepository repository, 
-                                  @Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation) {
+                                  ThumbnailService thumbnailService,
+                                  ImageVariantService variantService,
+                                  PhotoMetadataService metadataService,
+                                  CoverPhotoService coverService,
+                                  ContentAddressedBlobStore blobStore,
+                                  PackFileStore packStore,
+                                  ContentCompression compression,
+                                  PhotoOptimizer photoOptimizer,
+                                  StorageUsageService usageService,
+                                  FileChannelCache channelCache,
+                                  StoredFileCache fileCache,
+                                  @Qualifier("uploadExecutor") TaskExecutor uploadExecutor,
+                                  PlatformTransactionManager transactionManager,
+                                  @Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation,
+                                  @Value("${storage.layout:flat}") StorageLayout layout,
+                                  @Value("${storage.dedup.enabled:false}") boolean deduplicate) {
         this.repository = repository;
+        this.thumbnailService = thumbnailService;
+        this.variantService = variantService;
+        this.metadataService = metadataService;
+        this.coverService = coverService;
+        this.blobStore = blobStore;
+        this.packStore = packStore;
+        this.compression = compression;
+        this.photoOptimizer = photoOptimizer;
+        this.usageService = usageService;
+        this.channelCache = channelCache;
+        this.fileCache = fileCache;
+        this.uploadExecutor = uploadExecutor;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
         this.rootLocation = Paths.get(storageLocation);
+        this.layout = layout;
+        this.deduplicate = deduplicate;
     }
     
     @PostConstruct
@@ -51,63 +117,249 @@ public class FileSystemStorageService implements StorageService {
     
     @Override
     public StoredFile store(MultipartFile file, FileType fileType, Long entityId, EntityType entityType) {
-        String originalFilename = StringUtils.cleanPath(file.getOriginalFilename());
-        String fileExtension = getFileExtension(originalFilename);
-        String newFilename = generateFilename(entityId, fileExtension);
+        if (file.isEmpty()) {
+            throw new RuntimeException("Failed to store empty file " + StringUtils.cleanPath(file.getOriginalFilename()));
+        }
         
+        try (InputStream inputStream = file.getInputStream()) {
+            return store(inputStream, file.getOriginalFilename(), file.getContentType(), fileType, entityId, entityType);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to store file " + StringUtils.cleanPath(file.getOriginalFilename()), e);
+        }
+    }
+    
+    @Override
+    public StoredFile store(InputStream content, String originalFilename, String contentType,
+                            FileType fileType, Long entityId, EntityType entityType) {
+        StoredFile storedFile = write(content, originalFilename, contentType, fileType, entityId, entityType);
         try {
-            if (file.isEmpty()) {
-                throw new RuntimeException("Failed to store empty file " + originalFilename);
+            return persist(storedFile);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to store file " + storedFile.getOriginalFileName(), e);
+        }
+    }
+    
+    @Override
+    public List<StoreResult> storeAll(List<Upload> uploads, FileType fileType, Long entityId, EntityType entityType) {
+        // Disk writes and hashing run in parallel; each yields an unsaved row
+        List<CompletableFuture<StoredFile>> writes = new ArrayList<>(uploads.size());
+        for (Upload upload : uploads) {
+            writes.add(CompletableFuture.supplyAsync(() -> {
+                try (InputStream content = upload.content().getInputStream()) {
+                    StoredFile storedFile = write(content, upload.originalFilename(), upload.contentType(),
+                        fileType, entityId, entityType);
+                    if (storedFile.getMetadata() == null) {
+                        storedFile.setMetadata(metadataService.extract(storedFile));
+                    }
+                    return storedFile;
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to read file " + upload.originalFilename(), e);
+                }
+            }, uploadExecutor));
+        }
+        
+        List<StoreResult> results = new ArrayList<>(uploads.size());
+        List<StoredFile> written = new ArrayList<>(uploads.size());
+        for (int i = 0; i < uploads.size(); i++) {
+            String originalFilename = uploads.get(i).originalFilename();
+            try {
+                StoredFile storedFile = writes.get(i).join();
+                written.add(storedFile);
+                results.add(new StoreResult(originalFilename, storedFile, null));
+            } catch (CompletionException e) {
+                LOGGER.log(Level.WARNING, "Failed to store file " + originalFilename, e.getCause());
+                results.add(new StoreResult(originalFilename, null, e.getCause().getMessage()));
             }
-            
-            Path destinationDir = getDestinationDirectory(fileType);
-            Path destinationFile = destinationDir.resolve(newFilename);
-            
-            try (InputStream inputStream = file.getInputStream()) {
-                Files.copy(inputStream, destinationFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        // One transaction; the rows go out as a JDBC batch (hibernate.jdbc.batch_size)
+        // with ids taken from the pooled file_sequence. Files that would put the
+        // entity over its quota are left out of it
+        List<StoredFile> overQuota = new ArrayList<>();
+        try {
+            if (!written.isEmpty()) {
+                usageService.prepare(entityId, entityType, fileType);
             }
-            
+            transactionTemplate.executeWithoutResult(status -> {
+                List<StoredFile> accepted = new ArrayList<>(written.size());
+                for (StoredFile storedFile : written) {
+                    try {
+                        usageService.reserve(storedFile);
+                        accepted.add(storedFile);
+                    } catch (UploadRejectedException e) {
+                        overQuota.add(storedFile);
+                    }
+                }
+                repository.saveAll(accepted);
+            });
+        } catch (RuntimeException e) {
+            for (StoredFile storedFile : written) {
+                try {
+                    discardContent(storedFile);
+                } catch (IOException releaseError) {
+                    LOGGER.log(Level.WARNING, "Could not remove content of " + storedFile.getOriginalFileName(), releaseError);
+                }
+            }
+            throw e;
+        }
+        for (StoredFile storedFile : overQuota) {
+            try {
+                discardContent(storedFile);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not remove content of " + storedFile.getOriginalFileName(), e);
+            }
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i).file() == storedFile) {
+                    results.set(i, new StoreResult(storedFile.getOriginalFileName(), null, "Storage quota exceeded"));
+                }
+            }
+            written.remove(storedFile);
+        }
+        fileCache.evictEntity(entityId, entityType);
+        if (!written.isEmpty()) {
+            // Ids follow upload order, so only the first can become the default cover
+            coverService.photoStored(written.get(0));
+        }
+        written.forEach(thumbnailService::generateAsync);
+        return results;
+    }
+    
+    @Override
+    public StoredFile storeFile(Path source, String originalFilename, String contentType,
+                                FileType fileType, Long entityId, EntityType entityType) {
+        String cleanFilename = StringUtils.cleanPath(originalFilename);
+        String fileExtension = getFileExtension(cleanFilename);
+        String newFilename = generateFilename(entityId, fileExtension);
+        
+        try {
             StoredFile storedFile = new StoredFile(
                 newFilename,
-                originalFilename,
-                destinationFile.toString(),
-                file.getContentType(),
-                file.getSize(),
+                cleanFilename,
+                null,
+                contentType,
+                null,
                 fileType,
                 entityId,
                 entityType
             );
-            
-            return repository.save(storedFile);
+            if (photoOptimizer.accepts(fileType)) {
+                byte[] original = Files.readAllBytes(source);
+                byte[] optimized = optimizePhoto(original, storedFile);
+                if (optimized != original) {
+                    Files.write(source, optimized);
+                }
+            }
+            ContentWriter.Result digest = ContentWriter.digest(source);
+            boolean compressible = compression.accepts(fileType, contentType);
+            if (deduplicate) {
+                ContentAddressedBlobStore.Blob blob = blobStore.acquire(digest.contentHash(), digest.size(), source, compressible);
+                // Still there when the content was already stored
+                Files.deleteIfExists(source);
+                storedFile.setFilePath(blob.path().toString());
+                storedFile.setContentEncoding(blob.contentEncoding());
+            } else {
+                Path destinationFile = destinationPath(fileType, newFilename);
+                Files.move(source, destinationFile, StandardCopyOption.ATOMIC_MOVE);
+                storedFile.setFilePath(destinationFile.toString());
+                if (compressible && compression.compressInPlace(destinationFile)) {
+                    storedFile.setContentEncoding(ContentCompression.GZIP);
+                }
+            }
+            storedFile.setFileSize(digest.size());
+            storedFile.setContentHash(digest.contentHash());
+            return persist(storedFile);
             
         } catch (IOException e) {
-            throw new RuntimeException("Failed to store file " + originalFilename, e);
+            throw new RuntimeException("Failed to store file " + cleanFilename, e);
+        }
+    }
+    
+    private StoredFile persist(StoredFile storedFile) throws IOException {
+        if (storedFile.getMetadata() == null) {
+            storedFile.setMetadata(metadataService.extract(storedFile));
         }
+        StoredFile saved;
+        try {
+            usageService.prepare(storedFile.getEntityId(), storedFile.getEntityType(), storedFile.getFileType());
+            saved = transactionTemplate.execute(status -> {
+                usageService.reserve(storedFile);
+                return repository.save(storedFile);
+            });
+        } catch (RuntimeException e) {
+            discardContent(storedFile);
+            throw e;
+        }
+        fileCache.evictEntity(saved.getEntityId(), saved.getEntityType());
+        coverService.photoStored(saved);
+        thumbnailService.generateAsync(saved);
+        return saved;
     }
     
     @Override
     public Resource loadAsResource(Long fileId) {
         try {
-            StoredFile file = repository.findById(fileId)
-                .orElseThrow(() -> new RuntimeException("File not found: " + fileId));
-            
-            Path filePath = Paths.get(file.getFilePath());
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if (resource.exists() && resource.isReadable()) {
-                return resource;
+            StoredFile file = getFileInfo(fileId);
+            Resource resource;
+            if (packStore.owns(file.getFilePath())) {
+                ByteBuffer content = packStore.read(file.getFilePath());
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                resource = new ByteArrayResource(bytes);
             } else {
-                throw new RuntimeException("Could not read file: " + fileId);
+                Path filePath = Paths.get(file.getFilePath());
+                resource = new UrlResource(filePath.toUri());
+                if (!resource.exists() || !resource.isReadable()) {
+                    throw new RuntimeException("Could not read file: " + fileId);
+                }
             }
-        } catch (MalformedURLException e) {
+            
+            // Callers get the original content, never the stored encoding
+            if (ContentCompression.GZIP.equals(file.getContentEncoding())) {
+                return new InputStreamResource(new GZIPInputStream(resource.getInputStream()));
+            }
+            return resource;
+        } catch (IOException e) {
             throw new RuntimeException("Could not read file: " + fileId, e);
         }
     }
     
+    @Override
+    public Path load(StoredFile file) {
+        if (packStore.owns(file.getFilePath())) {
+            throw new RuntimeException("File is kept in a pack segment: " + file.getId());
+        }
+        Path filePath = Paths.get(file.getFilePath());
+        if (!Files.isReadable(filePath)) {
+            throw new RuntimeException("Could not read file: " + file.getId());
+        }
+        return filePath;
+    }
+    
+    @Override
+    public ByteBuffer loadPacked(StoredFile file) {
+        if (!packStore.owns(file.getFilePath())) {
+            return null;
+        }
+        try {
+            return packStore.read(file.getFilePath());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read file: " + file.getId(), e);
+        }
+    }
+    
+    @Override
+    public Path loadOriginal(StoredFile file) {
+        if (file.getOriginalFilePath() == null) {
+            return null;
+        }
+        Path filePath = Paths.get(file.getOriginalFilePath());
+        return Files.isReadable(filePath) ? filePath : null;
+    }
+    
     @Override
     public StoredFile getFileInfo(Long fileId) {
-        return repository.findById(fileId)
-            .orElseThrow(() -> new RuntimeException("File not found: " + fileId));
+        return fileCache.getFile(fileId, () -> repository.findById(fileId)
+            .orElseThrow(() -> new RuntimeException("File not found: " + fileId)));
     }
     
     @Override
@@ -116,9 +368,32 @@ public class FileSystemStorageService implements StorageService {
             .orElseThrow(() -> new RuntimeException("File not found: " + fileId));
         
         try {
-            Path filePath = Paths.get(file.getFilePath());
-            Files.deleteIfExists(filePath);
-            repository.deleteById(fileId);
+            // Only the request that actually removes the row releases what it
+            // referred to, so concurrent deletes of one file release it once.
+            // A shared blob loses its reference in the same transaction
+            boolean deleted = Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+                if (repository.deleteByIdIfExists(fileId) == 0) {
+                    return false;
+                }
+                usageService.release(file);
+                if (holdsBlob(file)) {
+                    blobStore.release(file.getContentHash());
+                }
+                return true;
+            }));
+            evict(file);
+            if (!deleted) {
+                return;
+            }
+            coverService.photoDeleted(file);
+            if (holdsBlob(file)) {
+                channelCache.invalidate(Paths.get(file.getFilePath()));
+            } else {
+                releaseContent(file.getFilePath(), file.getContentHash());
+            }
+            deleteOriginal(file.getOriginalFilePath());
+            thumbnailService.deleteThumbnails(file);
+            variantService.deleteVariants(file);
         } catch (IOException e) {
             throw new RuntimeException("Could not delete file: " + fileId, e);
         }
@@ -129,13 +404,12 @@ public class FileSystemStorageService implements StorageService {
         StoredFile existingFile = repository.findById(fileId)
             .orElseThrow(() -> new RuntimeException("File not found: " + fileId));
         
-        // Delete old file
-        try {
-            Path oldFilePath = Paths.get(existingFile.getFilePath());
-            Files.deleteIfExists(oldFilePath);
-        } catch (IOException e) {
-            // Log error but continue
-        }
+        String oldFilePath = existingFile.getFilePath();
+        String oldContentHash = existingFile.getContentHash();
+        String oldOriginalPath = existingFile.getOriginalFilePath();
+        long oldFileSize = existingFile.getFileSize();
+        thumbnailService.deleteThumbnails(existingFile);
+        variantService.deleteVariants(existingFile);
         
         // Store new file
         String originalFilename = StringUtils.cleanPath(newFile.getOriginalFilename());
@@ -143,21 +417,58 @@ public class FileSystemStorageService implements StorageService {
         String newFilename = generateFilename(existingFile.getEntityId(), fileExtension);
         
         try {
-            Path destinationDir = getDestinationDirectory(existingFile.getFileType());
-            Path destinationFile = destinationDir.resolve(newFilename);
-            
-            try (InputStream inputStream = newFile.getInputStream()) {
-                Files.copy(inputStream, destinationFile, StandardCopyOption.REPLACE_EXISTING);
-            }
-            
             existingFile.setFileName(newFilename);
             existingFile.setOriginalFileName(originalFilename);
-            existingFile.setFilePath(destinationFile.toString());
             existingFile.setContentType(newFile.getContentType());
-            existingFile.setFileSize(newFile.getSize());
             existingFile.setUploadDate(LocalDateTime.now());
+            try (InputStream inputStream = newFile.getInputStream()) {
+                writeContent(inputStream, existingFile);
+            }
+            if (existingFile.getMetadata() == null) {
+                existingFile.setMetadata(metadataService.extract(existingFile));
+            }
+            
+            // Only the update that moves the row off the old content releases
+            // it, so concurrent updates of one file release it once. A shared
+            // blob loses its reference in the same transaction
+            boolean oldHoldsBlob = holdsBlob(oldFilePath, oldContentHash);
+            StoredFile saved;
+            try {
+                saved = transactionTemplate.execute(status -> {
+                    if (repository.updateFilePath(fileId, oldFilePath, existingFile.getFilePath()) == 0) {
+                        return null;
+                    }
+                    usageService.resize(existingFile, oldFileSize);
+                    if (oldHoldsBlob) {
+                        blobStore.release(oldContentHash);
+                    }
+                    return repository.save(existingFile);
+                });
+            } catch (RuntimeException e) {
+                discardContent(existingFile);
+                throw e;
+            }
+            if (saved == null) {
+                // Replaced or deleted by another request since it was read
+                discardContent(existingFile);
+                evict(existingFile);
+                throw new UploadRejectedException(Reason.CONFLICT, "File was changed by another request: " + fileId);
+            }
+            evict(saved);
+            thumbnailService.generateAsync(saved);
             
-            return repository.save(existingFile);
+            // Old content goes only after the new one is safely referenced
+            try {
+                if (oldHoldsBlob) {
+                    channelCache.invalidate(Paths.get(oldFilePath));
+                } else {
+                    releaseContent(oldFilePath, oldContentHash);
+                }
+                deleteOriginal(oldOriginalPath);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not delete previous content of file " + fileId, e);
+            }
+            return saved;
             
         } catch (IOException e) {
             throw new RuntimeException("Failed to update file " + fileId, e);
@@ -166,12 +477,14 @@ public class FileSystemStorageService implements StorageService {
     
     @Override
     public List<StoredFile> listByEntity(Long entityId, EntityType entityType) {
-        return repository.findByEntityIdAndEntityType(entityId, entityType);
+        return fileCache.getList(entityId, entityType, null,
+            () -> repository.findByEntityIdAndEntityType(entityId, entityType));
     }
     
     @Override
     public List<StoredFile> listByEntityAndType(Long entityId, EntityType entityType, FileType fileType) {
-        return repository.findByEntityIdAndEntityTypeAndFileType(entityId, entityType, fileType);
+        return fileCache.getList(entityId, entityType, fileType,
+            () -> repository.findByEntityIdAndEntityTypeAndFileType(entityId, entityType, fileType));
     }
     
     @Override
@@ -187,6 +500,163 @@ public class FileSystemStorageService implements StorageService {
         }).collect(java.util.stream.Collectors.toList());
     }
     
+    // Writes the content and returns its row, not yet saved
+    private StoredFile write(InputStream content, String originalFilename, String contentType,
+                             FileType fileType, Long entityId, EntityType entityType) {
+        String cleanFilename = StringUtils.cleanPath(originalFilename);
+        String fileExtension = getFileExtension(cleanFilename);
+        String newFilename = generateFilename(entityId, fileExtension);
+        
+        try {
+            StoredFile storedFile = new StoredFile(
+                newFilename,
+                cleanFilename,
+                null,
+                contentType,
+                null,
+                fileType,
+                entityId,
+                entityType
+            );
+            // Size and hash are taken while the content is written
+            writeContent(content, storedFile);
+            return storedFile;
+            
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to store file " + cleanFilename, e);
+        }
+    }
+    
+    private void writeContent(InputStream inputStream, StoredFile target) throws IOException {
+        boolean compressible = compression.accepts(target.getFileType(), target.getContentType());
+        // Updates reuse the row, which may describe compressed content
+        target.setContentEncoding(null);
+        target.setMetadata(null);
+        target.setOriginalFilePath(null);
+        
+        if (photoOptimizer.accepts(target.getFileType())) {
+            // Photos are bounded by the upload size limits, so they fit in memory
+            inputStream = new ByteArrayInputStream(optimizePhoto(inputStream.readAllBytes(), target));
+        }
+        
+        if (packStore.accepts(target.getFileType())) {
+            // Small content is appended to a pack segment instead of getting a file of its own
+            byte[] head = inputStream.readNBytes(packStore.getMaxFileSize() + 1);
+            if (head.length <= packStore.getMaxFileSize()) {
+                ContentWriter.Result digest = ContentWriter.digest(head);
+                target.setFileSize(digest.size());
+                target.setContentHash(digest.contentHash());
+                List<Object[]> copies = deduplicate
+                    ? repository.findPackedCopies(digest.contentHash(), Limit.of(1)) : List.of();
+                if (!copies.isEmpty()) {
+                    // Same content already packed; rows share its bytes
+                    target.setFilePath((String) copies.get(0)[0]);
+                    target.setContentEncoding((String) copies.get(0)[1]);
+                    return;
+                }
+                byte[] compressed = compressible ? compression.compress(head) : null;
+                target.setFilePath(packStore.write(compressed != null ? compressed : head));
+                target.setContentEncoding(compressed != null ? ContentCompression.GZIP : null);
+                return;
+            }
+            inputStream = new SequenceInputStream(new ByteArrayInputStream(head), inputStream);
+        }
+        if (deduplicate) {
+            // One blob per distinct content; identical uploads share it
+            ContentAddressedBlobStore.Blob blob = blobStore.write(inputStream, compressible);
+            target.setFilePath(blob.path().toString());
+            target.setFileSize(blob.size());
+            target.setContentHash(blob.contentHash());
+            target.setContentEncoding(blob.contentEncoding());
+        } else {
+            Path destinationFile = destinationPath(target.getFileType(), target.getFileName());
+            ContentWriter.Result written;
+            try {
+                written = ContentWriter.write(inputStream, destinationFile);
+            } catch (IOException | RuntimeException e) {
+                // Streamed uploads can be rejected halfway; drop the partial file
+                Files.deleteIfExists(destinationFile);
+                throw e;
+            }
+            target.setFilePath(destinationFile.toString());
+            target.setFileSize(written.size());
+            target.setContentHash(written.contentHash());
+            if (compressible && compression.compressInPlace(destinationFile)) {
+                target.setContentEncoding(ContentCompression.GZIP);
+            }
+        }
+    }
+    
+    // The content to store for a photo; sets its metadata and keeps the
+    // original when configured
+    private byte[] optimizePhoto(byte[] original, StoredFile target) throws IOException {
+        PhotoOptimizer.Optimized optimized = photoOptimizer.optimize(original);
+        if (optimized.metadata() != null) {
+            target.setMetadata(optimized.metadata().toJson());
+        }
+        if (optimized.changed() && photoOptimizer.isKeepOriginal()) {
+            Path originalFile = layout.resolve(rootLocation.resolve("originals"), target.getFileName());
+            Files.createDirectories(originalFile.getParent());
+            Files.write(originalFile, original);
+            target.setOriginalFilePath(originalFile.toString());
+        }
+        return optimized.changed() ? optimized.content() : original;
+    }
+    
+    private void evict(StoredFile file) {
+        fileCache.evictFile(file.getId());
+        fileCache.evictEntity(file.getEntityId(), file.getEntityType());
+    }
+    
+    // Everything a row refers to, for rows that are gone or were never saved
+    private void discardContent(StoredFile file) throws IOException {
+        releaseContent(file.getFilePath(), file.getContentHash());
+        deleteOriginal(file.getOriginalFilePath());
+    }
+    
+    private void deleteOriginal(String originalFilePath) throws IOException {
+        if (originalFilePath != null) {
+            Files.deleteIfExists(Paths.get(originalFilePath));
+        }
+    }
+    
+    // Whether the row holds a reference on a shared blob
+    private boolean holdsBlob(StoredFile file) {
+        return holdsBlob(file.getFilePath(), file.getContentHash());
+    }
+    
+    private boolean holdsBlob(String filePath, String contentHash) {
+        return contentHash != null && !packStore.owns(filePath) && blobStore.owns(Paths.get(filePath));
+    }
+
+    private void releaseContent(String filePath, String contentHash) throws IOException {
+        if (packStore.owns(filePath)) {
+            // Reclaimed by compaction, which counts live content from the rows
+            return;
+        }
+        Path path = Paths.get(filePath);
+        channelCache.invalidate(path);
+        if (contentHash != null && blobStore.owns(path)) {
+            blobStore.release(contentHash);
+        } else {
+            Files.deleteIfExists(path);
+        }
+    }
+    
+    /**
+     * Location of a file in the configured layout, creating its shard
+     * directories when needed. Also used by the layout migrator.
+     */
+    Path destinationPath(FileType fileType, String fileName) throws IOException {
+        Path destination = layout.resolve(getDestinationDirectory(fileType), fileName);
+        Files.createDirectories(destination.getParent());
+        return destination;
+    }
+    
+    StorageLayout getLayout() {
+        return layout;
+    }
+    
     private Path getDestinationDirectory(FileType fileType) {
         return switch (fileType) {
             case PHOTO -> rootLocation.resolve("photos");
@@ -0,0 +1,321 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.util.ImageProcessor;
+import org.acabativa.rc.storage.util.StorageLayout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.annotation.PostConstruct;
+import java.awt.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Resized and cropped JPEG variants of stored photos, rendered on request and
+ * kept on disk under {@code <storage.location>/variants/}.
+ *
+ * The variant directory is bounded by {@code storage.photo.variants.max-size}
+ * and evicts least recently served variants first; the index is rebuilt from
+ * modification times on startup. Variant names embed the stored file name,
+ * which changes whenever the photo is replaced, so a cached variant never
+ * goes stale. Concurrent requests for a missing variant share one render.
+ */
+@Service
+public class ImageVariantService {
+
+    private static final String VARIANT_FORMAT = "jpg";
+
+    private final Logger LOGGER = Logger.getLogger(ImageVariantService.class.getName());
+
+    public enum Fit {
+        // Fit inside the box, keeping the aspect ratio
+        CONTAIN,
+        // Fill the box exactly, cropping the centre of the photo
+        COVER
+    }
+
+    /**
+     * A requested variant. A missing width or height is stored as 0 and
+     * follows the aspect ratio of the photo.
+     */
+    public record Variant(int width, int height, Fit fit, int quality) {
+
+        public String key() {
+            return width + "x" + height + "_" + fit.name().toLowerCase() + "_q" + quality;
+        }
+    }
+
+    private final Path variantRoot;
+    private final StorageLayout layout;
+    private final ImageProcessor imageProcessor;
+    private final FileChannelCache channelCache;
+    private final long maxBytes;
+    private final int maxDimension;
+    private final int defaultQuality;
+    private final ConcurrentMap<Path, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    // Variant files in access order, with their sizes
+    private final LinkedHashMap<Path, Long> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    public ImageVariantService(@Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation,
+                               @Value("${storage.layout:flat}") StorageLayout layout,
+                               @Value("${storage.photo.variants.max-size:512MB}") DataSize maxSize,
+                               @Value("${storage.photo.variants.max-dimension:2560}") int maxDimension,
+                               @Value("${storage.photo.variants.quality:80}") int defaultQuality,
+                               ImageProcessor imageProcessor,
+                               FileChannelCache channelCache) {
+        this.variantRoot = Paths.get(storageLocation).resolve("variants");
+        this.layout = layout;
+        this.maxBytes = maxSize.toBytes();
+        this.maxDimension = maxDimension;
+        this.defaultQuality = defaultQuality;
+        this.imageProcessor = imageProcessor;
+        this.channelCache = channelCache;
+    }
+
+    @PostConstruct
+    public void init() {
+        try {
+            Files.createDirectories(variantRoot);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not initialize variant location", e);
+        }
+
+        // Oldest first, so the least recently written variants go first
+        List<Map.Entry<Path, BasicFileAttributes>> found = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(variantRoot)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    // Leftover of an interrupted render
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                found.add(Map.entry(path, attributes));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.log(Level.WARNING, "Could not scan variant location", e);
+        }
+        found.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+        synchronized (this) {
+            for (Map.Entry<Path, BasicFileAttributes> entry : found) {
+                index.put(entry.getKey(), entry.getValue().size());
+                totalBytes += entry.getValue().size();
+            }
+            evictOverflow();
+        }
+    }
+
+    /**
+     * Validates request parameters; every one is optional but at least one
+     * dimension is required, and {@code cover} needs both.
+     *
+     * @throws IllegalArgumentException when the parameters do not describe a valid variant
+     */
+    public Variant variant(Integer width, Integer height, String fit, Integer quality) {
+        if (width == null && height == null) {
+            throw new IllegalArgumentException("w or h is required");
+        }
+        int w = checkDimension("w", width);
+        int h = checkDimension("h", height);
+
+        Fit mode;
+        try {
+            mode = fit == null ? Fit.CONTAIN : Fit.valueOf(fit.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("fit must be contain or cover");
+        }
+        if (mode == Fit.COVER && (w == 0 || h == 0)) {
+            throw new IllegalArgumentException("fit=cover needs both w and h");
+        }
+
+        int q = quality != null ? quality : defaultQuality;
+        if (q < 1 || q > 100) {
+            throw new IllegalArgumentException("q must be between 1 and 100");
+        }
+        return new Variant(w, h, mode, q);
+    }
+
+    /**
+     * Returns the variant file, rendering it when it is not cached.
+     */
+    public Path getVariant(StoredFile file, Variant variant) throws IOException {
+        Path target = variantPath(file, variant);
+        if (touch(target)) {
+            return target;
+        }
+
+        CompletableFuture<Path> render = new CompletableFuture<>();
+        CompletableFuture<Path> existing = inFlight.putIfAbsent(target, render);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            render.complete(render(file, variant, target));
+        } catch (IOException | RuntimeException e) {
+            render.completeExceptionally(e);
+        } finally {
+            inFlight.remove(target, render);
+        }
+        return await(render);
+    }
+
+    /**
+     * Drops every cached variant of a photo that is being deleted or replaced.
+     */
+    public void deleteVariants(StoredFile file) {
+        String prefix = stem(file.getFileName()) + "_";
+        List<Path> doomed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<Path, Long>> entries = index.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Path, Long> entry = entries.next();
+                if (entry.getKey().getFileName().toString().startsWith(prefix)) {
+                    totalBytes -= entry.getValue();
+                    entries.remove();
+                    doomed.add(entry.getKey());
+                }
+            }
+        }
+        doomed.forEach(this::deleteFile);
+    }
+
+    private Path render(StoredFile file, Variant variant, Path target) throws IOException {
+        Path source = Paths.get(file.getFilePath());
+        Dimension original = imageProcessor.readDimensions(source);
+
+        Rectangle region = null;
+        int boxWidth = variant.width();
+        int boxHeight = variant.height();
+        if (variant.fit() == Fit.COVER) {
+            region = centreCrop(original, variant.width(), variant.height());
+        } else if (boxWidth == 0) {
+            boxWidth = (int) Math.ceil((double) boxHeight * original.width / original.height);
+        } else if (boxHeight == 0) {
+            boxHeight = (int) Math.ceil((double) boxWidth * original.height / original.width);
+        }
+
+        byte[] bytes = imageProcessor.toJpeg(
+            imageProcessor.readScaled(source, region, boxWidth, boxHeight), variant.quality() / 100f);
+
+        // Write beside the target and rename so readers never see a partial file
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(target.getParent());
+            Files.write(temp, bytes);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channelCache.invalidate(target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        record(target, bytes.length);
+        return target;
+    }
+
+    // The largest region of the photo with the aspect ratio of the box, centred
+    private static Rectangle centreCrop(Dimension original, int width, int height) {
+        double boxRatio = (double) width / height;
+        double photoRatio = (double) original.width / original.height;
+        if (photoRatio > boxRatio) {
+            int cropWidth = Math.max(1, (int) Math.round(original.height * boxRatio));
+            return new Rectangle((original.width - cropWidth) / 2, 0, cropWidth, original.height);
+        }
+        int cropHeight = Math.max(1, (int) Math.round(original.width / boxRatio));
+        return new Rectangle(0, (original.height - cropHeight) / 2, original.width, cropHeight);
+    }
+
+    private synchronized boolean touch(Path target) {
+        if (index.get(target) == null) {
+            return false;
+        }
+        if (!Files.exists(target)) {
+            totalBytes -= index.remove(target);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void record(Path target, long size) {
+        Long previous = index.put(target, size);
+        totalBytes += size - (previous != null ? previous : 0);
+        evictOverflow();
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<Path, Long>> eldest = index.entrySet().iterator();
+        // The newest variant is kept even when it alone exceeds the limit
+        while (totalBytes > maxBytes && index.size() > 1 && eldest.hasNext()) {
+            Map.Entry<Path, Long> entry = eldest.next();
+            totalBytes -= entry.getValue();
+            eldest.remove();
+            deleteFile(entry.getKey());
+        }
+    }
+
+    private void deleteFile(Path path) {
+        channelCache.invalidate(path);
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete image variant " + path, e);
+        }
+    }
+
+    private Path variantPath(StoredFile file, Variant variant) {
+        return layout.resolve(variantRoot, stem(file.getFileName()) + "_" + variant.key() + "." + VARIANT_FORMAT);
+    }
+
+    private int checkDimension(String name, Integer value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value < 1 || value > maxDimension) {
+            throw new IllegalArgumentException(name + " must be between 1 and " + maxDimension);
+        }
+        return value;
+    }
+
+    private static String stem(String fileName) {
+        int lastDotIndex = fileName.lastIndexOf('.');
+        return (lastDotIndex == -1) ? fileName : fileName.substring(0, lastDotIndex);
+    }
+
+    private static Path await(CompletableFuture<Path> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Keeps small documents inside large append-only segment files under
+ * {@code <storage.location>/packs/}, instead of one file (and one inode) each.
+ *
+ * A packed file's {@code filePath} is a locator,
+ * {@code pack:<segment>/<offset>/<length>}, so the rows themselves are the
+ * index; rows with the same content may share one locator. Each instance
+ * appends only to a segment it created itself (exclusive create on the shared
+ * volume) and holds a lock on it while it does, so instances never write into
+ * the same segment. Appends are forced to disk before the locator is handed
+ * out, so a committed row never points at bytes that were not written.
+ *
+ * Reads copy the content out of fixed windows of the segment, mapped
+ * read-only on demand. Deleting a file leaves its bytes in place; segments
+ * that are sealed (no writer holds them) and mostly dead, counted from the
+ * rows, are compacted in the background: live content is copied to the active
+ * segment and rows are repointed with a conditional update. The old segment
+ * is deleted on a later run, once no read is copying from it and no row
+ * points into it anymore; its mappings are dropped first, and a delete that
+ * fails (on Windows, until the dropped mappings are collected) is retried.
+ *
+ * Photos are never packed: thumbnails, variants and EXIF extraction read them
+ * by path.
+ */
+@Service
+public class PackFileStore {
+
+    private static final String LOCATOR_PREFIX = "pack:";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    // A sealed segment may still receive rows for content appended just
+    // before it was rolled over; it is left alone until those are saved
+    private static final Duration SEALED_AGE = Duration.ofMinutes(10);
+    // Segments are mapped in windows of this size, never whole
+    private static final int WINDOW_SIZE = 4 * 1024 * 1024;
+    // Byte range locked by the writer of a segment, far past any content
+    private static final long WRITER_LOCK_POSITION = Long.MAX_VALUE - 1;
+
+    private final Logger LOGGER = Logger.getLogger(PackFileStore.class.getName());
+
+    /**
+     * Where a packed file lives inside its segment.
+     */
+    public record Location(int segment, long offset, int length) {
+
+        public String locator() {
+            return LOCATOR_PREFIX + segment + "/" + offset + "/" + length;
+        }
+
+        static Location parse(String locator) {
+            String[] parts = locator.substring(LOCATOR_PREFIX.length()).split("/");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Malformed pack locator " + locator);
+            }
+            return new Location(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+        }
+    }
+
+    // Read side of a segment: its mapped windows and the reads copying from them
+    private static final class MappedSegment {
+        private final Map<Long, MappedByteBuffer> windows = new HashMap<>();
+        private int readers;
+    }
+
+    private final Path packRoot;
+    private final StoredFileRepository repository;
+    private final StoredFileCache fileCache;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int maxFileSize;
+    private final long segmentSize;
+    private final double minGarbage;
+
+    // Guarded by itself
+    private final Map<Integer, MappedSegment> mapped = new HashMap<>();
+
+    // Guarded by this: the segment this instance appends to
+    private FileChannel active;
+    private FileLock writerLock;
+    private int activeSegment;
+
+    // Guarded by compactionLock: compacted segments waiting to be deleted
+    private final Object compactionLock = new Object();
+    private final List<Integer> pendingDeletes = new ArrayList<>();
+
+    public PackFileStore(@Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation,
+                         StoredFileRepository repository,
+                         StoredFileCache fileCache,
+                         PlatformTransactionManager transactionManager,
+                         @Value("${storage.pack.enabled:false}") boolean enabled,
+                         @Value("${storage.pack.max-file-size:64KB}") DataSize maxFileSize,
+                         @Value("${storage.pack.segment-size:256MB}") DataSize segmentSize,
+                         @Value("${storage.pack.compaction.min-garbage:0.5}") double minGarbage) {
+        this.packRoot = Paths.get(storageLocation).resolve("packs");
+        this.repository = repository;
+        this.fileCache = fileCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.maxFileSize = (int) Math.min(maxFileSize.toBytes(), WINDOW_SIZE);
+        this.segmentSize = Math.min(segmentSize.toBytes(), Integer.MAX_VALUE);
+        this.minGarbage = minGarbage;
+    }
+
+    @PostConstruct
+    public void init() {
+        try {
+            Files.createDirectories(packRoot);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not initialize pack storage location", e);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            writerLock.release();
+            active.close();
+            active = null;
+        }
+    }
+
+    /**
+     * Whether content of this type goes into a pack when it is no larger
+     * than {@link #getMaxFileSize()}.
+     */
+    public boolean accepts(FileType fileType) {
+        return enabled && fileType != FileType.PHOTO;
+    }
+
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public boolean owns(String filePath) {
+        return filePath != null && filePath.startsWith(LOCATOR_PREFIX);
+    }
+
+    /**
+     * Appends the content to this instance's active segment, forces it to
+     * disk and returns its locator.
+     */
+    public String write(byte[] content) throws IOException {
+        return append(ByteBuffer.wrap(content)).locator();
+    }
+
+    /**
+     * A copy of the content, read from the mapped segment.
+     */
+    public ByteBuffer read(String locator) throws IOException {
+        Location location = Location.parse(locator);
+        MappedSegment segment = acquire(location.segment());
+        try {
+            byte[] content = new byte[location.length()];
+            int copied = 0;
+            while (copied < content.length) {
+                long position = location.offset() + copied;
+                long window = position / WINDOW_SIZE;
+                int from = (int) (position - window * WINDOW_SIZE);
+                MappedByteBuffer mapping = window(location.segment(), segment, window,
+                    from + Math.min(content.length - copied, WINDOW_SIZE - from));
+                int length = Math.min(content.length - copied, mapping.capacity() - from);
+                mapping.get(from, content, copied, length);
+                copied += length;
+            }
+            return ByteBuffer.wrap(content).asReadOnlyBuffer();
+        } finally {
+            synchronized (mapped) {
+                segment.readers--;
+            }
+        }
+    }
+
+    public boolean exists(String locator) {
+        Location location = Location.parse(locator);
+        try {
+            return Files.size(segmentPath(location.segment())) >= location.offset() + location.length();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Scheduled(initialDelayString = "${storage.pack.compaction.interval-ms:600000}",
+               fixedDelayString = "${storage.pack.compaction.interval-ms:600000}")
+    public void compact() {
+        synchronized (compactionLock) {
+            deletePending();
+            if (!enabled) {
+                return;
+            }
+            List<Integer> segments;
+            try {
+                segments = listSegments();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not list pack segments", e);
+                return;
+            }
+            for (int segment : segments) {
+                if (pendingDeletes.contains(segment)) {
+                    continue;
+                }
+                try {
+                    List<Object[]> rows = repository.findPackedRows(prefix(segment));
+                    if (shouldCompact(segment, rows)) {
+                        compactSegment(segment, rows);
+                        pendingDeletes.add(segment);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not compact pack segment " + segment, e);
+                }
+            }
+        }
+    }
+
+    private boolean shouldCompact(int segment, List<Object[]> rows) throws IOException {
+        Path path = segmentPath(segment);
+        if (Files.getLastModifiedTime(path).toInstant().isAfter(Instant.now().minus(SEALED_AGE))
+                || !isSealed(segment)) {
+            return false;
+        }
+        long size = Files.size(path);
+        long live = 0;
+        Map<String, Boolean> counted = new HashMap<>();
+        for (Object[] row : rows) {
+            // Rows sharing content share its bytes
+            if (counted.put((String) row[1], Boolean.TRUE) == null) {
+                live += Location.parse((String) row[1]).length();
+            }
+        }
+        return size > 0 && (double) (size - live) / size >= minGarbage;
+    }
+
+    // Whether no instance appends to the segment anymore
+    private boolean isSealed(int segment) throws IOException {
+        synchronized (this) {
+            // Never probed: closing a channel may drop every lock this JVM holds on the file
+            if (active != null && segment == activeSegment) {
+                return false;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock(WRITER_LOCK_POSITION, 1, false)) {
+            return lock != null;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    private void compactSegment(int segment, List<Object[]> rows) throws IOException {
+        long moved = 0;
+        Map<String, String> copies = new HashMap<>();
+        for (Object[] row : rows) {
+            Long id = (Long) row[0];
+            String locator = (String) row[1];
+            String target = copies.get(locator);
+            if (target == null) {
+                target = append(read(locator)).locator();
+                copies.put(locator, target);
+                moved += Location.parse(locator).length();
+            }
+
+            String newLocator = target;
+            // A row replaced or deleted while we were copying is left alone;
+            // the copy is then dead and goes with a later compaction
+            Integer updated = transactionTemplate.execute(status ->
+                repository.updateFilePath(id, locator, newLocator));
+            if (updated != null && updated > 0) {
+                fileCache.evictFile(id);
+                fileCache.evictEntity((Long) row[2], (EntityType) row[3]);
+            }
+        }
+        LOGGER.info("Compacted pack segment " + segment + ", moved " + moved + " live bytes");
+    }
+
+    private void deletePending() {
+        for (Iterator<Integer> it = pendingDeletes.iterator(); it.hasNext(); ) {
+            int segment = it.next();
+            try {
+                List<Object[]> rows = repository.findPackedRows(prefix(segment));
+                if (!rows.isEmpty()) {
+                    // Rows saved after the compaction read them; move them too
+                    compactSegment(segment, rows);
+                    continue;
+                }
+                synchronized (mapped) {
+                    MappedSegment mappedSegment = mapped.get(segment);
+                    if (mappedSegment != null && mappedSegment.readers > 0) {
+                        continue;
+                    }
+                    mapped.remove(segment);
+                }
+                Files.deleteIfExists(segmentPath(segment));
+                it.remove();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not delete pack segment " + segment + ", retrying on the next run", e);
+            }
+        }
+    }
+
+    private synchronized Location append(ByteBuffer content) throws IOException {
+        int length = content.remaining();
+        if (active == null || (active.size() > 0 && active.size() + length > segmentSize)) {
+            openNewSegment();
+        }
+        long offset = active.size();
+        long position = offset;
+        while (content.hasRemaining()) {
+            position += active.write(content, position);
+        }
+        // On disk before any row can point at it
+        active.force(false);
+        return new Location(activeSegment, offset, length);
+    }
+
+    // Creates the next free segment, skipping numbers taken by other instances
+    private void openNewSegment() throws IOException {
+        List<Integer> segments = listSegments();
+        int segment = Math.max(activeSegment, segments.isEmpty() ? 0 : segments.get(segments.size() - 1));
+        while (true) {
+            segment++;
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(segmentPath(segment),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            FileLock lock = channel.lock(WRITER_LOCK_POSITION, 1, false);
+            if (active != null) {
+                writerLock.release();
+                active.close();
+            }
+            active = channel;
+            writerLock = lock;
+            activeSegment = segment;
+            return;
+        }
+    }
+
+    private MappedSegment acquire(int segment) {
+        synchronized (mapped) {
+            MappedSegment mappedSegment = mapped.computeIfAbsent(segment, key -> new MappedSegment());
+            mappedSegment.readers++;
+            return mappedSegment;
+        }
+    }
+
+    // The window, mapped again when the segment has grown past its last mapping
+    private MappedByteBuffer window(int segment, MappedSegment mappedSegment, long window, int needed)
+            throws IOException {
+        synchronized (mappedSegment) {
+            MappedByteBuffer mapping = mappedSegment.windows.get(window);
+            if (mapping != null && mapping.capacity() >= needed) {
+                return mapping;
+            }
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                long start = window * WINDOW_SIZE;
+                long size = Math.min(WINDOW_SIZE, channel.size() - start);
+                if (size < needed) {
+                    throw new IOException("Pack segment " + segment + " is shorter than expected");
+                }
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+            mappedSegment.windows.put(window, mapping);
+            return mapping;
+        }
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(packRoot)) {
+            return files.map(path -> path.getFileName().toString())
+                .filter(name -> name.matches("\\d+\\" + SEGMENT_SUFFIX))
+                .map(name -> Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .toList();
+        }
+    }
+
+    private static String prefix(int segment) {
+        return LOCATOR_PREFIX + segment + "/%";
+    }
+
+    private Path segmentPath(int segment) {
+        return packRoot.resolve(String.format("%08d%s", segment, SEGMENT_SUFFIX));
+    }
+}
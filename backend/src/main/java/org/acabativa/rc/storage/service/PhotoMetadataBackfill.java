@@ -0,0 +1,112 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * Fills {@code StoredFile.metadata} for photos uploaded before it was
+ * extracted at upload time, a batch at a time in the background.
+ *
+ * Files of a batch are read in parallel on the upload pool and their rows
+ * updated in one transaction. The update only applies while the row still
+ * has no metadata and the same content, so a photo replaced in the meantime
+ * keeps what its own upload extracted.
+ */
+@Service
+public class PhotoMetadataBackfill {
+
+    private final Logger LOGGER = Logger.getLogger(PhotoMetadataBackfill.class.getName());
+
+    private final StoredFileRepository repository;
+    private final PhotoMetadataService metadataService;
+    private final StoredFileCache fileCache;
+    private final TaskExecutor executor;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+
+    private long lastId;
+    private long filled;
+    private boolean finished;
+
+    public PhotoMetadataBackfill(StoredFileRepository repository,
+                                 PhotoMetadataService metadataService,
+                                 StoredFileCache fileCache,
+                                 @Qualifier("uploadExecutor") TaskExecutor executor,
+                                 PlatformTransactionManager transactionManager,
+                                 @Value("${storage.photo.metadata.backfill.enabled:true}") boolean enabled,
+                                 @Value("${storage.photo.metadata.backfill.batch-size:100}") int batchSize) {
+        this.repository = repository;
+        this.metadataService = metadataService;
+        this.fileCache = fileCache;
+        this.executor = executor;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    @Scheduled(initialDelayString = "${storage.photo.metadata.backfill.interval-ms:10000}",
+               fixedDelayString = "${storage.photo.metadata.backfill.interval-ms:10000}")
+    public synchronized void backfillBatch() {
+        if (!enabled || finished) {
+            return;
+        }
+
+        // New photos get their metadata on upload, so one pass is enough;
+        // unreadable ones stay null and are not retried
+        List<StoredFile> batch = repository.findByFileTypeAndMetadataIsNullAndIdGreaterThanOrderByIdAsc(
+            FileType.PHOTO, lastId, Limit.of(batchSize));
+        List<CompletableFuture<String>> reads = new ArrayList<>(batch.size());
+        for (StoredFile file : batch) {
+            reads.add(CompletableFuture.supplyAsync(() -> metadataService.extract(file), executor));
+        }
+
+        // Reads finish before the transaction, which then holds its connection only for the updates
+        List<String> extracted = reads.stream().map(CompletableFuture::join).toList();
+
+        List<StoredFile> updated = new ArrayList<>();
+        transactionTemplate.executeWithoutResult(status -> {
+            for (int i = 0; i < batch.size(); i++) {
+                StoredFile file = batch.get(i);
+                String metadata = extracted.get(i);
+                if (metadata != null
+                        && repository.updateMetadata(file.getId(), file.getFilePath(), metadata) > 0) {
+                    updated.add(file);
+                }
+            }
+        });
+        for (StoredFile file : updated) {
+            fileCache.evictFile(file.getId());
+            fileCache.evictEntity(file.getEntityId(), file.getEntityType());
+        }
+        filled += updated.size();
+        if (!batch.isEmpty()) {
+            lastId = batch.get(batch.size() - 1).getId();
+        }
+
+        if (batch.size() < batchSize) {
+            finished = true;
+            if (filled > 0) {
+                LOGGER.info("Filled metadata of " + filled + " photos");
+            }
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,73 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.util.ExifReader;
+import org.acabativa.rc.storage.util.ImageProcessor;
+import org.acabativa.rc.storage.util.PhotoMetadata;
+import org.springframework.stereotype.Service;
+
+import java.awt.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts {@link PhotoMetadata} from a stored photo: dimensions from the
+ * image header and orientation, capture date and GPS from EXIF. Nothing is
+ * decoded, so this is cheap enough to run inline with every upload.
+ */
+@Service
+public class PhotoMetadataService {
+
+    private final Logger LOGGER = Logger.getLogger(PhotoMetadataService.class.getName());
+
+    private final ImageProcessor imageProcessor;
+
+    public PhotoMetadataService(ImageProcessor imageProcessor) {
+        this.imageProcessor = imageProcessor;
+    }
+
+    /**
+     * The metadata JSON for a photo whose content is already on disk, or null
+     * for other file types and unreadable images.
+     */
+    public String extract(StoredFile file) {
+        if (file.getFileType() != FileType.PHOTO) {
+            return null;
+        }
+        PhotoMetadata metadata = extract(Paths.get(file.getFilePath()));
+        return metadata != null ? metadata.toJson() : null;
+    }
+
+    public PhotoMetadata extract(Path path) {
+        try {
+            return toMetadata(imageProcessor.readDimensions(path), ExifReader.read(path));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not read metadata of " + path, e);
+            return null;
+        }
+    }
+
+    // Same, for a photo still in memory
+    public PhotoMetadata extract(byte[] content) {
+        try {
+            return toMetadata(imageProcessor.getImageDimensions(content),
+                ExifReader.read(new ByteArrayInputStream(content)));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not read metadata of an uploaded photo", e);
+            return null;
+        }
+    }
+
+    private static PhotoMetadata toMetadata(Dimension size, ExifReader.Exif exif) {
+        return new PhotoMetadata(size.width, size.height,
+            exif.orientation(),
+            exif.capturedAt() != null ? exif.capturedAt().toString() : null,
+            exif.latitude(),
+            exif.longitude());
+    }
+}
@@ -0,0 +1,109 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.util.ImageProcessor;
+import org.acabativa.rc.storage.util.JpegMetadata;
+import org.acabativa.rc.storage.util.PhotoMetadata;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shrinks JPEG photos as they are uploaded, so every later view costs fewer
+ * bytes.
+ *
+ * The metadata {@code StoredFile.metadata} needs is read first. Then the
+ * Exif block (often hundreds of KB of maker notes and an embedded preview)
+ * and the other non-essential segments are dropped, and the photo is
+ * re-encoded as a progressive JPEG at {@code storage.photo.optimize.quality}.
+ * The re-encoded file is kept when it is the smaller one; otherwise the
+ * original pixels are kept, just without their metadata. Photos whose EXIF
+ * orientation is not upright are always re-encoded with the orientation
+ * applied, since dropping the tag would show them turned. PNG files are
+ * left as they are.
+ */
+@Service
+public class PhotoOptimizer {
+
+    private final Logger LOGGER = Logger.getLogger(PhotoOptimizer.class.getName());
+
+    /**
+     * The content to store and its metadata, which describes the stored
+     * pixels. {@code changed} is false when the upload is stored as it came.
+     */
+    public record Optimized(byte[] content, PhotoMetadata metadata, boolean changed) {
+    }
+
+    private final ImageProcessor imageProcessor;
+    private final PhotoMetadataService metadataService;
+    private final boolean enabled;
+    private final float quality;
+    private final boolean keepOriginal;
+
+    public PhotoOptimizer(ImageProcessor imageProcessor,
+                          PhotoMetadataService metadataService,
+                          @Value("${storage.photo.optimize.enabled:false}") boolean enabled,
+                          @Value("${storage.photo.optimize.quality:85}") int quality,
+                          @Value("${storage.photo.optimize.keep-original:false}") boolean keepOriginal) {
+        this.imageProcessor = imageProcessor;
+        this.metadataService = metadataService;
+        this.enabled = enabled;
+        // Configured like the variants, 1-100
+        this.quality = quality / 100f;
+        this.keepOriginal = keepOriginal;
+    }
+
+    public boolean accepts(FileType fileType) {
+        return enabled && fileType == FileType.PHOTO;
+    }
+
+    // Whether the upload as received is kept next to the optimized photo
+    public boolean isKeepOriginal() {
+        return keepOriginal;
+    }
+
+    public Optimized optimize(byte[] original) {
+        PhotoMetadata metadata = metadataService.extract(original);
+        byte[] stripped = JpegMetadata.strip(original);
+        if (metadata == null || stripped == null) {
+            // Not a JPEG, or not one we can read; store it untouched
+            return new Optimized(original, metadata, false);
+        }
+
+        int orientation = metadata.orientation() != null ? metadata.orientation() : 1;
+        byte[] reencoded = null;
+        BufferedImage oriented = null;
+        try {
+            BufferedImage image = imageProcessor.read(new ByteArrayInputStream(original));
+            oriented = imageProcessor.applyOrientation(image, orientation);
+            reencoded = imageProcessor.toJpeg(oriented, quality, true);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not re-encode an uploaded photo", e);
+        }
+
+        if (orientation != 1) {
+            if (reencoded == null) {
+                // Without the pixels turned, the orientation tag has to stay
+                return new Optimized(original, metadata, false);
+            }
+            return new Optimized(reencoded, upright(metadata, oriented.getWidth(), oriented.getHeight()), true);
+        }
+        if (reencoded != null && reencoded.length < stripped.length) {
+            return new Optimized(reencoded, upright(metadata, metadata.width(), metadata.height()), true);
+        }
+        if (stripped.length < original.length) {
+            return new Optimized(stripped, upright(metadata, metadata.width(), metadata.height()), true);
+        }
+        return new Optimized(original, metadata, false);
+    }
+
+    // The stored pixels are upright now; date and position come from the original
+    private static PhotoMetadata upright(PhotoMetadata metadata, int width, int height) {
+        return new PhotoMetadata(width, height, null, metadata.capturedAt(), metadata.latitude(), metadata.longitude());
+    }
+}
@@ -0,0 +1,199 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves files stored under another layout to the one configured in
+ * {@code storage.layout}, a batch at a time, while the application keeps
+ * serving them.
+ *
+ * Each file is first hard-linked (or copied) to its new location, then its
+ * row is repointed with a conditional update, and the old name is removed
+ * only on the next run: readers that resolved the old path just before the
+ * update still find it. Files replaced or deleted meanwhile fail the
+ * conditional update and keep their new state. Content in the shared blob
+ * store is not touched; it has its own layout.
+ *
+ * Off unless {@code storage.layout.migration.enabled} is set. The id reached
+ * is saved in {@code <storage.location>/layout-migration} after every batch,
+ * so a restart resumes the pass instead of starting it over. Old names not
+ * yet removed when the application stops abruptly are left as orphaned
+ * files for the {@link StorageReconciler}.
+ */
+@Service
+public class StorageLayoutMigrator {
+
+    private final Logger LOGGER = Logger.getLogger(StorageLayoutMigrator.class.getName());
+
+    private final StoredFileRepository repository;
+    private final FileSystemStorageService storageService;
+    private final ContentAddressedBlobStore blobStore;
+    private final ThumbnailService thumbnailService;
+    private final FileChannelCache channelCache;
+    private final StoredFileCache fileCache;
+    private final TransactionTemplate transactionTemplate;
+    private final Path cursorFile;
+    private final boolean enabled;
+    private final int batchSize;
+
+    // Old names still visible to in-flight readers, removed on the next run
+    private final List<Path> pendingDeletes = new ArrayList<>();
+    private long lastId;
+    private long moved;
+    private boolean finished;
+
+    public StorageLayoutMigrator(StoredFileRepository repository,
+                                 FileSystemStorageService storageService,
+                                 ContentAddressedBlobStore blobStore,
+                                 ThumbnailService thumbnailService,
+                                 FileChannelCache channelCache,
+                                 StoredFileCache fileCache,
+                                 PlatformTransactionManager transactionManager,
+                                 @Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation,
+                                 @Value("${storage.layout.migration.enabled:false}") boolean enabled,
+                                 @Value("${storage.layout.migration.batch-size:200}") int batchSize) {
+        this.repository = repository;
+        this.storageService = storageService;
+        this.blobStore = blobStore;
+        this.thumbnailService = thumbnailService;
+        this.channelCache = channelCache;
+        this.fileCache = fileCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.cursorFile = Paths.get(storageLocation).resolve("layout-migration");
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    // Resumes a pass to the same layout where an earlier run left it
+    @PostConstruct
+    public synchronized void init() {
+        if (!enabled || !Files.exists(cursorFile)) {
+            return;
+        }
+        try {
+            String[] cursor = Files.readString(cursorFile).trim().split(" ");
+            if (cursor.length == 2 && cursor[0].equals(storageService.getLayout().name())) {
+                lastId = Long.parseLong(cursor[1]);
+                LOGGER.info("Resuming the move to the " + storageService.getLayout() + " layout after file " + lastId);
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Could not read " + cursorFile + ", starting the move over", e);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${storage.layout.migration.interval-ms:10000}",
+               fixedDelayString = "${storage.layout.migration.interval-ms:10000}")
+    public synchronized void migrateBatch() {
+        deletePending();
+        if (!enabled || finished) {
+            return;
+        }
+
+        // New files are always written in the current layout, so one full
+        // pass over the table is enough
+        List<StoredFile> batch = repository.findByIdGreaterThanOrderByIdAsc(lastId, Limit.of(batchSize));
+        for (StoredFile file : batch) {
+            try {
+                if (migrate(file)) {
+                    moved++;
+                }
+                if (file.getFileType() == FileType.PHOTO) {
+                    thumbnailService.relocateThumbnails(file);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not move file " + file.getId() + " to the "
+                    + storageService.getLayout() + " layout", e);
+            }
+            lastId = file.getId();
+        }
+        if (!batch.isEmpty()) {
+            saveCursor();
+        }
+
+        if (batch.size() < batchSize) {
+            finished = true;
+            if (moved > 0) {
+                LOGGER.info("Moved " + moved + " files to the " + storageService.getLayout() + " layout");
+            }
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    @PreDestroy
+    public synchronized void deletePending() {
+        for (Path path : pendingDeletes) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not delete old file " + path, e);
+            }
+        }
+        pendingDeletes.clear();
+    }
+
+    private void saveCursor() {
+        Path temp = cursorFile.resolveSibling(cursorFile.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, storageService.getLayout().name() + " " + lastId);
+            Files.move(temp, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the layout migration cursor", e);
+        }
+    }
+
+    private boolean migrate(StoredFile file) throws IOException {
+        Path source = Paths.get(file.getFilePath());
+        if (blobStore.owns(source) || !Files.exists(source)) {
+            return false;
+        }
+        Path target = storageService.destinationPath(file.getFileType(), source.getFileName().toString());
+        if (target.equals(source)) {
+            return false;
+        }
+
+        // Leftover of an interrupted run
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+
+        Integer updated = transactionTemplate.execute(status ->
+            repository.updateFilePath(file.getId(), source.toString(), target.toString()));
+        if (updated == null || updated == 0) {
+            // Replaced or deleted while we were linking
+            Files.deleteIfExists(target);
+            return false;
+        }
+        fileCache.evictFile(file.getId());
+        fileCache.evictEntity(file.getEntityId(), file.getEntityType());
+        channelCache.invalidate(source);
+        pendingDeletes.add(source);
+        return true;
+    }
+}
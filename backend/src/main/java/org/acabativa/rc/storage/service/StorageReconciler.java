@@ -0,0 +1,513 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.repository.StoredBlobRepository;
+import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import jakarta.persistence.EntityManager;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds storage that got out of step with the database: files no row or blob
+ * refers to, rows whose file is gone, rows of deleted entities and blobs
+ * missing on disk. Runs on a schedule and on demand (in the background, see
+ * {@link #start}), reporting only unless repair is asked for.
+ *
+ * {@code stored_files} and {@code stored_blobs} are read in key order a batch
+ * at a time, then the storage tree is walked in parallel, one task per
+ * directory. Every file system check goes through a shared rate limit, so a
+ * run on a large volume does not starve uploads and downloads. Files and rows
+ * younger than {@code storage.reconcile.min-age} are left alone, as they may
+ * belong to an upload still in progress, and each finding is checked again
+ * against the database before it is reported.
+ */
+@Service
+public class StorageReconciler {
+
+    private final Logger LOGGER = Logger.getLogger(StorageReconciler.class.getName());
+
+    // JPQL entity of each owner type
+    private static final Map<EntityType, String> ENTITY_NAMES = Map.of(
+        EntityType.PROPERTY, "Property",
+        EntityType.PROJECT, "Project",
+        EntityType.INVESTOR, "Investor",
+        EntityType.ENTERPRISE, "Enterprise");
+
+    private static final int ID_CHUNK = 500;
+
+    /**
+     * Outcome of one run. Bytes are what the findings occupy (orphaned files)
+     * or claim to occupy (rows); samples are file paths or row ids.
+     */
+    public record Report(boolean repair, LocalDateTime startedAt, LocalDateTime finishedAt,
+                         long rowsScanned, long filesScanned,
+                         Finding orphanedFiles, Finding danglingRows,
+                         Finding orphanedRows, Finding missingBlobs) {
+    }
+
+    public record Finding(long count, long bytes, long repaired, List<String> samples) {
+    }
+
+    private final Path rootLocation;
+    private final StoredFileRepository repository;
+    private final StoredBlobRepository blobRepository;
+    private final StorageService storageService;
+    private final FileChannelCache channelCache;
+    private final PackFileStore packStore;
+    private final EntityManager entityManager;
+    private final TaskExecutor executor;
+    private final boolean enabled;
+    private final boolean scheduledRepair;
+    private final Duration minAge;
+    private final int workers;
+    private final int maxOpsPerSecond;
+    private final int batchSize;
+    private final int sampleSize;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Report lastReport;
+
+    public StorageReconciler(@Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation,
+                             StoredFileRepository repository,
+                             StoredBlobRepository blobRepository,
+                             StorageService storageService,
+                             FileChannelCache channelCache,
+                             PackFileStore packStore,
+                             EntityManager entityManager,
+                             @Qualifier("reconcileExecutor") TaskExecutor executor,
+                             @Value("${storage.reconcile.enabled:true}") boolean enabled,
+                             @Value("${storage.reconcile.repair:false}") boolean scheduledRepair,
+                             @Value("${storage.reconcile.min-age:1h}") Duration minAge,
+                             @Value("${storage.reconcile.workers:2}") int workers,
+                             @Value("${storage.reconcile.max-ops-per-second:500}") int maxOpsPerSecond,
+                             @Value("${storage.reconcile.batch-size:500}") int batchSize,
+                             @Value("${storage.reconcile.sample-size:20}") int sampleSize) {
+        this.rootLocation = Paths.get(storageLocation);
+        this.repository = repository;
+        this.blobRepository = blobRepository;
+        this.storageService = storageService;
+        this.channelCache = channelCache;
+        this.packStore = packStore;
+        this.entityManager = entityManager;
+        this.executor = executor;
+        this.enabled = enabled;
+        this.scheduledRepair = scheduledRepair;
+        this.minAge = minAge;
+        this.workers = Math.max(1, workers);
+        this.maxOpsPerSecond = maxOpsPerSecond;
+        this.batchSize = batchSize;
+        this.sampleSize = sampleSize;
+    }
+
+    @Scheduled(initialDelayString = "${storage.reconcile.initial-delay-ms:3600000}",
+               fixedDelayString = "${storage.reconcile.interval-ms:86400000}")
+    public void scheduledRun() {
+        if (!enabled || !running.compareAndSet(false, true)) {
+            return;
+        }
+        runLogged(scheduledRepair);
+    }
+
+    /**
+     * Starts a reconciliation in the background and returns at once; its
+     * report is available from {@link #getLastReport()} when it finishes.
+     *
+     * @throws IllegalStateException when a run is already in progress
+     */
+    public void start(boolean repair) {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A storage reconciliation is already running");
+        }
+        try {
+            executor.execute(() -> runLogged(repair));
+        } catch (RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    private void runLogged(boolean repair) {
+        try {
+            Report report = reconcile(repair);
+            LOGGER.info("Storage reconciliation" + (report.repair() ? "" : " (report only)") + ": "
+                + report.orphanedFiles().count() + " orphaned files, "
+                + report.danglingRows().count() + " rows without file, "
+                + report.orphanedRows().count() + " rows of deleted entities, "
+                + report.missingBlobs().count() + " missing blobs");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Storage reconciliation failed", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Runs a reconciliation now, deleting what it finds when {@code repair}
+     * is set.
+     *
+     * @throws IllegalStateException when a run is already in progress
+     */
+    public Report run(boolean repair) {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A storage reconciliation is already running");
+        }
+        try {
+            return reconcile(repair);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    private Report reconcile(boolean repair) {
+        Run run = new Run(repair);
+
+        // Rows first: the walk needs the complete set of referenced files
+        scanRows(run);
+        scanBlobs(run);
+        findOrphanedRows(run);
+        walkStorage(run);
+
+        Report report = new Report(repair, run.startedAt, LocalDateTime.now(),
+            run.rowsScanned, run.filesScanned,
+            run.orphanedFiles.finish(), run.danglingRows.finish(),
+            run.orphanedRows.finish(), run.missingBlobs.finish());
+        lastReport = report;
+        return report;
+    }
+
+    private void scanRows(Run run) {
+        long lastId = 0;
+        List<Object[]> batch;
+        do {
+            batch = repository.findReconcileRowsAfter(lastId, Limit.of(batchSize));
+            for (Object[] row : batch) {
+                Long id = (Long) row[0];
+                String filePath = (String) row[1];
+                String fileName = (String) row[2];
+                Long fileSize = (Long) row[3];
+                Long entityId = (Long) row[4];
+                EntityType entityType = (EntityType) row[5];
+                LocalDateTime uploadDate = (LocalDateTime) row[6];
+                lastId = id;
+                run.rowsScanned++;
+
+                run.referencedPaths.add(normalize(filePath));
+                run.referencedStems.add(stem(fileName));
+                if (entityId != null && entityType != null) {
+                    run.entityIds.computeIfAbsent(entityType, type -> new HashSet<>()).add(entityId);
+                }
+
+                run.throttle.acquire();
+                if (!contentExists(filePath) && isOld(uploadDate, run)) {
+                    checkDangling(run, id, fileSize != null ? fileSize : 0);
+                }
+            }
+        } while (batch.size() == batchSize);
+    }
+
+    // The row may have been repointed (layout migration, update) since it was read
+    private void checkDangling(Run run, Long id, long fileSize) {
+        StoredFile current = repository.findById(id).orElse(null);
+        if (current == null || contentExists(current.getFilePath())) {
+            return;
+        }
+        boolean repaired = run.repair && deleteRow(id);
+        run.danglingRows.add(String.valueOf(id), fileSize, repaired);
+    }
+
+    private void scanBlobs(Run run) {
+        String lastHash = "";
+        List<Object[]> batch;
+        do {
+            batch = blobRepository.findPathsAfter(lastHash, Limit.of(batchSize));
+            for (Object[] row : batch) {
+                String contentHash = (String) row[0];
+                String filePath = (String) row[1];
+                Long fileSize = (Long) row[2];
+                lastHash = contentHash;
+                run.blobHashes.add(contentHash);
+
+                // Not repaired: the rows sharing the blob are reported as
+                // dangling, and the next upload of the same content restores it
+                run.throttle.acquire();
+                if (!Files.exists(Paths.get(filePath))) {
+                    run.missingBlobs.add(contentHash, fileSize != null ? fileSize : 0, false);
+                }
+            }
+        } while (batch.size() == batchSize);
+    }
+
+    private void findOrphanedRows(Run run) {
+        for (Map.Entry<EntityType, Set<Long>> entry : run.entityIds.entrySet()) {
+            EntityType entityType = entry.getKey();
+            List<Long> ids = new ArrayList<>(entry.getValue());
+            for (int from = 0; from < ids.size(); from += ID_CHUNK) {
+                List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + ID_CHUNK));
+                Set<Long> existing = new HashSet<>(entityManager
+                    .createQuery("SELECT e.id FROM " + ENTITY_NAMES.get(entityType) + " e WHERE e.id IN :ids", Long.class)
+                    .setParameter("ids", chunk)
+                    .getResultList());
+                for (Long entityId : chunk) {
+                    if (!existing.contains(entityId)) {
+                        reportOrphanedRows(run, entityId, entityType);
+                    }
+                }
+            }
+        }
+    }
+
+    private void reportOrphanedRows(Run run, Long entityId, EntityType entityType) {
+        for (StoredFile file : repository.findByEntityIdAndEntityType(entityId, entityType)) {
+            if (!isOld(file.getUploadDate(), run)) {
+                continue;
+            }
+            boolean repaired = run.repair && deleteRow(file.getId());
+            run.orphanedRows.add(String.valueOf(file.getId()),
+                file.getFileSize() != null ? file.getFileSize() : 0, repaired);
+        }
+    }
+
+    private boolean deleteRow(Long id) {
+        try {
+            storageService.delete(id);
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not delete stored file " + id, e);
+            return false;
+        }
+    }
+
+    private void walkStorage(Run run) {
+        Predicate<Path> referencedFile = path -> run.referencedPaths.contains(normalize(path.toString()))
+            // Rows written or repointed since the scan
+            || repository.existsByFilePath(path.toString());
+        Predicate<Path> referencedBlob = path -> run.blobHashes.contains(path.getFileName().toString())
+            || referencedFile.test(path);
+        Predicate<Path> referencedThumbnail = path -> run.referencedStems.contains(stem(path.getFileName().toString()));
+
+        // Variants are bounded by their own LRU, tmp/ by upload session expiry
+        // and packs/ by compaction, so none of them is walked here
+        List<DirectoryWalk> walks = List.of(
+            new DirectoryWalk(run, rootLocation.resolve("photos"), referencedFile),
+            new DirectoryWalk(run, rootLocation.resolve("documents"), referencedFile),
+            new DirectoryWalk(run, rootLocation.resolve("others"), referencedFile),
+            new DirectoryWalk(run, rootLocation.resolve("blobs"), referencedBlob),
+            new DirectoryWalk(run, rootLocation.resolve("thumbnails"), referencedThumbnail));
+
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(walks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Checks the files of one directory and forks a walk per subdirectory.
+     */
+    private class DirectoryWalk extends RecursiveAction {
+
+        private final Run run;
+        private final Path directory;
+        private final Predicate<Path> referenced;
+
+        DirectoryWalk(Run run, Path directory, Predicate<Path> referenced) {
+            this.run = run;
+            this.directory = directory;
+            this.referenced = referenced;
+        }
+
+        @Override
+        protected void compute() {
+            if (!Files.isDirectory(directory)) {
+                return;
+            }
+            List<DirectoryWalk> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    run.throttle.acquire();
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new DirectoryWalk(run, entry, referenced));
+                    } else if (attributes.isRegularFile()) {
+                        run.countFile();
+                        checkFile(entry, attributes);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not list " + directory, e);
+            }
+            invokeAll(subdirectories);
+        }
+
+        private void checkFile(Path file, BasicFileAttributes attributes) {
+            if (attributes.lastModifiedTime().toInstant().isAfter(run.fileCutoff) || referenced.test(file)) {
+                return;
+            }
+            boolean repaired = false;
+            if (run.repair) {
+                channelCache.invalidate(file);
+                try {
+                    repaired = Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not delete orphaned file " + file, e);
+                }
+            }
+            run.orphanedFiles.add(file.toString(), attributes.size(), repaired);
+        }
+    }
+
+    private boolean contentExists(String filePath) {
+        return packStore.owns(filePath) ? packStore.exists(filePath) : Files.exists(Paths.get(filePath));
+    }
+
+    private boolean isOld(LocalDateTime uploadDate, Run run) {
+        return uploadDate == null || uploadDate.isBefore(run.rowCutoff);
+    }
+
+    private static String normalize(String path) {
+        return Paths.get(path).normalize().toString();
+    }
+
+    private static String stem(String fileName) {
+        int lastDotIndex = fileName.lastIndexOf('.');
+        return (lastDotIndex == -1) ? fileName : fileName.substring(0, lastDotIndex);
+    }
+
+    // State of one run; the sets are filled before the parallel walk reads them
+    private class Run {
+
+        final boolean repair;
+        final LocalDateTime startedAt = LocalDateTime.now();
+        final LocalDateTime rowCutoff = startedAt.minus(minAge);
+        final Instant fileCutoff = Instant.now().minus(minAge);
+        final Throttle throttle = new Throttle(maxOpsPerSecond);
+
+        final Set<String> referencedPaths = new HashSet<>();
+        final Set<String> referencedStems = new HashSet<>();
+        final Set<String> blobHashes = new HashSet<>();
+        final Map<EntityType, Set<Long>> entityIds = new EnumMap<>(EntityType.class);
+
+        final Tally orphanedFiles = new Tally();
+        final Tally danglingRows = new Tally();
+        final Tally orphanedRows = new Tally();
+        final Tally missingBlobs = new Tally();
+
+        long rowsScanned;
+        long filesScanned;
+
+        Run(boolean repair) {
+            this.repair = repair;
+        }
+
+        synchronized void countFile() {
+            filesScanned++;
+        }
+    }
+
+    private class Tally {
+
+        private final List<String> samples = new ArrayList<>();
+        private long count;
+        private long bytes;
+        private long repaired;
+
+        synchronized void add(String sample, long size, boolean wasRepaired) {
+            count++;
+            bytes += size;
+            if (wasRepaired) {
+                repaired++;
+            }
+            if (samples.size() < sampleSize) {
+                samples.add(sample);
+            }
+        }
+
+        synchronized Finding finish() {
+            return new Finding(count, bytes, repaired, List.copyOf(samples));
+        }
+    }
+
+    /**
+     * Spaces file system operations evenly to at most the given rate across
+     * all walker threads; 0 disables the limit.
+     */
+    private static class Throttle {
+
+        private final long intervalNanos;
+        private long nextSlot;
+
+        Throttle(int opsPerSecond) {
+            this.intervalNanos = opsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / opsPerSecond : 0;
+        }
+
+        void acquire() {
+            if (intervalNanos == 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(nextSlot, now);
+                nextSlot = slot + intervalNanos;
+                wait = slot - now;
+            }
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while reconciling storage", e);
+                }
+            }
+        }
+    }
+}
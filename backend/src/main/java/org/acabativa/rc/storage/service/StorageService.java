@@ -4,16 +4,43 @@ import org.acabativa.rc.storage.dto.FileListDTO;
 import org.acabativa.rc.storage.entity.StoredFile;
 import org.acabativa.rc.storage.entity.StoredFile.FileType;
 import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.List;
 
 public interface StorageService {
     
+    // One file of a batch upload, with its already validated content type
+    record Upload(InputStreamSource content, String originalFilename, String contentType) {
+    }
+    
+    // Outcome of one file of a batch: the stored file, or why it was not stored
+    record StoreResult(String originalFilename, StoredFile file, String error) {
+        public boolean isStored() {
+            return file != null;
+        }
+    }
+    
     // New generic methods for any entity type
     StoredFile store(MultipartFile file, FileType fileType, Long entityId, EntityType entityType);
     
+    // Stores content read straight from a stream; the stream is not closed
+    StoredFile store(InputStream content, String originalFilename, String contentType,
+                     FileType fileType, Long entityId, EntityType entityType);
+    
+    // Moves a complete file that already sits on the storage volume into place
+    StoredFile storeFile(Path source, String originalFilename, String contentType,
+                         FileType fileType, Long entityId, EntityType entityType);
+    
+    // Writes the files concurrently and inserts all their rows in one batch;
+    // a file that cannot be written is reported without failing the others
+    List<StoreResult> storeAll(List<Upload> uploads, FileType fileType, Long entityId, EntityType entityType);
+    
     List<StoredFile> listByEntity(Long entityId, EntityType entityType);
     
     List<StoredFile> listByEntityAndType(Long entityId, EntityType entityType, FileType fileType);
@@ -95,10 +122,23 @@ public interface StorageService {
     // Common methods (unchanged)
     Resource loadAsResource(Long fileId);
     
+    // Resolves the content on disk for the streaming download path
+    Path load(StoredFile file);
+    
+    // Content kept in a pack segment, as a read-only buffer; null when the
+    // file has a path of its own and is read through load()
+    ByteBuffer loadPacked(StoredFile file);
+    
+    // The photo as it was uploaded, when optimization changed it and the
+    // original was kept; null otherwise
+    Path loadOriginal(StoredFile file);
+    
     StoredFile getFileInfo(Long fileId);
     
     void delete(Long fileId);
     
+    // Replaces the content; a file replaced or deleted by another request in the
+    // meantime is rejected with UploadRejectedException (CONFLICT)
     StoredFile update(Long fileId, MultipartFile file);
     
     void init();
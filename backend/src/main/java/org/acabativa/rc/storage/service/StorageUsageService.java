@@ -0,0 +1,214 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StorageUsage;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.repository.StorageUsageRepository;
+import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import jakarta.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the per-entity, per-type usage counters (see {@link StorageUsage})
+ * and enforces the storage quotas.
+ *
+ * The storage service calls {@link #reserve}, {@link #resize} and
+ * {@link #release} in the same transaction that inserts, updates or deletes
+ * the file row, so the counters move together with the rows. Reserving is a
+ * single conditional increment: it fails, and the upload is rejected, when the
+ * entity would go over {@code storage.quota.max-files} or
+ * {@code storage.quota.max-bytes} for that file type. Counters of an entity are
+ * created on its first upload, in a transaction of their own so that two
+ * concurrent first uploads cannot fail each other. Callers create them with
+ * {@link #prepare} before opening the transaction that reserves: created from
+ * inside it, each upload would hold a second connection, and a burst of first
+ * uploads larger than the connection pool would wait on itself.
+ *
+ * Counters are rebuilt from {@code stored_files} on startup when there are
+ * none yet, for files stored before they existed.
+ */
+@Service
+public class StorageUsageService {
+
+    private final Logger LOGGER = Logger.getLogger(StorageUsageService.class.getName());
+
+    public record Totals(long fileCount, long totalBytes) {
+    }
+
+    // Usage of one entity, with the limits that apply to each of its file types
+    public record EntityUsage(Long entityId, EntityType entityType, long fileCount, long totalBytes,
+                              Map<FileType, Totals> byFileType, long maxFiles, long maxBytes) {
+    }
+
+    // Usage of the whole storage
+    public record Summary(long fileCount, long totalBytes,
+                          Map<FileType, Totals> byFileType, Map<EntityType, Totals> byEntityType) {
+    }
+
+    private final StorageUsageRepository usageRepository;
+    private final StoredFileRepository fileRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate newTransactionTemplate;
+    private final long maxFiles;
+    private final long maxBytes;
+
+    public StorageUsageService(StorageUsageRepository usageRepository,
+                               StoredFileRepository fileRepository,
+                               PlatformTransactionManager transactionManager,
+                               @Value("${storage.quota.max-files:0}") long maxFiles,
+                               @Value("${storage.quota.max-bytes:0B}") DataSize maxBytes) {
+        this.usageRepository = usageRepository;
+        this.fileRepository = fileRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes.toBytes();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (usageRepository.count() > 0) {
+            return;
+        }
+        List<StorageUsage> counters = new ArrayList<>();
+        for (Object[] row : fileRepository.sumUsageByEntityAndFileType()) {
+            counters.add(new StorageUsage((Long) row[0], (EntityType) row[1], (FileType) row[2],
+                (Long) row[3], row[4] != null ? (Long) row[4] : 0L));
+        }
+        if (!counters.isEmpty()) {
+            transactionTemplate.executeWithoutResult(status -> usageRepository.saveAll(counters));
+            LOGGER.info("Built storage usage counters for " + counters.size() + " entities and file types");
+        }
+    }
+
+    /**
+     * Creates the counters a file of this type will be counted in, when the
+     * entity has none yet. Must run outside the transaction that reserves.
+     */
+    public void prepare(Long entityId, EntityType entityType, FileType fileType) {
+        if (!usageRepository.existsByEntityIdAndEntityTypeAndFileType(entityId, entityType, fileType)) {
+            createCounters(entityId, entityType, fileType);
+        }
+    }
+
+    /**
+     * Counts a new file against its entity. Must run in the transaction that
+     * saves the row.
+     *
+     * @throws UploadRejectedException when the entity's quota would be exceeded
+     */
+    public void reserve(StoredFile file) {
+        add(file, 1, file.getFileSize());
+    }
+
+    /**
+     * Accounts for new content of an existing file. Growing a file is checked
+     * against the quota, shrinking it never fails.
+     */
+    public void resize(StoredFile file, long previousSize) {
+        add(file, 0, file.getFileSize() - previousSize);
+    }
+
+    public void release(StoredFile file) {
+        usageRepository.add(file.getEntityId(), file.getEntityType(), file.getFileType(), -1, -file.getFileSize());
+    }
+
+    /**
+     * Early check for uploads whose size is known before their content, such
+     * as chunked upload sessions. Not a reservation: the file is checked
+     * again when it is stored.
+     */
+    public void checkQuota(Long entityId, EntityType entityType, FileType fileType, long size) {
+        Totals current = getUsage(entityId, entityType).byFileType()
+            .getOrDefault(fileType, new Totals(0, 0));
+        if (exceeds(current.fileCount() + 1, current.totalBytes() + size)) {
+            throw quotaExceeded(entityId, entityType, fileType);
+        }
+    }
+
+    public EntityUsage getUsage(Long entityId, EntityType entityType) {
+        Map<FileType, Totals> byFileType = new EnumMap<>(FileType.class);
+        long fileCount = 0;
+        long totalBytes = 0;
+        for (StorageUsage usage : usageRepository.findByEntityIdAndEntityTypeOrderByFileType(entityId, entityType)) {
+            byFileType.put(usage.getFileType(), new Totals(usage.getFileCount(), usage.getTotalBytes()));
+            fileCount += usage.getFileCount();
+            totalBytes += usage.getTotalBytes();
+        }
+        return new EntityUsage(entityId, entityType, fileCount, totalBytes, byFileType, maxFiles, maxBytes);
+    }
+
+    public Summary getSummary() {
+        Map<FileType, Totals> byFileType = new EnumMap<>(FileType.class);
+        Map<EntityType, Totals> byEntityType = new EnumMap<>(EntityType.class);
+        long fileCount = 0;
+        long totalBytes = 0;
+        for (Object[] row : usageRepository.sumByEntityTypeAndFileType()) {
+            Totals totals = new Totals((Long) row[2], (Long) row[3]);
+            byFileType.merge((FileType) row[1], totals, StorageUsageService::sum);
+            byEntityType.merge((EntityType) row[0], totals, StorageUsageService::sum);
+            fileCount += totals.fileCount();
+            totalBytes += totals.totalBytes();
+        }
+        return new Summary(fileCount, totalBytes, byFileType, byEntityType);
+    }
+
+    private void add(StoredFile file, long files, long bytes) {
+        Long entityId = file.getEntityId();
+        EntityType entityType = file.getEntityType();
+        FileType fileType = file.getFileType();
+        if (files <= 0 && bytes <= 0) {
+            usageRepository.add(entityId, entityType, fileType, files, bytes);
+            return;
+        }
+
+        int updated = usageRepository.addWithinQuota(entityId, entityType, fileType, files, bytes, maxFiles, maxBytes);
+        if (updated == 0 && !usageRepository.existsByEntityIdAndEntityTypeAndFileType(entityId, entityType, fileType)) {
+            createCounters(entityId, entityType, fileType);
+            updated = usageRepository.addWithinQuota(entityId, entityType, fileType, files, bytes, maxFiles, maxBytes);
+        }
+        if (updated == 0) {
+            throw quotaExceeded(entityId, entityType, fileType);
+        }
+    }
+
+    // Empty counters, committed on their own; losing the race to another
+    // upload of the same entity is fine
+    private void createCounters(Long entityId, EntityType entityType, FileType fileType) {
+        try {
+            newTransactionTemplate.executeWithoutResult(status ->
+                usageRepository.saveAndFlush(new StorageUsage(entityId, entityType, fileType, 0, 0)));
+        } catch (DataIntegrityViolationException e) {
+            // Created by a concurrent upload
+        }
+    }
+
+    private boolean exceeds(long fileCount, long totalBytes) {
+        return (maxFiles > 0 && fileCount > maxFiles) || (maxBytes > 0 && totalBytes > maxBytes);
+    }
+
+    private UploadRejectedException quotaExceeded(Long entityId, EntityType entityType, FileType fileType) {
+        return new UploadRejectedException(Reason.QUOTA_EXCEEDED,
+            "Storage quota exceeded for " + fileType + " files of " + entityType + " " + entityId);
+    }
+
+    private static Totals sum(Totals a, Totals b) {
+        return new Totals(a.fileCount() + b.fileCount(), a.totalBytes() + b.totalBytes());
+    }
+}
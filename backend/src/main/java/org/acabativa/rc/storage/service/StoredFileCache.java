@@ -0,0 +1,197 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * In-process LRU of {@link StoredFile} rows, by id and by entity listing, and
+ * of entity cover pointers, so serving photos and thumbnails does not query
+ * the database once warm.
+ *
+ * The bound is an estimate of retained bytes rather than an entry count,
+ * since listings and rows with long metadata differ widely in size. Every
+ * write path of the storage service evicts what it changed; the TTL only
+ * bounds staleness from writes made by other instances. A load that races
+ * with an eviction is not cached, so a stale row can never be put back.
+ *
+ * Cached rows are shared between requests and must be treated as read-only.
+ */
+@Component
+public class StoredFileCache {
+
+    // Rough per-object overhead of a row and of a cached listing
+    private static final long ROW_OVERHEAD = 256;
+    private static final long LIST_OVERHEAD = 64;
+
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long weight;
+    // Bumped by every eviction; a load started before it is not cached
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // fileType null stands for all files of the entity
+    private record ListKey(Long entityId, EntityType entityType, FileType fileType) {
+    }
+
+    private record CoverKey(Long entityId, EntityType entityType) {
+    }
+
+    private record Entry(Object value, long weight, long expiresAt) {
+    }
+
+    public StoredFileCache(@Value("${storage.cache.metadata.max-size:16MB}") DataSize maxSize,
+                           @Value("${storage.cache.metadata.ttl:10m}") Duration ttl) {
+        this.maxWeight = maxSize.toBytes();
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    public StoredFile getFile(Long id, Supplier<StoredFile> loader) {
+        Object cached = lookup(id);
+        if (cached != null) {
+            return (StoredFile) cached;
+        }
+        long loadGeneration = currentGeneration();
+        StoredFile file = loader.get();
+        put(id, file, weigh(file), loadGeneration);
+        return file;
+    }
+
+    public List<StoredFile> getList(Long entityId, EntityType entityType, FileType fileType,
+                                    Supplier<List<StoredFile>> loader) {
+        ListKey key = new ListKey(entityId, entityType, fileType);
+        @SuppressWarnings("unchecked")
+        List<StoredFile> cached = (List<StoredFile>) lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        long loadGeneration = currentGeneration();
+        List<StoredFile> files = List.copyOf(loader.get());
+        long listWeight = LIST_OVERHEAD + 8L * files.size();
+        for (StoredFile file : files) {
+            listWeight += weigh(file);
+            // A page of thumbnails fetches these rows next
+            put(file.getId(), file, weigh(file), loadGeneration);
+        }
+        put(key, files, listWeight, loadGeneration);
+        return files;
+    }
+
+    /**
+     * The cover photo id of an entity; an empty result is cached as well.
+     */
+    public Optional<Long> getCover(Long entityId, EntityType entityType, Supplier<Optional<Long>> loader) {
+        CoverKey key = new CoverKey(entityId, entityType);
+        @SuppressWarnings("unchecked")
+        Optional<Long> cached = (Optional<Long>) lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        long loadGeneration = currentGeneration();
+        Optional<Long> cover = loader.get();
+        put(key, cover, LIST_OVERHEAD, loadGeneration);
+        return cover;
+    }
+
+    public synchronized void evictFile(Long id) {
+        generation++;
+        remove(id);
+    }
+
+    // Drops every cached listing and the cover of the entity
+    public synchronized void evictEntity(Long entityId, EntityType entityType) {
+        generation++;
+        remove(new CoverKey(entityId, entityType));
+        remove(new ListKey(entityId, entityType, null));
+        for (FileType fileType : FileType.values()) {
+            remove(new ListKey(entityId, entityType, fileType));
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        long requests = hits + misses;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("estimatedBytes", weight);
+        stats.put("maxBytes", maxWeight);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("hitRate", requests == 0 ? 0.0 : (double) hits / requests);
+        return stats;
+    }
+
+    private synchronized Object lookup(Object key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt() > System.currentTimeMillis()) {
+            hits++;
+            return entry.value();
+        }
+        if (entry != null) {
+            remove(key);
+        }
+        misses++;
+        return null;
+    }
+
+    private synchronized long currentGeneration() {
+        return generation;
+    }
+
+    private synchronized void put(Object key, Object value, long entryWeight, long loadGeneration) {
+        if (loadGeneration != generation || entryWeight > maxWeight) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(value, entryWeight, System.currentTimeMillis() + ttlMillis));
+        weight += entryWeight;
+
+        Iterator<Map.Entry<Object, Entry>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= eldest.next().getValue().weight();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(Object key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight();
+        }
+    }
+
+    private static long weigh(StoredFile file) {
+        return ROW_OVERHEAD + 2L * (length(file.getFileName())
+            + length(file.getOriginalFileName())
+            + length(file.getFilePath())
+            + length(file.getContentType())
+            + length(file.getMetadata())
+            + length(file.getContentHash()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,147 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.util.FileSignature;
+import org.acabativa.rc.storage.util.MultipartStreamParser;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Stores the file part of a multipart request while the request is being
+ * read, instead of letting the servlet container spool it first.
+ *
+ * The content is written once, straight to its storage location, and size,
+ * hash and file type are all established in that single pass: the leading
+ * bytes are checked before anything touches the disk and the size limit is
+ * enforced as bytes arrive, so an oversized upload is cut off at the limit.
+ */
+@Service
+public class StreamingUploadService {
+
+    private final StorageService storageService;
+    private final long photoMaxSize;
+    private final long documentMaxSize;
+
+    public StreamingUploadService(StorageService storageService,
+                                  @Value("${storage.photo.max-size:5MB}") DataSize photoMaxSize,
+                                  @Value("${storage.document.max-size:10MB}") DataSize documentMaxSize) {
+        this.storageService = storageService;
+        this.photoMaxSize = photoMaxSize.toBytes();
+        this.documentMaxSize = documentMaxSize.toBytes();
+    }
+
+    /**
+     * Stores the first part of the body that carries a file name; other form
+     * fields are skipped.
+     */
+    public StoredFile upload(InputStream body, String requestContentType,
+                             FileType fileType, Long entityId, EntityType entityType) throws IOException {
+        String boundary = MultipartStreamParser.boundaryOf(requestContentType);
+        if (boundary == null) {
+            throw new UploadRejectedException(Reason.MALFORMED, "Expected a multipart/form-data body");
+        }
+
+        MultipartStreamParser parser = new MultipartStreamParser(body, boundary);
+        MultipartStreamParser.Part part;
+        while ((part = parser.nextPart()) != null) {
+            if (part.filename() != null && !part.filename().isBlank()) {
+                return store(part, fileType, entityId, entityType);
+            }
+        }
+        throw new UploadRejectedException(Reason.MALFORMED, "No file found in the request");
+    }
+
+    private StoredFile store(MultipartStreamParser.Part part, FileType fileType,
+                             Long entityId, EntityType entityType) throws IOException {
+        long maxSize = fileType == FileType.PHOTO ? photoMaxSize : documentMaxSize;
+        PushbackInputStream content = new PushbackInputStream(
+            new SizeLimitedInputStream(part.body(), maxSize), FileSignature.MAX_LENGTH);
+
+        // Peek at the magic bytes; they are pushed back and written with the rest
+        byte[] head = new byte[FileSignature.MAX_LENGTH];
+        int length = content.readNBytes(head, 0, head.length);
+        if (length == 0) {
+            throw new UploadRejectedException(Reason.MALFORMED, "Empty file " + part.filename());
+        }
+        content.unread(head, 0, length);
+
+        FileSignature signature = FileSignature.detect(head, length);
+        String contentType = resolveContentType(fileType, signature, part.contentType());
+        return storageService.store(content, part.filename(), contentType, fileType, entityId, entityType);
+    }
+
+    // Shared with chunked uploads, which check the assembled file the same way
+    static String resolveContentType(FileType fileType, FileSignature signature, String declared) {
+        switch (fileType) {
+            case PHOTO:
+                if (!signature.isImage()) {
+                    throw new UploadRejectedException(Reason.UNSUPPORTED_TYPE, "Only JPG and PNG photos are accepted");
+                }
+                return signature.getContentType();
+            case DOCUMENT:
+                boolean document = signature == FileSignature.PDF
+                    || signature == FileSignature.ZIP
+                    || signature == FileSignature.OLE2;
+                boolean text = signature == FileSignature.UNKNOWN && declared != null && declared.startsWith("text/");
+                if (!document && !text) {
+                    throw new UploadRejectedException(Reason.UNSUPPORTED_TYPE,
+                        "Only PDF, DOC, DOCX, TXT, XLS and XLSX documents are accepted");
+                }
+                break;
+            default:
+                break;
+        }
+        return declared != null && !declared.isBlank() ? declared : signature.getContentType();
+    }
+
+    /**
+     * Fails the read that would go past the limit, so the rest of an oversized
+     * body is never written.
+     */
+    private static final class SizeLimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private long count;
+
+        private SizeLimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                checkLimit(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                checkLimit(read);
+            }
+            return read;
+        }
+
+        private void checkLimit(int read) {
+            count += read;
+            if (count > limit) {
+                throw new UploadRejectedException(Reason.TOO_LARGE,
+                    "File exceeds the maximum size of " + DataSize.ofBytes(limit).toMegabytes() + "MB");
+            }
+        }
+    }
+}
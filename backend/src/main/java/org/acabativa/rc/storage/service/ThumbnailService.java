@@ -0,0 +1,256 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.util.ImageProcessor;
+import org.acabativa.rc.storage.util.StorageLayout;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds and serves downscaled JPEG variants of stored photos.
+ *
+ * Variants live under {@code <storage.location>/thumbnails/<size>/} and are
+ * generated in the background right after upload. A request for a variant that
+ * is not on disk yet is rendered on demand on the same bounded pool; callers
+ * get an empty result when the pool is saturated and should fall back to the
+ * original image.
+ */
+@Service
+public class ThumbnailService {
+
+    private static final String THUMBNAIL_FORMAT = "jpg";
+
+    private final Logger LOGGER = Logger.getLogger(ThumbnailService.class.getName());
+
+    private final Path thumbnailRoot;
+    private final StorageLayout layout;
+    private final List<Integer> sizes;
+    private final int defaultSize;
+    private final long onDemandTimeoutMillis;
+    private final TaskExecutor executor;
+    private final FileChannelCache channelCache;
+    private final ImageProcessor imageProcessor;
+    private final ConcurrentMap<Path, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    public ThumbnailService(@Value("${storage.location:/opt/claude/renovacampo/uploads}") String storageLocation,
+                            @Value("${storage.photo.thumbnail.sizes:150,300,600}") String sizes,
+                            @Value("${storage.photo.thumbnail.width:300}") int defaultSize,
+                            @Value("${storage.photo.thumbnail.timeout-ms:5000}") long onDemandTimeoutMillis,
+                            @Value("${storage.layout:flat}") StorageLayout layout,
+                            @Qualifier("thumbnailExecutor") TaskExecutor executor,
+                            FileChannelCache channelCache,
+                            ImageProcessor imageProcessor) {
+        this.thumbnailRoot = Paths.get(storageLocation).resolve("thumbnails");
+        this.layout = layout;
+        this.sizes = Arrays.stream(sizes.split(","))
+            .map(String::trim)
+            .filter(s -> !s.isEmpty())
+            .map(Integer::valueOf)
+            .sorted()
+            .toList();
+        this.defaultSize = defaultSize;
+        this.onDemandTimeoutMillis = onDemandTimeoutMillis;
+        this.executor = executor;
+        this.channelCache = channelCache;
+        this.imageProcessor = imageProcessor;
+    }
+
+    @PostConstruct
+    public void init() {
+        try {
+            for (int size : sizes) {
+                Files.createDirectories(thumbnailRoot.resolve(String.valueOf(size)));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not initialize thumbnail location", e);
+        }
+    }
+
+    /**
+     * Snaps a requested size to the smallest configured variant that is at
+     * least as large, or the largest variant when the request exceeds them all.
+     */
+    public int resolveSize(Integer requestedSize) {
+        int target = requestedSize != null ? requestedSize : defaultSize;
+        return sizes.stream()
+            .filter(size -> size >= target)
+            .findFirst()
+            .orElse(sizes.get(sizes.size() - 1));
+    }
+
+    /**
+     * Queues generation of every configured size for a freshly stored photo.
+     * The original is decoded once, subsampled for the largest size, and each
+     * smaller variant is scaled from that.
+     */
+    public void generateAsync(StoredFile file) {
+        if (file.getFileType() != FileType.PHOTO) {
+            return;
+        }
+        try {
+            executor.execute(() -> generateAll(file));
+        } catch (RejectedExecutionException e) {
+            // Pool is saturated; variants will be rendered on first request
+            LOGGER.fine("Thumbnail queue full, deferring file " + file.getId());
+        }
+    }
+
+    /**
+     * Returns the variant path for the given size, rendering it on demand when
+     * missing. Concurrent requests for the same variant share one render.
+     */
+    public Optional<Path> getThumbnail(StoredFile file, Integer requestedSize) {
+        int size = resolveSize(requestedSize);
+        Path target = thumbnailPath(file, size);
+        if (Files.exists(target)) {
+            return Optional.of(target);
+        }
+
+        CompletableFuture<Path> render = new CompletableFuture<>();
+        CompletableFuture<Path> future = inFlight.putIfAbsent(target, render);
+        if (future == null) {
+            future = render;
+            try {
+                executor.execute(() -> {
+                    try {
+                        render.complete(generate(file, size));
+                    } catch (Exception e) {
+                        render.completeExceptionally(e);
+                    } finally {
+                        inFlight.remove(target, render);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.remove(target, render);
+                render.completeExceptionally(e);
+                return Optional.empty();
+            }
+        }
+
+        try {
+            return Optional.of(future.get(onDemandTimeoutMillis, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            return Optional.empty();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Could not render thumbnail for file " + file.getId(), e.getCause());
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    public void deleteThumbnails(StoredFile file) {
+        for (int size : sizes) {
+            Path thumbnail = thumbnailPath(file, size);
+            channelCache.invalidate(thumbnail);
+            try {
+                Files.deleteIfExists(thumbnail);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not delete thumbnail for file " + file.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Moves thumbnails rendered under another layout to where this one looks
+     * for them, so a layout change does not force every thumbnail to be
+     * rendered again. Missing ones are simply skipped.
+     */
+    public void relocateThumbnails(StoredFile file) {
+        for (StorageLayout previous : StorageLayout.values()) {
+            if (previous == layout) {
+                continue;
+            }
+            for (int size : sizes) {
+                Path source = thumbnailPath(file, size, previous);
+                Path target = thumbnailPath(file, size);
+                try {
+                    if (Files.exists(source) && !Files.exists(target)) {
+                        Files.createDirectories(target.getParent());
+                        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not relocate thumbnail for file " + file.getId(), e);
+                }
+            }
+        }
+    }
+
+    Path thumbnailPath(StoredFile file, int size) {
+        return thumbnailPath(file, size, layout);
+    }
+
+    private Path thumbnailPath(StoredFile file, int size, StorageLayout layout) {
+        String name = file.getFileName();
+        int lastDotIndex = name.lastIndexOf('.');
+        String stem = (lastDotIndex == -1) ? name : name.substring(0, lastDotIndex);
+        return layout.resolve(thumbnailRoot.resolve(String.valueOf(size)), stem + "." + THUMBNAIL_FORMAT);
+    }
+
+    private void generateAll(StoredFile file) {
+        try {
+            List<Integer> largestFirst = sizes.stream().sorted(Comparator.reverseOrder()).toList();
+            // Largest first so each smaller variant is scaled from fewer pixels
+            BufferedImage source = readOriginal(file, largestFirst.get(0));
+            for (int size : largestFirst) {
+                source = imageProcessor.scaleToFit(source, size, size);
+                write(source, thumbnailPath(file, size));
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not generate thumbnails for file " + file.getId(), e);
+        }
+    }
+
+    private Path generate(StoredFile file, int size) throws IOException {
+        Path target = thumbnailPath(file, size);
+        if (Files.exists(target)) {
+            return target;
+        }
+        write(readOriginal(file, size), target);
+        return target;
+    }
+
+    private BufferedImage readOriginal(StoredFile file, int size) throws IOException {
+        return imageProcessor.readScaled(Paths.get(file.getFilePath()), size, size);
+    }
+
+    private void write(BufferedImage image, Path target) throws IOException {
+        // Write beside the target and rename so readers never see a partial file
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(target.getParent());
+            Files.write(temp, imageProcessor.toBytes(image, THUMBNAIL_FORMAT));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // A re-render replaces the name in place; drop any channel on the old file
+            channelCache.invalidate(target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.acabativa.rc.storage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Copies an upload to disk while computing its SHA-256 and size in the same
+ * pass, so callers never have to read the content back.
+ */
+public final class ContentWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ContentWriter() {
+    }
+
+    public record Result(String contentHash, long size) {
+    }
+
+    public static Result write(InputStream input, Path target) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+
+        try (OutputStream output = Files.newOutputStream(target,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+                size += read;
+            }
+        }
+
+        return new Result(HexFormat.of().formatHex(digest.digest()), size);
+    }
+
+    /**
+     * Hashes a file that is already on disk, e.g. one assembled from chunks
+     * that arrived out of order.
+     */
+    public static Result digest(Path source) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+
+        try (InputStream input = Files.newInputStream(source)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+        }
+
+        return new Result(HexFormat.of().formatHex(digest.digest()), size);
+    }
+
+    // Hash and size of content already held in memory
+    public static Result digest(byte[] content) {
+        return new Result(HexFormat.of().formatHex(sha256().digest(content)), content.length);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
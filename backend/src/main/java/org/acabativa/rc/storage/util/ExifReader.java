@@ -0,0 +1,266 @@
+package org.acabativa.rc.storage.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Reads the few EXIF tags the gallery needs from a JPEG: orientation,
+ * capture date and GPS position.
+ *
+ * Only the segments before the image data are read (the Exif block is at
+ * most 64 KB), so this costs one small read per photo, not a decode. Files
+ * that are not JPEG, or have no or malformed Exif, give an empty result.
+ */
+public final class ExifReader {
+
+    private static final int SOI = 0xD8;
+    private static final int SOS = 0xDA;
+    private static final int EOI = 0xD9;
+    private static final int APP1 = 0xE1;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+
+    private static final DateTimeFormatter EXIF_DATE = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+    public record Exif(Integer orientation, LocalDateTime capturedAt, Double latitude, Double longitude) {
+
+        static final Exif EMPTY = new Exif(null, null, null, null);
+    }
+
+    private ExifReader() {
+    }
+
+    public static Exif read(Path file) throws IOException {
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file), 8192)) {
+            return read(input);
+        }
+    }
+
+    // Reads from the start of the image; the stream is not closed
+    public static Exif read(InputStream input) throws IOException {
+        byte[] tiff = findExif(new DataInputStream(input));
+        if (tiff == null) {
+            return Exif.EMPTY;
+        }
+        try {
+            return parse(ByteBuffer.wrap(tiff));
+        } catch (RuntimeException e) {
+            // Offsets pointing outside the block and the like
+            return Exif.EMPTY;
+        }
+    }
+
+    // The TIFF structure inside the APP1 Exif segment, or null
+    private static byte[] findExif(DataInputStream input) throws IOException {
+        try {
+            if (input.readUnsignedByte() != 0xFF || input.readUnsignedByte() != SOI) {
+                return null;
+            }
+            while (true) {
+                int marker = input.readUnsignedByte();
+                if (marker != 0xFF) {
+                    return null;
+                }
+                while (marker == 0xFF) {
+                    marker = input.readUnsignedByte();
+                }
+                if (marker == SOS || marker == EOI) {
+                    return null;
+                }
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                    // Standalone markers carry no length
+                    continue;
+                }
+                int length = input.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker == APP1 && length > EXIF_HEADER.length) {
+                    byte[] segment = new byte[length];
+                    input.readFully(segment);
+                    if (startsWithExifHeader(segment)) {
+                        byte[] tiff = new byte[length - EXIF_HEADER.length];
+                        System.arraycopy(segment, EXIF_HEADER.length, tiff, 0, tiff.length);
+                        return tiff;
+                    }
+                } else {
+                    input.skipNBytes(length);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static boolean startsWithExifHeader(byte[] segment) {
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Exif parse(ByteBuffer tiff) {
+        if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (tiff.get(0) == 'M' && tiff.get(1) == 'M') {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return Exif.EMPTY;
+        }
+        if (tiff.getShort(2) != 42) {
+            return Exif.EMPTY;
+        }
+
+        Integer orientation = null;
+        String dateTime = null;
+        String dateTimeOriginal = null;
+        int exifIfd = -1;
+        int gpsIfd = -1;
+
+        int ifd0 = tiff.getInt(4);
+        for (int entry = ifd0 + 2, end = entry + 12 * count(tiff, ifd0); entry < end; entry += 12) {
+            switch (Short.toUnsignedInt(tiff.getShort(entry))) {
+                case TAG_ORIENTATION -> orientation = shortValue(tiff, entry);
+                case TAG_DATE_TIME -> dateTime = ascii(tiff, entry);
+                case TAG_EXIF_IFD -> exifIfd = tiff.getInt(entry + 8);
+                case TAG_GPS_IFD -> gpsIfd = tiff.getInt(entry + 8);
+                default -> {
+                }
+            }
+        }
+
+        if (exifIfd > 0) {
+            for (int entry = exifIfd + 2, end = entry + 12 * count(tiff, exifIfd); entry < end; entry += 12) {
+                if (Short.toUnsignedInt(tiff.getShort(entry)) == TAG_DATE_TIME_ORIGINAL) {
+                    dateTimeOriginal = ascii(tiff, entry);
+                }
+            }
+        }
+
+        Double latitude = null;
+        Double longitude = null;
+        if (gpsIfd > 0) {
+            String latitudeRef = null;
+            String longitudeRef = null;
+            for (int entry = gpsIfd + 2, end = entry + 12 * count(tiff, gpsIfd); entry < end; entry += 12) {
+                switch (Short.toUnsignedInt(tiff.getShort(entry))) {
+                    case TAG_GPS_LATITUDE_REF -> latitudeRef = ascii(tiff, entry);
+                    case TAG_GPS_LATITUDE -> latitude = degrees(tiff, entry);
+                    case TAG_GPS_LONGITUDE_REF -> longitudeRef = ascii(tiff, entry);
+                    case TAG_GPS_LONGITUDE -> longitude = degrees(tiff, entry);
+                    default -> {
+                    }
+                }
+            }
+            if (latitude != null && "S".equals(latitudeRef)) {
+                latitude = -latitude;
+            }
+            if (longitude != null && "W".equals(longitudeRef)) {
+                longitude = -longitude;
+            }
+            if (latitude == null || longitude == null) {
+                latitude = null;
+                longitude = null;
+            }
+        }
+
+        LocalDateTime capturedAt = date(dateTimeOriginal);
+        if (capturedAt == null) {
+            capturedAt = date(dateTime);
+        }
+        if (orientation != null && (orientation < 1 || orientation > 8)) {
+            orientation = null;
+        }
+        return new Exif(orientation, capturedAt, latitude, longitude);
+    }
+
+    private static int count(ByteBuffer tiff, int ifd) {
+        return Short.toUnsignedInt(tiff.getShort(ifd));
+    }
+
+    private static Integer shortValue(ByteBuffer tiff, int entry) {
+        int type = Short.toUnsignedInt(tiff.getShort(entry + 2));
+        if (type == TYPE_SHORT) {
+            return Short.toUnsignedInt(tiff.getShort(entry + 8));
+        }
+        if (type == TYPE_LONG) {
+            return tiff.getInt(entry + 8);
+        }
+        return null;
+    }
+
+    private static String ascii(ByteBuffer tiff, int entry) {
+        if (Short.toUnsignedInt(tiff.getShort(entry + 2)) != TYPE_ASCII) {
+            return null;
+        }
+        int length = tiff.getInt(entry + 4);
+        // Up to four bytes are stored in the entry itself
+        int offset = length <= 4 ? entry + 8 : tiff.getInt(entry + 8);
+        if (length < 0 || offset < 0 || offset + length > tiff.limit()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        tiff.get(offset, bytes);
+        String value = new String(bytes, StandardCharsets.US_ASCII);
+        int nul = value.indexOf('\0');
+        return (nul >= 0 ? value.substring(0, nul) : value).trim();
+    }
+
+    // Degrees, minutes and seconds as three rationals
+    private static Double degrees(ByteBuffer tiff, int entry) {
+        if (Short.toUnsignedInt(tiff.getShort(entry + 2)) != TYPE_RATIONAL || tiff.getInt(entry + 4) != 3) {
+            return null;
+        }
+        int offset = tiff.getInt(entry + 8);
+        double value = 0;
+        double unit = 1;
+        for (int i = 0; i < 3; i++, unit *= 60) {
+            long numerator = Integer.toUnsignedLong(tiff.getInt(offset + 8 * i));
+            long denominator = Integer.toUnsignedLong(tiff.getInt(offset + 8 * i + 4));
+            if (denominator == 0) {
+                return null;
+            }
+            value += (double) numerator / denominator / unit;
+        }
+        return value;
+    }
+
+    private static LocalDateTime date(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(value, EXIF_DATE);
+        } catch (DateTimeParseException e) {
+            // Cameras without a clock write "0000:00:00 00:00:00"
+            return null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.acabativa.rc.storage.util;
+
+/**
+ * File types recognised from their leading "magic" bytes, so an upload is
+ * judged by its content rather than by the name or type the client declared.
+ */
+public enum FileSignature {
+
+    JPEG("image/jpeg", 0xFF, 0xD8, 0xFF),
+    PNG("image/png", 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A),
+    PDF("application/pdf", '%', 'P', 'D', 'F', '-'),
+    // Container of DOCX/XLSX
+    ZIP("application/zip", 'P', 'K', 0x03, 0x04),
+    // Container of legacy DOC/XLS
+    OLE2("application/x-ole-storage", 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1),
+    UNKNOWN("application/octet-stream");
+
+    // Enough leading bytes to tell every signature above apart
+    public static final int MAX_LENGTH = 8;
+
+    private final String contentType;
+    private final int[] magic;
+
+    FileSignature(String contentType, int... magic) {
+        this.contentType = contentType;
+        this.magic = magic;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public boolean isImage() {
+        return this == JPEG || this == PNG;
+    }
+
+    public static FileSignature detect(byte[] head, int length) {
+        for (FileSignature signature : values()) {
+            if (signature.magic.length > 0 && signature.matches(head, length)) {
+                return signature;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private boolean matches(byte[] head, int length) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,47 +1,275 @@
 package org.acabativa.rc.storage.util;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
 
+/**
+ * Image decoding and scaling with bounded memory.
+ *
+ * Dimensions come from the image header alone. Downscaling decodes with
+ * source subsampling (and optionally only a region of the source), so a
+ * 24 MP photo turned into a 300px thumbnail is decoded at roughly twice the
+ * target size instead of at full resolution. Every decode first reserves its
+ * estimated raster size from a shared budget, so bulk processing queues up
+ * instead of piling full-size rasters onto the heap.
+ */
 public class ImageProcessor {
-    
+
     private static final int THUMBNAIL_WIDTH = 300;
     private static final int THUMBNAIL_HEIGHT = 300;
-    
+    // Decode at least this many times the target size; subsampling only drops
+    // pixels, the final bilinear pass does the smoothing
+    private static final int OVERSAMPLING = 2;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final long BUDGET_UNIT = 1024 * 1024;
+
+    private final Semaphore decodeBudget;
+    private final int budgetUnits;
+
+    public ImageProcessor() {
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * @param memoryBudget bytes of decoded rasters allowed at the same time
+     */
+    public ImageProcessor(long memoryBudget) {
+        this.budgetUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / BUDGET_UNIT));
+        this.decodeBudget = new Semaphore(budgetUnits, true);
+    }
+
     public byte[] generateThumbnail(byte[] originalImage, String format) throws IOException {
-        BufferedImage original = ImageIO.read(new ByteArrayInputStream(originalImage));
-        
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(originalImage))) {
+            return toBytes(decodeScaled(input, null, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT), format);
+        }
+    }
+
+    public BufferedImage read(InputStream input) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+            return decodeScaled(stream, null, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Decodes the image scaled to fit within the given box, never enlarged.
+     */
+    public BufferedImage readScaled(Path file, int maxWidth, int maxHeight) throws IOException {
+        return readScaled(file, null, maxWidth, maxHeight);
+    }
+
+    /**
+     * Decodes only {@code region} of the image (the whole image when null),
+     * scaled to fit within the given box.
+     */
+    public BufferedImage readScaled(Path file, Rectangle region, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file.toFile())) {
+            if (input == null) {
+                throw new IOException("Could not open image " + file);
+            }
+            return decodeScaled(input, region, maxWidth, maxHeight);
+        }
+    }
+
+    public Dimension readDimensions(Path file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file.toFile())) {
+            if (input == null) {
+                throw new IOException("Could not open image " + file);
+            }
+            return dimensions(input);
+        }
+    }
+
+    public BufferedImage scaleToFit(BufferedImage original, int maxWidth, int maxHeight) {
         // Calculate dimensions maintaining aspect ratio
         int originalWidth = original.getWidth();
         int originalHeight = original.getHeight();
-        
-        double widthRatio = (double) THUMBNAIL_WIDTH / originalWidth;
-        double heightRatio = (double) THUMBNAIL_HEIGHT / originalHeight;
-        double ratio = Math.min(widthRatio, heightRatio);
-        
-        int newWidth = (int) (originalWidth * ratio);
-        int newHeight = (int) (originalHeight * ratio);
-        
-        // Create thumbnail
+
+        double widthRatio = (double) maxWidth / originalWidth;
+        double heightRatio = (double) maxHeight / originalHeight;
+        double ratio = Math.min(1.0, Math.min(widthRatio, heightRatio));
+
+        // Rounded, so a side that should match the box is not a pixel short
+        int newWidth = Math.max(1, (int) Math.round(originalWidth * ratio));
+        int newHeight = Math.max(1, (int) Math.round(originalHeight * ratio));
+
+        // Create thumbnail on a white background so PNG transparency does not turn black
         BufferedImage thumbnail = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
         Graphics2D g2d = thumbnail.createGraphics();
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, newWidth, newHeight);
         g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         g2d.drawImage(original, 0, 0, newWidth, newHeight, null);
         g2d.dispose();
-        
+
+        return thumbnail;
+    }
+
+    public byte[] toBytes(BufferedImage image, String format) throws IOException {
         // Convert to byte array
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(thumbnail, format, baos);
-        
+        ImageIO.write(image, format, baos);
+
         return baos.toByteArray();
     }
-    
+
+    /**
+     * Encodes as JPEG with the given quality, from 0 (smallest) to 1 (best).
+     */
+    public byte[] toJpeg(BufferedImage image, float quality) throws IOException {
+        return toJpeg(image, quality, false);
+    }
+
+    /**
+     * Encodes as JPEG; progressive files are usually a little smaller and
+     * show a rough preview while they load.
+     */
+    public byte[] toJpeg(BufferedImage image, float quality, boolean progressive) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(baos)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            if (progressive) {
+                param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            }
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Turns the pixels the way the EXIF orientation (1 to 8) says they are
+     * meant to be displayed, so the result needs no orientation tag.
+     */
+    public BufferedImage applyOrientation(BufferedImage image, int orientation) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // Maps stored coordinates to displayed ones
+        AffineTransform transform = switch (orientation) {
+            case 2 -> new AffineTransform(-1, 0, 0, 1, width, 0);
+            case 3 -> new AffineTransform(-1, 0, 0, -1, width, height);
+            case 4 -> new AffineTransform(1, 0, 0, -1, 0, height);
+            case 5 -> new AffineTransform(0, 1, 1, 0, 0, 0);
+            case 6 -> new AffineTransform(0, 1, -1, 0, height, 0);
+            case 7 -> new AffineTransform(0, -1, -1, 0, height, width);
+            case 8 -> new AffineTransform(0, -1, 1, 0, 0, width);
+            default -> null;
+        };
+        if (transform == null) {
+            return image;
+        }
+
+        boolean swapped = orientation >= 5;
+        BufferedImage oriented = new BufferedImage(swapped ? height : width, swapped ? width : height,
+            BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = oriented.createGraphics();
+        g2d.drawImage(image, transform, null);
+        g2d.dispose();
+        return oriented;
+    }
+
     public Dimension getImageDimensions(byte[] imageData) throws IOException {
-        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
-        return new Dimension(image.getWidth(), image.getHeight());
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            return dimensions(input);
+        }
+    }
+
+    // Permits still free in the decode budget, in MB
+    public int availableBudget() {
+        return decodeBudget.availablePermits();
+    }
+
+    private Dimension dimensions(ImageInputStream input) throws IOException {
+        ImageReader reader = readerFor(input);
+        try {
+            return new Dimension(reader.getWidth(0), reader.getHeight(0));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private BufferedImage decodeScaled(ImageInputStream input, Rectangle region,
+                                       int maxWidth, int maxHeight) throws IOException {
+        ImageReader reader = readerFor(input);
+        try {
+            Rectangle source = new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0));
+            if (region != null) {
+                source = source.intersection(region);
+                if (source.isEmpty()) {
+                    throw new IOException("Region outside the image");
+                }
+            }
+
+            int subsampling = subsampling(source, maxWidth, maxHeight);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(source);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+            long decodedPixels = (long) ceilDiv(source.width, subsampling) * ceilDiv(source.height, subsampling);
+            int permits = (int) Math.min(budgetUnits,
+                Math.max(1, (decodedPixels * BYTES_PER_PIXEL + BUDGET_UNIT - 1) / BUDGET_UNIT));
+            try {
+                decodeBudget.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to decode an image");
+            }
+            try {
+                BufferedImage decoded = reader.read(0, param);
+                // Only the scaled copy leaves the budgeted section
+                return scaleToFit(decoded, maxWidth, maxHeight);
+            } finally {
+                decodeBudget.release(permits);
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static ImageReader readerFor(ImageInputStream input) throws IOException {
+        if (input == null) {
+            throw new IOException("Unsupported image format");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        ImageReader reader = readers.next();
+        // Forward-only and without metadata: the header is enough for the size
+        reader.setInput(input, true, true);
+        return reader;
+    }
+
+    private static int subsampling(Rectangle source, int maxWidth, int maxHeight) {
+        long targetWidth = (long) maxWidth * OVERSAMPLING;
+        long targetHeight = (long) maxHeight * OVERSAMPLING;
+        long factor = Math.min(source.width / targetWidth, source.height / targetHeight);
+        return (int) Math.max(1, factor);
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
     }
-}
\ No newline at end of file
+}
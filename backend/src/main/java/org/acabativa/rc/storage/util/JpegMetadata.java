@@ -0,0 +1,83 @@
+package org.acabativa.rc.storage.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Removes metadata segments from a JPEG without touching the image data.
+ *
+ * Exif (with its thumbnail and maker notes), XMP, comments and the other
+ * application segments are dropped. JFIF (APP0), ICC color profiles (APP2)
+ * and the Adobe color transform (APP14) are kept, since they change how the
+ * pixels are decoded.
+ */
+public final class JpegMetadata {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP0 = 0xE0;
+    private static final int APP2 = 0xE2;
+    private static final int APP14 = 0xEE;
+    private static final int APP15 = 0xEF;
+    private static final int COM = 0xFE;
+
+    private JpegMetadata() {
+    }
+
+    /**
+     * The JPEG without its metadata segments, or null when the content is not
+     * a JPEG that can be walked segment by segment.
+     */
+    public static byte[] strip(byte[] jpeg) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != SOI) {
+            return null;
+        }
+        ByteArrayOutputStream stripped = new ByteArrayOutputStream(jpeg.length);
+        stripped.write(jpeg, 0, 2);
+
+        int position = 2;
+        while (position + 1 < jpeg.length) {
+            if ((jpeg[position] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int start = position;
+            while (position < jpeg.length && (jpeg[position] & 0xFF) == 0xFF) {
+                position++;
+            }
+            if (position >= jpeg.length) {
+                return null;
+            }
+            int marker = jpeg[position++] & 0xFF;
+            if (marker == SOS || marker == EOI) {
+                // Entropy-coded data follows; the rest goes out as it is
+                stripped.write(jpeg, start, jpeg.length - start);
+                return stripped.toByteArray();
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Standalone markers carry no length
+                stripped.write(jpeg, start, position - start);
+                continue;
+            }
+            if (position + 2 > jpeg.length) {
+                return null;
+            }
+            int length = ((jpeg[position] & 0xFF) << 8) | (jpeg[position + 1] & 0xFF);
+            int end = position + length;
+            if (length < 2 || end > jpeg.length) {
+                return null;
+            }
+            if (!isMetadata(marker)) {
+                stripped.write(jpeg, start, end - start);
+            }
+            position = end;
+        }
+        return null;
+    }
+
+    private static boolean isMetadata(int marker) {
+        if (marker == COM) {
+            return true;
+        }
+        return marker > APP0 && marker <= APP15 && marker != APP2 && marker != APP14;
+    }
+}
@@ -0,0 +1,269 @@
+package org.acabativa.rc.storage.util;
+
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incremental multipart/form-data reader.
+ *
+ * Parts are exposed one at a time as streams over a single fixed buffer, so a
+ * file part can be copied straight to its destination while the request is
+ * still arriving; nothing is spooled to memory or to a temporary file. Moving
+ * to the next part skips whatever is left of the current one.
+ */
+public final class MultipartStreamParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+    private static final byte[] CRLF_CRLF = {'\r', '\n', '\r', '\n'};
+
+    private final InputStream input;
+    private final byte[] delimiter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int head;
+    private int tail;
+    // No delimiter starts in [head, scanned)
+    private int scanned;
+    private boolean eof;
+    private boolean finished;
+    private PartInputStream current;
+
+    public record Part(String name, String filename, String contentType, InputStream body) {
+    }
+
+    public MultipartStreamParser(InputStream input, String boundary) {
+        this.input = input;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        // Pretend the body starts with CRLF so the first boundary reads like every other delimiter
+        buffer[tail++] = '\r';
+        buffer[tail++] = '\n';
+        // The preamble before the first boundary is skipped like a part body
+        this.current = new PartInputStream();
+    }
+
+    /**
+     * Returns the boundary of a multipart/form-data content type, or null when
+     * the request is not a usable multipart body.
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        try {
+            MediaType mediaType = MediaType.parseMediaType(contentType);
+            if (!MediaType.MULTIPART_FORM_DATA.includes(mediaType)) {
+                return null;
+            }
+            String boundary = mediaType.getParameter("boundary");
+            if (boundary != null && boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+                return null;
+            }
+            return boundary;
+        } catch (InvalidMediaTypeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Advances to the next part, or returns null after the closing boundary.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        current.skipRemaining();
+
+        // After a delimiter, "--" closes the body and CRLF opens another part
+        if (!ensure(2)) {
+            throw malformed("Unexpected end of multipart body");
+        }
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        while (ensure(1) && (buffer[head] == ' ' || buffer[head] == '\t')) {
+            head++;
+        }
+        if (!ensure(2) || buffer[head] != '\r' || buffer[head + 1] != '\n') {
+            throw malformed("Malformed multipart boundary");
+        }
+        head += 2;
+
+        Map<String, String> headers = readHeaders();
+        String name = null;
+        String filename = null;
+        String disposition = headers.get("content-disposition");
+        if (disposition != null) {
+            try {
+                ContentDisposition parsed = ContentDisposition.parse(disposition);
+                name = parsed.getName();
+                filename = parsed.getFilename();
+            } catch (IllegalArgumentException e) {
+                throw malformed("Malformed Content-Disposition in multipart body");
+            }
+        }
+
+        current = new PartInputStream();
+        return new Part(name, filename, headers.get("content-type"), current);
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (!ensure(2)) {
+            throw malformed("Unexpected end of multipart headers");
+        }
+        if (buffer[head] == '\r' && buffer[head + 1] == '\n') {
+            // Part without headers
+            head += 2;
+            return headers;
+        }
+
+        int end;
+        while ((end = indexOf(CRLF_CRLF, head, tail)) < 0) {
+            if (tail - head >= MAX_HEADER_SIZE) {
+                throw malformed("Multipart headers too large");
+            }
+            if (eof) {
+                throw malformed("Unexpected end of multipart headers");
+            }
+            fill();
+        }
+        // The same limit whether the headers arrived in one read or in many
+        if (end - head > MAX_HEADER_SIZE) {
+            throw malformed("Multipart headers too large");
+        }
+        String block = new String(buffer, head, end - head, StandardCharsets.UTF_8);
+        head = end + CRLF_CRLF.length;
+        for (String line : block.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Number of body bytes at the head of the buffer that belong to the
+     * current part, or -1 when the delimiter starts right at the head.
+     */
+    private int bodyBytesAvailable() throws IOException {
+        while (true) {
+            int found = indexOf(delimiter, Math.max(head, scanned), tail);
+            if (found >= 0) {
+                scanned = found;
+                return found == head ? -1 : found - head;
+            }
+            // The last bytes may be the start of a delimiter split across reads
+            scanned = Math.max(head, tail - delimiter.length + 1);
+            if (scanned > head) {
+                return scanned - head;
+            }
+            if (eof) {
+                throw malformed("Unexpected end of multipart body");
+            }
+            fill();
+        }
+    }
+
+    private boolean ensure(int count) throws IOException {
+        while (tail - head < count && !eof) {
+            fill();
+        }
+        return tail - head >= count;
+    }
+
+    private void fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            scanned = Math.max(0, scanned - head);
+            head = 0;
+        }
+        int read = input.read(buffer, tail, buffer.length - tail);
+        if (read < 0) {
+            eof = true;
+        } else {
+            tail += read;
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        int last = to - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buffer[i] != pattern[0]) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static UploadRejectedException malformed(String message) {
+        return new UploadRejectedException(Reason.MALFORMED, message);
+    }
+
+    private final class PartInputStream extends InputStream {
+
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+            int available = bodyBytesAvailable();
+            if (available < 0) {
+                finish();
+                return -1;
+            }
+            int count = Math.min(length, available);
+            System.arraycopy(buffer, head, target, offset, count);
+            head += count;
+            return count;
+        }
+
+        void skipRemaining() throws IOException {
+            while (!done) {
+                int available = bodyBytesAvailable();
+                if (available < 0) {
+                    finish();
+                } else {
+                    head += available;
+                }
+            }
+        }
+
+        private void finish() {
+            head += delimiter.length;
+            done = true;
+        }
+    }
+}
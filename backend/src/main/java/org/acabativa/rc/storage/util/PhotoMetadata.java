@@ -0,0 +1,50 @@
+package org.acabativa.rc.storage.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * What is known about a photo without decoding it, kept as JSON in
+ * {@code StoredFile.metadata}. Width and height are those of the stored
+ * pixels; {@link #displayWidth()} and {@link #displayHeight()} apply the EXIF
+ * orientation the way browsers do.
+ *
+ * @param capturedAt local date and time from the camera, ISO-8601, or null
+ */
+public record PhotoMetadata(int width, int height, Integer orientation, String capturedAt,
+                            Double latitude, Double longitude) {
+
+    private static final Gson GSON = new Gson();
+
+    public int displayWidth() {
+        return isRotated() ? height : width;
+    }
+
+    public int displayHeight() {
+        return isRotated() ? width : height;
+    }
+
+    public String toJson() {
+        return GSON.toJson(this);
+    }
+
+    /**
+     * Reads back the stored JSON; null when there is none or it is not ours.
+     */
+    public static PhotoMetadata parse(String json) {
+        if (json == null || json.isBlank()) {
+            return null;
+        }
+        try {
+            PhotoMetadata metadata = GSON.fromJson(json, PhotoMetadata.class);
+            return metadata != null && metadata.width() > 0 && metadata.height() > 0 ? metadata : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    // Orientations 5 to 8 turn the image by 90 degrees
+    private boolean isRotated() {
+        return orientation != null && orientation >= 5;
+    }
+}
@@ -0,0 +1,34 @@
+package org.acabativa.rc.storage.util;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+/**
+ * Where a file goes inside its directory (photos, documents, others and the
+ * thumbnail folders), selected with {@code storage.layout}.
+ */
+public enum StorageLayout {
+
+    // <directory>/<name>: the original layout
+    FLAT {
+        @Override
+        public Path resolve(Path directory, String fileName) {
+            return directory.resolve(fileName);
+        }
+    },
+
+    // <directory>/ab/cd/<name>, from a hash of the name: 65536 buckets keep
+    // each directory small even with millions of files
+    SHARDED {
+        @Override
+        public Path resolve(Path directory, String fileName) {
+            CRC32 crc = new CRC32();
+            crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+            String hash = String.format("%08x", crc.getValue());
+            return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(fileName);
+        }
+    };
+
+    public abstract Path resolve(Path directory, String fileName);
+}
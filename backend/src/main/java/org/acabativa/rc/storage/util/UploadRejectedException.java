@@ -0,0 +1,35 @@
+package org.acabativa.rc.storage.util;
+
+/**
+ * Thrown as soon as it is known that an upload cannot be accepted, usually
+ * while its body is still being read. The reason carries the HTTP status.
+ */
+public class UploadRejectedException extends RuntimeException {
+
+    public enum Reason {
+        TOO_LARGE(413), UNSUPPORTED_TYPE(415), MALFORMED(400), NOT_FOUND(404), CONFLICT(409),
+        QUOTA_EXCEEDED(507);
+
+        // HTTP status the controllers answer with
+        private final int status;
+
+        Reason(int status) {
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    private final Reason reason;
+
+    public UploadRejectedException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,121 @@
+package org.acabativa.rc.patrimonio.repository;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.entity.Property;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * The enterprise list and view pages read each enterprise's property and
+ * project, and each investment's investor. These checks count the SQL
+ * statements needed to load all of that, which must not grow with the
+ * number of rows.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+class EnterpriseRepositoryQueryCountTests {
+
+    private static final int ENTERPRISES = 20;
+    private static final int INVESTORS = 10;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private EnterpriseRepository enterpriseRepository;
+
+    @Autowired
+    private EnterpriseInvestorRepository enterpriseInvestorRepository;
+
+    private Long firstEnterpriseId;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < ENTERPRISES; i++) {
+            Property property = new Property();
+            property.setName("Fazenda " + i);
+            entityManager.persist(property);
+
+            Project project = new Project();
+            project.setName("Projeto " + i);
+            entityManager.persist(project);
+
+            Enterprise enterprise = new Enterprise("Empreendimento " + i, null, property.getId(), project.getId());
+            entityManager.persist(enterprise);
+            if (firstEnterpriseId == null) {
+                firstEnterpriseId = enterprise.getId();
+            }
+        }
+        for (int i = 0; i < INVESTORS; i++) {
+            Investor investor = new Investor();
+            investor.setName("Investidor " + i);
+            investor.setTaxId("tax-" + i);
+            investor.setEmail("investidor" + i + "@example.com");
+            entityManager.persist(investor);
+            entityManager.persist(new EnterpriseInvestor(firstEnterpriseId, investor.getId(), BigDecimal.TEN));
+        }
+        entityManager.flush();
+        entityManager.clear();
+        statistics().clear();
+    }
+
+    @Test
+    void listLoadsPropertiesAndProjectsInOneQuery() {
+        List<Enterprise> enterprises = enterpriseRepository.findAllByOrderByCreateDateDesc();
+
+        assertEquals(ENTERPRISES, enterprises.size());
+        for (Enterprise enterprise : enterprises) {
+            assertNotNull(enterprise.getProperty().getName());
+            assertNotNull(enterprise.getProject().getName());
+        }
+        assertEquals(1, statistics().getPrepareStatementCount());
+    }
+
+    @Test
+    void activeListLoadsPropertiesAndProjectsInOneQuery() {
+        List<Enterprise> enterprises = enterpriseRepository.findByActiveTrueOrderByCreateDateDesc();
+
+        assertEquals(ENTERPRISES, enterprises.size());
+        for (Enterprise enterprise : enterprises) {
+            assertNotNull(enterprise.getProperty().getName());
+            assertNotNull(enterprise.getProject().getName());
+        }
+        assertEquals(1, statistics().getPrepareStatementCount());
+    }
+
+    @Test
+    void viewLoadsEnterpriseAndInvestorsInTwoQueries() {
+        Enterprise enterprise = enterpriseRepository.findWithPropertyAndProjectByIdAndActiveTrue(firstEnterpriseId)
+            .orElseThrow();
+        assertNotNull(enterprise.getProperty().getName());
+        assertNotNull(enterprise.getProject().getName());
+
+        List<EnterpriseInvestor> investments = enterpriseInvestorRepository.findWithInvestorByEnterpriseId(firstEnterpriseId);
+        assertEquals(INVESTORS, investments.size());
+        for (EnterpriseInvestor investment : investments) {
+            assertNotNull(investment.getInvestor().getName());
+        }
+        assertEquals(2, statistics().getPrepareStatementCount());
+    }
+
+    private Statistics statistics() {
+        return entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+}
@@ -0,0 +1,125 @@
+package org.acabativa.rc.patrimonio.repository;
+
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.repository.KeysetPage.Cursor;
+import org.acabativa.rc.patrimonio.repository.KeysetPage.Request;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Walking a list page by page through the encoded cursors visits every row
+ * once, in the order of the sort, when many rows share a key or have none.
+ */
+@DataJpaTest
+class KeysetPageTests {
+
+    private static final String[] CITIES = {"Campinas", "Bauru", null, "Campinas", "Avaré", null, "Bauru"};
+    private static final BigDecimal[] FUNDS = {new BigDecimal("100.00"), null, new BigDecimal("50.50"), new BigDecimal("100.00")};
+
+    @Autowired
+    private InvestorRepository investorRepository;
+
+    private List<Investor> investors;
+
+    @BeforeEach
+    void setUp() {
+        investors = new ArrayList<>();
+        for (int i = 0; i < 23; i++) {
+            Investor investor = new Investor();
+            investor.setName("Investidor " + i);
+            investor.setTaxId("tax-" + i);
+            investor.setEmail("investidor" + i + "@example.com");
+            investor.setCity(CITIES[i % CITIES.length]);
+            investor.setTotalFunds(FUNDS[i % FUNDS.length]);
+            investor.setActive(i % 5 != 0);
+            investors.add(investorRepository.save(investor));
+        }
+    }
+
+    @Test
+    void pagesFollowTiesAndNullsInBothDirections() {
+        for (boolean descending : new boolean[] {false, true}) {
+            for (int size : new int[] {1, 3, 4, 23, 50}) {
+                assertEquals(expected(Investor::getCity, descending, investors),
+                    walk("city", descending, size, null), "city, descending " + descending + ", size " + size);
+                assertEquals(expected(Investor::getTotalFunds, descending, investors),
+                    walk("totalFunds", descending, size, null), "totalFunds, descending " + descending + ", size " + size);
+            }
+        }
+    }
+
+    @Test
+    void unpagedRequestReadsEveryRowInOrder() {
+        for (boolean descending : new boolean[] {false, true}) {
+            KeysetPage<Investor> all = KeysetPage.fetch(investorRepository, null,
+                new Request("city", descending, Request.ALL, null));
+            assertEquals(expected(Investor::getCity, descending, investors),
+                all.content().stream().map(Investor::getId).toList());
+            assertNull(all.next());
+        }
+    }
+
+    @Test
+    void filterAppliesOnEveryPage() {
+        Specification<Investor> active = (root, query, cb) -> cb.isTrue(root.get("active"));
+        List<Investor> activeInvestors = investors.stream().filter(Investor::getActive).toList();
+
+        for (boolean descending : new boolean[] {false, true}) {
+            assertEquals(expected(Investor::getCity, descending, activeInvestors),
+                walk("city", descending, 4, active));
+        }
+    }
+
+    @Test
+    void cursorRoundTripAndInvalidCursors() {
+        Cursor cursor = new Cursor("city", true, 42L, "São José, SP");
+        assertEquals(cursor, Cursor.decode(cursor.encode()));
+        Cursor nullKey = new Cursor("city", false, 7L, null);
+        assertEquals(nullKey, Cursor.decode(nullKey.encode()));
+
+        assertThrows(IllegalArgumentException.class, () -> Cursor.decode("not base64!"));
+        assertThrows(IllegalArgumentException.class, () -> Cursor.decode(
+            Base64.getUrlEncoder().encodeToString("city,sideways,1".getBytes())));
+        // Reported as a bad request, not as a data access failure
+        Cursor wrongType = new Cursor("totalFunds", false, 1L, "Campinas");
+        assertThrows(IllegalArgumentException.class,
+            () -> KeysetPage.fetch(investorRepository, null, new Request("totalFunds", false, 5, wrongType)));
+    }
+
+    // Ids in the order a client sees them, reading every page through the encoded cursor
+    private List<Long> walk(String sortKey, boolean descending, int size, Specification<Investor> filter) {
+        List<Long> ids = new ArrayList<>();
+        Cursor after = null;
+        do {
+            KeysetPage<Investor> page = KeysetPage.fetch(investorRepository, filter,
+                new Request(sortKey, descending, size, after));
+            page.content().forEach(investor -> ids.add(investor.getId()));
+            after = page.next() != null ? Cursor.decode(page.next().encode()) : null;
+        } while (after != null && ids.size() <= investors.size());
+        return ids;
+    }
+
+    // Nulls last, then the key, then the id, the key and id both in the requested direction
+    private static <K extends Comparable<K>> List<Long> expected(Function<Investor, K> key, boolean descending,
+                                                                 List<Investor> rows) {
+        Comparator<Investor> byKey = Comparator.comparing(key, Comparator.nullsLast(descending
+            ? Comparator.<K>reverseOrder() : Comparator.<K>naturalOrder()));
+        Comparator<Investor> byId = descending
+            ? Comparator.comparing(Investor::getId).reversed() : Comparator.comparing(Investor::getId);
+        return rows.stream().sorted(byKey.thenComparing(byId)).map(Investor::getId).toList();
+    }
+}
@@ -0,0 +1,172 @@
+package org.acabativa.rc.patrimonio.service;
+
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.Enterprise.EnterpriseStatus;
+import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
+import org.acabativa.rc.patrimonio.entity.InvestmentEvent;
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.entity.Property;
+import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
+import org.acabativa.rc.patrimonio.repository.InvestorRepository;
+import org.acabativa.rc.patrimonio.repository.ProjectRepository;
+import org.acabativa.rc.patrimonio.repository.PropertyDAO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Many investors at once try to invest in one enterprise that only has room
+ * for some of them, each request sent twice with the same idempotency key.
+ * The enterprise must end up exactly fully funded, with one investment per
+ * accepted request, and agree with the investment ledger. Larger runs with
+ * {@code -Dallocation.stress.requests=} and {@code -Dallocation.stress.threads=}.
+ */
+@DataJpaTest
+@Import(InvestmentAllocator.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class InvestmentAllocatorStressTests {
+
+    private static final int REQUESTS = Integer.getInteger("allocation.stress.requests", 400);
+    private static final int THREADS = Integer.getInteger("allocation.stress.threads", 16);
+    private static final BigDecimal AMOUNT = new BigDecimal("1000.00");
+    // Room for a quarter of the requests
+    private static final BigDecimal REQUIRED = AMOUNT.multiply(BigDecimal.valueOf(REQUESTS / 4));
+
+    @Autowired
+    private InvestmentAllocator allocator;
+
+    @Autowired
+    private EnterpriseRepository enterpriseRepository;
+
+    @Autowired
+    private EnterpriseInvestorRepository enterpriseInvestorRepository;
+
+    @Autowired
+    private InvestorRepository investorRepository;
+
+    @Autowired
+    private InvestmentEventRepository eventRepository;
+
+    @Autowired
+    private PropertyDAO propertyDao;
+
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    private Long enterpriseId;
+    private final List<Long> investorIds = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Property property = new Property();
+        property.setName("Fazenda");
+        property = propertyDao.save(property);
+        Project project = new Project();
+        project.setName("Projeto");
+        project = projectRepository.save(project);
+
+        Enterprise enterprise = new Enterprise("Empreendimento", null, property.getId(), project.getId());
+        enterprise.setStatus(EnterpriseStatus.ACTIVE);
+        enterprise.setTotalInvestmentRequired(REQUIRED);
+        enterpriseId = enterpriseRepository.save(enterprise).getId();
+
+        List<Investor> investors = new ArrayList<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            Investor investor = new Investor();
+            investor.setName("Investidor " + i);
+            investor.setTaxId("tax-" + i);
+            investor.setEmail("investidor" + i + "@example.com");
+            investors.add(investor);
+        }
+        for (Investor investor : investorRepository.saveAll(investors)) {
+            investorIds.add(investor.getId());
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventRepository.deleteAll();
+        enterpriseInvestorRepository.deleteAll();
+        enterpriseRepository.deleteAll();
+        investorRepository.deleteAll();
+        projectRepository.deleteAll();
+        propertyDao.deleteAll();
+    }
+
+    @Test
+    void concurrentInvestmentsNeverOversubscribe() throws Exception {
+        Set<Long> placed = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            // Each request twice, the copies racing each other
+            for (int copy = 0; copy < 2; copy++) {
+                for (int i = 0; i < REQUESTS; i++) {
+                    Long investorId = investorIds.get(i);
+                    String key = "request-" + i;
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        try {
+                            placed.add(allocator.allocate(enterpriseId, investorId, AMOUNT, key).getId());
+                        } catch (IllegalArgumentException e) {
+                            // No room left
+                        }
+                        return null;
+                    }));
+                }
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Enterprise enterprise = enterpriseRepository.findById(enterpriseId).orElseThrow();
+        List<EnterpriseInvestor> investments = enterpriseInvestorRepository.findByEnterpriseId(enterpriseId);
+        BigDecimal invested = investments.stream()
+            .map(EnterpriseInvestor::getInvestmentAmount)
+            .reduce(BigDecimal.ZERO, BigDecimal::add);
+
+        assertEquals(0, REQUIRED.compareTo(enterprise.getTotalInvestmentRaised()));
+        assertEquals(0, REQUIRED.compareTo(invested));
+        assertEquals(REQUESTS / 4, investments.size());
+        assertEquals(EnterpriseStatus.COMPLETED, enterprise.getStatus());
+
+        // Both copies of an accepted request got the same investment back
+        Set<Long> ids = new HashSet<>();
+        investments.forEach(investment -> ids.add(investment.getId()));
+        assertEquals(ids, placed);
+
+        // One entry per investment, and each investor's funds invested match it
+        List<InvestmentEvent> ledger = eventRepository.findByEnterpriseIdOrderByIdAsc(enterpriseId);
+        assertEquals(investments.size(), ledger.size());
+        for (EnterpriseInvestor investment : investments) {
+            Investor investor = investorRepository.findById(investment.getInvestorId()).orElseThrow();
+            assertEquals(0, AMOUNT.compareTo(investor.getInvestedFunds()));
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.acabativa.rc.patrimonio.service;
+
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.Enterprise.EnterpriseStatus;
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.entity.Property;
+import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
+import org.acabativa.rc.patrimonio.repository.InvestorRepository;
+import org.acabativa.rc.patrimonio.repository.ProjectRepository;
+import org.acabativa.rc.patrimonio.repository.PropertyDAO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Status changes and errors of placing, adjusting and withdrawing
+ * investments.
+ */
+@DataJpaTest
+@Import(InvestmentAllocator.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class InvestmentAllocatorTests {
+
+    private static final BigDecimal REQUIRED = new BigDecimal("1000.00");
+
+    @Autowired
+    private InvestmentAllocator allocator;
+
+    @Autowired
+    private EnterpriseRepository enterpriseRepository;
+
+    @Autowired
+    private EnterpriseInvestorRepository enterpriseInvestorRepository;
+
+    @Autowired
+    private InvestorRepository investorRepository;
+
+    @Autowired
+    private InvestmentEventRepository eventRepository;
+
+    @Autowired
+    private PropertyDAO propertyDao;
+
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    private Long enterpriseId;
+    private Long firstInvestorId;
+    private Long secondInvestorId;
+
+    @BeforeEach
+    void setUp() {
+        Property property = new Property();
+        property.setName("Fazenda");
+        property = propertyDao.save(property);
+        Project project = new Project();
+        project.setName("Projeto");
+        project = projectRepository.save(project);
+
+        Enterprise enterprise = new Enterprise("Empreendimento", null, property.getId(), project.getId());
+        enterprise.setStatus(EnterpriseStatus.ACTIVE);
+        enterprise.setTotalInvestmentRequired(REQUIRED);
+        enterpriseId = enterpriseRepository.save(enterprise).getId();
+
+        firstInvestorId = saveInvestor(1);
+        secondInvestorId = saveInvestor(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventRepository.deleteAll();
+        enterpriseInvestorRepository.deleteAll();
+        enterpriseRepository.deleteAll();
+        investorRepository.deleteAll();
+        projectRepository.deleteAll();
+        propertyDao.deleteAll();
+    }
+
+    @Test
+    void withdrawalReopensEnterpriseCompletedByFunding() {
+        allocator.allocate(enterpriseId, firstInvestorId, new BigDecimal("600"), null);
+        allocator.allocate(enterpriseId, secondInvestorId, new BigDecimal("400"), null);
+        assertEquals(EnterpriseStatus.COMPLETED, enterprise().getStatus());
+
+        allocator.release(enterpriseId, secondInvestorId);
+        assertEquals(EnterpriseStatus.ACTIVE, enterprise().getStatus());
+        assertEquals(0, new BigDecimal("600").compareTo(enterprise().getTotalInvestmentRaised()));
+
+        // The freed capacity can be taken again, completing it once more
+        allocator.allocate(enterpriseId, secondInvestorId, new BigDecimal("400"), null);
+        assertEquals(EnterpriseStatus.COMPLETED, enterprise().getStatus());
+    }
+
+    @Test
+    void decreaseReopensEnterpriseCompletedByFunding() {
+        allocator.allocate(enterpriseId, firstInvestorId, REQUIRED, null);
+        allocator.adjust(enterpriseId, firstInvestorId, new BigDecimal("900"));
+        assertEquals(EnterpriseStatus.ACTIVE, enterprise().getStatus());
+    }
+
+    @Test
+    void withdrawalKeepsEnterpriseCompletedByHand() {
+        allocator.allocate(enterpriseId, firstInvestorId, new BigDecimal("600"), null);
+        allocator.allocate(enterpriseId, secondInvestorId, new BigDecimal("100"), null);
+        Enterprise enterprise = enterprise();
+        enterprise.setStatus(EnterpriseStatus.COMPLETED);
+        enterpriseRepository.save(enterprise);
+
+        allocator.release(enterpriseId, secondInvestorId);
+        assertEquals(EnterpriseStatus.COMPLETED, enterprise().getStatus());
+    }
+
+    @Test
+    void increaseOnInactiveEnterpriseIsReportedAsSuch() {
+        allocator.allocate(enterpriseId, firstInvestorId, new BigDecimal("100"), null);
+        Enterprise enterprise = enterprise();
+        enterprise.setActive(false);
+        enterpriseRepository.save(enterprise);
+
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+            () -> allocator.adjust(enterpriseId, firstInvestorId, new BigDecimal("200")));
+        assertEquals("Enterprise is not active", error.getMessage());
+
+        // Decreases still give the capacity back
+        allocator.adjust(enterpriseId, firstInvestorId, new BigDecimal("50"));
+        assertEquals(0, new BigDecimal("50").compareTo(enterprise().getTotalInvestmentRaised()));
+    }
+
+    @Test
+    void releasingAllClosesEnterpriseToNewInvestments() {
+        allocator.allocate(enterpriseId, firstInvestorId, new BigDecimal("300"), null);
+        allocator.allocate(enterpriseId, secondInvestorId, new BigDecimal("200"), null);
+
+        allocator.releaseAll(enterpriseId);
+        assertFalse(enterprise().getActive());
+        assertEquals(0, enterprise().getTotalInvestmentRaised().signum());
+        assertTrue(enterpriseInvestorRepository.findByEnterpriseId(enterpriseId).isEmpty());
+
+        // Nothing can be placed between the removal and the delete
+        assertThrows(IllegalArgumentException.class,
+            () -> allocator.allocate(enterpriseId, firstInvestorId, new BigDecimal("100"), null));
+        assertTrue(enterpriseInvestorRepository.findByEnterpriseId(enterpriseId).isEmpty());
+        enterpriseRepository.deleteById(enterpriseId);
+    }
+
+    private Enterprise enterprise() {
+        return enterpriseRepository.findById(enterpriseId).orElseThrow();
+    }
+
+    private Long saveInvestor(int i) {
+        Investor investor = new Investor();
+        investor.setName("Investidor " + i);
+        investor.setTaxId("tax-" + i);
+        investor.setEmail("investidor" + i + "@example.com");
+        return investorRepository.save(investor).getId();
+    }
+}
@@ -0,0 +1,257 @@
+package org.acabativa.rc.patrimonio.service;
+
+import org.acabativa.rc.patrimonio.entity.Enterprise;
+import org.acabativa.rc.patrimonio.entity.Enterprise.EnterpriseStatus;
+import org.acabativa.rc.patrimonio.entity.EnterpriseInvestor;
+import org.acabativa.rc.patrimonio.entity.Investor;
+import org.acabativa.rc.patrimonio.entity.Project;
+import org.acabativa.rc.patrimonio.entity.Property;
+import org.acabativa.rc.patrimonio.repository.EnterpriseInvestorRepository;
+import org.acabativa.rc.patrimonio.repository.EnterpriseRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentEventRepository;
+import org.acabativa.rc.patrimonio.repository.InvestmentLedgerMigrationRepository;
+import org.acabativa.rc.patrimonio.repository.InvestorRepository;
+import org.acabativa.rc.patrimonio.repository.ProjectRepository;
+import org.acabativa.rc.patrimonio.repository.PropertyDAO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Rebuilding the investment projections from the ledger, on demand and after
+ * recording the investments made before it existed.
+ */
+// Started by the tests only, not when the context is ready
+@DataJpaTest(properties = {
+    "investment.ledger.backfill.enabled=false",
+    "investment.ledger.backfill.batch-size=1"
+})
+@Import({InvestmentAllocator.class, InvestmentLedgerReplay.class, InvestmentLedgerBackfill.class,
+    DashboardStatisticsService.class})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class InvestmentLedgerReplayTests {
+
+    private static final BigDecimal REQUIRED = new BigDecimal("1000.00");
+
+    @Autowired
+    private InvestmentAllocator allocator;
+
+    @Autowired
+    private InvestmentLedgerReplay replay;
+
+    @Autowired
+    private InvestmentLedgerBackfill backfill;
+
+    @Autowired
+    private InvestmentLedgerMigrationRepository migrationRepository;
+
+    @Autowired
+    private EnterpriseRepository enterpriseRepository;
+
+    @Autowired
+    private EnterpriseInvestorRepository enterpriseInvestorRepository;
+
+    @Autowired
+    private InvestorRepository investorRepository;
+
+    @Autowired
+    private InvestmentEventRepository eventRepository;
+
+    @Autowired
+    private PropertyDAO propertyDao;
+
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Long propertyId;
+    private Long projectId;
+    private Long enterpriseId;
+    private Long firstInvestorId;
+    private Long secondInvestorId;
+
+    @BeforeEach
+    void setUp() {
+        Property property = new Property();
+        property.setName("Fazenda");
+        property = propertyDao.save(property);
+        Project project = new Project();
+        project.setName("Projeto");
+        project = projectRepository.save(project);
+
+        propertyId = property.getId();
+        projectId = project.getId();
+        enterpriseId = saveEnterprise("Empreendimento");
+
+        firstInvestorId = saveInvestor(1, null);
+        secondInvestorId = saveInvestor(2, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        migrationRepository.deleteAll();
+        eventRepository.deleteAll();
+        enterpriseInvestorRepository.deleteAll();
+        enterpriseRepository.deleteAll();
+        investorRepository.deleteAll();
+        projectRepository.deleteAll();
+        propertyDao.deleteAll();
+    }
+
+    @Test
+    void replayRebuildsCorruptedProjections() {
+        // Refused while earlier investments may be missing from the ledger
+        assertThrows(IllegalStateException.class, () -> replay.run());
+        assertTrue(backfill.run());
+
+        allocator.allocate(enterpriseId, firstInvestorId, new BigDecimal("300"), null);
+        allocator.allocate(enterpriseId, secondInvestorId, new BigDecimal("200"), null);
+        allocator.adjust(enterpriseId, firstInvestorId, new BigDecimal("500"));
+        allocator.release(enterpriseId, secondInvestorId);
+
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            enterpriseRepository.setInvestmentRaised(enterpriseId, new BigDecimal("900"));
+            investorRepository.setInvestedFunds(firstInvestorId, new BigDecimal("50"));
+            investorRepository.setInvestedFunds(secondInvestorId, new BigDecimal("200"));
+        });
+        enterpriseInvestorRepository.deleteAll();
+
+        InvestmentLedgerReplay.Report report = replay.run();
+        assertEquals(1, report.enterprises());
+        assertEquals(1, report.enterprisesCorrected());
+        assertEquals(1, report.investmentsCorrected());
+        assertEquals(2, report.investors());
+        assertEquals(2, report.investorsCorrected());
+        assertSame(report, replay.getLastReport());
+
+        assertAmount("500", enterpriseRepository.findById(enterpriseId).orElseThrow().getTotalInvestmentRaised());
+        assertAmount("500", investorRepository.findById(firstInvestorId).orElseThrow().getInvestedFunds());
+        assertAmount("0", investorRepository.findById(secondInvestorId).orElseThrow().getInvestedFunds());
+        assertAmount("500", enterpriseInvestorRepository.findByEnterpriseIdAndInvestorId(enterpriseId, firstInvestorId)
+            .orElseThrow().getInvestmentAmount());
+        assertTrue(enterpriseInvestorRepository.findByEnterpriseIdAndInvestorId(enterpriseId, secondInvestorId).isEmpty());
+
+        // Nothing left to correct
+        report = replay.run();
+        assertEquals(0, report.enterprisesCorrected() + report.investmentsCorrected() + report.investorsCorrected());
+    }
+
+    @Test
+    void backfillOpensPositionsTheLedgerDoesNotExplain() {
+        Long thirdInvestorId = saveInvestor(3, new BigDecimal("700"));
+        Long otherEnterpriseId = saveEnterprise("Outro");
+        // Before the ledger: investments and totals entered by hand
+        enterpriseInvestorRepository.save(new EnterpriseInvestor(enterpriseId, firstInvestorId, new BigDecimal("300")));
+        enterpriseInvestorRepository.save(new EnterpriseInvestor(enterpriseId, secondInvestorId, new BigDecimal("200")));
+        enterpriseInvestorRepository.save(new EnterpriseInvestor(otherEnterpriseId, firstInvestorId, new BigDecimal("50")));
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            enterpriseRepository.setInvestmentRaised(enterpriseId, new BigDecimal("500"));
+            enterpriseRepository.setInvestmentRaised(otherEnterpriseId, new BigDecimal("50"));
+            investorRepository.setInvestedFunds(firstInvestorId, new BigDecimal("999"));
+        });
+
+        // After the ledger went live, before the backfill
+        allocator.adjust(enterpriseId, firstInvestorId, new BigDecimal("400"));
+        allocator.release(enterpriseId, secondInvestorId);
+        allocator.allocate(enterpriseId, thirdInvestorId, new BigDecimal("100"), null);
+        allocator.releaseAll(otherEnterpriseId);
+        enterpriseRepository.deleteById(otherEnterpriseId);
+
+        assertTrue(backfill.run());
+
+        // 300, 200 and 50 placed before the ledger
+        assertEquals(4 + 3, eventRepository.count());
+        assertAmount("500", enterpriseRepository.findById(enterpriseId).orElseThrow().getTotalInvestmentRaised());
+        assertAmount("400", investorRepository.findById(firstInvestorId).orElseThrow().getInvestedFunds());
+        assertAmount("0", investorRepository.findById(secondInvestorId).orElseThrow().getInvestedFunds());
+        assertAmount("100", investorRepository.findById(thirdInvestorId).orElseThrow().getInvestedFunds());
+        InvestmentLedgerReplay.Report report = replay.getLastReport();
+        assertEquals(0, report.enterprisesCorrected());
+        assertEquals(0, report.investmentsCorrected());
+        assertEquals(3, report.investorsCorrected());
+
+        // Done once
+        assertFalse(backfill.run());
+        assertEquals(7, eventRepository.count());
+    }
+
+    @Test
+    void concurrentBackfillsRecordEachInvestmentOnce() throws Exception {
+        List<Long> enterpriseIds = new ArrayList<>(List.of(enterpriseId));
+        for (int i = 0; i < 5; i++) {
+            enterpriseIds.add(saveEnterprise("Empreendimento " + i));
+        }
+        for (Long id : enterpriseIds) {
+            enterpriseInvestorRepository.save(new EnterpriseInvestor(id, firstInvestorId, new BigDecimal("100")));
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        int finished = 0;
+        try {
+            List<Future<Boolean>> runs = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                runs.add(executor.submit(() -> {
+                    start.await();
+                    return backfill.run();
+                }));
+            }
+            start.countDown();
+            for (Future<Boolean> run : runs) {
+                finished += run.get() ? 1 : 0;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, finished);
+        assertEquals(enterpriseIds.size(), eventRepository.count());
+        assertAmount("600", investorRepository.findById(firstInvestorId).orElseThrow().getInvestedFunds());
+        for (Long id : enterpriseIds) {
+            assertAmount("100", enterpriseRepository.findById(id).orElseThrow().getTotalInvestmentRaised());
+        }
+    }
+
+    private static void assertAmount(String expected, BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual), "expected " + expected + " but was " + actual);
+    }
+
+    private Long saveEnterprise(String name) {
+        Enterprise enterprise = new Enterprise(name, null, propertyId, projectId);
+        enterprise.setStatus(EnterpriseStatus.ACTIVE);
+        enterprise.setTotalInvestmentRequired(REQUIRED);
+        return enterpriseRepository.save(enterprise).getId();
+    }
+
+    private Long saveInvestor(int i, BigDecimal investedFunds) {
+        Investor investor = new Investor();
+        investor.setName("Investidor " + i);
+        investor.setTaxId("tax-" + i);
+        investor.setEmail("investidor" + i + "@example.com");
+        investor.setInvestedFunds(investedFunds);
+        return investorRepository.save(investor).getId();
+    }
+}
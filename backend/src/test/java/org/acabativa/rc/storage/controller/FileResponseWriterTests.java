@@ -0,0 +1,201 @@
+package org.acabativa.rc.storage.controller;
+
+import org.acabativa.rc.storage.controller.FileResponseWriter.Download;
+import org.acabativa.rc.storage.service.FileChannelCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Validators, conditional requests and byte ranges of file downloads.
+ */
+class FileResponseWriterTests {
+
+    private static final int SIZE = 1000;
+    private static final String ETAG = "\"v1\"";
+    // Whole seconds, as HTTP dates carry no milliseconds
+    private static final long LAST_MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path tempDir;
+
+    private FileChannelCache channelCache;
+    private FileResponseWriter writer;
+    private byte[] content;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        channelCache = new FileChannelCache(4);
+        // Above any test body, so responses are always written by the JVM
+        writer = new FileResponseWriter(channelCache, Long.MAX_VALUE);
+        content = new byte[SIZE];
+        new Random(3).nextBytes(content);
+        file = Files.write(tempDir.resolve("documento.pdf"), content);
+    }
+
+    @AfterEach
+    void tearDown() {
+        channelCache.closeAll();
+    }
+
+    @Test
+    void fullBodyCarriesValidators() throws IOException {
+        MockHttpServletResponse response = write(fileDownload(), get());
+
+        assertEquals(200, response.getStatus());
+        assertEquals(ETAG, response.getHeader(HttpHeaders.ETAG));
+        assertEquals(LAST_MODIFIED, response.getDateHeader(HttpHeaders.LAST_MODIFIED));
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertEquals(SIZE, response.getContentLengthLong());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void matchingIfNoneMatchIsNotModified() throws IOException {
+        MockHttpServletRequest request = get();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, ETAG);
+        MockHttpServletResponse response = write(fileDownload(), request);
+
+        assertEquals(304, response.getStatus());
+        assertEquals(ETAG, response.getHeader(HttpHeaders.ETAG));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void staleIfNoneMatchGetsFullBody() throws IOException {
+        MockHttpServletRequest request = get();
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v0\"");
+        MockHttpServletResponse response = write(fileDownload(), request);
+
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void singleRangeIsPartialContent() throws IOException {
+        MockHttpServletRequest request = get();
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        MockHttpServletResponse response = write(fileDownload(), request);
+
+        assertPartial(response, 100, 199);
+    }
+
+    @Test
+    void suffixAndOpenRangesAreClampedToTheFile() throws IOException {
+        MockHttpServletRequest suffix = get();
+        suffix.addHeader(HttpHeaders.RANGE, "bytes=-10");
+        assertPartial(write(fileDownload(), suffix), SIZE - 10, SIZE - 1);
+
+        MockHttpServletRequest open = get();
+        open.addHeader(HttpHeaders.RANGE, "bytes=990-5000");
+        assertPartial(write(fileDownload(), open), 990, SIZE - 1);
+    }
+
+    @Test
+    void rangeOfInMemoryContent() throws IOException {
+        Download download = new Download(null, ByteBuffer.wrap(content), MediaType.APPLICATION_PDF, "v1",
+            LAST_MODIFIED, CacheControl.noCache(), null, null);
+        MockHttpServletRequest request = get();
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-0");
+        assertPartial(write(download, request), 0, 0);
+
+        // The shared buffer is left untouched for the next response
+        assertArrayEquals(content, write(download, get()).getContentAsByteArray());
+    }
+
+    @Test
+    void ifRangeWithCurrentValidatorKeepsTheRange() throws IOException {
+        MockHttpServletRequest byEtag = get();
+        byEtag.addHeader(HttpHeaders.RANGE, "bytes=500-");
+        byEtag.addHeader(HttpHeaders.IF_RANGE, ETAG);
+        assertPartial(write(fileDownload(), byEtag), 500, SIZE - 1);
+
+        MockHttpServletRequest byDate = get();
+        byDate.addHeader(HttpHeaders.RANGE, "bytes=500-");
+        byDate.addHeader(HttpHeaders.IF_RANGE, httpDate(LAST_MODIFIED));
+        assertPartial(write(fileDownload(), byDate), 500, SIZE - 1);
+    }
+
+    @Test
+    void ifRangeWithStaleOrWeakValidatorGetsFullBody() throws IOException {
+        for (String validator : new String[] {"\"v0\"", "W/\"v1\"", httpDate(LAST_MODIFIED - 60_000)}) {
+            MockHttpServletRequest request = get();
+            request.addHeader(HttpHeaders.RANGE, "bytes=500-");
+            request.addHeader(HttpHeaders.IF_RANGE, validator);
+            MockHttpServletResponse response = write(fileDownload(), request);
+
+            assertEquals(200, response.getStatus(), validator);
+            assertNull(response.getHeader(HttpHeaders.CONTENT_RANGE));
+            assertArrayEquals(content, response.getContentAsByteArray());
+        }
+    }
+
+    @Test
+    void rangeBeyondTheEndIsNotSatisfiable() throws IOException {
+        MockHttpServletRequest request = get();
+        request.addHeader(HttpHeaders.RANGE, "bytes=" + SIZE + "-");
+        MockHttpServletResponse response = write(fileDownload(), request);
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */" + SIZE, response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void multipleOrMalformedRangesGetFullBody() throws IOException {
+        for (String range : new String[] {"bytes=0-9,20-29", "bytes=abc", "items=0-9"}) {
+            MockHttpServletRequest request = get();
+            request.addHeader(HttpHeaders.RANGE, range);
+            MockHttpServletResponse response = write(fileDownload(), request);
+
+            assertEquals(200, response.getStatus(), range);
+            assertArrayEquals(content, response.getContentAsByteArray());
+        }
+    }
+
+    private Download fileDownload() {
+        return new Download(file, MediaType.APPLICATION_PDF, "v1", LAST_MODIFIED, CacheControl.noCache(), null);
+    }
+
+    private static MockHttpServletRequest get() {
+        return new MockHttpServletRequest("GET", "/api/v1/files/1");
+    }
+
+    private static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    private MockHttpServletResponse write(Download download, MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        writer.write(download, request, response);
+        return response;
+    }
+
+    private void assertPartial(MockHttpServletResponse response, int start, int end) {
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes " + start + "-" + end + "/" + SIZE, response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(end - start + 1, response.getContentLengthLong());
+        assertArrayEquals(Arrays.copyOfRange(content, start, end + 1), response.getContentAsByteArray());
+    }
+}
@@ -0,0 +1,127 @@
+package org.acabativa.rc.storage.controller;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.UrlResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Throughput of the download body paths over a loopback socket.
+ *
+ * "stream copy" is what ResponseEntity&lt;UrlResource&gt; did before: an
+ * InputStream copied through a heap buffer. "transferTo" is the fallback of
+ * {@link FileResponseWriter} on connectors without sendfile, and "sendfile"
+ * is the FileChannel-to-socket transfer Tomcat performs for large bodies.
+ *
+ * Run with {@code mvn test -Dtest=FileStreamingBenchmarkTests -Dstorage.benchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "storage.benchmark", matches = "true")
+class FileStreamingBenchmarkTests {
+
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 200;
+
+    @TempDir
+    Path tempDir;
+
+    private Path file;
+    private ServerSocketChannel server;
+    private SocketChannel sender;
+    private SocketChannel receiver;
+    private ExecutorService drainer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        file = Files.write(tempDir.resolve("blob.bin"), content);
+
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sender = SocketChannel.open(server.getLocalAddress());
+        receiver = server.accept();
+        drainer = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        drainer.shutdownNow();
+        sender.close();
+        receiver.close();
+        server.close();
+    }
+
+    @Test
+    void compareDownloadPaths() throws Exception {
+        OutputStream socketOut = Channels.newOutputStream(sender);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            run("stream copy", () -> {
+                try (InputStream input = new UrlResource(file.toUri()).getInputStream()) {
+                    StreamUtils.copy(input, socketOut);
+                }
+            });
+            run("transferTo", () -> FileResponseWriter.transfer(channel, 0, FILE_SIZE, Channels.newChannel(socketOut)));
+            run("sendfile", () -> FileResponseWriter.transfer(channel, 0, FILE_SIZE, sender));
+        }
+    }
+
+    private void run(String name, Body body) throws Exception {
+        measure(body, WARMUP);
+        double seconds = measure(body, ITERATIONS);
+        double megabytes = (double) FILE_SIZE * ITERATIONS / (1024 * 1024);
+        System.out.printf("%-12s %8.1f MB/s%n", name, megabytes / seconds);
+    }
+
+    private double measure(Body body, int iterations) throws Exception {
+        long expected = (long) FILE_SIZE * iterations;
+        Future<Long> drained = drainer.submit(() -> drain(expected));
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            body.send();
+        }
+        assertEquals(expected, drained.get());
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private long drain(long expected) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        long total = 0;
+        while (total < expected) {
+            buffer.clear();
+            int read = receiver.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    @FunctionalInterface
+    private interface Body {
+        void send() throws IOException;
+    }
+}
@@ -0,0 +1,199 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.patrimonio.PatrimonioApplication;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.entity.UploadSession;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Chunks arriving out of order, twice or at the same time, and sessions
+ * completed more than once.
+ */
+@SpringBootTest(classes = PatrimonioApplication.class, properties = {
+    "spring.datasource.url=jdbc:h2:mem:uploads;DB_CLOSE_DELAY=-1",
+    "storage.upload.chunk-size=1KB",
+    "storage.dedup.enabled=false",
+    "storage.pack.enabled=false",
+    "storage.compression.enabled=false",
+    "storage.layout.migration.enabled=false"
+})
+class ChunkedUploadServiceTests {
+
+    private static final int CHUNK = 1024;
+    // Three chunks, the last one short
+    private static final int SIZE = 2 * CHUNK + 300;
+
+    @TempDir
+    static Path storageLocation;
+
+    @DynamicPropertySource
+    static void storageProperties(DynamicPropertyRegistry registry) {
+        registry.add("storage.location", () -> storageLocation.toString());
+    }
+
+    @Autowired
+    private ChunkedUploadService uploadService;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Test
+    void outOfOrderAndRepeatedChunksAssembleTheFile() throws IOException {
+        byte[] content = pdf(SIZE, 1);
+        UploadSession session = create(200L);
+        String sessionId = session.getId();
+
+        write(session, content, 2);
+        write(session, content, 0);
+        // A retried chunk overwrites itself and is counted once
+        UploadSession progress = write(session, content, 0);
+        assertEquals(CHUNK + 300, progress.getReceivedBytes().intValue());
+        assertFalse(progress.isComplete());
+
+        UploadRejectedException early = assertThrows(UploadRejectedException.class,
+            () -> uploadService.complete(sessionId));
+        assertEquals(Reason.CONFLICT, early.getReason());
+
+        write(session, content, 1);
+        StoredFile stored = uploadService.complete(sessionId);
+        assertEquals(SIZE, stored.getFileSize().intValue());
+        assertArrayEquals(content, read(stored));
+
+        // Completing again returns the same file and stores nothing new
+        assertEquals(stored.getId(), uploadService.complete(sessionId).getId());
+        assertEquals(1, storageService.listByEntity(200L, EntityType.ENTERPRISE).size());
+
+        UploadRejectedException late = assertThrows(UploadRejectedException.class,
+            () -> uploadService.writeChunk(sessionId, 0, new ByteArrayInputStream(new byte[CHUNK])));
+        assertEquals(Reason.CONFLICT, late.getReason());
+    }
+
+    @Test
+    void concurrentChunksAndCompletesStoreOneFile() throws Exception {
+        byte[] content = pdf(8 * CHUNK, 2);
+        UploadSession session = create(201L, (long) content.length);
+
+        List<Future<Object>> chunks = runTogether(8, i -> write(session, content, 7 - i));
+        for (Future<Object> chunk : chunks) {
+            chunk.get();
+        }
+        assertTrue(uploadService.getSession(session.getId()).isComplete());
+
+        List<Future<Object>> completes = runTogether(4, i -> uploadService.complete(session.getId()));
+        Long storedId = null;
+        for (Future<Object> complete : completes) {
+            Long id = ((StoredFile) complete.get()).getId();
+            if (storedId != null) {
+                assertEquals(storedId, id);
+            }
+            storedId = id;
+        }
+        assertEquals(1, storageService.listByEntity(201L, EntityType.ENTERPRISE).size());
+        assertArrayEquals(content, read(storageService.getFileInfo(storedId)));
+    }
+
+    @Test
+    void chunksOutsideTheGridAreRejected() throws IOException {
+        byte[] content = pdf(SIZE, 3);
+        UploadSession session = create(202L);
+
+        assertMalformed(() -> uploadService.writeChunk(session.getId(), 100, new ByteArrayInputStream(new byte[CHUNK])));
+        assertMalformed(() -> uploadService.writeChunk(session.getId(), 3L * CHUNK, new ByteArrayInputStream(new byte[CHUNK])));
+        assertMalformed(() -> uploadService.writeChunk(session.getId(), 0, new ByteArrayInputStream(new byte[CHUNK - 1])));
+        assertMalformed(() -> uploadService.writeChunk(session.getId(), 2L * CHUNK, new ByteArrayInputStream(new byte[CHUNK])));
+        assertEquals(0, uploadService.getSession(session.getId()).getReceivedBytes().intValue());
+
+        // The rejected chunks left nothing behind that a valid upload would keep
+        for (int i = 0; i < 3; i++) {
+            write(session, content, i);
+        }
+        assertArrayEquals(content, read(uploadService.complete(session.getId())));
+    }
+
+    private UploadSession create(Long entityId) throws IOException {
+        return create(entityId, (long) SIZE);
+    }
+
+    private UploadSession create(Long entityId, Long size) throws IOException {
+        return uploadService.create("contrato.pdf", "application/pdf", size,
+            FileType.DOCUMENT, entityId, EntityType.ENTERPRISE);
+    }
+
+    private UploadSession write(UploadSession session, byte[] content, int index) throws IOException {
+        int from = index * CHUNK;
+        byte[] chunk = Arrays.copyOfRange(content, from, Math.min(from + CHUNK, content.length));
+        return uploadService.writeChunk(session.getId(), from, new ByteArrayInputStream(chunk));
+    }
+
+    private byte[] read(StoredFile file) throws IOException {
+        try (InputStream input = storageService.loadAsResource(file.getId()).getInputStream()) {
+            return input.readAllBytes();
+        }
+    }
+
+    private static byte[] pdf(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        byte[] signature = "%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(signature, 0, content, 0, signature.length);
+        return content;
+    }
+
+    private static void assertMalformed(Callable<?> call) {
+        UploadRejectedException error = assertThrows(UploadRejectedException.class, call::call);
+        assertEquals(Reason.MALFORMED, error.getReason());
+    }
+
+    private interface Task {
+        Object run(int i) throws Exception;
+    }
+
+    private static List<Future<Object>> runTogether(int count, Task task) {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.run(index);
+                }));
+            }
+            start.countDown();
+            return futures;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.patrimonio.PatrimonioApplication;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.repository.StoredBlobRepository;
+import org.acabativa.rc.storage.service.StorageUsageService.EntityUsage;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Deleting or replacing a file that shares its blob with others, many times
+ * at once, must release its reference once and leave the others readable.
+ */
+@SpringBootTest(classes = PatrimonioApplication.class, properties = {
+    "spring.datasource.url=jdbc:h2:mem:storage;DB_CLOSE_DELAY=-1",
+    "storage.dedup.enabled=true",
+    "storage.pack.enabled=false",
+    "storage.compression.enabled=false",
+    "storage.layout.migration.enabled=false"
+})
+class FileSystemStorageServiceTests {
+
+    private static final int DELETES = 8;
+    private static final int UPDATES = 8;
+
+    @TempDir
+    static Path storageLocation;
+
+    @DynamicPropertySource
+    static void storageProperties(DynamicPropertyRegistry registry) {
+        registry.add("storage.location", () -> storageLocation.toString());
+    }
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private StoredBlobRepository blobRepository;
+
+    @Autowired
+    private StorageUsageService usageService;
+
+    @Test
+    void concurrentDeletesOfSharedBlobReleaseItOnce() throws Exception {
+        byte[] content = new byte[32 * 1024];
+        new Random(7).nextBytes(content);
+        List<StoredFile> files = new ArrayList<>();
+        for (long entityId = 1; entityId <= 3; entityId++) {
+            files.add(storageService.store(new ByteArrayInputStream(content), "matricula.pdf", "application/pdf",
+                FileType.DOCUMENT, entityId, EntityType.PROPERTY));
+        }
+        String contentHash = files.get(0).getContentHash();
+        Path blob = Paths.get(files.get(0).getFilePath());
+        assertEquals(blob, Paths.get(files.get(2).getFilePath()));
+        assertEquals(3L, blobRepository.findById(contentHash).orElseThrow().getRefCount());
+
+        Long fileId = files.get(0).getId();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(DELETES);
+        try {
+            List<Future<?>> deletes = new ArrayList<>();
+            for (int i = 0; i < DELETES; i++) {
+                deletes.add(executor.submit(() -> {
+                    start.await();
+                    try {
+                        storageService.delete(fileId);
+                    } catch (RuntimeException e) {
+                        // Already deleted by another request
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> delete : deletes) {
+                delete.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(2L, blobRepository.findById(contentHash).orElseThrow().getRefCount());
+        assertTrue(Files.exists(blob));
+        for (StoredFile file : files.subList(1, 3)) {
+            try (InputStream input = storageService.loadAsResource(file.getId()).getInputStream()) {
+                assertArrayEquals(content, input.readAllBytes());
+            }
+        }
+
+        storageService.delete(files.get(1).getId());
+        storageService.delete(files.get(2).getId());
+        assertFalse(blobRepository.existsById(contentHash));
+        assertFalse(Files.exists(blob));
+    }
+
+    @Test
+    void concurrentUpdatesOfSharedBlobReleaseItOnce() throws Exception {
+        byte[] content = new byte[16 * 1024];
+        new Random(8).nextBytes(content);
+        List<StoredFile> files = new ArrayList<>();
+        for (long entityId = 11; entityId <= 13; entityId++) {
+            files.add(storageService.store(new ByteArrayInputStream(content), "escritura.pdf", "application/pdf",
+                FileType.DOCUMENT, entityId, EntityType.PROPERTY));
+        }
+        String contentHash = files.get(0).getContentHash();
+        Path blob = Paths.get(files.get(0).getFilePath());
+        long blobsBefore = blobRepository.count();
+
+        Long fileId = files.get(0).getId();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(UPDATES);
+        int updated = 0;
+        try {
+            List<Future<StoredFile>> updates = new ArrayList<>();
+            for (int i = 0; i < UPDATES; i++) {
+                // Distinct content and size for every update
+                byte[] replacement = new byte[1024 * (i + 1)];
+                new Random(100 + i).nextBytes(replacement);
+                updates.add(executor.submit(() -> {
+                    start.await();
+                    return storageService.update(fileId, new MockMultipartFile("file", "escritura.pdf",
+                        "application/pdf", replacement));
+                }));
+            }
+            start.countDown();
+            for (Future<StoredFile> update : updates) {
+                try {
+                    update.get();
+                    updated++;
+                } catch (ExecutionException e) {
+                    UploadRejectedException rejected = assertInstanceOf(UploadRejectedException.class, e.getCause());
+                    assertEquals(Reason.CONFLICT, rejected.getReason());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(updated >= 1);
+
+        // The shared blob lost one reference, and only the content the row
+        // ends up with was kept of the replacements
+        assertEquals(2L, blobRepository.findById(contentHash).orElseThrow().getRefCount());
+        assertTrue(Files.exists(blob));
+        StoredFile current = storageService.getFileInfo(fileId);
+        assertEquals(1L, blobRepository.findById(current.getContentHash()).orElseThrow().getRefCount());
+        assertEquals(blobsBefore + 1, blobRepository.count());
+        for (StoredFile file : files.subList(1, 3)) {
+            try (InputStream input = storageService.loadAsResource(file.getId()).getInputStream()) {
+                assertArrayEquals(content, input.readAllBytes());
+            }
+        }
+
+        EntityUsage usage = usageService.getUsage(11L, EntityType.PROPERTY);
+        assertEquals(1, usage.fileCount());
+        assertEquals(current.getFileSize().longValue(), usage.totalBytes());
+    }
+}
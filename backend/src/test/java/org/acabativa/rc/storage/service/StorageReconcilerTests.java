@@ -0,0 +1,127 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.patrimonio.PatrimonioApplication;
+import org.acabativa.rc.patrimonio.entity.Property;
+import org.acabativa.rc.patrimonio.repository.PropertyDAO;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.repository.StoredFileRepository;
+import org.acabativa.rc.storage.service.StorageReconciler.Finding;
+import org.acabativa.rc.storage.service.StorageReconciler.Report;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A report-only run finds the same problems as a repairing one but leaves
+ * them in place; the repairing run fixes them so the next run finds nothing.
+ */
+@SpringBootTest(classes = PatrimonioApplication.class, properties = {
+    "spring.datasource.url=jdbc:h2:mem:reconciler;DB_CLOSE_DELAY=-1",
+    "storage.reconcile.enabled=false",
+    "storage.reconcile.min-age=0s",
+    "storage.reconcile.max-ops-per-second=0",
+    "storage.dedup.enabled=false",
+    "storage.pack.enabled=false",
+    "storage.compression.enabled=false",
+    "storage.layout.migration.enabled=false"
+})
+class StorageReconcilerTests {
+
+    // No property has this id
+    private static final long DELETED_PROPERTY = 987_654L;
+
+    @TempDir
+    static Path storageLocation;
+
+    @DynamicPropertySource
+    static void storageProperties(DynamicPropertyRegistry registry) {
+        registry.add("storage.location", () -> storageLocation.toString());
+    }
+
+    @Autowired
+    private StorageReconciler reconciler;
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private StoredFileRepository repository;
+
+    @Autowired
+    private PropertyDAO propertyDao;
+
+    @Test
+    void reportOnlyThenRepair() throws Exception {
+        Property property = new Property();
+        property.setName("Fazenda");
+        Long propertyId = propertyDao.save(property).getId();
+
+        StoredFile kept = store("matricula.txt", propertyId);
+        StoredFile lostFile = store("escritura.txt", propertyId);
+        StoredFile ofDeletedEntity = store("contrato.txt", DELETED_PROPERTY);
+        Files.delete(Paths.get(lostFile.getFilePath()));
+        Path orphan = Files.writeString(storageLocation.resolve("documents").resolve("esquecido.txt"), "sem dono");
+        // Everything above is older than the run
+        Thread.sleep(20);
+
+        Report report = reconciler.run(false);
+        assertFalse(report.repair());
+        assertEquals(3, report.rowsScanned());
+        assertFinding(report.orphanedFiles(), 1, 0, orphan.toString());
+        assertFinding(report.danglingRows(), 1, 0, String.valueOf(lostFile.getId()));
+        assertFinding(report.orphanedRows(), 1, 0, String.valueOf(ofDeletedEntity.getId()));
+        assertEquals(0, report.missingBlobs().count());
+        assertEquals(report, reconciler.getLastReport());
+
+        // Nothing was touched
+        assertTrue(Files.exists(orphan));
+        assertTrue(repository.existsById(lostFile.getId()));
+        assertTrue(repository.existsById(ofDeletedEntity.getId()));
+        assertTrue(Files.exists(Paths.get(ofDeletedEntity.getFilePath())));
+
+        report = reconciler.run(true);
+        assertTrue(report.repair());
+        assertFinding(report.orphanedFiles(), 1, 1, orphan.toString());
+        assertFinding(report.danglingRows(), 1, 1, String.valueOf(lostFile.getId()));
+        assertFinding(report.orphanedRows(), 1, 1, String.valueOf(ofDeletedEntity.getId()));
+
+        assertFalse(Files.exists(orphan));
+        assertFalse(repository.existsById(lostFile.getId()));
+        assertFalse(repository.existsById(ofDeletedEntity.getId()));
+        assertFalse(Files.exists(Paths.get(ofDeletedEntity.getFilePath())));
+        assertTrue(Files.exists(Paths.get(kept.getFilePath())));
+
+        report = reconciler.run(false);
+        assertEquals(1, report.rowsScanned());
+        assertEquals(0, report.orphanedFiles().count() + report.danglingRows().count()
+            + report.orphanedRows().count() + report.missingBlobs().count());
+    }
+
+    private StoredFile store(String name, Long propertyId) {
+        byte[] content = ("conteúdo de " + name).getBytes(StandardCharsets.UTF_8);
+        return storageService.store(new ByteArrayInputStream(content), name, "text/plain",
+            FileType.DOCUMENT, propertyId, EntityType.PROPERTY);
+    }
+
+    private static void assertFinding(Finding finding, long count, long repaired, String sample) {
+        assertEquals(count, finding.count());
+        assertEquals(repaired, finding.repaired());
+        assertEquals(List.of(sample), finding.samples());
+    }
+}
@@ -0,0 +1,137 @@
+package org.acabativa.rc.storage.service;
+
+import org.acabativa.rc.patrimonio.PatrimonioApplication;
+import org.acabativa.rc.storage.entity.StoredFile;
+import org.acabativa.rc.storage.entity.StoredFile.EntityType;
+import org.acabativa.rc.storage.entity.StoredFile.FileType;
+import org.acabativa.rc.storage.service.StorageUsageService.EntityUsage;
+import org.acabativa.rc.storage.util.UploadRejectedException;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Concurrent uploads to one entity never take it past its quota, and the
+ * counters match what was stored.
+ */
+@SpringBootTest(classes = PatrimonioApplication.class, properties = {
+    "spring.datasource.url=jdbc:h2:mem:usage;DB_CLOSE_DELAY=-1",
+    "storage.quota.max-files=5",
+    "storage.quota.max-bytes=10KB",
+    "storage.dedup.enabled=false",
+    "storage.pack.enabled=false",
+    "storage.compression.enabled=false",
+    "storage.layout.migration.enabled=false"
+})
+class StorageUsageServiceTests {
+
+    private static final int UPLOADS = 16;
+
+    @TempDir
+    static Path storageLocation;
+
+    @DynamicPropertySource
+    static void storageProperties(DynamicPropertyRegistry registry) {
+        registry.add("storage.location", () -> storageLocation.toString());
+    }
+
+    @Autowired
+    private StorageService storageService;
+
+    @Autowired
+    private StorageUsageService usageService;
+
+    @Test
+    void concurrentUploadsStopAtTheFileQuota() throws Exception {
+        Long entityId = 301L;
+        int stored = uploadConcurrently(entityId, 1024);
+
+        assertEquals(5, stored);
+        assertUsage(entityId, 5, 5 * 1024);
+    }
+
+    @Test
+    void concurrentUploadsStopAtTheByteQuota() throws Exception {
+        Long entityId = 302L;
+        int stored = uploadConcurrently(entityId, 3 * 1024);
+
+        assertEquals(3, stored);
+        assertUsage(entityId, 3, 9 * 1024);
+
+        // Known sizes are refused before any content is sent
+        UploadRejectedException early = assertThrows(UploadRejectedException.class,
+            () -> usageService.checkQuota(entityId, EntityType.ENTERPRISE, FileType.DOCUMENT, 2 * 1024));
+        assertEquals(Reason.QUOTA_EXCEEDED, early.getReason());
+
+        // Deleting a file gives its room back
+        StoredFile first = storageService.listByEntity(entityId, EntityType.ENTERPRISE).get(0);
+        storageService.delete(first.getId());
+        assertUsage(entityId, 2, 6 * 1024);
+        store(entityId, 3 * 1024, 99);
+        assertUsage(entityId, 3, 9 * 1024);
+    }
+
+    // Number of uploads that were stored; every other one must be a quota rejection
+    private int uploadConcurrently(Long entityId, int size) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(UPLOADS);
+        List<Future<StoredFile>> uploads = new ArrayList<>();
+        try {
+            for (int i = 0; i < UPLOADS; i++) {
+                int seed = i;
+                uploads.add(executor.submit(() -> {
+                    start.await();
+                    return store(entityId, size, seed);
+                }));
+            }
+            start.countDown();
+            int stored = 0;
+            for (Future<StoredFile> upload : uploads) {
+                try {
+                    upload.get();
+                    stored++;
+                } catch (ExecutionException e) {
+                    UploadRejectedException rejected = assertInstanceOf(UploadRejectedException.class, e.getCause());
+                    assertEquals(Reason.QUOTA_EXCEEDED, rejected.getReason());
+                }
+            }
+            return stored;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private StoredFile store(Long entityId, int size, int seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        content[0] = 'a';
+        return storageService.store(new ByteArrayInputStream(content), "planilha-" + seed + ".txt", "text/plain",
+            FileType.DOCUMENT, entityId, EntityType.ENTERPRISE);
+    }
+
+    private void assertUsage(Long entityId, long files, long bytes) {
+        EntityUsage usage = usageService.getUsage(entityId, EntityType.ENTERPRISE);
+        assertEquals(files, usage.fileCount());
+        assertEquals(bytes, usage.totalBytes());
+        assertEquals(files, storageService.listByEntity(entityId, EntityType.ENTERPRISE).size());
+    }
+}
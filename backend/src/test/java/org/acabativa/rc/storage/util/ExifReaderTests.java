@@ -0,0 +1,177 @@
+package org.acabativa.rc.storage.util;
+
+import org.acabativa.rc.storage.util.ExifReader.Exif;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Orientation, capture date and GPS position read from JPEG Exif blocks in
+ * both byte orders, and the blocks that give nothing.
+ */
+class ExifReaderTests {
+
+    private static final String DATE_TIME = "2024:05:02 10:00:00";
+    private static final String DATE_TIME_ORIGINAL = "2024:05:01 08:30:15";
+    // 23°33'1.5" and 46°38'0.25"
+    private static final double LATITUDE = 23 + 33 / 60.0 + 1.5 / 3600;
+    private static final double LONGITUDE = 46 + 38 / 60.0 + 0.25 / 3600;
+
+    private static final int IFD0 = 8;
+    private static final int EXIF_IFD = 62;
+    private static final int GPS_IFD = 80;
+    private static final int DATA = 134;
+    private static final int SIZE = 222;
+
+    @Test
+    void littleEndianSouthWest() throws IOException {
+        Exif exif = read(jpeg(tiff(ByteOrder.LITTLE_ENDIAN, 6, DATE_TIME_ORIGINAL, "S", "W")));
+
+        assertEquals(6, exif.orientation());
+        assertEquals(LocalDateTime.of(2024, 5, 1, 8, 30, 15), exif.capturedAt());
+        assertEquals(-LATITUDE, exif.latitude(), 1e-9);
+        assertEquals(-LONGITUDE, exif.longitude(), 1e-9);
+    }
+
+    @Test
+    void bigEndianNorthEast() throws IOException {
+        Exif exif = read(jpeg(tiff(ByteOrder.BIG_ENDIAN, 3, DATE_TIME_ORIGINAL, "N", "E")));
+
+        assertEquals(3, exif.orientation());
+        assertEquals(LATITUDE, exif.latitude(), 1e-9);
+        assertEquals(LONGITUDE, exif.longitude(), 1e-9);
+    }
+
+    @Test
+    void outOfRangeOrientationAndBlankOriginalDate() throws IOException {
+        Exif exif = read(jpeg(tiff(ByteOrder.LITTLE_ENDIAN, 9, "0000:00:00 00:00:00", "N", "E")));
+
+        assertNull(exif.orientation());
+        // Falls back to the date the file was written
+        assertEquals(LocalDateTime.of(2024, 5, 2, 10, 0, 0), exif.capturedAt());
+    }
+
+    @Test
+    void positionNeedsBothCoordinates() throws IOException {
+        ByteBuffer tiff = tiff(ByteOrder.BIG_ENDIAN, 1, DATE_TIME_ORIGINAL, "N", "E");
+        // Turn the longitude entry into an unknown tag
+        tiff.putShort(GPS_IFD + 2 + 3 * 12, (short) 0x0099);
+        Exif exif = read(jpeg(tiff));
+
+        assertEquals(1, exif.orientation());
+        assertNull(exif.latitude());
+        assertNull(exif.longitude());
+    }
+
+    @Test
+    void brokenOrMissingExifGivesNothing() throws IOException {
+        ByteBuffer outside = tiff(ByteOrder.LITTLE_ENDIAN, 6, DATE_TIME_ORIGINAL, "S", "W");
+        outside.putInt(GPS_IFD + 2 + 12 + 8, 100_000);
+        assertEmpty(read(jpeg(outside)));
+
+        ByteBuffer badMagic = tiff(ByteOrder.LITTLE_ENDIAN, 6, DATE_TIME_ORIGINAL, "S", "W");
+        badMagic.putShort(2, (short) 43);
+        assertEmpty(read(jpeg(badMagic)));
+
+        // No APP1 before the image data, and not a JPEG at all
+        assertEmpty(read(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2}));
+        assertEmpty(read(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}));
+        // Cut inside the Exif segment
+        byte[] whole = jpeg(tiff(ByteOrder.BIG_ENDIAN, 6, DATE_TIME_ORIGINAL, "N", "E"));
+        byte[] truncated = new byte[whole.length - SIZE / 2];
+        System.arraycopy(whole, 0, truncated, 0, truncated.length);
+        assertEmpty(read(truncated));
+    }
+
+    private static Exif read(byte[] jpeg) throws IOException {
+        return ExifReader.read(new ByteArrayInputStream(jpeg));
+    }
+
+    private static void assertEmpty(Exif exif) {
+        assertNull(exif.orientation());
+        assertNull(exif.capturedAt());
+        assertNull(exif.latitude());
+        assertNull(exif.longitude());
+    }
+
+    // SOI, a JFIF APP0 to skip, the Exif APP1 and the start of the image data
+    private static byte[] jpeg(ByteBuffer tiff) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[] {(byte) 0xFF, (byte) 0xD8});
+        byte[] jfif = "JFIF\0\1\1\0\0\1\0\1\0\0".getBytes(StandardCharsets.ISO_8859_1);
+        segment(out, 0xE0, jfif);
+        ByteArrayOutputStream exif = new ByteArrayOutputStream();
+        exif.writeBytes("Exif\0\0".getBytes(StandardCharsets.ISO_8859_1));
+        exif.writeBytes(tiff.array());
+        segment(out, 0xE1, exif.toByteArray());
+        out.writeBytes(new byte[] {(byte) 0xFF, (byte) 0xDA, 0, 2});
+        return out.toByteArray();
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, byte[] content) {
+        int length = content.length + 2;
+        out.writeBytes(new byte[] {(byte) 0xFF, (byte) marker, (byte) (length >> 8), (byte) length});
+        out.writeBytes(content);
+    }
+
+    private static ByteBuffer tiff(ByteOrder order, int orientation, String dateTimeOriginal,
+                                   String latitudeRef, String longitudeRef) {
+        ByteBuffer tiff = ByteBuffer.allocate(SIZE).order(order);
+        tiff.put(0, (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        tiff.put(1, tiff.get(0));
+        tiff.putShort(2, (short) 42);
+        tiff.putInt(4, IFD0);
+
+        tiff.putShort(IFD0, (short) 4);
+        entry(tiff, IFD0, 0, 0x0112, 3, 1);
+        tiff.putShort(IFD0 + 2 + 8, (short) orientation);
+        entry(tiff, IFD0, 1, 0x0132, 2, 20);
+        tiff.putInt(IFD0 + 2 + 12 + 8, DATA);
+        entry(tiff, IFD0, 2, 0x8769, 4, 1);
+        tiff.putInt(IFD0 + 2 + 24 + 8, EXIF_IFD);
+        entry(tiff, IFD0, 3, 0x8825, 4, 1);
+        tiff.putInt(IFD0 + 2 + 36 + 8, GPS_IFD);
+
+        tiff.putShort(EXIF_IFD, (short) 1);
+        entry(tiff, EXIF_IFD, 0, 0x9003, 2, 20);
+        tiff.putInt(EXIF_IFD + 2 + 8, DATA + 20);
+
+        tiff.putShort(GPS_IFD, (short) 4);
+        entry(tiff, GPS_IFD, 0, 0x0001, 2, 2);
+        tiff.put(GPS_IFD + 2 + 8, (byte) latitudeRef.charAt(0));
+        entry(tiff, GPS_IFD, 1, 0x0002, 5, 3);
+        tiff.putInt(GPS_IFD + 2 + 12 + 8, DATA + 40);
+        entry(tiff, GPS_IFD, 2, 0x0003, 2, 2);
+        tiff.put(GPS_IFD + 2 + 24 + 8, (byte) longitudeRef.charAt(0));
+        entry(tiff, GPS_IFD, 3, 0x0004, 5, 3);
+        tiff.putInt(GPS_IFD + 2 + 36 + 8, DATA + 64);
+
+        tiff.put(DATA, (DATE_TIME + "\0").getBytes(StandardCharsets.US_ASCII));
+        tiff.put(DATA + 20, (dateTimeOriginal + "\0").getBytes(StandardCharsets.US_ASCII));
+        rationals(tiff, DATA + 40, 23, 1, 33, 1, 15, 10);
+        rationals(tiff, DATA + 64, 46, 1, 38, 1, 25, 100);
+        return tiff.position(0);
+    }
+
+    private static void entry(ByteBuffer tiff, int ifd, int index, int tag, int type, int count) {
+        int entry = ifd + 2 + 12 * index;
+        tiff.putShort(entry, (short) tag);
+        tiff.putShort(entry + 2, (short) type);
+        tiff.putInt(entry + 4, count);
+    }
+
+    private static void rationals(ByteBuffer tiff, int offset, int... values) {
+        for (int i = 0; i < values.length; i++) {
+            tiff.putInt(offset + 4 * i, values[i]);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.acabativa.rc.storage.util;
+
+import org.acabativa.rc.storage.util.MultipartStreamParser.Part;
+import org.acabativa.rc.storage.util.UploadRejectedException.Reason;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Boundaries, split reads and limits of the streaming multipart reader.
+ */
+class MultipartStreamParserTests {
+
+    private static final String BOUNDARY = "----rcBoundary7MA4YWxk";
+
+    @Test
+    void boundaryOfContentType() {
+        assertEquals(BOUNDARY, MultipartStreamParser.boundaryOf("multipart/form-data; boundary=" + BOUNDARY));
+        assertEquals("a b", MultipartStreamParser.boundaryOf("multipart/form-data; boundary=\"a b\""));
+        assertEquals("x".repeat(70), MultipartStreamParser.boundaryOf("multipart/form-data; boundary=" + "x".repeat(70)));
+
+        assertNull(MultipartStreamParser.boundaryOf(null));
+        assertNull(MultipartStreamParser.boundaryOf("application/json"));
+        assertNull(MultipartStreamParser.boundaryOf("multipart/form-data"));
+        assertNull(MultipartStreamParser.boundaryOf("multipart/form-data; boundary=\"\""));
+        assertNull(MultipartStreamParser.boundaryOf("multipart/form-data; boundary=" + "x".repeat(71)));
+        assertNull(MultipartStreamParser.boundaryOf("not a media type"));
+    }
+
+    @Test
+    void readsPartsAroundPreambleAndEpilogue() throws IOException {
+        byte[] file = "%PDF-1.4 conteúdo".getBytes(StandardCharsets.UTF_8);
+        byte[] body = body("preamble to ignore\r\n",
+            part("form-data; name=\"description\"", null, "Matrícula".getBytes(StandardCharsets.UTF_8)),
+            part("form-data; name=\"file\"; filename=\"matricula.pdf\"", "application/pdf", file),
+            "\r\n--" + BOUNDARY + "--\r\nepilogue to ignore");
+
+        MultipartStreamParser parser = new MultipartStreamParser(new ByteArrayInputStream(body), BOUNDARY);
+        Part description = parser.nextPart();
+        assertEquals("description", description.name());
+        assertNull(description.filename());
+        assertEquals("Matrícula", new String(description.body().readAllBytes(), StandardCharsets.UTF_8));
+
+        Part upload = parser.nextPart();
+        assertEquals("file", upload.name());
+        assertEquals("matricula.pdf", upload.filename());
+        assertEquals("application/pdf", upload.contentType());
+        assertArrayEquals(file, upload.body().readAllBytes());
+        assertEquals(-1, upload.body().read());
+
+        assertNull(parser.nextPart());
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    void delimiterSplitAcrossReadsAndLookalikesInTheBody() throws IOException {
+        // Bytes that start like the delimiter but are part of the content
+        byte[] file = ("a\r\n--" + BOUNDARY.substring(0, 10) + "b\r\n-\r\n" + BOUNDARY + "\r\r\n-x").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = body("", part("form-data; name=\"file\"; filename=\"a.txt\"", "text/plain", file),
+            "\r\n--" + BOUNDARY + "--\r\n");
+
+        for (int chunk : new int[] {1, 2, 7, BOUNDARY.length() + 3}) {
+            MultipartStreamParser parser = new MultipartStreamParser(new TrickleInputStream(body, chunk), BOUNDARY);
+            Part part = parser.nextPart();
+            assertArrayEquals(file, readOneByteAtATime(part.body()), "chunk of " + chunk);
+            assertNull(parser.nextPart());
+        }
+    }
+
+    @Test
+    void partLargerThanTheBufferIsStreamed() throws IOException {
+        byte[] file = new byte[300 * 1024];
+        new Random(11).nextBytes(file);
+        byte[] body = body("", part("form-data; name=\"file\"; filename=\"foto.jpg\"", "image/jpeg", file),
+            "\r\n--" + BOUNDARY + "--");
+
+        MultipartStreamParser parser = new MultipartStreamParser(new TrickleInputStream(body, 8192), BOUNDARY);
+        assertArrayEquals(file, parser.nextPart().body().readAllBytes());
+        assertNull(parser.nextPart());
+    }
+
+    @Test
+    void unreadPartIsSkipped() throws IOException {
+        byte[] skipped = new byte[100 * 1024];
+        new Random(5).nextBytes(skipped);
+        byte[] body = body("",
+            part("form-data; name=\"first\"; filename=\"a.bin\"", null, skipped),
+            part("form-data; name=\"second\"", null, "ok".getBytes(StandardCharsets.US_ASCII)),
+            "\r\n--" + BOUNDARY + "--");
+
+        MultipartStreamParser parser = new MultipartStreamParser(new ByteArrayInputStream(body), BOUNDARY);
+        Part first = parser.nextPart();
+        first.body().read(new byte[10]);
+        Part second = parser.nextPart();
+        assertEquals("second", second.name());
+        assertEquals("ok", new String(second.body().readAllBytes(), StandardCharsets.US_ASCII));
+        assertEquals(-1, first.body().read());
+    }
+
+    @Test
+    void partWithoutHeaders() throws IOException {
+        byte[] body = ("--" + BOUNDARY + "\r\n\r\nvalue\r\n--" + BOUNDARY + "--").getBytes(StandardCharsets.US_ASCII);
+        Part part = new MultipartStreamParser(new ByteArrayInputStream(body), BOUNDARY).nextPart();
+        assertNull(part.name());
+        assertEquals("value", new String(part.body().readAllBytes(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void oversizedHeadersAreRejected() {
+        String headers = "Content-Disposition: form-data; name=\"file\"\r\nX-Padding: " + "p".repeat(9000) + "\r\n\r\n";
+        byte[] body = ("--" + BOUNDARY + "\r\n" + headers + "x\r\n--" + BOUNDARY + "--").getBytes(StandardCharsets.US_ASCII);
+
+        // Whether the headers arrive in one read or in many
+        assertMalformed(body, "Multipart headers too large");
+        UploadRejectedException error = assertThrows(UploadRejectedException.class,
+            () -> new MultipartStreamParser(new TrickleInputStream(body, 100), BOUNDARY).nextPart());
+        assertEquals(Reason.MALFORMED, error.getReason());
+    }
+
+    @Test
+    void truncatedBodiesAreRejected() {
+        byte[] complete = body("", part("form-data; name=\"file\"; filename=\"a.txt\"", null,
+            "content".getBytes(StandardCharsets.US_ASCII)), "\r\n--" + BOUNDARY + "--");
+
+        // Cut inside the headers, inside the content and right after the last delimiter
+        assertMalformed(slice(complete, 40), "Unexpected end of multipart headers");
+        assertMalformed(slice(complete, complete.length - BOUNDARY.length() - 6), "Unexpected end of multipart body");
+        assertMalformed(slice(complete, complete.length - 2), "Unexpected end of multipart body");
+    }
+
+    @Test
+    void garbageAfterDelimiterIsRejected() {
+        byte[] body = ("--" + BOUNDARY + "junk\r\n\r\nx\r\n--" + BOUNDARY + "--").getBytes(StandardCharsets.US_ASCII);
+
+        assertMalformed(body, "Malformed multipart boundary");
+    }
+
+    private static void assertMalformed(byte[] body, String message) {
+        UploadRejectedException error = assertThrows(UploadRejectedException.class, () -> {
+            MultipartStreamParser parser = new MultipartStreamParser(new ByteArrayInputStream(body), BOUNDARY);
+            Part part;
+            while ((part = parser.nextPart()) != null) {
+                part.body().readAllBytes();
+            }
+        });
+        assertEquals(Reason.MALFORMED, error.getReason());
+        assertEquals(message, error.getMessage());
+    }
+
+    private static byte[] part(String disposition, String contentType, byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String headers = "--" + BOUNDARY + "\r\nContent-Disposition: " + disposition + "\r\n"
+            + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "") + "\r\n";
+        out.writeBytes(headers.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(content);
+        return out.toByteArray();
+    }
+
+    private static byte[] body(String preamble, Object... rest) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(preamble.getBytes(StandardCharsets.US_ASCII));
+        for (int i = 0; i < rest.length; i++) {
+            if (rest[i] instanceof byte[] part) {
+                // Each part body ends with the CRLF that opens the next delimiter
+                out.writeBytes(i > 0 ? "\r\n".getBytes(StandardCharsets.US_ASCII) : new byte[0]);
+                out.writeBytes(part);
+            } else {
+                out.writeBytes(((String) rest[i]).getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] slice(byte[] bytes, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(bytes, 0, slice, 0, length);
+        return slice;
+    }
+
+    private static byte[] readOneByteAtATime(InputStream input) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) >= 0) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    // Hands out at most a few bytes per read, like a slow client
+    private static final class TrickleInputStream extends ByteArrayInputStream {
+
+        private final int chunk;
+
+        TrickleInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] target, int offset, int length) {
+            return super.read(target, offset, Math.min(length, chunk));
+        }
+    }
+}
@@ -385,6 +385,54 @@ const EnterpriseService = {
     }
 };
 
+// =====================================================
+// FOTOS
+// =====================================================
+
+const PhotoService = {
+    /**
+     * Capas de varias entidades em uma unica requisicao.
+     * entities: [{ entityType: 'property', entityId: 1 }, ...]
+     * Retorna um mapa "tipo:id" -> URL absoluta do thumbnail (entidades sem foto ficam de fora)
+     */
+    async getCovers(entities, size) {
+        if (!entities.length) {
+            return {};
+        }
+        const covers = await API.post(`${CONFIG.ENDPOINTS.PHOTOS}/covers`, { size, entities });
+        const urls = {};
+        covers.forEach(cover => {
+            if (cover.thumbnailUrl) {
+                urls[`${cover.entityType}:${cover.entityId}`] = `${CONFIG.API_BASE_URL}${cover.thumbnailUrl}`;
+            }
+        });
+        return urls;
+    },
+
+    /**
+     * Preenche as <img data-cover="tipo:id"> do container com as capas
+     */
+    async applyCovers(container, size) {
+        const images = Array.from(container.querySelectorAll('img[data-cover]'));
+        const keys = [...new Set(images.map(img => img.dataset.cover))];
+        const entities = keys.map(key => {
+            const [entityType, entityId] = key.split(':');
+            return { entityType, entityId: Number(entityId) };
+        });
+        try {
+            const urls = await this.getCovers(entities, size);
+            images.forEach(img => {
+                if (urls[img.dataset.cover]) {
+                    img.src = urls[img.dataset.cover];
+                }
+            });
+        } catch (error) {
+            // Mantem os placeholders
+            console.error('Erro ao carregar capas:', error);
+        }
+    }
+};
+
 // Exportar para uso global
 if (typeof window !== 'undefined') {
     window.API = API;
@@ -392,4 +440,5 @@ if (typeof window !== 'undefined') {
     window.ProjectService = ProjectService;
     window.InvestorService = InvestorService;
     window.EnterpriseService = EnterpriseService;
+    window.PhotoService = PhotoService;
 }
@@ -14,5 +14,11 @@ GRANT ALL ON SCHEMA public TO patrimonio_user;
 GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO patrimonio_user;
 GRANT ALL PRIVILEGES ON ALL SEQUENCES IN SCHEMA public TO patrimonio_user;
 
+-- Bancos existentes: o id de stored_files passou a ser reservado de 50 em 50
+-- (allocationSize = 50 em StoredFile); o incremento da sequence precisa acompanhar
+ALTER SEQUENCE IF EXISTS file_sequence INCREMENT BY 50;
+-- Idem para o ledger de investimentos (allocationSize = 50 em InvestmentEvent)
+ALTER SEQUENCE IF EXISTS investment_event_sequence INCREMENT BY 50;
+
 -- Mensagem de sucesso
 \echo 'Banco de dados configurado com sucesso!'